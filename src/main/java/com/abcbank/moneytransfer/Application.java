@@ -10,11 +10,15 @@
  */ 
 package com.abcbank.moneytransfer;
 
+import com.abcbank.moneytransfer.dao.BulkLoader;
 import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
 import com.abcbank.moneytransfer.service.AccountService;
+import com.abcbank.moneytransfer.service.MetricsService;
 import com.abcbank.moneytransfer.service.ServiceExceptionMapper;
 import com.abcbank.moneytransfer.service.TransactionService;
 import com.abcbank.moneytransfer.service.UserService;
+import com.abcbank.moneytransfer.utils.Utils;
 
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.server.Server;
@@ -22,6 +26,11 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.glassfish.jersey.servlet.ServletContainer;
 
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 
 /**
  * Main Class (Starting point).
@@ -38,21 +47,74 @@ public class Application {
 	 * @throws Exception the exception
 	 */
 	public static void main(String[] args) throws Exception {
-		// Initialize H2 database with demo data
-		log.info("Initialize demo .....");
-		DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
-		h2DaoFactory.populateTestData();
+		long start = System.currentTimeMillis();
+		// the in memory engine recovers its snapshot and journal here
+		DAOFactory daoFactory = DAOFactory.getDAOFactory();
+		long phase = logPhase("DAO engine start", start);
+		// production path: versioned schema, existing data is kept
+		log.info("Initialize schema .....");
+		daoFactory.initSchema();
+		phase = logPhase("Schema initialisation", phase);
+		if (Utils.getBooleanProperty("demo_data", !daoFactory.isDurable())) {
+			// reset the database with the demo users and accounts
+			log.info("Initialize demo .....");
+			daoFactory.populateTestData();
+			phase = logPhase("Demo data", phase);
+		}
+		if (daoFactory instanceof H2DAOFactory) {
+			bulkLoad();
+			phase = logPhase("Bulk load", phase);
+		}
 		log.info("Initialisation Complete....");
 		// Host service on jetty
-		startService();
+		startService(start);
+	}
+
+	/**
+	 * Log the duration of a startup phase.
+	 *
+	 * @param name the phase name
+	 * @param phaseStart the phase start in millis
+	 * @return the phase end in millis
+	 */
+	private static long logPhase(String name, long phaseStart) {
+		long now = System.currentTimeMillis();
+		log.info("Startup phase: " + name + " took " + (now - phaseStart) + " ms");
+		return now;
+	}
+
+	/**
+	 * Seed users and accounts from the csv files named by bulk_load_users_csv
+	 * and bulk_load_accounts_csv, when set.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void bulkLoad() throws Exception {
+		BulkLoader loader = new BulkLoader();
+		String usersCsv = Utils.getStringProperty("bulk_load_users_csv");
+		if (usersCsv != null && !usersCsv.trim().isEmpty()) {
+			log.info("Bulk loading users from " + usersCsv);
+			try (Reader reader = Files.newBufferedReader(Paths.get(usersCsv.trim()), StandardCharsets.UTF_8)) {
+				loader.loadUsers(reader);
+			}
+		}
+		String accountsCsv = Utils.getStringProperty("bulk_load_accounts_csv");
+		if (accountsCsv != null && !accountsCsv.trim().isEmpty()) {
+			log.info("Bulk loading accounts from " + accountsCsv);
+			try (Reader reader = Files.newBufferedReader(Paths.get(accountsCsv.trim()), StandardCharsets.UTF_8)) {
+				loader.loadAccounts(reader);
+			}
+		}
 	}
 
 	/**
 	 * Start service.
 	 *
+	 * @param start the application start in millis
 	 * @throws Exception the exception
 	 */
-	private static void startService() throws Exception {
+	private static void startService(long start) throws Exception {
+		long phase = System.currentTimeMillis();
 		Server server = new Server(8080);
 		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
 		context.setContextPath("/");
@@ -61,9 +123,12 @@ public class Application {
 		servletHolder.setInitParameter("jersey.config.server.provider.classnames",
 				UserService.class.getCanonicalName() + "," + AccountService.class.getCanonicalName() + ","
 						+ ServiceExceptionMapper.class.getCanonicalName() + ","
-						+ TransactionService.class.getCanonicalName());
+						+ TransactionService.class.getCanonicalName() + ","
+						+ MetricsService.class.getCanonicalName());
 		try {
 			server.start();
+			logPhase("Server start", phase);
+			log.info("Startup complete in " + (System.currentTimeMillis() - start) + " ms");
 			server.join();
 		} finally {
 			server.destroy();
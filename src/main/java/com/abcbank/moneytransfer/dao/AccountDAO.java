@@ -12,8 +12,12 @@ package com.abcbank.moneytransfer.dao;
 
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.TransferResult;
 import com.abcbank.moneytransfer.model.UserTransaction;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.List;
 
@@ -31,6 +35,26 @@ public interface AccountDAO {
      * @throws CustomException the custom exception
      */
     List<Account> getAllAccounts() throws CustomException;
+
+    /**
+     * Gets a page of accounts in account id order, starting after the given id.
+     *
+     * @param afterId the last account id of the previous page, 0 for the first page
+     * @param limit the max number of accounts
+     * @return the accounts
+     * @throws CustomException the custom exception
+     */
+    List<Account> getAccounts(long afterId, int limit) throws CustomException;
+
+    /**
+     * Stream all accounts in account id order to the handler, one at a time.
+     *
+     * @param handler the row handler
+     * @return the number of accounts streamed
+     * @throws CustomException the custom exception
+     * @throws IOException if the handler fails
+     */
+    long streamAllAccounts(RowHandler<Account> handler) throws CustomException, IOException;
     
     /**
      * Gets the account by id.
@@ -45,10 +69,10 @@ public interface AccountDAO {
      * Creates the account.
      *
      * @param account the account
-     * @return the long
+     * @return the account as stored, with its account id
      * @throws CustomException the custom exception
      */
-    long createAccount(Account account) throws CustomException;
+    Account createAccount(Account account) throws CustomException;
     
     /**
      * Delete account by id.
@@ -64,10 +88,32 @@ public interface AccountDAO {
      *
      * @param accountId user accountId
      * @param deltaAmount amount to be debit(less than 0)/credit(greater than 0).
-     * @return no. of rows updated
+     * @return the account after the update
+     * @throws CustomException the custom exception
+     */
+    Account updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException;
+
+    /**
+     * Apply a delta to the account balance in one atomic step, rejecting it
+     * when the balance would go below zero.
+     *
+     * @param accountId user accountId
+     * @param deltaAmount amount to be debit(less than 0)/credit(greater than 0).
+     * @return the new balance
+     * @throws CustomException if the account is missing or has not enough fund
+     */
+    BigDecimal adjustAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException;
+
+    /**
+     * Apply a batch of deposits and withdrawals, each on its own: one naming
+     * a missing account or taking its balance below zero is skipped, the
+     * others still apply.
+     *
+     * @param adjustments the balance adjustments
+     * @return the result of each adjustment, in batch order
      * @throws CustomException the custom exception
      */
-    int updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException;
+    List<BalanceResult> adjustAccountBalances(List<BalanceAdjustment> adjustments) throws CustomException;
     
     /**
      * Transfer account balance.
@@ -77,4 +123,38 @@ public interface AccountDAO {
      * @throws CustomException the custom exception
      */
     int transferAccountBalance(UserTransaction userTransaction) throws CustomException;
+
+    /**
+     * Transfer account balance and, when recordsIdempotency, write the
+     * response of its idempotency key in the same transaction. A key the
+     * table has already fails the transfer, with the record taken.
+     *
+     * @param userTransaction the user transaction
+     * @param record the response of the idempotency key
+     * @return the int
+     * @throws CustomException the custom exception
+     */
+    int transferAccountBalance(UserTransaction userTransaction, IdempotencyStore.Record record)
+            throws CustomException;
+
+    /**
+     * Checks if a transfer can write its idempotency record in its own
+     * transaction, that is if the keys are in the database of the accounts.
+     *
+     * @return true, if the record is written with the transfer
+     */
+    boolean recordsIdempotency();
+
+    /**
+     * Transfer balances for a batch of transactions, in order. An all-or-nothing
+     * batch commits every transfer or none of them; otherwise each transfer
+     * commits or fails on its own.
+     *
+     * @param transactions the user transactions
+     * @param atomic true to commit all the transfers or none
+     * @return the result of each transaction, in batch order
+     * @throws CustomException if an all-or-nothing batch cannot be run by this engine
+     */
+    List<TransferResult> transferAccountBalances(List<UserTransaction> transactions, boolean atomic)
+            throws CustomException;
 }
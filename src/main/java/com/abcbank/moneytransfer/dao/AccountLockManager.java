@@ -0,0 +1,449 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */ 
+package com.abcbank.moneytransfer.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * In-process account locks: a fixed number of lock stripes, each account id
+ * hashed to one. Callers taking two accounts take the lower stripe first, so
+ * two transfers in opposite directions cannot deadlock.
+ * <p>
+ * Every stripe counts its acquisitions, the acquisitions that found it held
+ * and had to wait, the time waited and the timeouts, so hot accounts show up
+ * as hot stripes.
+ */
+public final class AccountLockManager {
+
+	/** The Constant MAX_STRIPES. */
+	private static final int MAX_STRIPES = 1 << 16;
+
+	/** The Constant HOT_STRIPES, stripes listed in the stats. */
+	private static final int HOT_STRIPES = 10;
+
+	/** The stripes. */
+	private final ReentrantLock[] stripes;
+
+	/** The stripe index mask. */
+	private final int stripeMask;
+
+	/** The acquisitions per stripe. */
+	private final AtomicLongArray acquisitions;
+
+	/** The acquisitions that had to wait, per stripe. */
+	private final AtomicLongArray contended;
+
+	/** The time waited per stripe, in nanos. */
+	private final AtomicLongArray waitNanos;
+
+	/** The timed out acquisitions per stripe. */
+	private final AtomicLongArray timeouts;
+
+	/**
+	 * Instantiates a new account lock manager.
+	 *
+	 * @param lockStripes the number of stripes, rounded up to a power of two
+	 */
+	public AccountLockManager(int lockStripes) {
+		int count = 1;
+		while (count < lockStripes && count < MAX_STRIPES) {
+			count <<= 1;
+		}
+		stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		stripeMask = count - 1;
+		acquisitions = new AtomicLongArray(count);
+		contended = new AtomicLongArray(count);
+		waitNanos = new AtomicLongArray(count);
+		timeouts = new AtomicLongArray(count);
+	}
+
+	/**
+	 * Gets the number of stripes.
+	 *
+	 * @return the stripe count
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Gets the stripe index of an account.
+	 *
+	 * @param accountId the account id
+	 * @return the stripe index
+	 */
+	public int stripeOf(long accountId) {
+		long h = accountId * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 40) & stripeMask;
+	}
+
+	/**
+	 * Lock the stripe of one account, waiting as long as it takes.
+	 *
+	 * @param accountId the account id
+	 * @return the locked stripe index, to pass to unlock
+	 */
+	public int lock(long accountId) {
+		int stripe = stripeOf(accountId);
+		acquire(stripe);
+		return stripe;
+	}
+
+	/**
+	 * Lock the stripes of two accounts, lower stripe first.
+	 *
+	 * @param firstId the first account id
+	 * @param secondId the second account id
+	 * @return the two locked stripe indexes, equal when both accounts share one
+	 */
+	public int[] lock(long firstId, long secondId) {
+		int a = stripeOf(firstId);
+		int b = stripeOf(secondId);
+		int low = Math.min(a, b);
+		int high = Math.max(a, b);
+		acquire(low);
+		if (high != low) {
+			acquire(high);
+		}
+		return new int[] { low, high };
+	}
+
+	/**
+	 * Try to lock the stripe of one account within the timeout.
+	 *
+	 * @param accountId the account id
+	 * @param timeoutMillis the max wait in millis
+	 * @return the locked stripe index, -1 on timeout
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public int tryLock(long accountId, long timeoutMillis) throws InterruptedException {
+		int stripe = stripeOf(accountId);
+		return tryAcquire(stripe, TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) ? stripe : -1;
+	}
+
+	/**
+	 * Try to lock the stripes of two accounts, lower stripe first, within the
+	 * timeout. Nothing is held when the timeout passes.
+	 *
+	 * @param firstId the first account id
+	 * @param secondId the second account id
+	 * @param timeoutMillis the max wait in millis for both
+	 * @return the two locked stripe indexes, null on timeout
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public int[] tryLock(long firstId, long secondId, long timeoutMillis) throws InterruptedException {
+		int a = stripeOf(firstId);
+		int b = stripeOf(secondId);
+		int low = Math.min(a, b);
+		int high = Math.max(a, b);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		if (!tryAcquire(low, deadline - System.nanoTime())) {
+			return null;
+		}
+		if (high != low && !tryAcquire(high, deadline - System.nanoTime())) {
+			stripes[low].unlock();
+			return null;
+		}
+		return new int[] { low, high };
+	}
+
+	/**
+	 * Unlock a stripe.
+	 *
+	 * @param stripe the stripe index
+	 */
+	public void unlock(int stripe) {
+		stripes[stripe].unlock();
+	}
+
+	/**
+	 * Unlock two stripes taken by lock or tryLock of two accounts.
+	 *
+	 * @param locked the locked stripes
+	 */
+	public void unlock(int[] locked) {
+		if (locked[1] != locked[0]) {
+			stripes[locked[1]].unlock();
+		}
+		stripes[locked[0]].unlock();
+	}
+
+	/**
+	 * Lock every stripe in index order, stopping every account writer.
+	 */
+	public void lockAll() {
+		for (ReentrantLock stripe : stripes) {
+			stripe.lock();
+		}
+	}
+
+	/**
+	 * Unlock every stripe.
+	 */
+	public void unlockAll() {
+		for (ReentrantLock stripe : stripes) {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Gets a snapshot of the contention counters.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * Lock a stripe, counting the wait when it is held by another thread.
+	 *
+	 * @param stripe the stripe index
+	 */
+	private void acquire(int stripe) {
+		acquisitions.incrementAndGet(stripe);
+		ReentrantLock lock = stripes[stripe];
+		if (lock.tryLock()) {
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		contended.incrementAndGet(stripe);
+		waitNanos.addAndGet(stripe, System.nanoTime() - start);
+	}
+
+	/**
+	 * Try to lock a stripe, counting the wait when it is held by another
+	 * thread.
+	 *
+	 * @param stripe the stripe index
+	 * @param timeoutNanos the max wait in nanos
+	 * @return true, if locked
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private boolean tryAcquire(int stripe, long timeoutNanos) throws InterruptedException {
+		acquisitions.incrementAndGet(stripe);
+		ReentrantLock lock = stripes[stripe];
+		if (lock.tryLock()) {
+			return true;
+		}
+		long start = System.nanoTime();
+		boolean locked = lock.tryLock(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+		contended.incrementAndGet(stripe);
+		waitNanos.addAndGet(stripe, System.nanoTime() - start);
+		if (!locked) {
+			timeouts.incrementAndGet(stripe);
+		}
+		return locked;
+	}
+
+	/**
+	 * Snapshot of the lock counters: totals and the most contended stripes.
+	 */
+	public static final class Stats {
+
+		/** The stripe count. */
+		private final int stripes;
+
+		/** The acquisitions. */
+		private final long acquisitions;
+
+		/** The acquisitions that had to wait. */
+		private final long contended;
+
+		/** The total wait in millis. */
+		private final double waitMs;
+
+		/** The timed out acquisitions. */
+		private final long timeouts;
+
+		/** The most contended stripes, most contended first. */
+		private final List<StripeStats> hotStripes;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param manager the lock manager
+		 */
+		private Stats(AccountLockManager manager) {
+			this.stripes = manager.stripes.length;
+			long acquired = 0;
+			long waited = 0;
+			long waitedNanos = 0;
+			long timedOut = 0;
+			List<StripeStats> all = new ArrayList<StripeStats>();
+			for (int i = 0; i < stripes; i++) {
+				StripeStats stripe = new StripeStats(i, manager.acquisitions.get(i), manager.contended.get(i),
+						manager.waitNanos.get(i), manager.timeouts.get(i));
+				acquired += stripe.acquisitions;
+				waited += stripe.contended;
+				waitedNanos += manager.waitNanos.get(i);
+				timedOut += stripe.timeouts;
+				if (stripe.contended > 0) {
+					all.add(stripe);
+				}
+			}
+			Collections.sort(all, Comparator.comparingLong(StripeStats::getContended).reversed());
+			this.acquisitions = acquired;
+			this.contended = waited;
+			this.waitMs = waitedNanos / 1e6;
+			this.timeouts = timedOut;
+			this.hotStripes = all.size() > HOT_STRIPES ? new ArrayList<StripeStats>(all.subList(0, HOT_STRIPES)) : all;
+		}
+
+		/**
+		 * Gets the stripe count.
+		 *
+		 * @return the stripes
+		 */
+		public int getStripes() {
+			return stripes;
+		}
+
+		/**
+		 * Gets the acquisitions.
+		 *
+		 * @return the acquisitions
+		 */
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * Gets the acquisitions that had to wait.
+		 *
+		 * @return the contended
+		 */
+		public long getContended() {
+			return contended;
+		}
+
+		/**
+		 * Gets the total wait in millis.
+		 *
+		 * @return the wait ms
+		 */
+		public double getWaitMs() {
+			return waitMs;
+		}
+
+		/**
+		 * Gets the timed out acquisitions.
+		 *
+		 * @return the timeouts
+		 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/**
+		 * Gets the most contended stripes, most contended first.
+		 *
+		 * @return the hot stripes
+		 */
+		public List<StripeStats> getHotStripes() {
+			return hotStripes;
+		}
+	}
+
+	/**
+	 * The counters of one stripe.
+	 */
+	public static final class StripeStats {
+
+		/** The stripe index. */
+		private final int stripe;
+
+		/** The acquisitions. */
+		private final long acquisitions;
+
+		/** The acquisitions that had to wait. */
+		private final long contended;
+
+		/** The total wait in millis. */
+		private final double waitMs;
+
+		/** The timed out acquisitions. */
+		private final long timeouts;
+
+		/**
+		 * Instantiates new stripe stats.
+		 *
+		 * @param stripe the stripe index
+		 * @param acquisitions the acquisitions
+		 * @param contended the contended acquisitions
+		 * @param waitNanos the wait in nanos
+		 * @param timeouts the timeouts
+		 */
+		private StripeStats(int stripe, long acquisitions, long contended, long waitNanos, long timeouts) {
+			this.stripe = stripe;
+			this.acquisitions = acquisitions;
+			this.contended = contended;
+			this.waitMs = waitNanos / 1e6;
+			this.timeouts = timeouts;
+		}
+
+		/**
+		 * Gets the stripe index.
+		 *
+		 * @return the stripe
+		 */
+		public int getStripe() {
+			return stripe;
+		}
+
+		/**
+		 * Gets the acquisitions.
+		 *
+		 * @return the acquisitions
+		 */
+		public long getAcquisitions() {
+			return acquisitions;
+		}
+
+		/**
+		 * Gets the acquisitions that had to wait.
+		 *
+		 * @return the contended
+		 */
+		public long getContended() {
+			return contended;
+		}
+
+		/**
+		 * Gets the total wait in millis.
+		 *
+		 * @return the wait ms
+		 */
+		public double getWaitMs() {
+			return waitMs;
+		}
+
+		/**
+		 * Gets the timed out acquisitions.
+		 *
+		 * @return the timeouts
+		 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+	}
+}
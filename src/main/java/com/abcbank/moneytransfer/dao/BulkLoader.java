@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.Money;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * Streams users and accounts from CSV into the H2 database using batched
+ * inserts. Lines are read one at a time, so the input size is not limited by
+ * the heap. Blank lines, lines starting with '#' and a leading header line are
+ * skipped; malformed rows are logged and counted as rejected.
+ * <p>
+ * Users: UserName,EmailAddress<br>
+ * Accounts: UserName,Balance,CurrencyCode
+ */
+public class BulkLoader {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(BulkLoader.class);
+
+	/** The Constant SQL_INSERT_USER. */
+	private final static String SQL_INSERT_USER = "INSERT INTO User (UserName, EmailAddress) VALUES (?, ?)";
+
+	/** The Constant SQL_INSERT_ACC. */
+	private final static String SQL_INSERT_ACC = "INSERT INTO Account (UserName, BalanceUnits, CurrencyId) VALUES (?, ?, ?)";
+
+	/** The Constant MAX_LOGGED_REJECTS. */
+	private static final int MAX_LOGGED_REJECTS = 20;
+
+	/** The rows per JDBC batch. */
+	private final int batchSize;
+
+	/** The rows per transaction. */
+	private final int commitSize;
+
+	/**
+	 * Instantiates a new bulk loader sized by the bulk_load_batch_size and
+	 * bulk_load_commit_size properties.
+	 */
+	public BulkLoader() {
+		this(Utils.getIntegerProperty("bulk_load_batch_size", 1000),
+				Utils.getIntegerProperty("bulk_load_commit_size", 50000));
+	}
+
+	/**
+	 * Instantiates a new bulk loader.
+	 *
+	 * @param batchSize the rows per JDBC batch
+	 * @param commitSize the rows per transaction
+	 */
+	public BulkLoader(int batchSize, int commitSize) {
+		this.batchSize = Math.max(1, batchSize);
+		this.commitSize = Math.max(this.batchSize, commitSize);
+	}
+
+	/**
+	 * Load users.
+	 *
+	 * @param csv the csv input
+	 * @return the number of users inserted
+	 * @throws CustomException the custom exception
+	 */
+	public long loadUsers(Reader csv) throws CustomException {
+		return load(csv, "User", SQL_INSERT_USER, 2, (stmt, fields) -> {
+			stmt.setString(1, fields[0]);
+			stmt.setString(2, fields[1]);
+		});
+	}
+
+	/**
+	 * Load accounts.
+	 *
+	 * @param csv the csv input
+	 * @return the number of accounts inserted
+	 * @throws CustomException the custom exception
+	 */
+	public long loadAccounts(Reader csv) throws CustomException {
+		return load(csv, "Account", SQL_INSERT_ACC, 3, (stmt, fields) -> {
+			int currencyId = CurrencyTable.idOf(fields[2]);
+			if (currencyId == CurrencyTable.UNKNOWN) {
+				throw new IllegalArgumentException("invalid currency code " + fields[2]);
+			}
+			stmt.setString(1, fields[0]);
+			try {
+				stmt.setLong(2, Money.toUnits(new BigDecimal(fields[1])));
+			} catch (ArithmeticException e) {
+				throw new IllegalArgumentException("balance out of range " + fields[1]);
+			}
+			stmt.setInt(3, currencyId);
+		});
+	}
+
+	/**
+	 * Stream the csv into the table.
+	 *
+	 * @param csv the csv
+	 * @param table the table name, for logging
+	 * @param sql the insert sql
+	 * @param columns the expected column count
+	 * @param binder the row binder
+	 * @return the rows inserted
+	 * @throws CustomException the custom exception
+	 */
+	private long load(Reader csv, String table, String sql, int columns, RowBinder binder) throws CustomException {
+		long start = System.currentTimeMillis();
+		long lineNo = 0;
+		long inserted = 0;
+		long rejected = 0;
+		int pending = 0;
+		long uncommitted = 0;
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		BufferedReader reader = new BufferedReader(csv, 1 << 16);
+		try {
+			conn = H2DAOFactory.getConnection();
+			conn.setAutoCommit(false);
+			stmt = conn.prepareStatement(sql);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.charAt(0) == '#' || (lineNo == 1 && isHeader(trimmed))) {
+					continue;
+				}
+				String[] fields = trimmed.split(",", -1);
+				try {
+					if (fields.length != columns) {
+						throw new IllegalArgumentException("expected " + columns + " columns");
+					}
+					for (int i = 0; i < fields.length; i++) {
+						fields[i] = fields[i].trim();
+					}
+					binder.bind(stmt, fields);
+				} catch (IllegalArgumentException e) {
+					if (rejected++ < MAX_LOGGED_REJECTS) {
+						log.warn("load(): rejected " + table + " line " + lineNo + ": " + e.getMessage());
+					}
+					continue;
+				}
+				stmt.addBatch();
+				if (++pending == batchSize) {
+					inserted += executeBatch(stmt);
+					uncommitted += pending;
+					pending = 0;
+					if (uncommitted >= commitSize) {
+						conn.commit();
+						uncommitted = 0;
+					}
+				}
+			}
+			if (pending > 0) {
+				inserted += executeBatch(stmt);
+			}
+			conn.commit();
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			log.info("load(): " + inserted + " " + table + " rows loaded, " + rejected + " rejected in " + elapsed
+					+ "ms (" + (inserted * 1000 / elapsed) + " rows/s)");
+			return inserted;
+		} catch (SQLException | IOException e) {
+			try {
+				if (conn != null)
+					conn.rollback();
+			} catch (SQLException re) {
+				log.error("load(): Fail to rollback bulk load", re);
+			}
+			throw new CustomException("load(): Error bulk loading " + table + " at line " + lineNo, e);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Execute batch.
+	 *
+	 * @param stmt the stmt
+	 * @return the rows inserted
+	 * @throws SQLException the SQL exception
+	 */
+	private static int executeBatch(PreparedStatement stmt) throws SQLException {
+		int count = 0;
+		for (int rows : stmt.executeBatch()) {
+			count += rows > 0 ? rows : 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Checks if the first line is a column header.
+	 *
+	 * @param line the line
+	 * @return true, if header
+	 */
+	private static boolean isHeader(String line) {
+		return line.regionMatches(true, 0, "UserName", 0, "UserName".length());
+	}
+
+	/**
+	 * Binds one csv row to the insert statement.
+	 */
+	private interface RowBinder {
+
+		/**
+		 * Bind the fields, throwing IllegalArgumentException for a bad row.
+		 *
+		 * @param stmt the stmt
+		 * @param fields the fields
+		 * @throws SQLException the SQL exception
+		 */
+		void bind(PreparedStatement stmt, String[] fields) throws SQLException;
+	}
+}
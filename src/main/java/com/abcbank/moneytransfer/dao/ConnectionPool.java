@@ -0,0 +1,728 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded JDBC connection pool used by the DAO layer.
+ * <p>
+ * Connections handed out are proxies: calling close() returns the physical
+ * connection to the pool instead of closing it, so the existing DAO code
+ * (DbUtils.closeQuietly(conn)) works unchanged. Idle connections are kept in
+ * LIFO order, validated on borrow and evicted by a background thread once they
+ * have been idle longer than the configured timeout. Each physical connection
+ * keeps its own {@link StatementCache}, so constant SQL is parsed once per
+ * pooled connection.
+ */
+public class ConnectionPool {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(ConnectionPool.class);
+
+	/** The jdbc url. */
+	private final String url;
+
+	/** The user. */
+	private final String user;
+
+	/** The password. */
+	private final String password;
+
+	/** The max number of physical connections. */
+	private final int maxSize;
+
+	/** The number of idle connections never evicted. */
+	private final int minIdle;
+
+	/** The idle timeout in millis. */
+	private final long idleTimeoutMillis;
+
+	/** The max time a caller waits for a connection in millis. */
+	private final long waitTimeoutMillis;
+
+	/** The validation timeout in seconds, 0 disables validation on borrow. */
+	private final int validationTimeoutSeconds;
+
+	/** The prepared statements cached per connection, 0 disables caching. */
+	private final int statementCacheSize;
+
+	/** One permit per connection that may be handed out. */
+	private final Semaphore permits;
+
+	/** The idle connections, most recently used first. */
+	private final LinkedBlockingDeque<PooledEntry> idle = new LinkedBlockingDeque<PooledEntry>();
+
+	/** The idle evictor. */
+	private final ScheduledExecutorService evictor;
+
+	/** The active (borrowed) connection count. */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/** The threads waiting for a connection. */
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	/** The physical connection count. */
+	private final AtomicInteger total = new AtomicInteger();
+
+	/** The borrow count. */
+	private final AtomicLong borrowCount = new AtomicLong();
+
+	/** The accumulated borrow latency in nanos. */
+	private final AtomicLong borrowNanos = new AtomicLong();
+
+	/** The max borrow latency in nanos. */
+	private final AtomicLong maxBorrowNanos = new AtomicLong();
+
+	/** The borrow timeouts. */
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/** The physical connections created. */
+	private final AtomicLong created = new AtomicLong();
+
+	/** The connections evicted for idleness. */
+	private final AtomicLong evicted = new AtomicLong();
+
+	/** The connections discarded because validation failed. */
+	private final AtomicLong validationFailures = new AtomicLong();
+
+	/** The statement cache hits. */
+	private final AtomicLong statementHits = new AtomicLong();
+
+	/** The statement cache misses (statements actually prepared). */
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	/** The statement cache evictions. */
+	private final AtomicLong statementEvictions = new AtomicLong();
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/**
+	 * Instantiates a new connection pool.
+	 *
+	 * @param url the jdbc url
+	 * @param user the user
+	 * @param password the password
+	 * @param maxSize the max number of connections
+	 * @param minIdle the min number of idle connections kept on eviction
+	 * @param idleTimeoutMillis the idle timeout in millis
+	 * @param waitTimeoutMillis the max wait for a connection in millis
+	 * @param validationTimeoutSeconds the validation timeout, 0 to disable
+	 * @param evictionIntervalMillis the eviction run interval in millis
+	 * @param statementCacheSize the statements cached per connection, 0 to disable
+	 */
+	public ConnectionPool(String url, String user, String password, int maxSize, int minIdle,
+			long idleTimeoutMillis, long waitTimeoutMillis, int validationTimeoutSeconds,
+			long evictionIntervalMillis, int statementCacheSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Pool max size must be positive: " + maxSize);
+		}
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.minIdle = Math.min(minIdle, maxSize);
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.waitTimeoutMillis = waitTimeoutMillis;
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+		this.statementCacheSize = statementCacheSize;
+		this.permits = new Semaphore(maxSize, true);
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		if (evictionIntervalMillis > 0) {
+			evictor.scheduleWithFixedDelay(this::evictIdle, evictionIntervalMillis, evictionIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Creates a pool for the given database with sizes taken from the
+	 * h2_pool_* and h2_stmt_cache_size properties.
+	 *
+	 * @param url the jdbc url
+	 * @param user the user
+	 * @param password the password
+	 * @return the connection pool
+	 */
+	public static ConnectionPool fromProperties(String url, String user, String password) {
+		return new ConnectionPool(url, user, password,
+				Utils.getIntegerProperty("h2_pool_max_size", 20),
+				Utils.getIntegerProperty("h2_pool_min_idle", 2),
+				Utils.getIntegerProperty("h2_pool_idle_timeout_ms", 300000),
+				Utils.getIntegerProperty("h2_pool_wait_timeout_ms", 5000),
+				Utils.getIntegerProperty("h2_pool_validation_timeout_sec", 1),
+				Utils.getIntegerProperty("h2_pool_eviction_interval_ms", 30000),
+				Utils.getIntegerProperty("h2_stmt_cache_size", 32));
+	}
+
+	/**
+	 * Borrows a connection, waiting up to the configured wait timeout.
+	 *
+	 * @return the connection, close it to return it to the pool
+	 * @throws SQLException if no connection could be obtained in time
+	 */
+	public Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		long start = System.nanoTime();
+		waiters.incrementAndGet();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		} finally {
+			waiters.decrementAndGet();
+		}
+		if (!acquired) {
+			timeouts.incrementAndGet();
+			throw new SQLTimeoutException("Timed out after " + waitTimeoutMillis + "ms waiting for a connection");
+		}
+		try {
+			PooledEntry entry = takeIdle();
+			if (entry == null) {
+				entry = new PooledEntry(DriverManager.getConnection(url, user, password));
+				total.incrementAndGet();
+				created.incrementAndGet();
+			}
+			active.incrementAndGet();
+			recordBorrow(System.nanoTime() - start);
+			return entry.lease();
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Take a valid idle connection, discarding broken ones.
+	 *
+	 * @return the pooled entry, or null if none is idle
+	 */
+	private PooledEntry takeIdle() {
+		PooledEntry entry;
+		while ((entry = idle.pollFirst()) != null) {
+			if (isValid(entry.physical)) {
+				return entry;
+			}
+			validationFailures.incrementAndGet();
+			discard(entry);
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the physical connection is still usable.
+	 *
+	 * @param conn the physical connection
+	 * @return true, if valid
+	 */
+	private boolean isValid(Connection conn) {
+		try {
+			if (validationTimeoutSeconds <= 0) {
+				return !conn.isClosed();
+			}
+			return conn.isValid(validationTimeoutSeconds);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Record borrow latency.
+	 *
+	 * @param nanos the nanos spent in getConnection
+	 */
+	private void recordBorrow(long nanos) {
+		borrowCount.incrementAndGet();
+		borrowNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxBorrowNanos.get())) {
+			if (maxBorrowNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return a leased connection to the pool.
+	 *
+	 * @param entry the pooled entry
+	 */
+	private void release(PooledEntry entry) {
+		active.decrementAndGet();
+		try {
+			if (entry.statements != null) {
+				entry.statements.endLease();
+			}
+			if (closed || !reset(entry.physical)) {
+				discard(entry);
+			} else {
+				entry.lastUsed = System.currentTimeMillis();
+				idle.offerFirst(entry);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Undo per-lease state so the next borrower sees a fresh connection.
+	 *
+	 * @param conn the physical connection
+	 * @return true, if the connection can be reused
+	 */
+	private boolean reset(Connection conn) {
+		try {
+			if (conn.isClosed()) {
+				return false;
+			}
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+			return true;
+		} catch (SQLException e) {
+			log.warn("reset(): discarding connection that failed to reset", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Give a leased connection back without returning it to the pool: the
+	 * physical connection is closed as it is, never rolled back by reset(),
+	 * so a prepared transaction on it stays for recovery to resolve.
+	 *
+	 * @param conn the connection obtained from getConnection()
+	 */
+	public void discard(Connection conn) {
+		if (conn == null || !Proxy.isProxyClass(conn.getClass())
+				|| !(Proxy.getInvocationHandler(conn) instanceof LeaseHandler)) {
+			DbUtils.closeQuietly(conn);
+			return;
+		}
+		LeaseHandler handler = (LeaseHandler) Proxy.getInvocationHandler(conn);
+		if (handler.released) {
+			return;
+		}
+		handler.released = true;
+		active.decrementAndGet();
+		try {
+			if (handler.entry.statements != null) {
+				handler.entry.statements.endLease();
+			}
+			discard(handler.entry);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Close the physical connection.
+	 *
+	 * @param entry the pooled entry
+	 */
+	private void discard(PooledEntry entry) {
+		total.decrementAndGet();
+		DbUtils.closeQuietly(entry.physical);
+	}
+
+	/**
+	 * Evict connections idle for longer than the idle timeout, keeping at
+	 * least minIdle of them.
+	 */
+	void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		Iterator<PooledEntry> it = idle.descendingIterator();
+		while (it.hasNext() && idle.size() > minIdle) {
+			PooledEntry entry = it.next();
+			// a borrower may have taken it meanwhile, only evict if we removed it
+			if (entry.lastUsed < cutoff && idle.removeLastOccurrence(entry)) {
+				evicted.incrementAndGet();
+				discard(entry);
+			}
+		}
+	}
+
+	/**
+	 * Close the pool and all idle connections. Borrowed connections are closed
+	 * when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		PooledEntry entry;
+		while ((entry = idle.pollFirst()) != null) {
+			discard(entry);
+		}
+	}
+
+	/**
+	 * Gets a snapshot of the pool statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * A physical connection owned by the pool.
+	 */
+	private final class PooledEntry {
+
+		/** The physical connection. */
+		private final Connection physical;
+
+		/** The statement cache, null when disabled. */
+		private final StatementCache statements;
+
+		/** The last time it was returned to the pool. */
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		/**
+		 * Instantiates a new pooled entry.
+		 *
+		 * @param physical the physical connection
+		 */
+		private PooledEntry(Connection physical) {
+			this.physical = physical;
+			this.statements = statementCacheSize > 0 ? new StatementCache(physical, statementCacheSize,
+					statementHits, statementMisses, statementEvictions) : null;
+		}
+
+		/**
+		 * Wrap the physical connection in a proxy for one borrower.
+		 *
+		 * @return the proxy connection
+		 */
+		private Connection lease() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new LeaseHandler(this));
+		}
+	}
+
+	/**
+	 * Routes calls to the physical connection until close() is called, which
+	 * hands the connection back to the pool exactly once.
+	 */
+	private final class LeaseHandler implements InvocationHandler {
+
+		/** The pooled entry. */
+		private final PooledEntry entry;
+
+		/** The released flag. */
+		private boolean released;
+
+		/**
+		 * Instantiates a new lease handler.
+		 *
+		 * @param entry the pooled entry
+		 */
+		private LeaseHandler(PooledEntry entry) {
+			this.entry = entry;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name) && method.getParameterCount() == 0) {
+				if (!released) {
+					released = true;
+					release(entry);
+				}
+				return null;
+			}
+			if ("isClosed".equals(name) && method.getParameterCount() == 0) {
+				return released || entry.physical.isClosed();
+			}
+			if ("equals".equals(name) && method.getParameterCount() == 1) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(name) && method.getParameterCount() == 0) {
+				return System.identityHashCode(proxy);
+			}
+			if ("toString".equals(name) && method.getParameterCount() == 0) {
+				return "Pooled[" + entry.physical + "]";
+			}
+			if (released) {
+				throw new SQLException("Connection has been returned to the pool");
+			}
+			if ("prepareStatement".equals(name) && entry.statements != null) {
+				if (method.getParameterCount() == 1) {
+					return entry.statements.prepare((Connection) proxy, (String) args[0],
+							Statement.NO_GENERATED_KEYS);
+				}
+				if (method.getParameterCount() == 2 && method.getParameterTypes()[1] == int.class) {
+					return entry.statements.prepare((Connection) proxy, (String) args[0], (Integer) args[1]);
+				}
+			}
+			try {
+				return method.invoke(entry.physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Point in time statistics of a connection pool.
+	 */
+	public static final class Stats {
+
+		/** The max size. */
+		private final int maxSize;
+
+		/** The active. */
+		private final int active;
+
+		/** The idle. */
+		private final int idle;
+
+		/** The total. */
+		private final int total;
+
+		/** The waiters. */
+		private final int waiters;
+
+		/** The borrow count. */
+		private final long borrowCount;
+
+		/** The average borrow latency in micros. */
+		private final long avgBorrowMicros;
+
+		/** The max borrow latency in micros. */
+		private final long maxBorrowMicros;
+
+		/** The timeouts. */
+		private final long timeouts;
+
+		/** The created. */
+		private final long created;
+
+		/** The evicted. */
+		private final long evicted;
+
+		/** The validation failures. */
+		private final long validationFailures;
+
+		/** The statement cache hits. */
+		private final long statementCacheHits;
+
+		/** The statement cache misses. */
+		private final long statementCacheMisses;
+
+		/** The statement cache evictions. */
+		private final long statementCacheEvictions;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param pool the pool
+		 */
+		private Stats(ConnectionPool pool) {
+			this.maxSize = pool.maxSize;
+			this.active = pool.active.get();
+			this.idle = pool.idle.size();
+			this.total = pool.total.get();
+			this.waiters = pool.waiters.get();
+			this.borrowCount = pool.borrowCount.get();
+			this.avgBorrowMicros = borrowCount == 0 ? 0 : pool.borrowNanos.get() / borrowCount / 1000;
+			this.maxBorrowMicros = pool.maxBorrowNanos.get() / 1000;
+			this.timeouts = pool.timeouts.get();
+			this.created = pool.created.get();
+			this.evicted = pool.evicted.get();
+			this.validationFailures = pool.validationFailures.get();
+			this.statementCacheHits = pool.statementHits.get();
+			this.statementCacheMisses = pool.statementMisses.get();
+			this.statementCacheEvictions = pool.statementEvictions.get();
+		}
+
+		/**
+		 * Gets the max size.
+		 *
+		 * @return the max size
+		 */
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		/**
+		 * Gets the active connection count.
+		 *
+		 * @return the active
+		 */
+		public int getActive() {
+			return active;
+		}
+
+		/**
+		 * Gets the idle connection count.
+		 *
+		 * @return the idle
+		 */
+		public int getIdle() {
+			return idle;
+		}
+
+		/**
+		 * Gets the physical connection count.
+		 *
+		 * @return the total
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Gets the number of threads waiting for a connection.
+		 *
+		 * @return the waiters
+		 */
+		public int getWaiters() {
+			return waiters;
+		}
+
+		/**
+		 * Gets the borrow count.
+		 *
+		 * @return the borrow count
+		 */
+		public long getBorrowCount() {
+			return borrowCount;
+		}
+
+		/**
+		 * Gets the average borrow latency in micros.
+		 *
+		 * @return the avg borrow micros
+		 */
+		public long getAvgBorrowMicros() {
+			return avgBorrowMicros;
+		}
+
+		/**
+		 * Gets the max borrow latency in micros.
+		 *
+		 * @return the max borrow micros
+		 */
+		public long getMaxBorrowMicros() {
+			return maxBorrowMicros;
+		}
+
+		/**
+		 * Gets the number of borrow timeouts.
+		 *
+		 * @return the timeouts
+		 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/**
+		 * Gets the number of physical connections created.
+		 *
+		 * @return the created
+		 */
+		public long getCreated() {
+			return created;
+		}
+
+		/**
+		 * Gets the number of connections evicted for idleness.
+		 *
+		 * @return the evicted
+		 */
+		public long getEvicted() {
+			return evicted;
+		}
+
+		/**
+		 * Gets the number of connections that failed validation.
+		 *
+		 * @return the validation failures
+		 */
+		public long getValidationFailures() {
+			return validationFailures;
+		}
+
+		/**
+		 * Gets the number of prepares served from the statement cache.
+		 *
+		 * @return the statement cache hits
+		 */
+		public long getStatementCacheHits() {
+			return statementCacheHits;
+		}
+
+		/**
+		 * Gets the number of statements actually prepared by the driver.
+		 *
+		 * @return the statement cache misses
+		 */
+		public long getStatementCacheMisses() {
+			return statementCacheMisses;
+		}
+
+		/**
+		 * Gets the number of statements evicted from the statement caches.
+		 *
+		 * @return the statement cache evictions
+		 */
+		public long getStatementCacheEvictions() {
+			return statementCacheEvictions;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "PoolStats{" + "maxSize=" + maxSize + ", active=" + active + ", idle=" + idle + ", total=" + total
+					+ ", waiters=" + waiters + ", borrowCount=" + borrowCount + ", avgBorrowMicros=" + avgBorrowMicros
+					+ ", maxBorrowMicros=" + maxBorrowMicros + ", timeouts=" + timeouts + ", created=" + created
+					+ ", evicted=" + evicted + ", validationFailures=" + validationFailures + ", statementCacheHits="
+					+ statementCacheHits + ", statementCacheMisses=" + statementCacheMisses
+					+ ", statementCacheEvictions=" + statementCacheEvictions + '}';
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.dao.impl.CurrencyPartition;
+import com.abcbank.moneytransfer.dao.impl.CurrencyPartitionedAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.CurrencyPartitionedTransferDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.UserDAOImpl;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Currency partitioned H2 DAO factory. A transfer never crosses currencies,
+ * so the accounts are partitioned by currency: each currency listed in
+ * currency_partitions gets its own H2 database, connection pool and transfer
+ * executor, and the other currencies share a DEFAULT partition. Users and
+ * the account directory live in a catalog database. By default every
+ * database is a local stand-in, like those of the sharded engine;
+ * currency_catalog_url and currency_partition_url_CCY (or _DEFAULT) point
+ * the engine at other databases. There is a single set of databases per JVM,
+ * so every caller of getDAOFactory(CURRENCY_PARTITIONED) gets the same
+ * instance.
+ */
+public class CurrencyPartitionedDAOFactory extends DAOFactory {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(CurrencyPartitionedDAOFactory.class);
+
+	/** The catalog connection pool. */
+	private final ConnectionPool catalogPool;
+
+	/** The partitions, DEFAULT last. */
+	private final List<CurrencyPartition> partitions = new ArrayList<CurrencyPartition>();
+
+	/** The user DAO, on the catalog. */
+	private final UserDAOImpl userDAO;
+
+	/** The account DAO. */
+	private final CurrencyPartitionedAccountDAOImpl accountDAO;
+
+	/** The transfer DAO. */
+	private final CurrencyPartitionedTransferDAOImpl transferDAO;
+
+	/** The idempotency keys, in the catalog. */
+	private final IdempotencyStore idempotencyStore;
+
+	/** The runner of transfers submitted asynchronously, spilling their statuses to the catalog. */
+	private final TransferSubmitter transferSubmitter;
+
+	/**
+	 * Instantiates a new currency partitioned DAO factory.
+	 */
+	private CurrencyPartitionedDAOFactory() {
+		DbUtils.loadDriver(Utils.getStringProperty("h2_driver"));
+		String user = Utils.getStringProperty("h2_user");
+		String password = Utils.getStringProperty("h2_password");
+		catalogPool = ConnectionPool.fromProperties(
+				ShardedH2DAOFactory.buildUrl("currency_catalog_url", "currency_catalog"), user, password);
+		TransferHistoryMode historyMode = TransferHistoryMode.fromProperties();
+		if (historyMode == TransferHistoryMode.ASYNC) {
+			log.warn("Async transfer history not supported by the currency partitioned engine, using sync");
+			historyMode = TransferHistoryMode.SYNC;
+		}
+		TransferConcurrencyMode concurrencyMode = TransferConcurrencyMode.fromProperties();
+		int threads = Math.max(1, Utils.getIntegerProperty("currency_partition_threads", 4));
+		int queueSize = Math.max(1, Utils.getIntegerProperty("currency_partition_queue_size", 1000));
+		List<String> names = new ArrayList<String>();
+		for (String currencyCode : Utils.getStringProperty("currency_partitions", "USD,EUR,GBP").split(",")) {
+			if (!currencyCode.trim().isEmpty()) {
+				names.add(currencyCode.trim().toUpperCase());
+			}
+		}
+		names.add(CurrencyPartitionedAccountDAOImpl.DEFAULT);
+		for (String name : names) {
+			String url = ShardedH2DAOFactory.buildUrl("currency_partition_url_" + name,
+					"currency_" + name.toLowerCase());
+			partitions.add(new CurrencyPartition(name, ConnectionPool.fromProperties(url, user, password),
+					historyMode, concurrencyMode, threads, queueSize));
+		}
+		userDAO = new UserDAOImpl(catalogPool);
+		accountDAO = new CurrencyPartitionedAccountDAOImpl(catalogPool, partitions);
+		transferDAO = new CurrencyPartitionedTransferDAOImpl(accountDAO);
+		idempotencyStore = IdempotencyStore.fromProperties(catalogPool);
+		transferSubmitter = TransferSubmitter.fromProperties(accountDAO, catalogPool);
+		log.info("Currency partitioned engine with partitions " + names + ", " + threads
+				+ " transfer threads each");
+	}
+
+	/**
+	 * Gets the JVM wide instance.
+	 *
+	 * @return the instance
+	 */
+	static CurrencyPartitionedDAOFactory getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Gets the throughput and latency statistics of each partition.
+	 *
+	 * @return the stats by partition name
+	 */
+	public Map<String, CurrencyPartition.Stats> getPartitionStats() {
+		Map<String, CurrencyPartition.Stats> stats = new LinkedHashMap<String, CurrencyPartition.Stats>();
+		for (CurrencyPartition partition : partitions) {
+			stats.put(partition.getName(), partition.getStats());
+		}
+		return stats;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getUserDAO()
+	 */
+	public UserDAO getUserDAO() {
+		return userDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getAccountDAO()
+	 */
+	public AccountDAO getAccountDAO() {
+		return accountDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferDAO()
+	 */
+	public TransferDAO getTransferDAO() {
+		return transferDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getIdempotencyStore()
+	 */
+	@Override
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferSubmitter()
+	 */
+	@Override
+	public TransferSubmitter getTransferSubmitter() {
+		return transferSubmitter;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#populateTestData()
+	 */
+	@Override
+	public void populateTestData() {
+		log.info("Populating currency partitioned users and accounts ..... ");
+		try {
+			for (CurrencyPartition partition : partitions) {
+				ShardedH2DAOFactory.resetSchema(partition.getPool());
+			}
+			ShardedH2DAOFactory.resetSchema(catalogPool);
+			idempotencyStore.clearCache();
+			transferSubmitter.clear();
+			accountDAO.clearPlacement();
+			for (Account account : ShardedH2DAOFactory.runTestDataScript(catalogPool)) {
+				accountDAO.importAccount(account);
+			}
+		} catch (SQLException | CustomException e) {
+			log.error("populateTestData(): Error populating user data: ", e);
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			log.error("populateTestData(): Error reading test script file ", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#isDurable()
+	 */
+	@Override
+	public boolean isDurable() {
+		return ShardedH2DAOFactory.isFileMode();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#initSchema()
+	 */
+	@Override
+	public void initSchema() {
+		Connection conn = null;
+		try {
+			conn = catalogPool.getConnection();
+			SchemaInitializer.migrate(conn);
+			for (CurrencyPartition partition : partitions) {
+				DbUtils.closeQuietly(conn);
+				conn = partition.getPool().getConnection();
+				SchemaInitializer.migrate(conn);
+			}
+			log.info("initSchema(): catalog and " + partitions.size() + " partitions at version "
+					+ SchemaInitializer.getLatestVersion());
+		} catch (SQLException e) {
+			log.error("initSchema(): Error creating schema: ", e);
+			throw new RuntimeException(e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Lazy holder of the instance.
+	 */
+	private static final class Holder {
+
+		/** The Constant INSTANCE. */
+		private static final CurrencyPartitionedDAOFactory INSTANCE = new CurrencyPartitionedDAOFactory();
+	}
+}
@@ -10,6 +10,24 @@
  */ 
 package com.abcbank.moneytransfer.dao;
 
+import com.abcbank.moneytransfer.dao.impl.TransferPipeline;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A factory for creating DAO objects.
@@ -19,6 +37,22 @@ public abstract class DAOFactory {
 	/** The Constant H2. */
 	public static final int H2 = 1;
 
+	/** The Constant IN_MEMORY, the in-JVM engine. */
+	public static final int IN_MEMORY = 2;
+
+	/** The Constant SHARDED_H2, accounts spread over several H2 databases. */
+	public static final int SHARDED_H2 = 3;
+
+	/** The Constant CURRENCY_PARTITIONED, one H2 database and transfer executor per currency. */
+	public static final int CURRENCY_PARTITIONED = 4;
+
+	/** The Constant TEST_DATA_SCRIPT. */
+	private static final String TEST_DATA_SCRIPT = "demo.sql";
+
+	/** The Constant INSERT, one test data insert statement. */
+	private static final Pattern INSERT = Pattern
+			.compile("INSERT INTO (\\w+)\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\((.*)\\)\\s*;?", Pattern.CASE_INSENSITIVE);
+
 	/**
 	 * Gets the user DAO.
 	 *
@@ -33,11 +67,113 @@ public abstract class DAOFactory {
 	 */
 	public abstract AccountDAO getAccountDAO();
 
+	/**
+	 * Gets the transfer history DAO.
+	 *
+	 * @return the transfer DAO
+	 */
+	public abstract TransferDAO getTransferDAO();
+
 	/**
 	 * Populate test data.
 	 */
 	public abstract void populateTestData();
 
+	/**
+	 * Create the schema if it does not exist yet, leaving existing data
+	 * untouched.
+	 */
+	public abstract void initSchema();
+
+	/**
+	 * Checks if committed data survives a restart.
+	 *
+	 * @return true, if durable
+	 */
+	public abstract boolean isDurable();
+
+	/**
+	 * Gets the balance journal.
+	 *
+	 * @return the journal, null when journaling is disabled
+	 */
+	public Journal getJournal() {
+		return null;
+	}
+
+	/**
+	 * Gets the in-process account locks.
+	 *
+	 * @return the lock manager, null when the engine has none
+	 */
+	public AccountLockManager getAccountLockManager() {
+		return null;
+	}
+
+	/**
+	 * Gets the single-writer transfer pipeline.
+	 *
+	 * @return the pipeline, null when the engine has none or it is disabled
+	 */
+	public TransferPipeline getTransferPipeline() {
+		return null;
+	}
+
+	/**
+	 * Gets the idempotency keys of transfer requests.
+	 *
+	 * @return the store, null when the engine has none
+	 */
+	public IdempotencyStore getIdempotencyStore() {
+		return null;
+	}
+
+	/**
+	 * Gets the runner of transfers submitted asynchronously.
+	 *
+	 * @return the submitter, null when the engine has none
+	 */
+	public TransferSubmitter getTransferSubmitter() {
+		return null;
+	}
+
+	/**
+	 * Open the test data script from the classpath, falling back to the source
+	 * tree when running the demo application outside of the test classpath.
+	 *
+	 * @return the reader
+	 * @throws FileNotFoundException if the script cannot be found
+	 */
+	private static Reader openTestDataScript() throws FileNotFoundException {
+		InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(TEST_DATA_SCRIPT);
+		if (in != null) {
+			return new InputStreamReader(in, StandardCharsets.UTF_8);
+		}
+		return new FileReader("src/test/resources/" + TEST_DATA_SCRIPT);
+	}
+
+	/**
+	 * Read the rows the test data script inserts. The script keeps amounts in
+	 * decimal and currencies as codes, each engine converts them to its own
+	 * storage.
+	 *
+	 * @return the rows, in script order
+	 * @throws IOException if the script cannot be read
+	 */
+	protected static List<TestRow> readTestData() throws IOException {
+		List<TestRow> rows = new ArrayList<TestRow>();
+		try (BufferedReader reader = new BufferedReader(openTestDataScript())) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher m = INSERT.matcher(line.trim());
+				if (m.matches()) {
+					rows.add(new TestRow(m.group(1), m.group(2).split(","), m.group(3).split(",")));
+				}
+			}
+		}
+		return rows;
+	}
+
 	/**
 	 * Gets the DAO factory.
 	 *
@@ -49,9 +185,78 @@ public abstract class DAOFactory {
 		switch (factoryCode) {
 		case H2:
 			return new H2DAOFactory();
+		case IN_MEMORY:
+			return InMemoryDAOFactory.getInstance();
+		case SHARDED_H2:
+			return ShardedH2DAOFactory.getInstance();
+		case CURRENCY_PARTITIONED:
+			return CurrencyPartitionedDAOFactory.getInstance();
 		default:
 			// by default using H2 in memory database
 			return new H2DAOFactory();
 		}
 	}
+
+	/**
+	 * Gets the DAO factory selected by the dao_engine property, h2 (default),
+	 * memory, sharded or currency.
+	 *
+	 * @return the DAO factory
+	 */
+	public static DAOFactory getDAOFactory() {
+		String engine = Utils.getStringProperty("dao_engine", "h2").trim();
+		if ("memory".equalsIgnoreCase(engine)) {
+			return getDAOFactory(IN_MEMORY);
+		}
+		if ("currency".equalsIgnoreCase(engine)) {
+			return getDAOFactory(CURRENCY_PARTITIONED);
+		}
+		return getDAOFactory("sharded".equalsIgnoreCase(engine) ? SHARDED_H2 : H2);
+	}
+
+	/**
+	 * One row of the test data script.
+	 */
+	protected static final class TestRow {
+
+		/** The table. */
+		private final String table;
+
+		/** The values by upper case column name, unquoted. */
+		private final Map<String, String> values = new HashMap<String, String>();
+
+		/**
+		 * Instantiates a new test row.
+		 *
+		 * @param table the table
+		 * @param columns the column names
+		 * @param values the values, possibly quoted
+		 */
+		private TestRow(String table, String[] columns, String[] values) {
+			this.table = table;
+			for (int i = 0; i < columns.length && i < values.length; i++) {
+				this.values.put(columns[i].trim().toUpperCase(), values[i].trim().replace("'", ""));
+			}
+		}
+
+		/**
+		 * Checks if the row is of a table.
+		 *
+		 * @param name the table name
+		 * @return true, if the row is of the table
+		 */
+		public boolean isOf(String name) {
+			return table.equalsIgnoreCase(name);
+		}
+
+		/**
+		 * Gets the value of a column.
+		 *
+		 * @param column the column name, upper case
+		 * @return the value, null if the row has none
+		 */
+		public String get(String column) {
+			return values.get(column);
+		}
+	}
 }
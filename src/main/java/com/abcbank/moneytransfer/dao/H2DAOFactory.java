@@ -11,17 +11,23 @@
 package com.abcbank.moneytransfer.dao;
 
 import com.abcbank.moneytransfer.dao.impl.AccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.CachingAccountDAO;
+import com.abcbank.moneytransfer.dao.impl.TransferDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.TransferGroupCommitter;
+import com.abcbank.moneytransfer.dao.impl.TransferHistoryWriter;
 import com.abcbank.moneytransfer.dao.impl.UserDAOImpl;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.Money;
 import com.abcbank.moneytransfer.utils.Utils;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.log4j.Logger;
-import org.h2.tools.RunScript;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 
@@ -33,8 +39,14 @@ public class H2DAOFactory extends DAOFactory {
 	/** The Constant h2_driver. */
 	private static final String h2_driver = Utils.getStringProperty("h2_driver");
 	
+	/** The Constant FILE_MODE, selects a durable file backed database. */
+	public static final String FILE_MODE = "file";
+
+	/** The Constant h2_storage_mode, mem (default) or file. */
+	private static final String h2_storage_mode = Utils.getStringProperty("h2_storage_mode", "mem");
+
 	/** The Constant h2_connection_url. */
-	private static final String h2_connection_url = Utils.getStringProperty("h2_connection_url");
+	private static final String h2_connection_url = buildConnectionUrl();
 	
 	/** The Constant h2_user. */
 	private static final String h2_user = Utils.getStringProperty("h2_user");
@@ -42,14 +54,69 @@ public class H2DAOFactory extends DAOFactory {
 	/** The Constant h2_password. */
 	private static final String h2_password = Utils.getStringProperty("h2_password");
 	
+	/** The Constant SQL_DROP_ALL. */
+	private static final String SQL_DROP_ALL = "DROP ALL OBJECTS";
+
+	/** The Constant SQL_INSERT_TEST_USER. */
+	private static final String SQL_INSERT_TEST_USER = "INSERT INTO User (UserName, EmailAddress) VALUES (?, ?)";
+
+	/** The Constant SQL_INSERT_TEST_ACC. */
+	private static final String SQL_INSERT_TEST_ACC = "INSERT INTO Account (UserName, BalanceUnits, CurrencyId) VALUES (?, ?, ?)";
+
 	/** The log. */
 	private static Logger log = Logger.getLogger(H2DAOFactory.class);
 
+	/** The connection pool shared by all H2 DAOs. */
+	private static final ConnectionPool connectionPool;
+
+	/** The balance journal shared by all H2 DAOs, null when disabled. */
+	private static final Journal journal = Journal.fromProperties("h2");
+
+	/** The transfer history mode. */
+	private static final TransferHistoryMode historyMode = TransferHistoryMode.fromProperties();
+
+	/** The transfer concurrency mode. */
+	private static final TransferConcurrencyMode concurrencyMode = TransferConcurrencyMode.fromProperties();
+
+	/** The transfer metrics shared by all H2 DAOs. */
+	private static final TransferMetrics transferMetrics = new TransferMetrics();
+
+	/** The in-process account locks shared by all H2 DAOs, null when disabled. */
+	private static final AccountLockManager accountLocks = createAccountLocks();
+
+	/** The transfer history writer shared by all H2 DAOs, null unless in async mode. */
+	private static final TransferHistoryWriter historyWriter;
+
+	/** The transfer group committer shared by all H2 DAOs, null unless transfer_group_commit is set. */
+	private static final TransferGroupCommitter groupCommitter;
+
+	/** The idempotency keys, in the IdempotencyKey table. */
+	private static final IdempotencyStore idempotencyStore;
+
+	/** The runner of transfers submitted asynchronously, spilling their statuses to the TransferStatus table. */
+	private static final TransferSubmitter transferSubmitter;
+
+	/** The account DAO shared by all H2 DAO factories, behind the account cache unless account_cache_size is 0. */
+	private static final AccountDAO accountDAO;
+
+	static {
+		DbUtils.loadDriver(h2_driver);
+		connectionPool = ConnectionPool.fromProperties(h2_connection_url, h2_user, h2_password);
+		historyWriter = historyMode == TransferHistoryMode.ASYNC ? TransferHistoryWriter.fromProperties() : null;
+		groupCommitter = Utils.getBooleanProperty("transfer_group_commit", false)
+				? TransferGroupCommitter.fromProperties() : null;
+		idempotencyStore = IdempotencyStore.fromProperties(connectionPool);
+		accountDAO = CachingAccountDAO.fromProperties(new AccountDAOImpl(new AccountDAOImpl.Options()
+				.journal(journal).history(historyMode, historyWriter).concurrencyMode(concurrencyMode)
+				.metrics(transferMetrics).accountLocks(accountLocks).groupCommitter(groupCommitter)));
+		transferSubmitter = TransferSubmitter.fromProperties(accountDAO, connectionPool);
+	}
+
 	/** The user DAO. */
 	private final UserDAOImpl userDAO = new UserDAOImpl();
 	
-	/** The account DAO. */
-	private final AccountDAOImpl accountDAO = new AccountDAOImpl();
+	/** The transfer DAO. */
+	private final TransferDAOImpl transferDAO = new TransferDAOImpl();
 
 	/**
 	 * Instantiates a new h 2 DAO factory.
@@ -60,14 +127,127 @@ public class H2DAOFactory extends DAOFactory {
 	}
 
 	/**
-	 * Gets the connection.
+	 * Builds the connection url. In file mode the database lives at
+	 * h2_file_path and the storage settings h2_cache_size (KB), h2_write_delay
+	 * (ms) and h2_page_size (bytes, only used when the file is created) are
+	 * appended when set. Otherwise h2_connection_url is used as is.
+	 *
+	 * @return the connection url
+	 */
+	private static String buildConnectionUrl() {
+		if (!FILE_MODE.equalsIgnoreCase(h2_storage_mode)) {
+			return Utils.getStringProperty("h2_connection_url");
+		}
+		StringBuilder url = new StringBuilder("jdbc:h2:file:")
+				.append(Utils.getStringProperty("h2_file_path", "./data/moneyapp"));
+		appendSetting(url, "CACHE_SIZE", "h2_cache_size");
+		appendSetting(url, "WRITE_DELAY", "h2_write_delay");
+		appendSetting(url, "PAGE_SIZE", "h2_page_size");
+		return url.toString();
+	}
+
+	/**
+	 * Append a database setting to the url if the property is set.
+	 *
+	 * @param url the url
+	 * @param setting the H2 setting name
+	 * @param key the property key
+	 */
+	private static void appendSetting(StringBuilder url, String setting, String key) {
+		String value = Utils.getStringProperty(key);
+		if (value != null && !value.trim().isEmpty()) {
+			url.append(';').append(setting).append('=').append(value.trim());
+		}
+	}
+
+	/**
+	 * Checks if the database is file backed.
+	 *
+	 * @return true, if the database survives a restart
+	 */
+	public static boolean isPersistent() {
+		return FILE_MODE.equalsIgnoreCase(h2_storage_mode);
+	}
+
+	/**
+	 * Gets a pooled connection. Closing it returns it to the pool.
 	 *
 	 * @return the connection
 	 * @throws SQLException the SQL exception
 	 */
 	public static Connection getConnection() throws SQLException {
-		return DriverManager.getConnection(h2_connection_url, h2_user, h2_password);
+		return connectionPool.getConnection();
+	}
+
+	/**
+	 * Close a connection without returning it to the pool, leaving its open
+	 * transaction as it is.
+	 *
+	 * @param conn the connection obtained from getConnection()
+	 */
+	public static void discardConnection(Connection conn) {
+		connectionPool.discard(conn);
+	}
+
+	/**
+	 * Create the in-process account locks from h2_account_lock_stripes, 0
+	 * leaves the balance changes to H2 row locks alone.
+	 *
+	 * @return the lock manager, null when disabled
+	 */
+	private static AccountLockManager createAccountLocks() {
+		int stripes = Utils.getIntegerProperty("h2_account_lock_stripes", 1024);
+		if (stripes <= 0) {
+			return null;
+		}
+		AccountLockManager locks = new AccountLockManager(stripes);
+		log.info("H2 account writes behind " + locks.getStripeCount() + " in-process lock stripes");
+		return locks;
+	}
+
+	/**
+	 * Gets the transfer history writer.
+	 *
+	 * @return the writer, null unless transfer_history_mode is async
+	 */
+	public static TransferHistoryWriter getTransferHistoryWriter() {
+		return historyWriter;
+	}
 
+	/**
+	 * Gets the transfer group committer.
+	 *
+	 * @return the committer, null unless transfer_group_commit is set
+	 */
+	public static TransferGroupCommitter getTransferGroupCommitter() {
+		return groupCommitter;
+	}
+
+	/**
+	 * Gets the account cache statistics.
+	 *
+	 * @return the cache stats, null when account_cache_size is 0
+	 */
+	public static CachingAccountDAO.Stats getAccountCacheStats() {
+		return accountDAO instanceof CachingAccountDAO ? ((CachingAccountDAO) accountDAO).getStats() : null;
+	}
+
+	/**
+	 * Gets the transfer statistics.
+	 *
+	 * @return the transfer stats
+	 */
+	public static TransferMetrics.Stats getTransferStats() {
+		return transferMetrics.getStats();
+	}
+
+	/**
+	 * Gets the connection pool statistics.
+	 *
+	 * @return the pool stats
+	 */
+	public static ConnectionPool.Stats getPoolStats() {
+		return connectionPool.getStats();
 	}
 
 	/* (non-Javadoc)
@@ -84,6 +264,45 @@ public class H2DAOFactory extends DAOFactory {
 		return accountDAO;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferDAO()
+	 */
+	public TransferDAO getTransferDAO() {
+		return transferDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getJournal()
+	 */
+	@Override
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getAccountLockManager()
+	 */
+	@Override
+	public AccountLockManager getAccountLockManager() {
+		return accountLocks;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getIdempotencyStore()
+	 */
+	@Override
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferSubmitter()
+	 */
+	@Override
+	public TransferSubmitter getTransferSubmitter() {
+		return transferSubmitter;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.abcbank.moneytransfer.dao.DAOFactory#populateTestData()
 	 */
@@ -91,14 +310,88 @@ public class H2DAOFactory extends DAOFactory {
 	public void populateTestData() {
 		log.info("Populating Test User Table and data ..... ");
 		Connection conn = null;
+		PreparedStatement stmt = null;
 		try {
 			conn = H2DAOFactory.getConnection();
-			RunScript.execute(conn, new FileReader("src/test/resources/demo.sql"));
+			// start from an empty database, then create the current schema
+			stmt = conn.prepareStatement(SQL_DROP_ALL);
+			stmt.executeUpdate();
+			SchemaInitializer.migrate(conn);
+			insertTestData(conn);
+			idempotencyStore.clearCache();
+			transferSubmitter.clear();
+			if (accountDAO instanceof CachingAccountDAO) {
+				((CachingAccountDAO) accountDAO).clear();
+			}
 		} catch (SQLException e) {
 			log.error("populateTestData(): Error populating user data: ", e);
 			throw new RuntimeException(e);
-		} catch (FileNotFoundException e) {
-			log.error("populateTestData(): Error finding test script file ", e);
+		} catch (IOException e) {
+			log.error("populateTestData(): Error reading test script file ", e);
+			throw new RuntimeException(e);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Insert the users and accounts of the test data script, converting the
+	 * decimal balances to units and the currency codes to ids.
+	 *
+	 * @param conn the connection
+	 * @throws SQLException the SQL exception, also for a row of an unknown currency
+	 * @throws IOException if the script cannot be read
+	 */
+	static void insertTestData(Connection conn) throws SQLException, IOException {
+		PreparedStatement userStmt = null;
+		PreparedStatement accountStmt = null;
+		try {
+			userStmt = conn.prepareStatement(SQL_INSERT_TEST_USER);
+			accountStmt = conn.prepareStatement(SQL_INSERT_TEST_ACC);
+			for (TestRow row : readTestData()) {
+				if (row.isOf("User")) {
+					userStmt.setString(1, row.get("USERNAME"));
+					userStmt.setString(2, row.get("EMAILADDRESS"));
+					userStmt.executeUpdate();
+				} else if (row.isOf("Account")) {
+					int currencyId = CurrencyTable.idOf(row.get("CURRENCYCODE"));
+					if (currencyId == CurrencyTable.UNKNOWN) {
+						throw new SQLException("Test data account of unknown currency " + row.get("CURRENCYCODE"));
+					}
+					accountStmt.setString(1, row.get("USERNAME"));
+					accountStmt.setLong(2, Money.toUnits(new BigDecimal(row.get("BALANCE"))));
+					accountStmt.setInt(3, currencyId);
+					accountStmt.executeUpdate();
+				}
+			}
+		} finally {
+			DbUtils.closeQuietly(userStmt);
+			DbUtils.closeQuietly(accountStmt);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#isDurable()
+	 */
+	@Override
+	public boolean isDurable() {
+		return isPersistent();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#initSchema()
+	 */
+	@Override
+	public void initSchema() {
+		Connection conn = null;
+		try {
+			conn = H2DAOFactory.getConnection();
+			int applied = SchemaInitializer.migrate(conn);
+			log.info("initSchema(): schema at version " + SchemaInitializer.getLatestVersion() + ", " + applied
+					+ " script(s) applied");
+		} catch (SQLException e) {
+			log.error("initSchema(): Error creating schema: ", e);
 			throw new RuntimeException(e);
 		} finally {
 			DbUtils.closeQuietly(conn);
@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import java.util.Arrays;
+
+
+/**
+ * Bounded, set associative cache of idempotency keys.
+ * <p>
+ * A key is known by two 64-bit hashes of it and lives in one set of WAYS
+ * slots picked by the first hash. Slots are columns of primitive arrays, so
+ * the cache holds no boxed keys, no entry objects and no links, and a lookup
+ * scans a few adjacent longs under the lock of its set. A full set evicts its
+ * oldest key; a key is also dropped once past its expiry. Evicted keys are
+ * still found in the persistent table, if any.
+ */
+final class IdempotencyCache {
+
+	/** The Constant WAYS, slots per set. */
+	private static final int WAYS = 8;
+
+	/** The Constant LOCK_STRIPES. */
+	private static final int LOCK_STRIPES = 64;
+
+	/** The set mask. */
+	private final int setMask;
+
+	/** The first hash of the key of each slot. */
+	private final long[] keyHashes;
+
+	/** The second hash of the key of each slot. */
+	private final long[] keyChecks;
+
+	/** The hash of the request of each slot. */
+	private final long[] requestHashes;
+
+	/** The expiry of each slot in ms, 0 when the slot is free. */
+	private final long[] expiries;
+
+	/** The response status of each slot, 0 while the request runs. */
+	private final int[] statuses;
+
+	/** The response message of each slot, mostly null. */
+	private final String[] messages;
+
+	/** The locks, one per stripe of sets. */
+	private final Object[] locks;
+
+	/**
+	 * Instantiates a new cache.
+	 *
+	 * @param capacity the max number of keys, rounded up to a power of two
+	 */
+	IdempotencyCache(int capacity) {
+		int sets = 1;
+		while (sets * WAYS < capacity && sets < (1 << 26)) {
+			sets <<= 1;
+		}
+		setMask = sets - 1;
+		int slots = sets * WAYS;
+		keyHashes = new long[slots];
+		keyChecks = new long[slots];
+		requestHashes = new long[slots];
+		expiries = new long[slots];
+		statuses = new int[slots];
+		messages = new String[slots];
+		locks = new Object[Math.min(LOCK_STRIPES, sets)];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Gets the number of slots.
+	 *
+	 * @return the capacity
+	 */
+	int capacity() {
+		return expiries.length;
+	}
+
+	/**
+	 * Gets the outcome of a live key.
+	 *
+	 * @param keyHash the first hash of the key
+	 * @param keyCheck the second hash of the key
+	 * @param now the current time in ms
+	 * @return the outcome, null when the key is not cached
+	 */
+	IdempotencyStore.Outcome get(long keyHash, long keyCheck, long now) {
+		int set = setOf(keyHash);
+		synchronized (locks[set % locks.length]) {
+			int slot = find(set, keyHash, keyCheck, now);
+			return slot < 0 ? null : outcome(slot);
+		}
+	}
+
+	/**
+	 * Add a key as running unless it is live already.
+	 *
+	 * @param keyHash the first hash of the key
+	 * @param keyCheck the second hash of the key
+	 * @param requestHash the hash of the request
+	 * @param now the current time in ms
+	 * @param expiry the expiry of the key in ms
+	 * @return the outcome of the live key, or null when the key was added
+	 */
+	IdempotencyStore.Outcome putIfAbsent(long keyHash, long keyCheck, long requestHash, long now, long expiry) {
+		int set = setOf(keyHash);
+		synchronized (locks[set % locks.length]) {
+			int slot = find(set, keyHash, keyCheck, now);
+			if (slot >= 0) {
+				return outcome(slot);
+			}
+			fill(victim(set, now), keyHash, keyCheck, requestHash, expiry, 0, null);
+			return null;
+		}
+	}
+
+	/**
+	 * Record the response of a key, adding the key back if it was evicted
+	 * meanwhile.
+	 *
+	 * @param keyHash the first hash of the key
+	 * @param keyCheck the second hash of the key
+	 * @param requestHash the hash of the request
+	 * @param now the current time in ms
+	 * @param expiry the expiry of the key in ms
+	 * @param status the response status
+	 * @param message the response message, may be null
+	 */
+	void put(long keyHash, long keyCheck, long requestHash, long now, long expiry, int status, String message) {
+		int set = setOf(keyHash);
+		synchronized (locks[set % locks.length]) {
+			int slot = find(set, keyHash, keyCheck, now);
+			fill(slot >= 0 ? slot : victim(set, now), keyHash, keyCheck, requestHash, expiry, status, message);
+		}
+	}
+
+	/**
+	 * Remove a key.
+	 *
+	 * @param keyHash the first hash of the key
+	 * @param keyCheck the second hash of the key
+	 */
+	void remove(long keyHash, long keyCheck) {
+		int set = setOf(keyHash);
+		synchronized (locks[set % locks.length]) {
+			int slot = find(set, keyHash, keyCheck, 0);
+			if (slot >= 0) {
+				expiries[slot] = 0;
+				messages[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * Remove every key.
+	 */
+	void clear() {
+		for (int stripe = 0; stripe < locks.length; stripe++) {
+			synchronized (locks[stripe]) {
+				for (int set = stripe; set <= setMask; set += locks.length) {
+					Arrays.fill(expiries, set * WAYS, (set + 1) * WAYS, 0);
+					Arrays.fill(messages, set * WAYS, (set + 1) * WAYS, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the set of a key.
+	 *
+	 * @param keyHash the first hash of the key
+	 * @return the set
+	 */
+	private int setOf(long keyHash) {
+		return (int) (keyHash ^ (keyHash >>> 32)) & setMask;
+	}
+
+	/**
+	 * Find the live slot of a key in its set.
+	 *
+	 * @param set the set
+	 * @param keyHash the first hash of the key
+	 * @param keyCheck the second hash of the key
+	 * @param now the current time in ms
+	 * @return the slot, or -1
+	 */
+	private int find(int set, long keyHash, long keyCheck, long now) {
+		int first = set * WAYS;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			if (expiries[slot] > now && keyHashes[slot] == keyHash && keyChecks[slot] == keyCheck) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Pick the slot of a new key in its set: a free or expired one, else the
+	 * one expiring first, which is the oldest as every key lives as long.
+	 *
+	 * @param set the set
+	 * @param now the current time in ms
+	 * @return the slot
+	 */
+	private int victim(int set, long now) {
+		int first = set * WAYS;
+		int victim = first;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			if (expiries[slot] <= now) {
+				return slot;
+			}
+			if (expiries[slot] < expiries[victim]) {
+				victim = slot;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * Fill a slot.
+	 *
+	 * @param slot the slot
+	 * @param keyHash the first hash of the key
+	 * @param keyCheck the second hash of the key
+	 * @param requestHash the hash of the request
+	 * @param expiry the expiry of the key in ms
+	 * @param status the response status, 0 while the request runs
+	 * @param message the response message, may be null
+	 */
+	private void fill(int slot, long keyHash, long keyCheck, long requestHash, long expiry, int status,
+			String message) {
+		keyHashes[slot] = keyHash;
+		keyChecks[slot] = keyCheck;
+		requestHashes[slot] = requestHash;
+		expiries[slot] = expiry;
+		statuses[slot] = status;
+		messages[slot] = message;
+	}
+
+	/**
+	 * Read the outcome of a slot.
+	 *
+	 * @param slot the slot
+	 * @return the outcome
+	 */
+	private IdempotencyStore.Outcome outcome(int slot) {
+		return new IdempotencyStore.Outcome(requestHashes[slot], statuses[slot], messages[slot]);
+	}
+}
@@ -0,0 +1,561 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+import org.h2.api.ErrorCode;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Idempotency keys of transfer requests and the response of each.
+ * <p>
+ * The first request with a key claims it, runs, then records its response;
+ * a repeat of the key gets that response back, or is told the first one is
+ * still running. Keys live for idempotency_ttl_hours. Recent keys are
+ * answered from a bounded in-memory cache of idempotency_cache_size keys,
+ * without touching the database. Every key is also written to the
+ * IdempotencyKey table, when there is one, so that keys evicted from the
+ * cache or known before a restart are still found: a claim is an insert on
+ * the primary key, refused when the key exists. A claim still running after
+ * idempotency_lease_seconds, such as one of a process that crashed, is taken
+ * over by the next request with the key.
+ * <p>
+ * A transfer running in the database of the table claims its key in the
+ * cache only and writes its response with a Record in its own transaction,
+ * so a committed transfer and its key are never apart and the table costs
+ * no statement of its own.
+ */
+public final class IdempotencyStore {
+
+	/**
+	 * The response of a key claimed in the cache only, written by the
+	 * transfer in its own transaction.
+	 */
+	public static final class Record {
+
+		/** The idempotency key. */
+		private final String key;
+
+		/** The hash of the request. */
+		private final long requestHash;
+
+		/** The response status of a committed transfer. */
+		private final int status;
+
+		/** Set once written in a transaction. */
+		private boolean written;
+
+		/** Set when the table had the key already. */
+		private boolean taken;
+
+		/**
+		 * Instantiates a new record.
+		 *
+		 * @param key the idempotency key
+		 * @param requestHash the hash of the request
+		 * @param status the response status of a committed transfer
+		 */
+		private Record(String key, long requestHash, int status) {
+			this.key = key;
+			this.requestHash = requestHash;
+			this.status = status;
+		}
+
+		/**
+		 * Insert the key with its response in the caller's transaction.
+		 *
+		 * @param conn the connection, in the transfer's transaction
+		 * @throws CustomException if the table has the key already, the transfer must roll back
+		 * @throws SQLException the SQL exception
+		 */
+		public void write(Connection conn) throws CustomException, SQLException {
+			PreparedStatement stmt = null;
+			try {
+				stmt = conn.prepareStatement(SQL_INSERT_RESPONSE);
+				stmt.setString(1, key);
+				stmt.setLong(2, requestHash);
+				stmt.setInt(3, status);
+				stmt.setString(4, null);
+				stmt.setLong(5, System.currentTimeMillis());
+				stmt.executeUpdate();
+				written = true;
+			} catch (SQLException e) {
+				if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+					throw e;
+				}
+				taken = true;
+				throw new CustomException("Idempotency key " + key + " is recorded already", e);
+			} finally {
+				DbUtils.closeQuietly(stmt);
+			}
+		}
+
+		/**
+		 * Checks if the record was written in the last transaction tried.
+		 *
+		 * @return true, if written
+		 */
+		public boolean isWritten() {
+			return written;
+		}
+
+		/**
+		 * Checks if the table had the key already, from before a restart or
+		 * another request.
+		 *
+		 * @return true, if taken
+		 */
+		public boolean isTaken() {
+			return taken;
+		}
+	}
+
+	/**
+	 * The outcome of a known key.
+	 */
+	public static final class Outcome {
+
+		/** The hash of the request. */
+		private final long requestHash;
+
+		/** The response status, 0 while the request runs. */
+		private final int status;
+
+		/** The response message, may be null. */
+		private final String message;
+
+		/**
+		 * Instantiates a new outcome.
+		 *
+		 * @param requestHash the hash of the request
+		 * @param status the response status, 0 while the request runs
+		 * @param message the response message, may be null
+		 */
+		Outcome(long requestHash, int status, String message) {
+			this.requestHash = requestHash;
+			this.status = status;
+			this.message = message;
+		}
+
+		/**
+		 * Gets the hash of the request that claimed the key.
+		 *
+		 * @return the request hash
+		 */
+		public long getRequestHash() {
+			return requestHash;
+		}
+
+		/**
+		 * Checks if the request that claimed the key has no response yet.
+		 *
+		 * @return true, if running or lost before it recorded its response
+		 */
+		public boolean isRunning() {
+			return status == 0;
+		}
+
+		/**
+		 * Gets the response status.
+		 *
+		 * @return the status, 0 while the request runs
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Gets the response message.
+		 *
+		 * @return the message, may be null
+		 */
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(IdempotencyStore.class);
+
+	/** The Constant MAX_KEY_LENGTH. */
+	public static final int MAX_KEY_LENGTH = 255;
+
+	/** The Constant MAX_MESSAGE_LENGTH. */
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+
+	/** The Constant KEY_SEED, of the hash picking the cache set of a key. */
+	private static final long KEY_SEED = 0xcbf29ce484222325L;
+
+	/** The Constant CHECK_SEED, of the second hash telling keys of a set apart. */
+	private static final long CHECK_SEED = 0x84222325cbf29ce4L;
+
+	/** The Constant PURGE_EVERY, claims between two deletes of expired rows. */
+	private static final int PURGE_EVERY = 1024;
+
+	/** The Constant SQL_INSERT_KEY. */
+	private static final String SQL_INSERT_KEY = "INSERT INTO IdempotencyKey (IdempotencyKey, RequestHash, Status, Message, CreatedAt) VALUES (?, ?, 0, NULL, ?)";
+
+	/** The Constant SQL_INSERT_RESPONSE, a key inserted with its response. */
+	private static final String SQL_INSERT_RESPONSE = "INSERT INTO IdempotencyKey (IdempotencyKey, RequestHash, Status, Message, CreatedAt) VALUES (?, ?, ?, ?, ?)";
+
+	/** The Constant SQL_GET_KEY. */
+	private static final String SQL_GET_KEY = "SELECT RequestHash, Status, Message, CreatedAt FROM IdempotencyKey WHERE IdempotencyKey = ?";
+
+	/** The Constant SQL_RECLAIM_KEY, takes over an expired row or a running one past its lease. */
+	private static final String SQL_RECLAIM_KEY = "UPDATE IdempotencyKey SET RequestHash = ?, Status = 0, Message = NULL, CreatedAt = ? WHERE IdempotencyKey = ? AND CreatedAt = ?";
+
+	/** The Constant SQL_COMPLETE_KEY. */
+	private static final String SQL_COMPLETE_KEY = "UPDATE IdempotencyKey SET Status = ?, Message = ? WHERE IdempotencyKey = ? AND Status = 0";
+
+	/** The Constant SQL_DELETE_KEY. */
+	private static final String SQL_DELETE_KEY = "DELETE FROM IdempotencyKey WHERE IdempotencyKey = ?";
+
+	/** The Constant SQL_PURGE_KEYS. */
+	private static final String SQL_PURGE_KEYS = "DELETE FROM IdempotencyKey WHERE CreatedAt < ?";
+
+	/** The connection pool of the table, null to keep the keys in memory only. */
+	private final ConnectionPool pool;
+
+	/** The cache. */
+	private final IdempotencyCache cache;
+
+	/** The time to live of a key in ms. */
+	private final long ttlMs;
+
+	/** The time a running claim holds its key in ms, before another request may take it over. */
+	private final long leaseMs;
+
+	/** The claims, to purge expired rows every PURGE_EVERY. */
+	private final AtomicLong claims = new AtomicLong();
+
+	/**
+	 * Instantiates a new idempotency store.
+	 *
+	 * @param pool the connection pool of the IdempotencyKey table, null to keep the keys in memory only
+	 * @param cacheSize the max number of keys in memory
+	 * @param ttlMs the time to live of a key in ms
+	 * @param leaseMs the time a running claim holds its key in ms, longer than any transfer runs
+	 */
+	public IdempotencyStore(ConnectionPool pool, int cacheSize, long ttlMs, long leaseMs) {
+		this.pool = pool;
+		this.cache = new IdempotencyCache(Math.max(1, cacheSize));
+		this.ttlMs = Math.max(1, ttlMs);
+		this.leaseMs = Math.max(1, Math.min(leaseMs, this.ttlMs));
+	}
+
+	/**
+	 * Create the store from the idempotency_* properties.
+	 *
+	 * @param pool the connection pool of the IdempotencyKey table, null to keep the keys in memory only
+	 * @return the store
+	 */
+	public static IdempotencyStore fromProperties(ConnectionPool pool) {
+		return new IdempotencyStore(pool, Utils.getIntegerProperty("idempotency_cache_size", 100000),
+				TimeUnit.HOURS.toMillis(Utils.getIntegerProperty("idempotency_ttl_hours", 24)),
+				TimeUnit.SECONDS.toMillis(Utils.getIntegerProperty("idempotency_lease_seconds", 60)));
+	}
+
+	/**
+	 * Gets the number of keys the cache holds.
+	 *
+	 * @return the cache capacity
+	 */
+	public int getCacheCapacity() {
+		return cache.capacity();
+	}
+
+	/**
+	 * Claim a key for a request. On success the caller runs the request then
+	 * calls complete, or release if it has no response to record.
+	 *
+	 * @param key the idempotency key, at most MAX_KEY_LENGTH characters
+	 * @param requestHash the hash of the request
+	 * @return null once claimed, else the outcome of the known key
+	 * @throws CustomException if the table cannot be read or written
+	 */
+	public Outcome claim(String key, long requestHash) throws CustomException {
+		long keyHash = hash(key, KEY_SEED);
+		long keyCheck = hash(key, CHECK_SEED);
+		long now = System.currentTimeMillis();
+		// a running entry lives for the lease, complete gives it the time to live
+		Outcome cached = cache.putIfAbsent(keyHash, keyCheck, requestHash, now, now + leaseMs);
+		if (cached != null || pool == null) {
+			return cached;
+		}
+		Outcome stored;
+		try {
+			stored = insert(key, requestHash, now);
+		} catch (SQLException e) {
+			cache.remove(keyHash, keyCheck);
+			throw new CustomException("Error claiming idempotency key", e);
+		}
+		if (stored == null) {
+			if (claims.incrementAndGet() % PURGE_EVERY == 0) {
+				purge(now);
+			}
+		} else if (stored.isRunning()) {
+			// claimed before a restart or by the evicted twin of this entry, no response to reuse
+			cache.remove(keyHash, keyCheck);
+		} else {
+			cache.put(keyHash, keyCheck, stored.getRequestHash(), now, now + ttlMs, stored.getStatus(),
+					stored.getMessage());
+		}
+		return stored;
+	}
+
+	/**
+	 * Claim a key in the cache only, for a transfer that writes its response
+	 * in its own transaction with the record of the key. On success the
+	 * caller runs the transfer, then calls complete with the record, or
+	 * forget if it has no response to record. A key the cache does not know
+	 * may still be in the table: the record then fails the transfer and
+	 * tells so with isTaken.
+	 *
+	 * @param key the idempotency key, at most MAX_KEY_LENGTH characters
+	 * @param requestHash the hash of the request
+	 * @return null once claimed, else the outcome of the cached key
+	 */
+	public Outcome claimInCache(String key, long requestHash) {
+		long now = System.currentTimeMillis();
+		return cache.putIfAbsent(hash(key, KEY_SEED), hash(key, CHECK_SEED), requestHash, now, now + leaseMs);
+	}
+
+	/**
+	 * Gets the record of a key claimed in the cache, for its transfer to write.
+	 *
+	 * @param key the idempotency key
+	 * @param requestHash the hash of the request
+	 * @param status the response status of a committed transfer
+	 * @return the record
+	 */
+	public Record record(String key, long requestHash, int status) {
+		return new Record(key, requestHash, status);
+	}
+
+	/**
+	 * Record the response a transfer wrote with its record, in the cache
+	 * only, or in the table as well if the transfer could not write it.
+	 *
+	 * @param record the record
+	 */
+	public void complete(Record record) {
+		if (!record.isWritten()) {
+			complete(record.key, record.requestHash, record.status, null);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		cache.put(hash(record.key, KEY_SEED), hash(record.key, CHECK_SEED), record.requestHash, now, now + ttlMs,
+				record.status, null);
+	}
+
+	/**
+	 * Record the response of a claimed key. Only a running row is updated: a
+	 * response a transfer committed in its own transaction is never
+	 * overwritten, whatever failed after it.
+	 *
+	 * @param key the idempotency key
+	 * @param requestHash the hash of the request
+	 * @param status the response status
+	 * @param message the response message, may be null
+	 */
+	public void complete(String key, long requestHash, int status, String message) {
+		if (message != null && message.length() > MAX_MESSAGE_LENGTH) {
+			message = message.substring(0, MAX_MESSAGE_LENGTH);
+		}
+		long now = System.currentTimeMillis();
+		cache.put(hash(key, KEY_SEED), hash(key, CHECK_SEED), requestHash, now, now + ttlMs,
+				status, message);
+		if (pool == null) {
+			return;
+		}
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_COMPLETE_KEY);
+			stmt.setInt(1, status);
+			stmt.setString(2, message);
+			stmt.setString(3, key);
+			if (stmt.executeUpdate() == 0) {
+				// claimed in the cache only, its transfer wrote nothing
+				DbUtils.closeQuietly(stmt);
+				stmt = conn.prepareStatement(SQL_INSERT_RESPONSE);
+				stmt.setString(1, key);
+				stmt.setLong(2, requestHash);
+				stmt.setInt(3, status);
+				stmt.setString(4, message);
+				stmt.setLong(5, now);
+				stmt.executeUpdate();
+			}
+		} catch (SQLException e) {
+			if (e.getErrorCode() == ErrorCode.DUPLICATE_KEY_1) {
+				// the transfer committed its record after all, it stands
+				cache.remove(hash(key, KEY_SEED), hash(key, CHECK_SEED));
+				log.warn("complete(): idempotency key " + key + " has a committed response, kept");
+				return;
+			}
+			// the cache still answers repeats until the key is evicted
+			log.error("complete(): Error recording the response of idempotency key " + key, e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, null);
+		}
+	}
+
+	/**
+	 * Forget a claimed key, so that a repeat runs the request again.
+	 *
+	 * @param key the idempotency key
+	 */
+	public void release(String key) {
+		cache.remove(hash(key, KEY_SEED), hash(key, CHECK_SEED));
+		if (pool == null) {
+			return;
+		}
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_DELETE_KEY);
+			stmt.setString(1, key);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			log.error("release(): Error deleting idempotency key " + key, e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, null);
+		}
+	}
+
+	/**
+	 * Forget a key claimed in the cache only. The table is left alone, its
+	 * row if any is of another request.
+	 *
+	 * @param key the idempotency key
+	 */
+	public void forget(String key) {
+		cache.remove(hash(key, KEY_SEED), hash(key, CHECK_SEED));
+	}
+
+	/**
+	 * Forget the cached keys, as a restart does. Keys in the table are kept.
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+
+	/**
+	 * Insert a running key, or read the row of a known one. An expired row, or
+	 * a running one past its lease, is taken over.
+	 *
+	 * @param key the idempotency key
+	 * @param requestHash the hash of the request
+	 * @param now the current time in ms
+	 * @return null once inserted, else the outcome of the known key
+	 * @throws SQLException the SQL exception
+	 */
+	private Outcome insert(String key, long requestHash, long now) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = pool.getConnection();
+			try {
+				stmt = conn.prepareStatement(SQL_INSERT_KEY);
+				stmt.setString(1, key);
+				stmt.setLong(2, requestHash);
+				stmt.setLong(3, now);
+				stmt.executeUpdate();
+				return null;
+			} catch (SQLException e) {
+				if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+					throw e;
+				}
+			}
+			DbUtils.closeQuietly(stmt);
+			stmt = conn.prepareStatement(SQL_GET_KEY);
+			stmt.setString(1, key);
+			rs = stmt.executeQuery();
+			if (!rs.next()) {
+				// released meanwhile, the repeat may run again
+				return new Outcome(requestHash, 0, null);
+			}
+			Outcome stored = new Outcome(rs.getLong("RequestHash"), rs.getInt("Status"), rs.getString("Message"));
+			long createdAt = rs.getLong("CreatedAt");
+			if (createdAt + (stored.isRunning() ? leaseMs : ttlMs) > now) {
+				return stored;
+			}
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(stmt);
+			stmt = conn.prepareStatement(SQL_RECLAIM_KEY);
+			stmt.setLong(1, requestHash);
+			stmt.setLong(2, now);
+			stmt.setString(3, key);
+			stmt.setLong(4, createdAt);
+			return stmt.executeUpdate() == 1 ? null : new Outcome(requestHash, 0, null);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Delete the expired rows.
+	 *
+	 * @param now the current time in ms
+	 */
+	private void purge(long now) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_PURGE_KEYS);
+			stmt.setLong(1, now - ttlMs);
+			int purged = stmt.executeUpdate();
+			if (log.isDebugEnabled()) {
+				log.debug("purge(): " + purged + " expired idempotency keys deleted");
+			}
+		} catch (SQLException e) {
+			log.warn("purge(): Error deleting expired idempotency keys", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, null);
+		}
+	}
+
+	/**
+	 * Hash a key to 64 bits: FNV-1a over its chars, then a final mix. Two
+	 * seeds give the two hashes a key is cached by.
+	 *
+	 * @param key the key
+	 * @param seed the seed
+	 * @return the hash
+	 */
+	public static long hash(String key, long seed) {
+		long h = seed;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.dao.impl.InMemoryAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore;
+import com.abcbank.moneytransfer.dao.impl.InMemoryTransferDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryUserDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.TransferPipeline;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.journal.Snapshot;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.User;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * In-JVM DAO factory. Users and accounts are held in memory, with no JDBC or
+ * SQL on the request path. There is a single store per JVM, so every caller
+ * of getDAOFactory(IN_MEMORY) gets the same instance.
+ * <p>
+ * With journal_enabled the engine is durable: every change is journaled, a
+ * snapshot of the store is written every snapshot_interval_sec and on
+ * shutdown, and startup loads the newest snapshot and replays only the
+ * journal records written after it.
+ */
+public class InMemoryDAOFactory extends DAOFactory {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(InMemoryDAOFactory.class);
+
+
+	/** The journal, null when disabled. */
+	private final Journal journal = Journal.fromProperties("memory");
+
+	/** The store. */
+	private final InMemoryStore store = new InMemoryStore(Utils.getIntegerProperty("memory_lock_stripes", 256),
+			Utils.getIntegerProperty("memory_initial_capacity", 1024), journal, TransferHistoryMode.fromProperties());
+
+	/** The user DAO. */
+	private final InMemoryUserDAOImpl userDAO = new InMemoryUserDAOImpl(store);
+
+	/** The account DAO. */
+	private final InMemoryAccountDAOImpl accountDAO = new InMemoryAccountDAOImpl(store);
+
+	/** The transfer DAO. */
+	private final InMemoryTransferDAOImpl transferDAO = new InMemoryTransferDAOImpl(store);
+
+	/** The runner of transfers submitted asynchronously, the oldest statuses dropped. */
+	private final TransferSubmitter transferSubmitter = TransferSubmitter.fromProperties(accountDAO, null);
+
+	/** The idempotency keys, in memory only. */
+	private final IdempotencyStore idempotencyStore = IdempotencyStore.fromProperties(null);
+
+	/** The journal sequence number of the last snapshot written or loaded. */
+	private long snapshotSeq;
+
+	/**
+	 * Instantiates a new in memory DAO factory.
+	 */
+	private InMemoryDAOFactory() {
+		log.info("In memory engine with " + store.getLockStripes() + " account lock stripes");
+		if (journal != null) {
+			recover();
+			scheduleSnapshots();
+		}
+		// started after the recovery, which writes the store directly
+		if (Utils.getBooleanProperty("memory_pipeline", false)) {
+			store.startPipeline(
+					Utils.getIntegerProperty("memory_pipeline_shards", Runtime.getRuntime().availableProcessors()),
+					Utils.getIntegerProperty("memory_pipeline_ring_size", 1024));
+		}
+	}
+
+	/**
+	 * Gets the JVM wide instance.
+	 *
+	 * @return the instance
+	 */
+	static InMemoryDAOFactory getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getUserDAO()
+	 */
+	public UserDAO getUserDAO() {
+		return userDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getAccountDAO()
+	 */
+	public AccountDAO getAccountDAO() {
+		return accountDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferDAO()
+	 */
+	public TransferDAO getTransferDAO() {
+		return transferDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getJournal()
+	 */
+	@Override
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getAccountLockManager()
+	 */
+	@Override
+	public AccountLockManager getAccountLockManager() {
+		return store.getLockManager();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferPipeline()
+	 */
+	@Override
+	public TransferPipeline getTransferPipeline() {
+		return store.getPipeline();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getIdempotencyStore()
+	 */
+	@Override
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferSubmitter()
+	 */
+	@Override
+	public TransferSubmitter getTransferSubmitter() {
+		return transferSubmitter;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#populateTestData()
+	 */
+	@Override
+	public void populateTestData() {
+		log.info("Populating in memory users and accounts ..... ");
+		// the demo rows come from the same script as the H2 engine
+		try {
+			List<TestRow> rows = readTestData();
+			store.clear();
+			idempotencyStore.clearCache();
+			transferSubmitter.clear();
+			for (TestRow row : rows) {
+				insertRow(row);
+			}
+		} catch (IOException | CustomException e) {
+			log.error("populateTestData(): Error populating user data: ", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a snapshot of the store and drop the snapshots and journal
+	 * segments no longer needed. Does nothing when the journal is disabled or
+	 * nothing changed since the last snapshot.
+	 *
+	 * @return the snapshot file, null when none was written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized File writeSnapshot() throws IOException {
+		if (journal == null) {
+			return null;
+		}
+		Snapshot snapshot = store.snapshot();
+		if (snapshot.getJournalSeq() == snapshotSeq) {
+			return null;
+		}
+		// the journal must be on disk up to the snapshot, or a crash could reuse sequence numbers it includes
+		journal.flush();
+		if (journal.getDurableSeq() < snapshot.getJournalSeq()) {
+			throw new IOException("Journal not durable up to snapshot sequence " + snapshot.getJournalSeq());
+		}
+		long start = System.currentTimeMillis();
+		File file = snapshot.write(journal.getDir());
+		snapshotSeq = snapshot.getJournalSeq();
+		log.info("Snapshot " + file.getName() + " of " + snapshot.getUsers().size() + " users, "
+				+ snapshot.getAccounts().size() + " accounts and " + snapshot.getTransfers().size()
+				+ " transfers written in " + (System.currentTimeMillis() - start) + " ms");
+		long oldest = Snapshot.deleteOlder(journal.getDir(), Utils.getIntegerProperty("snapshot_retain", 2));
+		journal.deleteSegmentsBefore(oldest + 1);
+		return file;
+	}
+
+	/**
+	 * Load the newest snapshot and replay the journal tail after it.
+	 */
+	private void recover() {
+		long start = System.currentTimeMillis();
+		Snapshot snapshot = Snapshot.readLatest(journal.getDir());
+		long loaded = System.currentTimeMillis();
+		if (snapshot != null) {
+			store.restore(snapshot);
+			snapshotSeq = snapshot.getJournalSeq();
+			log.info("Recovery: loaded snapshot at journal sequence " + snapshotSeq + " with "
+					+ snapshot.getUsers().size() + " users, " + snapshot.getAccounts().size() + " accounts and "
+					+ snapshot.getTransfers().size() + " transfers in " + (System.currentTimeMillis() - start) + " ms");
+		} else {
+			log.info("Recovery: no snapshot, replaying the whole journal");
+		}
+		if (journal.getLastSeq() < snapshotSeq) {
+			log.warn("Recovery: journal ends at sequence " + journal.getLastSeq() + ", before the snapshot");
+		}
+		long replayStart = System.currentTimeMillis();
+		long replayed;
+		try {
+			replayed = journal.replay(snapshotSeq, store::apply);
+		} catch (IOException e) {
+			log.error("recover(): Error replaying journal", e);
+			throw new RuntimeException(e);
+		}
+		long end = System.currentTimeMillis();
+		log.info("Recovery: replayed " + replayed + " journal records up to sequence " + journal.getLastSeq()
+				+ " in " + (end - replayStart) + " ms");
+		log.info("Recovery complete in " + (end - start) + " ms (snapshot " + (loaded - start) + " ms, restore "
+				+ (replayStart - loaded) + " ms, replay " + (end - replayStart) + " ms)");
+	}
+
+	/**
+	 * Start the periodic snapshot writer and snapshot on shutdown.
+	 */
+	private void scheduleSnapshots() {
+		long interval = Utils.getIntegerProperty("snapshot_interval_sec", 300);
+		if (interval > 0) {
+			ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "snapshot-writer");
+				t.setDaemon(true);
+				return t;
+			});
+			writer.scheduleWithFixedDelay(this::snapshotQuietly, interval, interval, TimeUnit.SECONDS);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(this::snapshotQuietly, "snapshot-shutdown"));
+	}
+
+	/**
+	 * Write a snapshot, logging failures.
+	 */
+	private void snapshotQuietly() {
+		try {
+			writeSnapshot();
+		} catch (IOException | RuntimeException e) {
+			log.error("writeSnapshot(): Error writing snapshot", e);
+		}
+	}
+
+	/**
+	 * Insert one demo row.
+	 *
+	 * @param row the row
+	 * @throws CustomException the custom exception
+	 */
+	private void insertRow(TestRow row) throws CustomException {
+		if (row.isOf("User")) {
+			userDAO.insertUser(new User(row.get("USERNAME"), row.get("EMAILADDRESS")));
+		} else if (row.isOf("Account")) {
+			accountDAO.createAccount(
+					new Account(0, row.get("USERNAME"), new BigDecimal(row.get("BALANCE")), row.get("CURRENCYCODE")));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#initSchema()
+	 */
+	@Override
+	public void initSchema() {
+		// nothing to create, the tables are the store's maps
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#isDurable()
+	 */
+	@Override
+	public boolean isDurable() {
+		return journal != null;
+	}
+
+	/**
+	 * Lazy holder of the instance.
+	 */
+	private static final class Holder {
+
+		/** The Constant INSTANCE. */
+		private static final InMemoryDAOFactory INSTANCE = new InMemoryDAOFactory();
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import java.io.IOException;
+
+
+/**
+ * Callback receiving the rows of a streamed query one at a time, so a large
+ * result never has to be held in memory.
+ *
+ * @param <T> the row type
+ */
+@FunctionalInterface
+public interface RowHandler<T> {
+
+	/**
+	 * Handle one row.
+	 *
+	 * @param row the row
+	 * @throws IOException if the row cannot be written out, ends the stream
+	 */
+	void handle(T row) throws IOException;
+}
@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.model.CurrencyTable;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+import org.h2.tools.RunScript;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+
+
+/**
+ * Applies the versioned schema scripts found under db/migration on the
+ * classpath. The applied version is recorded in the SchemaVersion table, so
+ * startup on an up to date database does no schema work.
+ */
+public final class SchemaInitializer {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(SchemaInitializer.class);
+
+	/** The Constant MIGRATION_PATH. */
+	private static final String MIGRATION_PATH = "db/migration/";
+
+	/**
+	 * The migration scripts, in version order. Script N (1 based) brings the
+	 * schema to version N. Never edit a released script, add a new one.
+	 */
+	private static final String[] MIGRATIONS = { "V1__base_schema.sql", "V2__transfer_history.sql",
+			"V3__account_version.sql", "V4__shard_catalog.sql", "V5__idempotency_keys.sql",
+			"V6__transfer_status.sql", "V7__money_units.sql", "V8__currency_ids.sql" };
+
+	/** The Constant SQL_CREATE_VERSION_TABLE. */
+	private static final String SQL_CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS SchemaVersion "
+			+ "(Version INT PRIMARY KEY NOT NULL, Script VARCHAR(100) NOT NULL, AppliedAt TIMESTAMP NOT NULL)";
+
+	/** The Constant SQL_GET_VERSION. */
+	private static final String SQL_GET_VERSION = "SELECT MAX(Version) FROM SchemaVersion";
+
+	/** The Constant SQL_INSERT_VERSION. */
+	private static final String SQL_INSERT_VERSION = "INSERT INTO SchemaVersion (Version, Script, AppliedAt) "
+			+ "VALUES (?, ?, CURRENT_TIMESTAMP())";
+
+	/**
+	 * Instantiates a new schema initializer.
+	 */
+	private SchemaInitializer() {
+	}
+
+	/**
+	 * Gets the latest schema version known to this build.
+	 *
+	 * @return the latest version
+	 */
+	public static int getLatestVersion() {
+		return MIGRATIONS.length;
+	}
+
+	/**
+	 * Bring the schema up to the latest version.
+	 *
+	 * @param conn the connection
+	 * @return the number of scripts applied
+	 * @throws SQLException the SQL exception
+	 */
+	public static int migrate(Connection conn) throws SQLException {
+		int current = getCurrentVersion(conn);
+		if (current >= MIGRATIONS.length) {
+			if (log.isDebugEnabled())
+				log.debug("migrate(): schema is up to date at version " + current);
+			return 0;
+		}
+		int applied = 0;
+		for (int version = current + 1; version <= MIGRATIONS.length; version++) {
+			String script = MIGRATIONS[version - 1];
+			log.info("migrate(): applying schema version " + version + " from " + script);
+			InputStream in = Thread.currentThread().getContextClassLoader()
+					.getResourceAsStream(MIGRATION_PATH + script);
+			if (in == null) {
+				throw new SQLException("Schema script not found on classpath: " + MIGRATION_PATH + script);
+			}
+			RunScript.execute(conn, new InputStreamReader(in, StandardCharsets.UTF_8));
+			PreparedStatement stmt = null;
+			try {
+				stmt = conn.prepareStatement(SQL_INSERT_VERSION);
+				stmt.setInt(1, version);
+				stmt.setString(2, script);
+				stmt.executeUpdate();
+			} finally {
+				DbUtils.closeQuietly(stmt);
+			}
+			applied++;
+		}
+		return applied;
+	}
+
+	/**
+	 * Gets the CurrencyTable id of a currency code stored before V8, trimmed
+	 * and upper cased. Called by V8__currency_ids.sql as MIGRATE_CURRENCY_ID.
+	 *
+	 * @param table the table migrated
+	 * @param id the id of the row migrated
+	 * @param code the stored currency code
+	 * @return the currency id
+	 * @throws SQLException if the code is no ISO 4217 currency, which stops the migration
+	 */
+	public static int migrateCurrencyId(String table, long id, String code) throws SQLException {
+		int currencyId = CurrencyTable.idOf(code == null ? null : code.trim().toUpperCase(Locale.ROOT));
+		if (currencyId == CurrencyTable.UNKNOWN) {
+			throw new SQLException("Cannot migrate " + table + " row " + id + ", currency code '" + code
+					+ "' is no ISO 4217 currency: fix the row and restart");
+		}
+		return currencyId;
+	}
+
+	/**
+	 * Fail the migration when rows collide on a unique key. Called by
+	 * V8__currency_ids.sql as REQUIRE_NO_DUPLICATES.
+	 *
+	 * @param table the table migrated
+	 * @param duplicates the number of keys held by more than one row
+	 * @throws SQLException if there are duplicates, which stops the migration
+	 */
+	public static void requireNoDuplicates(String table, long duplicates) throws SQLException {
+		if (duplicates > 0) {
+			throw new SQLException("Cannot migrate " + table + ", " + duplicates
+					+ " users hold more than one account of a currency once its codes are upper cased: "
+					+ "merge them and restart");
+		}
+	}
+
+	/**
+	 * Gets the schema version of the database, creating the version table when
+	 * missing.
+	 *
+	 * @param conn the connection
+	 * @return the current version, 0 for an empty database
+	 * @throws SQLException the SQL exception
+	 */
+	public static int getCurrentVersion(Connection conn) throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = conn.prepareStatement(SQL_CREATE_VERSION_TABLE);
+			stmt.executeUpdate();
+			DbUtils.closeQuietly(stmt);
+			stmt = conn.prepareStatement(SQL_GET_VERSION);
+			rs = stmt.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.dao.impl.AccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.ShardedAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.ShardedTransferDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.TransferDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.UserDAOImpl;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Sharded H2 DAO factory. Accounts are spread over shard_count independent H2
+ * databases by a hash of the account id; users, the account directory and the
+ * coordinator log of cross shard transfers live in a catalog database. By
+ * default every database is a local stand-in, in memory or, in file mode,
+ * a file next to h2_file_path; shard_urls and shard_catalog_url point the
+ * engine at other databases, such as H2 servers. There is a single set of
+ * databases per JVM, so every caller of getDAOFactory(SHARDED_H2) gets the
+ * same instance.
+ */
+public class ShardedH2DAOFactory extends DAOFactory {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(ShardedH2DAOFactory.class);
+
+	/** The Constant SQL_DROP_ALL. */
+	private static final String SQL_DROP_ALL = "DROP ALL OBJECTS";
+
+	/** The Constant SQL_GET_ALL_ACC. */
+	private static final String SQL_GET_ALL_ACC = "SELECT * FROM Account ORDER BY AccountId";
+
+	/** The Constant SQL_DELETE_ALL_ACC. */
+	private static final String SQL_DELETE_ALL_ACC = "DELETE FROM Account";
+
+	/** The Constant h2_storage_mode, mem (default) or file. */
+	private static final String h2_storage_mode = Utils.getStringProperty("h2_storage_mode", "mem");
+
+	/** The catalog connection pool. */
+	private final ConnectionPool catalogPool;
+
+	/** The shard connection pools, by shard index. */
+	private final ConnectionPool[] shardPools;
+
+	/** The user DAO, on the catalog. */
+	private final UserDAOImpl userDAO;
+
+	/** The account DAO. */
+	private final ShardedAccountDAOImpl accountDAO;
+
+	/** The transfer DAO. */
+	private final ShardedTransferDAOImpl transferDAO;
+
+	/** The idempotency keys, in the catalog. */
+	private final IdempotencyStore idempotencyStore;
+
+	/** The runner of transfers submitted asynchronously, spilling their statuses to the catalog. */
+	private final TransferSubmitter transferSubmitter;
+
+	/**
+	 * Instantiates a new sharded H2 DAO factory.
+	 */
+	private ShardedH2DAOFactory() {
+		DbUtils.loadDriver(Utils.getStringProperty("h2_driver"));
+		String user = Utils.getStringProperty("h2_user");
+		String password = Utils.getStringProperty("h2_password");
+		List<String> shardUrls = buildShardUrls();
+		catalogPool = ConnectionPool.fromProperties(buildUrl("shard_catalog_url", "catalog"), user, password);
+		shardPools = new ConnectionPool[shardUrls.size()];
+		TransferHistoryMode historyMode = TransferHistoryMode.fromProperties();
+		if (historyMode == TransferHistoryMode.ASYNC) {
+			// the history row is part of each shard's side of a transfer
+			log.warn("Async transfer history not supported by the sharded engine, using sync");
+			historyMode = TransferHistoryMode.SYNC;
+		}
+		TransferConcurrencyMode concurrencyMode = TransferConcurrencyMode.fromProperties();
+		TransferMetrics metrics = new TransferMetrics();
+		AccountDAOImpl[] accountShards = new AccountDAOImpl[shardPools.length];
+		TransferDAOImpl[] transferShards = new TransferDAOImpl[shardPools.length];
+		for (int i = 0; i < shardPools.length; i++) {
+			shardPools[i] = ConnectionPool.fromProperties(shardUrls.get(i), user, password);
+			accountShards[i] = new AccountDAOImpl(new AccountDAOImpl.Options().pool(shardPools[i])
+					.history(historyMode, null).concurrencyMode(concurrencyMode).metrics(metrics));
+			transferShards[i] = new TransferDAOImpl(shardPools[i]);
+		}
+		userDAO = new UserDAOImpl(catalogPool);
+		accountDAO = new ShardedAccountDAOImpl(catalogPool, accountShards);
+		transferDAO = new ShardedTransferDAOImpl(accountDAO, transferShards);
+		idempotencyStore = IdempotencyStore.fromProperties(catalogPool);
+		transferSubmitter = TransferSubmitter.fromProperties(accountDAO, catalogPool);
+		log.info("Sharded H2 engine with " + shardPools.length + " account shards");
+	}
+
+	/**
+	 * Gets the JVM wide instance.
+	 *
+	 * @return the instance
+	 */
+	static ShardedH2DAOFactory getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Checks if the databases are file backed.
+	 *
+	 * @return true, if in file mode
+	 */
+	static boolean isFileMode() {
+		return H2DAOFactory.FILE_MODE.equalsIgnoreCase(h2_storage_mode);
+	}
+
+	/**
+	 * Builds the shard urls: shard_urls, comma separated, when set, else
+	 * shard_count local stand-ins.
+	 *
+	 * @return the shard urls, by shard index
+	 */
+	private static List<String> buildShardUrls() {
+		List<String> urls = new ArrayList<String>();
+		String configured = Utils.getStringProperty("shard_urls");
+		if (configured != null && !configured.trim().isEmpty()) {
+			for (String url : configured.split(",")) {
+				urls.add(url.trim());
+			}
+			return urls;
+		}
+		int count = Math.max(1, Utils.getIntegerProperty("shard_count", 4));
+		for (int i = 0; i < count; i++) {
+			urls.add(buildUrl(null, "shard" + i));
+		}
+		return urls;
+	}
+
+	/**
+	 * Builds the url of one database of a partitioned engine: the property
+	 * when set, else a local stand-in named after the H2 engine's database. In
+	 * file mode every commit is written at once (WRITE_DELAY=0), as a prepared
+	 * shard transaction and a logged decision must survive a crash.
+	 *
+	 * @param key the property key of a configured url, null for none
+	 * @param suffix the database name suffix of the stand-in
+	 * @return the url
+	 */
+	static String buildUrl(String key, String suffix) {
+		String configured = key == null ? null : Utils.getStringProperty(key);
+		if (configured != null && !configured.trim().isEmpty()) {
+			return configured.trim();
+		}
+		if (!isFileMode()) {
+			return "jdbc:h2:mem:moneyapp_" + suffix + ";DB_CLOSE_DELAY=-1";
+		}
+		StringBuilder url = new StringBuilder("jdbc:h2:file:")
+				.append(Utils.getStringProperty("h2_file_path", "./data/moneyapp")).append('_').append(suffix);
+		appendSetting(url, "CACHE_SIZE", "h2_cache_size");
+		appendSetting(url, "PAGE_SIZE", "h2_page_size");
+		return url.append(";WRITE_DELAY=0").toString();
+	}
+
+	/**
+	 * Append a database setting to the url if the property is set.
+	 *
+	 * @param url the url
+	 * @param setting the H2 setting name
+	 * @param key the property key
+	 */
+	private static void appendSetting(StringBuilder url, String setting, String key) {
+		String value = Utils.getStringProperty(key);
+		if (value != null && !value.trim().isEmpty()) {
+			url.append(';').append(setting).append('=').append(value.trim());
+		}
+	}
+
+	/**
+	 * Gets the routing and two phase commit statistics.
+	 *
+	 * @return the shard stats
+	 */
+	public ShardedAccountDAOImpl.Stats getShardStats() {
+		return accountDAO.getStats();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getUserDAO()
+	 */
+	public UserDAO getUserDAO() {
+		return userDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getAccountDAO()
+	 */
+	public AccountDAO getAccountDAO() {
+		return accountDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferDAO()
+	 */
+	public TransferDAO getTransferDAO() {
+		return transferDAO;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getIdempotencyStore()
+	 */
+	@Override
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#getTransferSubmitter()
+	 */
+	@Override
+	public TransferSubmitter getTransferSubmitter() {
+		return transferSubmitter;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#populateTestData()
+	 */
+	@Override
+	public void populateTestData() {
+		log.info("Populating sharded users and accounts ..... ");
+		try {
+			for (ConnectionPool shardPool : shardPools) {
+				resetSchema(shardPool);
+			}
+			resetSchema(catalogPool);
+			idempotencyStore.clearCache();
+			transferSubmitter.clear();
+			for (Account account : runTestDataScript(catalogPool)) {
+				accountDAO.importAccount(account);
+			}
+		} catch (SQLException | CustomException e) {
+			log.error("populateTestData(): Error populating user data: ", e);
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			log.error("populateTestData(): Error reading test script file ", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Insert the test data on a catalog database, then take the accounts
+	 * it inserted out of the catalog's Account table, for the caller to
+	 * import where they belong.
+	 *
+	 * @param catalogPool the catalog connection pool
+	 * @return the accounts of the script
+	 * @throws SQLException the SQL exception
+	 * @throws IOException if the script cannot be read
+	 */
+	static List<Account> runTestDataScript(ConnectionPool catalogPool) throws SQLException, IOException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = catalogPool.getConnection();
+			H2DAOFactory.insertTestData(conn);
+			List<Account> accounts = new ArrayList<Account>();
+			stmt = conn.prepareStatement(SQL_GET_ALL_ACC);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				accounts.add(new Account(rs.getLong("AccountId"), rs.getString("UserName"),
+						rs.getLong("BalanceUnits"), CurrencyTable.codeOf(rs.getInt("CurrencyId"))));
+			}
+			DbUtils.closeQuietly(stmt);
+			stmt = conn.prepareStatement(SQL_DELETE_ALL_ACC);
+			stmt.executeUpdate();
+			return accounts;
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Empty a database, then create the current schema.
+	 *
+	 * @param pool the connection pool of the database
+	 * @throws SQLException the SQL exception
+	 */
+	static void resetSchema(ConnectionPool pool) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_DROP_ALL);
+			stmt.executeUpdate();
+			SchemaInitializer.migrate(conn);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#isDurable()
+	 */
+	@Override
+	public boolean isDurable() {
+		return isFileMode();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.DAOFactory#initSchema()
+	 */
+	@Override
+	public void initSchema() {
+		Connection conn = null;
+		try {
+			conn = catalogPool.getConnection();
+			SchemaInitializer.migrate(conn);
+			for (ConnectionPool shardPool : shardPools) {
+				DbUtils.closeQuietly(conn);
+				conn = shardPool.getConnection();
+				SchemaInitializer.migrate(conn);
+			}
+			log.info("initSchema(): catalog and " + shardPools.length + " shards at version "
+					+ SchemaInitializer.getLatestVersion());
+			// finish the cross shard transfers a crash left half way
+			int resolved = accountDAO.recover();
+			if (resolved > 0)
+				log.info("initSchema(): " + resolved + " prepared shard transaction(s) resolved");
+		} catch (SQLException | CustomException e) {
+			log.error("initSchema(): Error creating schema: ", e);
+			throw new RuntimeException(e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Lazy holder of the instance.
+	 */
+	private static final class Holder {
+
+		/** The Constant INSTANCE. */
+		private static final ShardedH2DAOFactory INSTANCE = new ShardedH2DAOFactory();
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import org.apache.commons.dbutils.DbUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * LRU cache of prepared statements for one physical connection.
+ * <p>
+ * Statements are handed out as proxies; close() returns the statement to the
+ * cache with its parameters cleared. A statement already checked out (the
+ * same SQL prepared twice before closing) is not shared, the caller gets an
+ * uncached statement instead. When a lease ends every statement it checked
+ * out is returned, so a late close() from the previous borrower is ignored.
+ */
+final class StatementCache {
+
+	/** The physical connection. */
+	private final Connection physical;
+
+	/** The max number of cached statements. */
+	private final int maxSize;
+
+	/** The shared hit counter. */
+	private final AtomicLong hits;
+
+	/** The shared miss counter. */
+	private final AtomicLong misses;
+
+	/** The shared eviction counter. */
+	private final AtomicLong evictions;
+
+	/** The cached statements in access order. */
+	private final LinkedHashMap<String, CachedStatement> statements;
+
+	/** The current lease, bumped each time the connection is returned. */
+	private long lease;
+
+	/**
+	 * Instantiates a new statement cache.
+	 *
+	 * @param physical the physical connection
+	 * @param maxSize the max size
+	 * @param hits the hits counter
+	 * @param misses the misses counter
+	 * @param evictions the evictions counter
+	 */
+	StatementCache(Connection physical, int maxSize, AtomicLong hits, AtomicLong misses, AtomicLong evictions) {
+		this.physical = physical;
+		this.maxSize = maxSize;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+				if (size() <= StatementCache.this.maxSize) {
+					return false;
+				}
+				CachedStatement evicted = eldest.getValue();
+				evicted.evicted = true;
+				if (evicted.lease < 0) {
+					DbUtils.closeQuietly(evicted.statement);
+				}
+				StatementCache.this.evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Prepare a statement, reusing the cached one when available.
+	 *
+	 * @param owner the connection handed to the borrower
+	 * @param sql the sql
+	 * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or NO_GENERATED_KEYS
+	 * @return the prepared statement
+	 * @throws SQLException the SQL exception
+	 */
+	synchronized PreparedStatement prepare(Connection owner, String sql, int autoGeneratedKeys)
+			throws SQLException {
+		String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "#keys#" + sql : sql;
+		CachedStatement cached = statements.get(key);
+		if (cached != null && cached.lease < 0) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			PreparedStatement stmt = physical.prepareStatement(sql, autoGeneratedKeys);
+			if (cached != null) {
+				// already checked out by this lease, hand out a private copy
+				return stmt;
+			}
+			cached = new CachedStatement(stmt);
+			statements.put(key, cached);
+		}
+		cached.lease = lease;
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new Handle(owner, cached, lease));
+	}
+
+	/**
+	 * Return a statement to the cache.
+	 *
+	 * @param cached the cached statement
+	 * @param handleLease the lease the handle was issued for
+	 */
+	private synchronized void release(CachedStatement cached, long handleLease) {
+		if (cached.lease != handleLease) {
+			return;
+		}
+		cached.lease = -1;
+		if (cached.evicted) {
+			DbUtils.closeQuietly(cached.statement);
+			return;
+		}
+		try {
+			cached.statement.clearParameters();
+			cached.statement.clearBatch();
+		} catch (SQLException e) {
+			cached.evicted = true;
+			statements.values().remove(cached);
+			DbUtils.closeQuietly(cached.statement);
+		}
+	}
+
+	/**
+	 * End the current lease, returning every statement it still holds.
+	 */
+	synchronized void endLease() {
+		Iterator<CachedStatement> it = statements.values().iterator();
+		while (it.hasNext()) {
+			CachedStatement cached = it.next();
+			if (cached.lease == lease) {
+				cached.lease = -1;
+				try {
+					cached.statement.clearParameters();
+					cached.statement.clearBatch();
+				} catch (SQLException e) {
+					it.remove();
+					DbUtils.closeQuietly(cached.statement);
+				}
+			}
+		}
+		lease++;
+	}
+
+	/**
+	 * A physical statement and the lease currently holding it.
+	 */
+	private static final class CachedStatement {
+
+		/** The statement. */
+		private final PreparedStatement statement;
+
+		/** The holding lease, -1 when free. */
+		private volatile long lease = -1;
+
+		/** Whether it was dropped from the cache while checked out. */
+		private boolean evicted;
+
+		/**
+		 * Instantiates a new cached statement.
+		 *
+		 * @param statement the statement
+		 */
+		private CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+		}
+	}
+
+	/**
+	 * The statement proxy given to one caller.
+	 */
+	private final class Handle implements InvocationHandler {
+
+		/** The owning connection proxy. */
+		private final Connection owner;
+
+		/** The cached statement. */
+		private final CachedStatement cached;
+
+		/** The lease the handle was issued for. */
+		private final long handleLease;
+
+		/** The closed flag. */
+		private boolean closed;
+
+		/**
+		 * Instantiates a new handle.
+		 *
+		 * @param owner the owner
+		 * @param cached the cached statement
+		 * @param handleLease the lease
+		 */
+		private Handle(Connection owner, CachedStatement cached, long handleLease) {
+			this.owner = owner;
+			this.cached = cached;
+			this.handleLease = handleLease;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			int argc = method.getParameterCount();
+			if ("close".equals(name) && argc == 0) {
+				if (!closed) {
+					closed = true;
+					release(cached, handleLease);
+				}
+				return null;
+			}
+			if ("isClosed".equals(name) && argc == 0) {
+				return closed;
+			}
+			if ("getConnection".equals(name) && argc == 0) {
+				return owner;
+			}
+			if ("equals".equals(name) && argc == 1) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(name) && argc == 0) {
+				return System.identityHashCode(proxy);
+			}
+			if (closed || cached.lease != handleLease) {
+				throw new SQLException("Statement is closed");
+			}
+			try {
+				return method.invoke(cached.statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
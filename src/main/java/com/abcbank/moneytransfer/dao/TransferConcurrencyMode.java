@@ -0,0 +1,43 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.utils.Utils;
+
+
+/**
+ * How the H2 engine isolates concurrent transfers, from the
+ * transfer_concurrency_mode property.
+ */
+public enum TransferConcurrencyMode {
+
+	/**
+	 * Both accounts are locked with SELECT ... FOR UPDATE before the checks;
+	 * best when the same accounts are hit by many transfers at once.
+	 */
+	PESSIMISTIC,
+
+	/**
+	 * Both accounts are read without locks and updated only if their Version
+	 * is unchanged, retrying with a jittered backoff on a conflict; best when
+	 * conflicts are rare.
+	 */
+	OPTIMISTIC;
+
+	/**
+	 * Gets the configured mode, PESSIMISTIC by default.
+	 *
+	 * @return the mode
+	 */
+	public static TransferConcurrencyMode fromProperties() {
+		return valueOf(Utils.getStringProperty("transfer_concurrency_mode", "pessimistic").trim().toUpperCase());
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Transfer;
+
+import java.util.List;
+
+
+/**
+ * The Interface TransferDAO, read access to the transfer history. History
+ * rows are written by the account DAO as part of a transfer.
+ */
+public interface TransferDAO {
+
+	/**
+	 * Gets the transfers debiting or crediting an account, oldest first.
+	 *
+	 * @param accountId the account id
+	 * @return the transfers
+	 * @throws CustomException the custom exception
+	 */
+	List<Transfer> getTransfersByAccountId(long accountId) throws CustomException;
+
+}
@@ -0,0 +1,43 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.utils.Utils;
+
+
+/**
+ * How transfers are recorded in the transfer history, from the
+ * transfer_history_mode property.
+ */
+public enum TransferHistoryMode {
+
+	/** The history row is written in the same commit as the balances. */
+	SYNC,
+
+	/**
+	 * The history row is queued after the commit and batch inserted by a
+	 * background writer; a transfer may be missing from the history for a
+	 * short time, or lost on a crash unless the journal has it.
+	 */
+	ASYNC,
+
+	/** No history is kept. */
+	OFF;
+
+	/**
+	 * Gets the configured mode, SYNC by default.
+	 *
+	 * @return the mode
+	 */
+	public static TransferHistoryMode fromProperties() {
+		return valueOf(Utils.getStringProperty("transfer_history_mode", "sync").trim().toUpperCase());
+	}
+}
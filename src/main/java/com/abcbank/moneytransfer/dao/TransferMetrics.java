@@ -0,0 +1,305 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters of the H2 transfer path, shared by the account DAOs of a factory.
+ */
+public final class TransferMetrics {
+
+	/** The committed transfers. */
+	private final AtomicLong committed = new AtomicLong();
+
+	/** The optimistic attempts, first tries and retries. */
+	private final AtomicLong attempts = new AtomicLong();
+
+	/** The optimistic attempts that found a changed Version. */
+	private final AtomicLong conflicts = new AtomicLong();
+
+	/** The retries after a conflict. */
+	private final AtomicLong retries = new AtomicLong();
+
+	/** The transfers failed after the last retry. */
+	private final AtomicLong retriesExhausted = new AtomicLong();
+
+	/** The timed row lock acquisitions. */
+	private final AtomicLong lockWaits = new AtomicLong();
+
+	/** The total time in row lock acquisitions, in nanos. */
+	private final AtomicLong lockWaitNanos = new AtomicLong();
+
+	/** The longest row lock acquisition, in nanos. */
+	private final AtomicLong maxLockWaitNanos = new AtomicLong();
+
+	/** The attempts failed on a lock timeout. */
+	private final AtomicLong lockTimeouts = new AtomicLong();
+
+	/** The attempts failed on a deadlock. */
+	private final AtomicLong deadlocks = new AtomicLong();
+
+	/** The retries after a lock timeout or deadlock. */
+	private final AtomicLong lockRetries = new AtomicLong();
+
+	/** The transfers failed on a lock failure past their deadline. */
+	private final AtomicLong deadlinesExceeded = new AtomicLong();
+
+	/**
+	 * Count a committed transfer.
+	 */
+	public void committed() {
+		committed.incrementAndGet();
+	}
+
+	/**
+	 * Count an optimistic attempt.
+	 */
+	public void attempt() {
+		attempts.incrementAndGet();
+	}
+
+	/**
+	 * Count a version conflict.
+	 */
+	public void conflict() {
+		conflicts.incrementAndGet();
+	}
+
+	/**
+	 * Count a retry.
+	 */
+	public void retry() {
+		retries.incrementAndGet();
+	}
+
+	/**
+	 * Count a transfer given up after its retries.
+	 */
+	public void retriesExhausted() {
+		retriesExhausted.incrementAndGet();
+	}
+
+	/**
+	 * Record the time taken to get the row locks of an attempt.
+	 *
+	 * @param nanos the wait in nanos
+	 */
+	public void lockWait(long nanos) {
+		lockWaits.incrementAndGet();
+		lockWaitNanos.addAndGet(nanos);
+		maxLockWaitNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Count an attempt failed on a lock.
+	 *
+	 * @param deadlock true for a deadlock, false for a lock timeout
+	 */
+	public void lockFailure(boolean deadlock) {
+		(deadlock ? deadlocks : lockTimeouts).incrementAndGet();
+	}
+
+	/**
+	 * Count a retry after a lock failure.
+	 */
+	public void lockRetry() {
+		lockRetries.incrementAndGet();
+	}
+
+	/**
+	 * Count a transfer given up on a lock failure past its deadline.
+	 */
+	public void deadlineExceeded() {
+		deadlinesExceeded.incrementAndGet();
+	}
+
+	/**
+	 * Gets a snapshot of the counters.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * Snapshot of the transfer counters.
+	 */
+	public static final class Stats {
+
+		/** The committed transfers. */
+		private final long committed;
+
+		/** The optimistic attempts. */
+		private final long attempts;
+
+		/** The version conflicts. */
+		private final long conflicts;
+
+		/** The retries. */
+		private final long retries;
+
+		/** The transfers failed after the last retry. */
+		private final long retriesExhausted;
+
+		/** The share of optimistic attempts that conflicted. */
+		private final double conflictRate;
+
+		/** The average row lock acquisition in millis. */
+		private final double lockWaitAvgMs;
+
+		/** The longest row lock acquisition in millis. */
+		private final double lockWaitMaxMs;
+
+		/** The lock timeouts. */
+		private final long lockTimeouts;
+
+		/** The deadlocks. */
+		private final long deadlocks;
+
+		/** The retries after a lock failure. */
+		private final long lockRetries;
+
+		/** The transfers failed past their deadline. */
+		private final long deadlinesExceeded;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param metrics the metrics
+		 */
+		private Stats(TransferMetrics metrics) {
+			this.committed = metrics.committed.get();
+			this.attempts = metrics.attempts.get();
+			this.conflicts = metrics.conflicts.get();
+			this.retries = metrics.retries.get();
+			this.retriesExhausted = metrics.retriesExhausted.get();
+			this.conflictRate = attempts == 0 ? 0 : (double) conflicts / attempts;
+			long waits = metrics.lockWaits.get();
+			this.lockWaitAvgMs = waits == 0 ? 0 : metrics.lockWaitNanos.get() / 1e6 / waits;
+			this.lockWaitMaxMs = metrics.maxLockWaitNanos.get() / 1e6;
+			this.lockTimeouts = metrics.lockTimeouts.get();
+			this.deadlocks = metrics.deadlocks.get();
+			this.lockRetries = metrics.lockRetries.get();
+			this.deadlinesExceeded = metrics.deadlinesExceeded.get();
+		}
+
+		/**
+		 * Gets the committed transfers.
+		 *
+		 * @return the committed
+		 */
+		public long getCommitted() {
+			return committed;
+		}
+
+		/**
+		 * Gets the optimistic attempts, first tries and retries.
+		 *
+		 * @return the attempts
+		 */
+		public long getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Gets the version conflicts.
+		 *
+		 * @return the conflicts
+		 */
+		public long getConflicts() {
+			return conflicts;
+		}
+
+		/**
+		 * Gets the retries after a conflict.
+		 *
+		 * @return the retries
+		 */
+		public long getRetries() {
+			return retries;
+		}
+
+		/**
+		 * Gets the transfers failed after the last retry.
+		 *
+		 * @return the retries exhausted
+		 */
+		public long getRetriesExhausted() {
+			return retriesExhausted;
+		}
+
+		/**
+		 * Gets the share of optimistic attempts that conflicted.
+		 *
+		 * @return the conflict rate
+		 */
+		public double getConflictRate() {
+			return conflictRate;
+		}
+
+		/**
+		 * Gets the average row lock acquisition in millis.
+		 *
+		 * @return the lock wait avg ms
+		 */
+		public double getLockWaitAvgMs() {
+			return lockWaitAvgMs;
+		}
+
+		/**
+		 * Gets the longest row lock acquisition in millis.
+		 *
+		 * @return the lock wait max ms
+		 */
+		public double getLockWaitMaxMs() {
+			return lockWaitMaxMs;
+		}
+
+		/**
+		 * Gets the attempts failed on a lock timeout.
+		 *
+		 * @return the lock timeouts
+		 */
+		public long getLockTimeouts() {
+			return lockTimeouts;
+		}
+
+		/**
+		 * Gets the attempts failed on a deadlock.
+		 *
+		 * @return the deadlocks
+		 */
+		public long getDeadlocks() {
+			return deadlocks;
+		}
+
+		/**
+		 * Gets the retries after a lock timeout or deadlock.
+		 *
+		 * @return the lock retries
+		 */
+		public long getLockRetries() {
+			return lockRetries;
+		}
+
+		/**
+		 * Gets the transfers failed on a lock failure past their deadline.
+		 *
+		 * @return the deadlines exceeded
+		 */
+		public long getDeadlinesExceeded() {
+			return deadlinesExceeded;
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao;
+
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.TransferStatus;
+import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs transfers submitted asynchronously on its own threads, so that the
+ * request thread answers as soon as the transfer is queued.
+ * <p>
+ * The state of each transfer is kept in a bounded in-memory status table,
+ * oldest first. Once the table holds more than its capacity, the oldest
+ * finished transfers are spilled to the TransferStatus table, when there is
+ * one, or dropped. Queued transfers are never spilled. Transfer ids start
+ * from the current time in micros, so they do not repeat those spilled
+ * before a restart.
+ */
+public final class TransferSubmitter {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(TransferSubmitter.class);
+
+	/** The Constant MAX_MESSAGE_LENGTH. */
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+
+	/** The Constant CLOSE_WAIT_SECONDS, the wait for queued transfers on close. */
+	private static final int CLOSE_WAIT_SECONDS = 30;
+
+	/** The Constant SQL_SPILL_STATUS. */
+	private static final String SQL_SPILL_STATUS = "MERGE INTO TransferStatus (TransferStatusId, Status, Message, UpdatedAt) KEY (TransferStatusId) VALUES (?, ?, ?, ?)";
+
+	/** The Constant SQL_GET_STATUS. */
+	private static final String SQL_GET_STATUS = "SELECT Status, Message FROM TransferStatus WHERE TransferStatusId = ?";
+
+	/** The account DAO the transfers run on. */
+	private final AccountDAO accountDAO;
+
+	/** The connection pool of the spill table, null to drop the oldest statuses. */
+	private final ConnectionPool pool;
+
+	/** The transfer threads. */
+	private final ThreadPoolExecutor executor;
+
+	/** The max number of statuses kept in memory. */
+	private final int capacity;
+
+	/** The statuses in memory, oldest first, guarded by itself. */
+	private final LinkedHashMap<Long, TransferStatus> statuses = new LinkedHashMap<Long, TransferStatus>();
+
+	/** The next transfer id. */
+	private final AtomicLong nextId = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+
+	/** Set while one thread spills, the others do not wait for it. */
+	private final AtomicBoolean spilling = new AtomicBoolean();
+
+	/** The submitted transfers. */
+	private final AtomicLong submitted = new AtomicLong();
+
+	/** The submissions refused with a full queue. */
+	private final AtomicLong refused = new AtomicLong();
+
+	/** The statuses spilled. */
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * Instantiates a new transfer submitter.
+	 *
+	 * @param accountDAO the account DAO the transfers run on
+	 * @param pool the connection pool of the TransferStatus table, null to drop the oldest statuses
+	 * @param threads the transfer threads
+	 * @param queueSize the transfers queued before new ones are refused
+	 * @param capacity the max number of statuses kept in memory
+	 */
+	public TransferSubmitter(AccountDAO accountDAO, ConnectionPool pool, int threads, int queueSize, int capacity) {
+		this.accountDAO = accountDAO;
+		this.pool = pool;
+		this.capacity = Math.max(1, capacity);
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), r -> {
+					Thread thread = new Thread(r, "transfer-submitter-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Create the submitter from the transfer_async_* properties, closed on
+	 * shutdown after running what is queued.
+	 *
+	 * @param accountDAO the account DAO the transfers run on
+	 * @param pool the connection pool of the TransferStatus table, null to drop the oldest statuses
+	 * @return the submitter
+	 */
+	public static TransferSubmitter fromProperties(AccountDAO accountDAO, ConnectionPool pool) {
+		TransferSubmitter submitter = new TransferSubmitter(accountDAO, pool,
+				Utils.getIntegerProperty("transfer_async_threads", 4),
+				Utils.getIntegerProperty("transfer_async_queue_size", 10000),
+				Utils.getIntegerProperty("transfer_status_cache_size", 100000));
+		Runtime.getRuntime().addShutdownHook(new Thread(submitter::close, "transfer-submitter-shutdown"));
+		return submitter;
+	}
+
+	/**
+	 * Queue a transfer.
+	 *
+	 * @param transaction the user transaction, already validated
+	 * @return its QUEUED status, or null when the queue is full
+	 */
+	public TransferStatus submit(UserTransaction transaction) {
+		long transferId = nextId.getAndIncrement();
+		TransferStatus queued = new TransferStatus(transferId, TransferStatus.Status.QUEUED, null);
+		synchronized (statuses) {
+			statuses.put(transferId, queued);
+		}
+		try {
+			executor.execute(() -> run(transferId, transaction));
+		} catch (RejectedExecutionException e) {
+			synchronized (statuses) {
+				statuses.remove(transferId);
+			}
+			refused.incrementAndGet();
+			return null;
+		}
+		submitted.incrementAndGet();
+		return queued;
+	}
+
+	/**
+	 * Gets the status of a transfer, from memory or else from the spill table.
+	 *
+	 * @param transferId the transfer id
+	 * @return the status, null when unknown
+	 * @throws CustomException the custom exception
+	 */
+	public TransferStatus getStatus(long transferId) throws CustomException {
+		synchronized (statuses) {
+			TransferStatus status = statuses.get(transferId);
+			if (status != null || pool == null) {
+				return status;
+			}
+		}
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_GET_STATUS);
+			stmt.setLong(1, transferId);
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				return new TransferStatus(transferId, TransferStatus.Status.valueOf(rs.getString("Status")),
+						rs.getString("Message"));
+			}
+		} catch (SQLException e) {
+			throw new CustomException("getStatus(): Error reading transfer status", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the number of transfers queued or running.
+	 *
+	 * @return the backlog
+	 */
+	public int getBacklog() {
+		return executor.getQueue().size() + executor.getActiveCount();
+	}
+
+	/**
+	 * Gets the submitted transfers.
+	 *
+	 * @return the count
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * Gets the submissions refused with a full queue.
+	 *
+	 * @return the count
+	 */
+	public long getRefused() {
+		return refused.get();
+	}
+
+	/**
+	 * Gets the statuses spilled to the database.
+	 *
+	 * @return the count
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/**
+	 * Forget the finished transfers kept in memory.
+	 */
+	public void clear() {
+		synchronized (statuses) {
+			statuses.values().removeIf(TransferStatus::isDone);
+		}
+	}
+
+	/**
+	 * Stop taking transfers, run those queued and spill every finished
+	 * status, if there is a spill table.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("close(): " + getBacklog() + " queued transfers not run");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (pool != null) {
+			spill(0);
+		}
+	}
+
+	/**
+	 * Run a transfer and record its outcome.
+	 *
+	 * @param transferId the transfer id
+	 * @param transaction the user transaction
+	 */
+	private void run(long transferId, UserTransaction transaction) {
+		TransferStatus status;
+		try {
+			status = accountDAO.transferAccountBalance(transaction) == 2
+					? new TransferStatus(transferId, TransferStatus.Status.COMMITTED, null)
+					: new TransferStatus(transferId, TransferStatus.Status.FAILED, "Transaction failed");
+		} catch (CustomException e) {
+			status = new TransferStatus(transferId, TransferStatus.Status.REJECTED, e.getMessage());
+		} catch (RuntimeException e) {
+			log.error("run(): Error running transfer " + transferId + " " + transaction, e);
+			status = new TransferStatus(transferId, TransferStatus.Status.FAILED, String.valueOf(e.getMessage()));
+		}
+		int size;
+		synchronized (statuses) {
+			// replaced in place, the entry keeps its age
+			statuses.put(transferId, status);
+			size = statuses.size();
+		}
+		if (size > capacity) {
+			// spill an eighth more than needed, so that spills come in batches
+			spill(capacity - capacity / 8);
+		}
+	}
+
+	/**
+	 * Spill the oldest finished statuses until the table holds no more than
+	 * the given number, queued ones aside. They leave memory only once
+	 * written, so a lookup always finds them in one place or the other.
+	 *
+	 * @param keep the number of statuses to keep in memory
+	 */
+	private void spill(int keep) {
+		if (!spilling.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			List<TransferStatus> oldest = new ArrayList<TransferStatus>();
+			synchronized (statuses) {
+				int excess = statuses.size() - keep;
+				for (Iterator<TransferStatus> it = statuses.values().iterator(); it.hasNext() && excess > 0;) {
+					TransferStatus status = it.next();
+					if (status.isDone()) {
+						oldest.add(status);
+						excess--;
+					}
+				}
+			}
+			if (oldest.isEmpty() || (pool != null && !write(oldest))) {
+				return;
+			}
+			synchronized (statuses) {
+				for (TransferStatus status : oldest) {
+					statuses.remove(status.getTransferId());
+				}
+			}
+			if (pool != null) {
+				spilled.addAndGet(oldest.size());
+			}
+		} finally {
+			spilling.set(false);
+		}
+	}
+
+	/**
+	 * Write statuses to the spill table in one batch.
+	 *
+	 * @param batch the statuses
+	 * @return true, if written
+	 */
+	private boolean write(List<TransferStatus> batch) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			stmt = conn.prepareStatement(SQL_SPILL_STATUS);
+			for (TransferStatus status : batch) {
+				String message = status.getMessage();
+				stmt.setLong(1, status.getTransferId());
+				stmt.setString(2, status.getStatus().name());
+				stmt.setString(3, message != null && message.length() > MAX_MESSAGE_LENGTH
+						? message.substring(0, MAX_MESSAGE_LENGTH) : message);
+				stmt.setTimestamp(4, now);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			conn.commit();
+			return true;
+		} catch (SQLException e) {
+			// kept in memory, the next spill tries again
+			log.error("write(): Error spilling " + batch.size() + " transfer statuses", e);
+			DbUtils.rollbackAndCloseQuietly(conn);
+			conn = null;
+			return false;
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+}
@@ -13,6 +13,7 @@ package com.abcbank.moneytransfer.dao;
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.User;
 
+import java.io.IOException;
 import java.util.List;
 
 
@@ -29,6 +30,26 @@ public interface UserDAO {
 	 */
 	List<User> getAllUsers() throws CustomException;
 
+	/**
+	 * Gets a page of users in user id order, starting after the given id.
+	 *
+	 * @param afterId the last user id of the previous page, 0 for the first page
+	 * @param limit the max number of users
+	 * @return the users
+	 * @throws CustomException the custom exception
+	 */
+	List<User> getUsers(long afterId, int limit) throws CustomException;
+
+	/**
+	 * Stream all users in user id order to the handler, one at a time.
+	 *
+	 * @param handler the row handler
+	 * @return the number of users streamed
+	 * @throws CustomException the custom exception
+	 * @throws IOException if the handler fails
+	 */
+	long streamAllUsers(RowHandler<User> handler) throws CustomException, IOException;
+
 	/**
 	 * Gets the user by id.
 	 *
@@ -51,10 +72,10 @@ public interface UserDAO {
 	 * Insert user.
 	 *
 	 * @param user the user
-	 * @return userId generated from insertion. return -1 on error
+	 * @return the user as stored, with the userId generated from insertion
 	 * @throws CustomException the custom exception
 	 */
-	long insertUser(User user) throws CustomException;
+	User insertUser(User user) throws CustomException;
 
 	/**
 	 * Update user.
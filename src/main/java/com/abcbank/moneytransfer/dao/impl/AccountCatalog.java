@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * The account directory of the engines spreading accounts over several
+ * databases, in the ShardAccount table of their catalog database. It hands
+ * out the account ids and keeps (UserName, CurrencyId) unique across the
+ * databases holding the accounts.
+ */
+final class AccountCatalog {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(AccountCatalog.class);
+
+	/** The Constant SQL_CREATE_ACC, takes the account id and the (UserName, CurrencyId) pair. */
+	private final static String SQL_CREATE_ACC = "INSERT INTO ShardAccount (UserName, CurrencyId) VALUES (?, ?)";
+
+	/** The Constant SQL_IMPORT_ACC. */
+	private final static String SQL_IMPORT_ACC = "INSERT INTO ShardAccount (AccountId, UserName, CurrencyId) VALUES (?, ?, ?)";
+
+	/** The Constant SQL_GET_ACC_CCY. */
+	private final static String SQL_GET_ACC_CCY = "SELECT CurrencyId FROM ShardAccount WHERE AccountId = ?";
+
+	/** The Constant SQL_DELETE_ACC. */
+	private final static String SQL_DELETE_ACC = "DELETE FROM ShardAccount WHERE AccountId = ?";
+
+	/** The catalog connection pool. */
+	private final ConnectionPool pool;
+
+	/**
+	 * Instantiates a new account catalog.
+	 *
+	 * @param pool the catalog connection pool
+	 */
+	AccountCatalog(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Register a new account.
+	 *
+	 * @param account the account
+	 * @return the account id
+	 * @throws CustomException if the user has an account in that currency already
+	 */
+	long insert(Account account) throws CustomException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet generatedKeys = null;
+		int currencyId = AccountDAOImpl.currencyIdOf(account);
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_CREATE_ACC);
+			stmt.setString(1, account.getUserName());
+			stmt.setInt(2, currencyId);
+			stmt.executeUpdate();
+			generatedKeys = stmt.getGeneratedKeys();
+			if (!generatedKeys.next()) {
+				log.error("Creating account failed, no ID obtained.");
+				throw new CustomException("Account Cannot be created");
+			}
+			return generatedKeys.getLong(1);
+		} catch (SQLException e) {
+			log.error("Error Inserting Account  " + account);
+			throw new CustomException("createAccount(): Error creating user account " + account, e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, generatedKeys);
+		}
+	}
+
+	/**
+	 * Register an account under its own account id.
+	 *
+	 * @param account the account, with its account id
+	 * @throws SQLException the SQL exception
+	 */
+	void importAccount(Account account) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_IMPORT_ACC);
+			stmt.setLong(1, account.getAccountId());
+			stmt.setString(2, account.getUserName());
+			stmt.setInt(3, account.getCurrencyId());
+			stmt.executeUpdate();
+		} finally {
+			DbUtils.closeQuietly(conn);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Get the currency of an account.
+	 *
+	 * @param accountId the account id
+	 * @return the currency code, null if there is no such account
+	 * @throws CustomException the custom exception
+	 */
+	String getCurrencyCode(long accountId) throws CustomException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_GET_ACC_CCY);
+			stmt.setLong(1, accountId);
+			rs = stmt.executeQuery();
+			return rs.next() ? CurrencyTable.codeOf(rs.getInt(1)) : null;
+		} catch (SQLException e) {
+			throw new CustomException("getAccountById(): Error reading account data", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Remove an account.
+	 *
+	 * @param accountId the account id
+	 * @return the rows deleted
+	 * @throws CustomException the custom exception
+	 */
+	int delete(long accountId) throws CustomException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_DELETE_ACC);
+			stmt.setLong(1, accountId);
+			return stmt.executeUpdate();
+		} catch (SQLException e) {
+			throw new CustomException("deleteAccountById(): Error deleting user account Id " + accountId, e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+}
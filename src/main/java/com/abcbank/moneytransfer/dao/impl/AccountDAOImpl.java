@@ -11,22 +11,48 @@
 package com.abcbank.moneytransfer.dao.impl;
 
 import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.AccountLockManager;
+import com.abcbank.moneytransfer.dao.ConnectionPool;
 import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.dao.TransferConcurrencyMode;
+import com.abcbank.moneytransfer.dao.TransferHistoryMode;
+import com.abcbank.moneytransfer.dao.TransferMetrics;
 import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.exception.RetriableException;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.journal.JournalRecord;
 import com.abcbank.moneytransfer.model.Account;
-import com.abcbank.moneytransfer.model.MoneyUtil;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.Money;
+import com.abcbank.moneytransfer.model.Transfer;
+import com.abcbank.moneytransfer.model.TransferResult;
 import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.log4j.Logger;
+import org.h2.api.ErrorCode;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /**
@@ -44,17 +70,245 @@ public class AccountDAOImpl implements AccountDAO {
 	private final static String SQL_LOCK_ACC_BY_ID = "SELECT * FROM Account WHERE AccountId = ? FOR UPDATE";
 	
 	/** The Constant SQL_CREATE_ACC. */
-	private final static String SQL_CREATE_ACC = "INSERT INTO Account (UserName, Balance, CurrencyCode) VALUES (?, ?, ?)";
+	private final static String SQL_CREATE_ACC = "INSERT INTO Account (UserName, BalanceUnits, CurrencyId) VALUES (?, ?, ?)";
+	
+	/** The Constant SQL_CREATE_ACC_WITH_ID, an account numbered by the catalog of a partitioned engine. */
+	private final static String SQL_CREATE_ACC_WITH_ID = "INSERT INTO Account (AccountId, UserName, BalanceUnits, CurrencyId) VALUES (?, ?, ?, ?)";
 	
 	/** The Constant SQL_UPDATE_ACC_BALANCE. */
-	private final static String SQL_UPDATE_ACC_BALANCE = "UPDATE Account SET Balance = ? WHERE AccountId = ? ";
+	private final static String SQL_UPDATE_ACC_BALANCE = "UPDATE Account SET BalanceUnits = ?, Version = Version + 1 WHERE AccountId = ? ";
+
+	/** The Constant SQL_UPDATE_ACC_IF_VERSION, the optimistic update, a no-op once the row has changed. */
+	private final static String SQL_UPDATE_ACC_IF_VERSION = "UPDATE Account SET BalanceUnits = ?, Version = Version + 1 WHERE AccountId = ? AND Version = ? ";
 	
+	/** The Constant SQL_ADJUST_ACC_BALANCE, the delta applied only when the balance stays non-negative. */
+	private final static String SQL_ADJUST_ACC_BALANCE = "UPDATE Account SET BalanceUnits = BalanceUnits + ?, Version = Version + 1 WHERE AccountId = ? AND BalanceUnits + ? >= 0";
+
+	/** The Constant SQL_GET_ACC_BALANCE. */
+	private final static String SQL_GET_ACC_BALANCE = "SELECT BalanceUnits FROM Account WHERE AccountId = ? ";
+
 	/** The Constant SQL_GET_ALL_ACC. */
 	private final static String SQL_GET_ALL_ACC = "SELECT * FROM Account";
+
+	/** The Constant SQL_GET_ACC_PAGE, a range scan of the primary key. */
+	private final static String SQL_GET_ACC_PAGE = "SELECT * FROM Account WHERE AccountId > ? ORDER BY AccountId LIMIT ?";
+
+	/** The Constant SQL_STREAM_ALL_ACC. */
+	private final static String SQL_STREAM_ALL_ACC = "SELECT * FROM Account ORDER BY AccountId";
+
+	/** The Constant STREAM_FETCH_SIZE, rows fetched per round trip when streaming. */
+	private final static int STREAM_FETCH_SIZE = Utils.getIntegerProperty("stream_fetch_size", 1000);
 	
 	/** The Constant SQL_DELETE_ACC_BY_ID. */
 	private final static String SQL_DELETE_ACC_BY_ID = "DELETE FROM Account WHERE AccountId = ?";
 	
+	/** The Constant OPTIMISTIC_MAX_RETRIES, retries of an optimistic transfer after a conflict. */
+	private final static int OPTIMISTIC_MAX_RETRIES = Utils.getIntegerProperty("transfer_optimistic_max_retries", 5);
+
+	/** The Constant RETRY_BACKOFF_MS, the backoff cap of the first retry, doubled for each next one. */
+	private final static int RETRY_BACKOFF_MS = Utils.getIntegerProperty("transfer_retry_backoff_ms", 2);
+
+	/** The Constant TRANSFER_DEADLINE_MS, no transfer retry starts later than this after the call. */
+	final static int TRANSFER_DEADLINE_MS = Utils.getIntegerProperty("transfer_retry_deadline_ms", 3000);
+
+	/** The Constant BATCH_CHUNK_SIZE, transfers per transaction of an independent batch, and rows per JDBC batch. */
+	private final static int BATCH_CHUNK_SIZE = Math.max(1, Utils.getIntegerProperty("transfer_batch_chunk_size", 500));
+
+	/** The Constant ADJUST_CHUNK_SIZE, balance adjustments per transaction of a bulk adjustment. */
+	private final static int ADJUST_CHUNK_SIZE = Math.max(1, Utils.getIntegerProperty("adjust_batch_chunk_size", 1000));
+
+	/** The Constant ACCOUNT_LOCK_TIMEOUT_MS, max wait for the in-process account locks. */
+	private final static int ACCOUNT_LOCK_TIMEOUT_MS = Utils.getIntegerProperty("h2_account_lock_timeout_ms", 5000);
+
+	/** The Constant CONFLICT, result of an optimistic attempt that lost a race. */
+	private final static int CONFLICT = -2;
+
+	/** The balance journal, null when disabled. */
+	private final Journal journal;
+
+	/** The transfer history mode. */
+	private final TransferHistoryMode historyMode;
+
+	/** The transfer history writer of async mode. */
+	private final TransferHistoryWriter historyWriter;
+
+	/** The transfer concurrency mode. */
+	private final TransferConcurrencyMode concurrencyMode;
+
+	/** The transfer metrics. */
+	private final TransferMetrics metrics;
+
+	/** The in-process account locks, null when disabled. */
+	private final AccountLockManager accountLocks;
+
+	/** The transfer group committer, null when transfers commit alone. */
+	private final TransferGroupCommitter groupCommitter;
+
+	/** The connection pool, null for the pool of the H2 engine. */
+	private final ConnectionPool pool;
+
+	/**
+	 * The options of an account DAO. The defaults are the H2 engine's pool,
+	 * no journal, the transfer history written in the transfer commit,
+	 * pessimistic transfers committed alone, without in-process locks.
+	 */
+	public static final class Options {
+
+		/** The connection pool, null for the pool of the H2 engine. */
+		private ConnectionPool pool;
+
+		/** The balance journal, null to disable journaling. */
+		private Journal journal;
+
+		/** The transfer history mode. */
+		private TransferHistoryMode historyMode = TransferHistoryMode.SYNC;
+
+		/** The transfer history writer, required in ASYNC mode. */
+		private TransferHistoryWriter historyWriter;
+
+		/** The transfer concurrency mode. */
+		private TransferConcurrencyMode concurrencyMode = TransferConcurrencyMode.PESSIMISTIC;
+
+		/** The transfer metrics, null for metrics of the DAO's own. */
+		private TransferMetrics metrics;
+
+		/** The in-process account locks, null to disable. */
+		private AccountLockManager accountLocks;
+
+		/** The group committer, null to commit each transfer alone. */
+		private TransferGroupCommitter groupCommitter;
+
+		/**
+		 * Sets the connection pool of another database, such as one shard of
+		 * the sharded engine.
+		 *
+		 * @param pool the connection pool, null for the pool of the H2 engine
+		 * @return the options
+		 */
+		public Options pool(ConnectionPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		/**
+		 * Sets the balance journal.
+		 *
+		 * @param journal the balance journal, null to disable journaling
+		 * @return the options
+		 */
+		public Options journal(Journal journal) {
+			this.journal = journal;
+			return this;
+		}
+
+		/**
+		 * Sets the transfer history mode, and the writer of ASYNC mode.
+		 *
+		 * @param historyMode the transfer history mode
+		 * @param historyWriter the transfer history writer, required in ASYNC mode
+		 * @return the options
+		 */
+		public Options history(TransferHistoryMode historyMode, TransferHistoryWriter historyWriter) {
+			this.historyMode = historyMode;
+			this.historyWriter = historyWriter;
+			return this;
+		}
+
+		/**
+		 * Sets the transfer concurrency mode.
+		 *
+		 * @param concurrencyMode the transfer concurrency mode
+		 * @return the options
+		 */
+		public Options concurrencyMode(TransferConcurrencyMode concurrencyMode) {
+			this.concurrencyMode = concurrencyMode;
+			return this;
+		}
+
+		/**
+		 * Sets the transfer metrics, to share them with other DAOs.
+		 *
+		 * @param metrics the transfer metrics
+		 * @return the options
+		 */
+		public Options metrics(TransferMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Sets the in-process account locks taken before each balance change.
+		 *
+		 * @param accountLocks the in-process account locks, null to disable
+		 * @return the options
+		 */
+		public Options accountLocks(AccountLockManager accountLocks) {
+			this.accountLocks = accountLocks;
+			return this;
+		}
+
+		/**
+		 * Sets the group committer batching transfers.
+		 *
+		 * @param groupCommitter the group committer, null to commit each transfer alone
+		 * @return the options
+		 */
+		public Options groupCommitter(TransferGroupCommitter groupCommitter) {
+			this.groupCommitter = groupCommitter;
+			return this;
+		}
+	}
+
+	/**
+	 * Instantiates a new account DAO with the default options.
+	 */
+	public AccountDAOImpl() {
+		this(new Options());
+	}
+
+	/**
+	 * Instantiates a new account DAO.
+	 *
+	 * @param options the options
+	 */
+	public AccountDAOImpl(Options options) {
+		if (options.historyMode == TransferHistoryMode.ASYNC && options.historyWriter == null) {
+			throw new IllegalArgumentException("Async transfer history needs a writer");
+		}
+		this.journal = options.journal;
+		this.historyMode = options.historyMode;
+		this.historyWriter = options.historyWriter;
+		this.concurrencyMode = options.concurrencyMode;
+		this.metrics = options.metrics == null ? new TransferMetrics() : options.metrics;
+		this.accountLocks = options.accountLocks;
+		this.groupCommitter = options.groupCommitter;
+		this.pool = options.pool;
+	}
+
+	/**
+	 * Gets a pooled connection of this DAO's database.
+	 *
+	 * @return the connection
+	 * @throws SQLException the SQL exception
+	 */
+	Connection getConnection() throws SQLException {
+		return pool == null ? H2DAOFactory.getConnection() : pool.getConnection();
+	}
+
+	/**
+	 * Close a connection of this DAO's database without returning it to the
+	 * pool, so its open transaction is not rolled back on the way.
+	 *
+	 * @param conn the connection obtained from getConnection()
+	 */
+	void discardConnection(Connection conn) {
+		if (pool == null) {
+			H2DAOFactory.discardConnection(conn);
+		} else {
+			pool.discard(conn);
+		}
+	}
+
 	/**
 	 * Get all accounts.
 	 *
@@ -67,12 +321,12 @@ public class AccountDAOImpl implements AccountDAO {
 		ResultSet rs = null;
 		List<Account> allAccounts = new ArrayList<Account>();
 		try {
-			conn = H2DAOFactory.getConnection();
+			conn = getConnection();
 			stmt = conn.prepareStatement(SQL_GET_ALL_ACC);
 			rs = stmt.executeQuery();
 			while (rs.next()) {
 				Account acc = new Account(rs.getLong("AccountId"), rs.getString("UserName"),
-						rs.getBigDecimal("Balance"), rs.getString("CurrencyCode"));
+						getUnits(rs), getCurrencyCode(rs));
 				if (log.isDebugEnabled())
 					log.debug("getAllAccounts(): Get  Account " + acc);
 				allAccounts.add(acc);
@@ -85,6 +339,79 @@ public class AccountDAOImpl implements AccountDAO {
 		}
 	}
 	
+	/**
+	 * Get a page of accounts after the given account id.
+	 *
+	 * @param afterId the last account id of the previous page
+	 * @param limit the max number of accounts
+	 * @return the accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAccounts(long afterId, int limit) throws CustomException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		List<Account> accounts = new ArrayList<Account>(Math.min(limit, 1024));
+		try {
+			conn = getConnection();
+			stmt = conn.prepareStatement(SQL_GET_ACC_PAGE);
+			stmt.setLong(1, afterId);
+			stmt.setInt(2, limit);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				accounts.add(toAccount(rs));
+			}
+			return accounts;
+		} catch (SQLException e) {
+			throw new CustomException("getAccounts(): Error reading account data", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Stream all accounts to the handler as they are read. The connection is
+	 * held until the handler has seen the last row.
+	 *
+	 * @param handler the row handler
+	 * @return the number of accounts streamed
+	 * @throws CustomException the custom exception
+	 * @throws IOException if the handler fails
+	 */
+	public long streamAllAccounts(RowHandler<Account> handler) throws CustomException, IOException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		long count = 0;
+		try {
+			conn = getConnection();
+			stmt = conn.prepareStatement(SQL_STREAM_ALL_ACC);
+			stmt.setFetchSize(STREAM_FETCH_SIZE);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				handler.handle(toAccount(rs));
+				count++;
+			}
+			return count;
+		} catch (SQLException e) {
+			throw new CustomException("streamAllAccounts(): Error reading account data", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Map the current row to an account.
+	 *
+	 * @param rs the result set
+	 * @return the account
+	 * @throws SQLException the SQL exception
+	 */
+	private static Account toAccount(ResultSet rs) throws SQLException {
+		return new Account(rs.getLong("AccountId"), rs.getString("UserName"), getUnits(rs),
+				getCurrencyCode(rs));
+	}
+
 	/**
 	 * Get account by id.
 	 *
@@ -98,13 +425,13 @@ public class AccountDAOImpl implements AccountDAO {
 		ResultSet rs = null;
 		Account acc = null;
 		try {
-			conn = H2DAOFactory.getConnection();
+			conn = getConnection();
 			stmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
 			stmt.setLong(1, accountId);
 			rs = stmt.executeQuery();
 			if (rs.next()) {
-				acc = new Account(rs.getLong("AccountId"), rs.getString("UserName"), rs.getBigDecimal("Balance"),
-						rs.getString("CurrencyCode"));
+				acc = new Account(rs.getLong("AccountId"), rs.getString("UserName"), getUnits(rs),
+						getCurrencyCode(rs));
 				if (log.isDebugEnabled())
 					log.debug("Retrieve Account By Id: " + acc);
 			}
@@ -118,22 +445,25 @@ public class AccountDAOImpl implements AccountDAO {
 	}
 	
 	/**
-	 * Create account.
+	 * Create account, built back from the row inserted and its generated key
+	 * rather than read again.
 	 *
 	 * @param account the account
-	 * @return the long
+	 * @return the account as stored, with its account id
 	 * @throws CustomException the custom exception
 	 */
-	public long createAccount(Account account) throws CustomException {
+	public Account createAccount(Account account) throws CustomException {
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet generatedKeys = null;
+		long balance = account.getBalanceUnits();
+		int currencyId = currencyIdOf(account);
 		try {
-			conn = H2DAOFactory.getConnection();
+			conn = getConnection();
 			stmt = conn.prepareStatement(SQL_CREATE_ACC);
 			stmt.setString(1, account.getUserName());
-			stmt.setBigDecimal(2, account.getBalance());
-			stmt.setString(3, account.getCurrencyCode());
+			setUnits(stmt, 2, balance);
+			stmt.setInt(3, currencyId);
 			int affectedRows = stmt.executeUpdate();
 			if (affectedRows == 0) {
 				log.error("createAccount(): Creating account failed, no rows affected.");
@@ -141,7 +471,8 @@ public class AccountDAOImpl implements AccountDAO {
 			}
 			generatedKeys = stmt.getGeneratedKeys();
 			if (generatedKeys.next()) {
-				return generatedKeys.getLong(1);
+				return new Account(generatedKeys.getLong(1), account.getUserName(), balance,
+						CurrencyTable.codeOf(currencyId));
 			} else {
 				log.error("Creating account failed, no ID obtained.");
 				throw new CustomException("Account Cannot be created");
@@ -153,7 +484,105 @@ public class AccountDAOImpl implements AccountDAO {
 			DbUtils.closeQuietly(conn, stmt, generatedKeys);
 		}
 	}
-	
+
+	/**
+	 * Convert an amount given to the DAO to units.
+	 *
+	 * @param amount the amount
+	 * @return the units
+	 * @throws CustomException if the amount is missing or out of range
+	 */
+	static long toUnits(BigDecimal amount) throws CustomException {
+		if (amount == null) {
+			throw new CustomException("Amount is required");
+		}
+		try {
+			return Money.toUnits(amount);
+		} catch (ArithmeticException e) {
+			throw new CustomException("Amount out of range: " + amount, e);
+		}
+	}
+
+	/**
+	 * Bind units, SQL NULL for a missing balance.
+	 *
+	 * @param stmt the statement
+	 * @param index the parameter index
+	 * @param units the units
+	 * @throws SQLException the SQL exception
+	 */
+	static void setUnits(PreparedStatement stmt, int index, long units) throws SQLException {
+		if (units == Money.NULL_UNITS) {
+			stmt.setNull(index, Types.BIGINT);
+		} else {
+			stmt.setLong(index, units);
+		}
+	}
+
+	/**
+	 * Read the BalanceUnits of the current row, NULL_UNITS for SQL NULL.
+	 *
+	 * @param rs the result set
+	 * @return the units
+	 * @throws SQLException the SQL exception
+	 */
+	static long getUnits(ResultSet rs) throws SQLException {
+		long units = rs.getLong("BalanceUnits");
+		return rs.wasNull() ? Money.NULL_UNITS : units;
+	}
+
+	/**
+	 * Read the currency of the current row, the code shared by every row of
+	 * that currency rather than a new String per row.
+	 *
+	 * @param rs the result set
+	 * @return the currency code, null for an id of no currency
+	 * @throws SQLException the SQL exception
+	 */
+	static String getCurrencyCode(ResultSet rs) throws SQLException {
+		return CurrencyTable.codeOf(rs.getInt("CurrencyId"));
+	}
+
+	/**
+	 * Gets the currency id of an account to store.
+	 *
+	 * @param account the account
+	 * @return the currency id
+	 * @throws CustomException if the currency code is no ISO 4217 code
+	 */
+	static int currencyIdOf(Account account) throws CustomException {
+		int currencyId = account.getCurrencyId();
+		if (currencyId == CurrencyTable.UNKNOWN) {
+			throw new CustomException("createAccount(): Invalid currency code " + account.getCurrencyCode());
+		}
+		return currencyId;
+	}
+
+	/**
+	 * Insert an account under an account id handed out elsewhere, by the
+	 * catalog of an engine spreading accounts over several databases.
+	 *
+	 * @param accountId the account id
+	 * @param account the account
+	 * @throws SQLException the SQL exception
+	 */
+	void insertAccount(long accountId, Account account) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = getConnection();
+			stmt = conn.prepareStatement(SQL_CREATE_ACC_WITH_ID);
+			stmt.setLong(1, accountId);
+			stmt.setString(2, account.getUserName());
+			setUnits(stmt, 3, account.getBalanceUnits());
+			stmt.setInt(4, account.getCurrencyId());
+			stmt.executeUpdate();
+		} finally {
+			DbUtils.closeQuietly(conn);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
 	/**
 	 * Delete account by id.
 	 *
@@ -165,7 +594,7 @@ public class AccountDAOImpl implements AccountDAO {
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		try {
-			conn = H2DAOFactory.getConnection();
+			conn = getConnection();
 			stmt = conn.prepareStatement(SQL_DELETE_ACC_BY_ID);
 			stmt.setLong(1, accountId);
 			return stmt.executeUpdate();
@@ -178,51 +607,103 @@ public class AccountDAOImpl implements AccountDAO {
 	}
 	
 	/**
-	 * Update account balance.
+	 * Update account balance, returning the account row read back in the
+	 * transaction of the update.
 	 *
 	 * @param accountId the account id
 	 * @param deltaAmount the delta amount
-	 * @return the int
+	 * @return the account after the update
+	 * @throws CustomException the custom exception
+	 */
+	public Account updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		return applyBalanceDelta(accountId, deltaAmount);
+	}
+
+	/**
+	 * Apply a delta to the account balance with one guarded UPDATE, which
+	 * both takes the row lock and rejects a negative result, then read the new
+	 * balance back in the same transaction. The lock is held for the update,
+	 * the read back and the commit, with no round trip to compute the balance
+	 * in between.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the new balance
+	 * @throws CustomException the custom exception
+	 */
+	public BigDecimal adjustAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		return applyBalanceDelta(accountId, deltaAmount).getBalance();
+	}
+
+	/**
+	 * Apply a delta to the account balance under the in-process lock of the
+	 * account, then wait for the journal outside it.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the account after the update
+	 * @throws CustomException the custom exception
+	 */
+	private Account applyBalanceDelta(long accountId, BigDecimal deltaAmount) throws CustomException {
+		long delta = toUnits(deltaAmount);
+		PostCommit postCommit = new PostCommit();
+		Account account;
+		int stripe = lockAccount(accountId);
+		try {
+			account = applyBalanceDelta(accountId, delta, postCommit);
+		} finally {
+			if (stripe >= 0)
+				accountLocks.unlock(stripe);
+		}
+		awaitJournal(postCommit.journalSeq);
+		return account;
+	}
+
+	/**
+	 * Run the guarded UPDATE and the read back of the account row.
+	 *
+	 * @param accountId the account id
+	 * @param delta the units of the delta amount
+	 * @param postCommit receives the journal sequence to wait for
+	 * @return the account after the update
 	 * @throws CustomException the custom exception
 	 */
-	public int updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+	private Account applyBalanceDelta(long accountId, long delta, PostCommit postCommit)
+			throws CustomException {
+		boolean committed = false;
 		Connection conn = null;
-		PreparedStatement lockStmt = null;
 		PreparedStatement updateStmt = null;
+		PreparedStatement readStmt = null;
 		ResultSet rs = null;
-		Account targetAccount = null;
-		int updateCount = -1;
 		try {
-			conn = H2DAOFactory.getConnection();
+			conn = getConnection();
 			conn.setAutoCommit(false);
-			// lock account for writing:
-			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
-			lockStmt.setLong(1, accountId);
-			rs = lockStmt.executeQuery();
-			if (rs.next()) {
-				targetAccount = new Account(rs.getLong("AccountId"), rs.getString("UserName"),
-						rs.getBigDecimal("Balance"), rs.getString("CurrencyCode"));
-				if (log.isDebugEnabled())
-					log.debug("updateAccountBalance from Account: " + targetAccount);
-			}
-
-			if (targetAccount == null) {
-				throw new CustomException("updateAccountBalance(): fail to lock account : " + accountId);
-			}
-			// update account upon success locking
-			BigDecimal balance = targetAccount.getBalance().add(deltaAmount);
-			if (balance.compareTo(MoneyUtil.zeroAmount) < 0) {
+			updateStmt = conn.prepareStatement(SQL_ADJUST_ACC_BALANCE);
+			updateStmt.setLong(1, delta);
+			updateStmt.setLong(2, accountId);
+			updateStmt.setLong(3, delta);
+			int updateCount = updateStmt.executeUpdate();
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
+			readStmt.setLong(1, accountId);
+			rs = readStmt.executeQuery();
+			Account account = rs.next() ? new Account(rs.getLong("AccountId"), rs.getString("UserName"),
+					getUnits(rs), getCurrencyCode(rs)) : null;
+			if (updateCount == 0) {
+				// nothing changed, tell a missing account from a short one
+				conn.rollback();
+				if (account == null) {
+					throw new CustomException("updateAccountBalance(): fail to lock account : " + accountId);
+				}
 				throw new CustomException("Not sufficient Fund for account: " + accountId);
 			}
-
-			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
-			updateStmt.setBigDecimal(1, balance);
-			updateStmt.setLong(2, accountId);
-			updateCount = updateStmt.executeUpdate();
+			// journal while the row lock is held, so the journal order is the commit order
+			postCommit.journalSeq = appendJournal(
+					JournalRecord.balanceUpdate(accountId, delta, account.getBalanceUnits()));
 			conn.commit();
+			committed = true;
 			if (log.isDebugEnabled())
-				log.debug("New Balance after Update: " + targetAccount);
-			return updateCount;
+				log.debug("New Balance after Update: " + account.getBalance() + " Account ID = " + accountId);
+			return account;
 		} catch (SQLException se) {
 			// rollback transaction if exception occurs
 			log.error("updateAccountBalance(): User Transaction Failed, rollback initiated for: " + accountId, se);
@@ -232,109 +713,1059 @@ public class AccountDAOImpl implements AccountDAO {
 			} catch (SQLException re) {
 				throw new CustomException("Fail to rollback transaction", re);
 			}
+			throw new CustomException("updateAccountBalance(): Error updating account " + accountId, se);
 		} finally {
+			if (!committed) {
+				abortJournal(postCommit);
+			}
 			DbUtils.closeQuietly(conn);
 			DbUtils.closeQuietly(rs);
-			DbUtils.closeQuietly(lockStmt);
 			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(readStmt);
 		}
-		return updateCount;
 	}
 
 	/**
-	 * Transfer balance between two accounts.
+	 * Transfer balance between two accounts, with the configured concurrency
+	 * mode. With in-process account locks, the stripes of both accounts are
+	 * held for all the attempts, so transfers on the same accounts queue in
+	 * the JVM instead of on H2 row locks. With a group committer the transfer
+	 * is applied in a shared transaction, and only run here when the
+	 * committer hands it back.
 	 *
 	 * @param userTransaction the user transaction
 	 * @return the int
-	 * @throws CustomException the custom exception
+	 * @throws CustomException the custom exception, also when the retries run out
 	 */
-	@SuppressWarnings("resource")
 	public int transferAccountBalance(UserTransaction userTransaction) throws CustomException {
-		int result = -1;
+		return transferAccountBalance(userTransaction, null);
+	}
+
+	/**
+	 * Transfer balance between two accounts, writing the idempotency record,
+	 * if any, in the transfer's transaction when recordsIdempotency.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param record the response of the idempotency key, may be null
+	 * @return the int
+	 * @throws CustomException the custom exception, also when the retries run out
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction, IdempotencyStore.Record record)
+			throws CustomException {
+		PostCommit postCommit = new PostCommit();
+		postCommit.record = recordsIdempotency() ? record : null;
+		int result;
+		if (groupCommitter != null) {
+			// the single committer thread serializes the batch, no in-process locks needed
+			result = groupCommitter.submit(userTransaction, postCommit, this);
+			if (result != TransferGroupCommitter.RUN_ALONE) {
+				completeTransfer(postCommit);
+				return result;
+			}
+		}
+		int[] locked = lockAccounts(userTransaction.getFromAccountId(), userTransaction.getToAccountId());
+		try {
+			result = transferWithRetries(userTransaction, postCommit);
+		} finally {
+			if (locked != null)
+				accountLocks.unlock(locked);
+		}
+		// wait for the disk outside the locks, the next transfer goes ahead
+		if (result > 0) {
+			completeTransfer(postCommit);
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if the idempotency keys are in this DAO's database: those of the
+	 * H2 engine are, in its one database, the shards' and partitions' are in
+	 * the catalog.
+	 *
+	 * @return true, for the DAO of the H2 engine
+	 */
+	public boolean recordsIdempotency() {
+		return pool == null;
+	}
+
+	/**
+	 * Transfer balances for a batch of transactions. An independent batch runs
+	 * in transactions of BATCH_CHUNK_SIZE transfers, an all-or-nothing batch
+	 * in one. A transaction that fails on an error fails all its transfers.
+	 *
+	 * @param transactions the user transactions
+	 * @param atomic true to commit all the transfers or none
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	public List<TransferResult> transferAccountBalances(List<UserTransaction> transactions, boolean atomic)
+			throws CustomException {
+		int size = transactions.size();
+		int chunkSize = atomic ? Math.max(1, size) : BATCH_CHUNK_SIZE;
+		List<TransferResult> results = new ArrayList<TransferResult>(size);
+		for (int start = 0; start < size; start += chunkSize) {
+			List<UserTransaction> chunk = transactions.subList(start, Math.min(size, start + chunkSize));
+			try {
+				int offset = start;
+				results.addAll(runChunkWithRetries(() -> tryTransferChunk(chunk, offset, atomic),
+						"batch of " + chunk.size() + " transfers from index " + start));
+			} catch (CustomException e) {
+				for (int i = 0; i < chunk.size(); i++) {
+					results.add(new TransferResult(start + i, TransferResult.Status.FAILED, e.getMessage()));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Run attempts at one chunk of a batch until one commits or fails for
+	 * good, retrying a lock timeout or deadlock until TRANSFER_DEADLINE_MS
+	 * have passed.
+	 *
+	 * @param <R> the result type
+	 * @param attempt one attempt at the chunk
+	 * @param what the chunk, for the messages
+	 * @return the result of each item of the chunk
+	 * @throws CustomException if the chunk fails on an error, rolled back
+	 */
+	private <R> List<R> runChunkWithRetries(ChunkAttempt<R> attempt, String what) throws CustomException {
+		long deadline = System.currentTimeMillis() + TRANSFER_DEADLINE_MS;
+		int lockFailures = 0;
+		while (true) {
+			try {
+				return attempt.run();
+			} catch (SQLException se) {
+				if (se instanceof SQLTimeoutException) {
+					throw new RetriableException("Fail to apply batch, no connection free: " + se.getMessage(), se);
+				}
+				if (!isLockFailure(se)) {
+					log.error("runChunkWithRetries(): " + what + " failed, rolled back", se);
+					throw new CustomException("Fail to apply batch, rolled back: " + se.getMessage(), se);
+				}
+				metrics.lockFailure(se.getErrorCode() == ErrorCode.DEADLOCK_1);
+				if (System.currentTimeMillis() >= deadline) {
+					metrics.deadlineExceeded();
+					throw new RetriableException("Fail to apply batch, accounts still locked after "
+							+ TRANSFER_DEADLINE_MS + " ms", se);
+				}
+				metrics.lockRetry();
+				backoff(lockFailures++, deadline);
+			}
+		}
+	}
+
+	/**
+	 * One attempt at a chunk of a batch, in one transaction. Every account of
+	 * the chunk is locked once with SELECT FOR UPDATE, whatever the concurrency
+	 * mode, lowest id first so batches and single transfers queue instead of
+	 * deadlocking. The transfers are then checked in order against the
+	 * running balances, so a rejected one is simply left out, and the writes
+	 * go as JDBC batches: one balance update per account, one history row per
+	 * transfer. The chunk already commits many transfers at once, so it skips
+	 * the group committer, and holds each row lock for all of its transfers,
+	 * so it takes no in-process lock on top.
+	 *
+	 * @param chunk the transactions of the chunk
+	 * @param offset the index of the first one in the batch
+	 * @param atomic true to roll back the chunk on the first rejected transfer
+	 * @return the result of each transaction of the chunk
+	 * @throws CustomException the custom exception
+	 * @throws SQLException the SQL exception, after the rollback
+	 */
+	private List<TransferResult> tryTransferChunk(List<UserTransaction> chunk, int offset, boolean atomic)
+			throws CustomException, SQLException {
+		List<TransferResult> results = new ArrayList<TransferResult>(chunk.size());
+		List<Transfer> history = new ArrayList<Transfer>();
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		long journalSeq = 0;
+		boolean committed = false;
 		Connection conn = null;
 		PreparedStatement lockStmt = null;
 		PreparedStatement updateStmt = null;
-		ResultSet rs = null;
-		Account fromAccount = null;
-		Account toAccount = null;
-
+		PreparedStatement historyStmt = null;
 		try {
-			conn = H2DAOFactory.getConnection();
+			conn = getConnection();
 			conn.setAutoCommit(false);
-			// lock the credit and debit account for writing:
-			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
-			lockStmt.setLong(1, userTransaction.getFromAccountId());
-			rs = lockStmt.executeQuery();
-			if (rs.next()) {
-				fromAccount = new Account(rs.getLong("AccountId"), rs.getString("UserName"),
-						rs.getBigDecimal("Balance"), rs.getString("CurrencyCode"));
-				if (log.isDebugEnabled())
-					log.debug("transferAccountBalance from Account: " + fromAccount);
+			TreeSet<Long> accountIds = new TreeSet<Long>();
+			for (UserTransaction userTransaction : chunk) {
+				accountIds.add(userTransaction.getFromAccountId());
+				accountIds.add(userTransaction.getToAccountId());
 			}
+			Map<Long, Account> accounts = new HashMap<Long, Account>();
 			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
-			lockStmt.setLong(1, userTransaction.getToAccountId());
-			rs = lockStmt.executeQuery();
-			if (rs.next()) {
-				toAccount = new Account(rs.getLong("AccountId"), rs.getString("UserName"), rs.getBigDecimal("Balance"),
-						rs.getString("CurrencyCode"));
-				if (log.isDebugEnabled())
-					log.debug("transferAccountBalance to Account: " + toAccount);
+			long[] version = new long[1];
+			long lockStart = System.nanoTime();
+			for (long accountId : accountIds) {
+				Account account = readAccount(lockStmt, accountId, version, 0);
+				if (account != null)
+					accounts.put(accountId, account);
 			}
+			metrics.lockWait(System.nanoTime() - lockStart);
 
-			// check locking status
-			if (fromAccount == null || toAccount == null) {
-				throw new CustomException("Fail to lock both accounts for write");
+			TreeSet<Long> changed = new TreeSet<Long>();
+			for (int i = 0; i < chunk.size(); i++) {
+				UserTransaction userTransaction = chunk.get(i);
+				long fromId = userTransaction.getFromAccountId();
+				long toId = userTransaction.getToAccountId();
+				long fromAccountLeftOver;
+				long toAccountBalance;
+				try {
+					fromAccountLeftOver = checkTransfer(userTransaction, accounts.get(fromId), accounts.get(toId));
+					toAccountBalance = credit(accounts.get(toId), userTransaction);
+				} catch (CustomException e) {
+					if (atomic) {
+						conn.rollback();
+						return TransferBatches.aborted(chunk.size(), i, TransferResult.Status.REJECTED, e.getMessage());
+					}
+					results.add(new TransferResult(offset + i, TransferResult.Status.REJECTED, e.getMessage()));
+					continue;
+				}
+				accounts.put(fromId, withBalance(accounts.get(fromId), fromAccountLeftOver));
+				accounts.put(toId, withBalance(accounts.get(toId), toAccountBalance));
+				changed.add(fromId);
+				changed.add(toId);
+				records.add(JournalRecord.transfer(fromId, toId, userTransaction.getAmountUnits(), fromAccountLeftOver,
+						toAccountBalance, 0, userTransaction.getCurrencyCode()));
+				if (historyMode != TransferHistoryMode.OFF) {
+					history.add(new Transfer(0, fromId, toId, userTransaction.getAmountUnits(),
+							userTransaction.getCurrencyCode(), System.currentTimeMillis()));
+				}
+				results.add(new TransferResult(offset + i, TransferResult.Status.COMMITTED, null));
 			}
 
-			// check transaction currency
-			if (!fromAccount.getCurrencyCode().equals(userTransaction.getCurrencyCode())) {
-				throw new CustomException(
-						"Fail to transfer Fund, transaction ccy are different from source/destination");
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			int rows = 0;
+			for (long accountId : changed) {
+				updateStmt.setLong(1, accounts.get(accountId).getBalanceUnits());
+				updateStmt.setLong(2, accountId);
+				updateStmt.addBatch();
+				if (++rows % BATCH_CHUNK_SIZE == 0)
+					updateStmt.executeBatch();
 			}
-
-			// check ccy is the same for both accounts
-			if (!fromAccount.getCurrencyCode().equals(toAccount.getCurrencyCode())) {
-				throw new CustomException(
-						"Fail to transfer Fund, the source and destination account are in different currency");
+			if (rows % BATCH_CHUNK_SIZE != 0)
+				updateStmt.executeBatch();
+			if (historyMode == TransferHistoryMode.SYNC && !history.isEmpty()) {
+				historyStmt = conn.prepareStatement(TransferDAOImpl.SQL_INSERT_TRANSFER);
+				rows = 0;
+				for (Transfer transfer : history) {
+					TransferDAOImpl.bindInsert(historyStmt, transfer);
+					historyStmt.addBatch();
+					if (++rows % BATCH_CHUNK_SIZE == 0)
+						historyStmt.executeBatch();
+				}
+				if (rows % BATCH_CHUNK_SIZE != 0)
+					historyStmt.executeBatch();
 			}
-
-			// check enough fund in source account
-			BigDecimal fromAccountLeftOver = fromAccount.getBalance().subtract(userTransaction.getAmount());
-			if (fromAccountLeftOver.compareTo(MoneyUtil.zeroAmount) < 0) {
-				throw new CustomException("Not enough Fund from source Account ");
+			journalSeq = appendJournal(records);
+			conn.commit();
+			committed = true;
+			if (log.isDebugEnabled())
+				log.debug("transferAccountBalances(): " + records.size() + " of " + chunk.size()
+						+ " transfers committed, " + changed.size() + " accounts updated");
+			for (int i = 0; i < records.size(); i++) {
+				metrics.committed();
+			}
+		} catch (SQLException | CustomException e) {
+			rollback(conn);
+			throw e;
+		} finally {
+			if (!committed) {
+				abortJournal(journalSeq - records.size() + 1, journalSeq);
+			}
+			DbUtils.closeQuietly(lockStmt);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(historyStmt);
+			DbUtils.closeQuietly(conn);
+		}
+		// wait for the disk and queue the history once the row locks are released
+		awaitJournal(journalSeq);
+		if (historyMode == TransferHistoryMode.ASYNC) {
+			for (Transfer transfer : history) {
+				historyWriter.submit(transfer);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Apply a batch of deposits and withdrawals in transactions of
+	 * ADJUST_CHUNK_SIZE adjustments. A transaction that fails on an error
+	 * fails all its adjustments.
+	 *
+	 * @param adjustments the balance adjustments
+	 * @return the result of each adjustment, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	public List<BalanceResult> adjustAccountBalances(List<BalanceAdjustment> adjustments) throws CustomException {
+		int size = adjustments.size();
+		List<BalanceResult> results = new ArrayList<BalanceResult>(size);
+		for (int start = 0; start < size; start += ADJUST_CHUNK_SIZE) {
+			List<BalanceAdjustment> chunk = adjustments.subList(start, Math.min(size, start + ADJUST_CHUNK_SIZE));
+			try {
+				results.addAll(runChunkWithRetries(() -> tryAdjustChunk(chunk),
+						"batch of " + chunk.size() + " balance adjustments from index " + start));
+			} catch (CustomException e) {
+				for (BalanceAdjustment adjustment : chunk) {
+					results.add(new BalanceResult(adjustment.getAccountId(), BalanceResult.Status.FAILED, null));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * One attempt at a chunk of a bulk adjustment, in one transaction. The
+	 * guarded UPDATEs of adjustAccountBalance go as one JDBC batch, in account
+	 * id order so two bulk adjustments queue instead of deadlocking; each
+	 * takes its row lock and is a no-op when the balance would go below zero.
+	 * The balances are then read back once per account, and the balance right
+	 * after each adjustment worked out from them. No in-process lock is taken:
+	 * a guarded UPDATE needs no read before it, so there is no read-modify-write
+	 * for a lock to protect.
+	 *
+	 * @param chunk the adjustments of the chunk
+	 * @return the result of each adjustment of the chunk
+	 * @throws CustomException the custom exception
+	 * @throws SQLException the SQL exception, after the rollback
+	 */
+	private List<BalanceResult> tryAdjustChunk(List<BalanceAdjustment> chunk) throws CustomException, SQLException {
+		Integer[] order = new Integer[chunk.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// stable, so the adjustments of one account apply in batch order
+		Arrays.sort(order, Comparator.comparingLong(i -> chunk.get(i).getAccountId()));
+		BalanceResult[] results = new BalanceResult[chunk.size()];
+		long[] deltas = new long[chunk.size()];
+		long[] applied = new long[chunk.size()];
+		for (int i = 0; i < deltas.length; i++) {
+			deltas[i] = toUnits(chunk.get(i).getDeltaAmount());
+		}
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		long journalSeq = 0;
+		boolean committed = false;
+		Connection conn = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement readStmt = null;
+		try {
+			conn = getConnection();
+			conn.setAutoCommit(false);
+			updateStmt = conn.prepareStatement(SQL_ADJUST_ACC_BALANCE);
+			for (int i : order) {
+				updateStmt.setLong(1, deltas[i]);
+				updateStmt.setLong(2, chunk.get(i).getAccountId());
+				updateStmt.setLong(3, deltas[i]);
+				updateStmt.addBatch();
 			}
-			// proceed with update
-			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
-			updateStmt.setBigDecimal(1, fromAccountLeftOver);
-			updateStmt.setLong(2, userTransaction.getFromAccountId());
-			updateStmt.addBatch();
-			updateStmt.setBigDecimal(1, toAccount.getBalance().add(userTransaction.getAmount()));
-			updateStmt.setLong(2, userTransaction.getToAccountId());
-			updateStmt.addBatch();
 			int[] rowsUpdated = updateStmt.executeBatch();
-			result = rowsUpdated[0] + rowsUpdated[1];
-			if (log.isDebugEnabled()) {
-				log.debug("Number of rows updated for the transfer : " + result);
+
+			Map<Long, Long> balances = new HashMap<Long, Long>();
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BALANCE);
+			for (int i : order) {
+				long accountId = chunk.get(i).getAccountId();
+				if (!balances.containsKey(accountId)) {
+					readStmt.setLong(1, accountId);
+					ResultSet rs = readStmt.executeQuery();
+					try {
+						balances.put(accountId, rs.next() ? getUnits(rs) : null);
+					} finally {
+						DbUtils.closeQuietly(rs);
+					}
+				}
 			}
-			// If there is no error, commit the transaction
+			// walk back from the final balances to the balance after each adjustment
+			for (int k = order.length - 1; k >= 0; k--) {
+				long accountId = chunk.get(order[k]).getAccountId();
+				Long balance = balances.get(accountId);
+				if (rowsUpdated[k] > 0) {
+					applied[order[k]] = balance;
+					results[order[k]] = new BalanceResult(accountId, BalanceResult.Status.APPLIED,
+							Money.toBigDecimal(balance));
+					balances.put(accountId, balance - deltas[order[k]]);
+				} else {
+					results[order[k]] = new BalanceResult(accountId,
+							balance == null ? BalanceResult.Status.NOT_FOUND : BalanceResult.Status.NOT_ENOUGH_FUND, null);
+				}
+			}
+			// journal in apply order while the row locks are held
+			for (int i : order) {
+				if (results[i].getStatus() == BalanceResult.Status.APPLIED) {
+					records.add(JournalRecord.balanceUpdate(results[i].getAccountId(), deltas[i], applied[i]));
+				}
+			}
+			journalSeq = appendJournal(records);
 			conn.commit();
-		} catch (SQLException se) {
-			// rollback transaction if exception occurs
-			log.error("transferAccountBalance(): User Transaction Failed, rollback initiated for: " + userTransaction,
-					se);
+			committed = true;
+		} catch (SQLException | CustomException e) {
+			rollback(conn);
+			throw e;
+		} finally {
+			if (!committed) {
+				abortJournal(journalSeq - records.size() + 1, journalSeq);
+			}
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(readStmt);
+			DbUtils.closeQuietly(conn);
+		}
+		awaitJournal(journalSeq);
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Copy an account with another balance.
+	 *
+	 * @param account the account
+	 * @param balance the balance
+	 * @return the copy
+	 */
+	private static Account withBalance(Account account, long balance) {
+		return new Account(account.getAccountId(), account.getUserName(), balance, account.getCurrencyCode());
+	}
+
+	/**
+	 * Run transfer attempts until one commits or fails for good. An attempt
+	 * that fails on a lock timeout or deadlock is retried after a random
+	 * backoff until TRANSFER_DEADLINE_MS have passed since the call; an
+	 * optimistic attempt that finds a changed Version is retried up to
+	 * OPTIMISTIC_MAX_RETRIES times.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param postCommit receives what is left to do after the commit
+	 * @return the int
+	 * @throws CustomException the custom exception, also when the retries run out
+	 */
+	private int transferWithRetries(UserTransaction userTransaction, PostCommit postCommit) throws CustomException {
+		long deadline = System.currentTimeMillis() + TRANSFER_DEADLINE_MS;
+		int conflicts = 0;
+		int lockFailures = 0;
+		while (true) {
+			int result;
 			try {
-				if (conn != null)
-					conn.rollback();
-			} catch (SQLException re) {
-				throw new CustomException("Fail to rollback transaction", re);
+				result = concurrencyMode == TransferConcurrencyMode.OPTIMISTIC
+						? tryOptimisticTransfer(userTransaction, postCommit)
+						: tryPessimisticTransfer(userTransaction, postCommit);
+			} catch (SQLException se) {
+				if (se instanceof SQLTimeoutException) {
+					throw new RetriableException("Fail to transfer Fund, no connection free: " + se.getMessage(), se);
+				}
+				if (!isLockFailure(se)) {
+					log.error("transferAccountBalance(): User Transaction Failed, rolled back: " + userTransaction, se);
+					return -1;
+				}
+				metrics.lockFailure(se.getErrorCode() == ErrorCode.DEADLOCK_1);
+				if (System.currentTimeMillis() >= deadline) {
+					metrics.deadlineExceeded();
+					throw new RetriableException("Fail to transfer Fund, accounts still locked after "
+							+ TRANSFER_DEADLINE_MS + " ms: " + userTransaction, se);
+				}
+				if (log.isDebugEnabled())
+					log.debug("transferAccountBalance(): lock failure " + se.getErrorCode() + ", retrying " + userTransaction);
+				metrics.lockRetry();
+				backoff(lockFailures++, deadline);
+				continue;
+			}
+			if (result != CONFLICT) {
+				return result;
+			}
+			if (conflicts >= OPTIMISTIC_MAX_RETRIES) {
+				metrics.retriesExhausted();
+				throw new RetriableException("Fail to transfer Fund, accounts kept changing after " + (conflicts + 1)
+						+ " attempts: " + userTransaction);
 			}
+			metrics.retry();
+			backoff(conflicts++, deadline);
+		}
+	}
+
+	/**
+	 * Take the in-process lock of one account, if enabled.
+	 *
+	 * @param accountId the account id
+	 * @return the locked stripe, -1 when in-process locks are disabled
+	 * @throws CustomException on timeout or interrupt
+	 */
+	private int lockAccount(long accountId) throws CustomException {
+		if (accountLocks == null) {
+			return -1;
+		}
+		try {
+			int stripe = accountLocks.tryLock(accountId, ACCOUNT_LOCK_TIMEOUT_MS);
+			if (stripe < 0) {
+				throw new RetriableException("updateAccountBalance(): fail to lock account : " + accountId
+						+ ", timed out after " + ACCOUNT_LOCK_TIMEOUT_MS + " ms");
+			}
+			return stripe;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RetriableException("Interrupted locking account " + accountId, e);
+		}
+	}
+
+	/**
+	 * Take the in-process locks of two accounts, if enabled.
+	 *
+	 * @param fromId the from account id
+	 * @param toId the to account id
+	 * @return the locked stripes, null when in-process locks are disabled
+	 * @throws CustomException on timeout or interrupt
+	 */
+	private int[] lockAccounts(long fromId, long toId) throws CustomException {
+		if (accountLocks == null) {
+			return null;
+		}
+		try {
+			int[] locked = accountLocks.tryLock(fromId, toId, ACCOUNT_LOCK_TIMEOUT_MS);
+			if (locked == null) {
+				throw new RetriableException("Fail to lock both accounts for write, timed out after "
+						+ ACCOUNT_LOCK_TIMEOUT_MS + " ms");
+			}
+			return locked;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RetriableException("Interrupted locking accounts " + fromId + " and " + toId, e);
+		}
+	}
+
+	/**
+	 * Gets the transfer metrics.
+	 *
+	 * @return the metrics
+	 */
+	public TransferMetrics getTransferMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * One pessimistic transfer attempt: lock both rows, in account id order so
+	 * opposite transfers between the same accounts queue instead of
+	 * deadlocking, then check and update.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param postCommit receives what is left to do after the commit
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 * @throws SQLException the SQL exception, after the rollback
+	 */
+	private int tryPessimisticTransfer(UserTransaction userTransaction, PostCommit postCommit)
+			throws CustomException, SQLException {
+		int result;
+		Connection conn = null;
+		try {
+			conn = getConnection();
+			conn.setAutoCommit(false);
+			result = applyTransfer(conn, userTransaction, postCommit);
+			// If there is no error, commit the transaction
+			conn.commit();
+		} catch (SQLException | CustomException e) {
+			abortJournal(postCommit);
+			rollback(conn);
+			throw e;
 		} finally {
 			DbUtils.closeQuietly(conn);
-			DbUtils.closeQuietly(rs);
+		}
+		return result;
+	}
+
+	/**
+	 * Lock both accounts, lowest id first, and apply a transfer in the
+	 * caller's transaction, without committing. Used for a transfer in its
+	 * own transaction and by the group committer for a batch.
+	 *
+	 * @param conn the connection, in a transaction
+	 * @param userTransaction the user transaction
+	 * @param postCommit receives what is left to do after the commit
+	 * @return the rows updated
+	 * @throws CustomException if the transfer is not allowed
+	 * @throws SQLException the SQL exception
+	 */
+	int applyTransfer(Connection conn, UserTransaction userTransaction, PostCommit postCommit)
+			throws CustomException, SQLException {
+		PreparedStatement lockStmt = null;
+		PreparedStatement updateStmt = null;
+		long fromId = userTransaction.getFromAccountId();
+		long toId = userTransaction.getToAccountId();
+		boolean fromFirst = fromId <= toId;
+
+		try {
+			// lock the credit and debit account for writing, lowest id first
+			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
+			long[] versions = new long[2];
+			long lockStart = System.nanoTime();
+			Account first = readAccount(lockStmt, fromFirst ? fromId : toId, versions, 0);
+			Account second = readAccount(lockStmt, fromFirst ? toId : fromId, versions, 1);
+			metrics.lockWait(System.nanoTime() - lockStart);
+			Account fromAccount = fromFirst ? first : second;
+			Account toAccount = fromFirst ? second : first;
+			if (log.isDebugEnabled())
+				log.debug("transferAccountBalance from Account: " + fromAccount + " to Account: " + toAccount);
+
+			long fromAccountLeftOver = checkTransfer(userTransaction, fromAccount, toAccount);
+			// proceed with update
+			long toAccountBalance = credit(toAccount, userTransaction);
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			updateStmt.setLong(1, fromAccountLeftOver);
+			updateStmt.setLong(2, fromId);
+			updateStmt.addBatch();
+			updateStmt.setLong(1, toAccountBalance);
+			updateStmt.setLong(2, toId);
+			updateStmt.addBatch();
+			int[] rowsUpdated = updateStmt.executeBatch();
+			int result = rowsUpdated[0] + rowsUpdated[1];
+			if (log.isDebugEnabled()) {
+				log.debug("Number of rows updated for the transfer : " + result);
+			}
+			if (postCommit.record != null) {
+				postCommit.record.write(conn);
+			}
+			postCommit.transfer = insertHistory(conn, userTransaction);
+			postCommit.journalSeq = appendJournal(JournalRecord.transfer(fromId, toId, userTransaction.getAmountUnits(),
+					fromAccountLeftOver, toAccountBalance, 0, userTransaction.getCurrencyCode()));
+			return result;
+		} finally {
 			DbUtils.closeQuietly(lockStmt);
 			DbUtils.closeQuietly(updateStmt);
 		}
-		return result;
 	}
 
+	/**
+	 * Apply one side of a transfer whose accounts live on different shards,
+	 * in the caller's transaction, without committing: lock the account,
+	 * check it is in the transaction currency and, on the debit side, has
+	 * enough fund, then update its balance and insert the history row. Both
+	 * sides check the transaction currency, so they share one currency.
+	 *
+	 * @param conn the connection, in a transaction
+	 * @param userTransaction the user transaction
+	 * @param debit true for the from account, false for the to account
+	 * @return the units of the new balance
+	 * @throws CustomException if the transfer is not allowed
+	 * @throws SQLException the SQL exception
+	 */
+	long applyTransferLeg(Connection conn, UserTransaction userTransaction, boolean debit)
+			throws CustomException, SQLException {
+		PreparedStatement lockStmt = null;
+		PreparedStatement updateStmt = null;
+		long accountId = debit ? userTransaction.getFromAccountId() : userTransaction.getToAccountId();
+		try {
+			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
+			long lockStart = System.nanoTime();
+			Account account = readAccount(lockStmt, accountId, new long[1], 0);
+			metrics.lockWait(System.nanoTime() - lockStart);
+			if (account == null) {
+				throw new CustomException("Fail to lock both accounts for write");
+			}
+			int currencyId = userTransaction.getCurrencyId();
+			if (currencyId == CurrencyTable.UNKNOWN || account.getCurrencyId() != currencyId) {
+				throw new CustomException(debit
+						? "Fail to transfer Fund, transaction ccy are different from source/destination"
+						: "Fail to transfer Fund, the source and destination account are in different currency");
+			}
+			long balance = debit ? debit(account, userTransaction) : credit(account, userTransaction);
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			updateStmt.setLong(1, balance);
+			updateStmt.setLong(2, accountId);
+			updateStmt.executeUpdate();
+			insertHistory(conn, userTransaction);
+			return balance;
+		} finally {
+			DbUtils.closeQuietly(lockStmt);
+			DbUtils.closeQuietly(updateStmt);
+		}
+	}
+
+	/**
+	 * One optimistic transfer attempt: read both rows without locks, then
+	 * update each only if its Version is unchanged.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param postCommit receives what is left to do after the commit
+	 * @return the rows updated, CONFLICT if a row changed since it was read
+	 * @throws CustomException the custom exception
+	 * @throws SQLException the SQL exception, after the rollback
+	 */
+	private int tryOptimisticTransfer(UserTransaction userTransaction, PostCommit postCommit)
+			throws CustomException, SQLException {
+		Connection conn = null;
+		PreparedStatement readStmt = null;
+		PreparedStatement updateStmt = null;
+		long fromId = userTransaction.getFromAccountId();
+		long toId = userTransaction.getToAccountId();
+		metrics.attempt();
+		try {
+			conn = getConnection();
+			conn.setAutoCommit(false);
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
+			long[] versions = new long[2];
+			Account fromAccount = readAccount(readStmt, fromId, versions, 0);
+			Account toAccount = readAccount(readStmt, toId, versions, 1);
+
+			long fromAccountLeftOver = checkTransfer(userTransaction, fromAccount, toAccount);
+			long toAccountBalance = credit(toAccount, userTransaction);
+			// update in account id order, so two attempts never wait on each other in a cycle
+			boolean fromFirst = fromId <= toId;
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_IF_VERSION);
+			addVersionedUpdate(updateStmt, fromFirst ? fromId : toId, fromFirst ? fromAccountLeftOver : toAccountBalance,
+					versions[fromFirst ? 0 : 1]);
+			addVersionedUpdate(updateStmt, fromFirst ? toId : fromId, fromFirst ? toAccountBalance : fromAccountLeftOver,
+					versions[fromFirst ? 1 : 0]);
+			// the row locks are taken, and possibly waited for, by the updates
+			long lockStart = System.nanoTime();
+			int[] rowsUpdated = updateStmt.executeBatch();
+			metrics.lockWait(System.nanoTime() - lockStart);
+			if (rowsUpdated[0] != 1 || rowsUpdated[1] != 1) {
+				conn.rollback();
+				metrics.conflict();
+				if (log.isDebugEnabled())
+					log.debug("transferAccountBalance(): version conflict for " + userTransaction);
+				return CONFLICT;
+			}
+			if (postCommit.record != null) {
+				postCommit.record.write(conn);
+			}
+			postCommit.transfer = insertHistory(conn, userTransaction);
+			postCommit.journalSeq = appendJournal(JournalRecord.transfer(fromId, toId, userTransaction.getAmountUnits(),
+					fromAccountLeftOver, toAccountBalance, 0, userTransaction.getCurrencyCode()));
+			conn.commit();
+		} catch (SQLException se) {
+			abortJournal(postCommit);
+			rollback(conn);
+			throw se;
+		} finally {
+			DbUtils.closeQuietly(conn);
+			DbUtils.closeQuietly(readStmt);
+			DbUtils.closeQuietly(updateStmt);
+		}
+		return 2;
+	}
+
+	/**
+	 * Read an account and the Version it was read at.
+	 *
+	 * @param readStmt the prepared read statement
+	 * @param accountId the account id
+	 * @param versions the versions read
+	 * @param index the index of this account in versions
+	 * @return the account, null if missing
+	 * @throws SQLException the SQL exception
+	 */
+	private static Account readAccount(PreparedStatement readStmt, long accountId, long[] versions, int index)
+			throws SQLException {
+		readStmt.setLong(1, accountId);
+		ResultSet rs = readStmt.executeQuery();
+		try {
+			if (!rs.next()) {
+				return null;
+			}
+			versions[index] = rs.getLong("Version");
+			return toAccount(rs);
+		} finally {
+			DbUtils.closeQuietly(rs);
+		}
+	}
+
+	/**
+	 * Checks if the error is a lock timeout or deadlock, worth another try.
+	 *
+	 * @param se the SQL exception
+	 * @return true, if retryable
+	 */
+	static boolean isLockFailure(SQLException se) {
+		int code = se.getErrorCode();
+		// MVStore reports a row lock timeout as a concurrent update
+		return code == ErrorCode.LOCK_TIMEOUT_1 || code == ErrorCode.DEADLOCK_1
+				|| code == ErrorCode.CONCURRENT_UPDATE_1;
+	}
+
+	/**
+	 * Roll back a failed attempt.
+	 *
+	 * @param conn the connection, null if none was taken
+	 * @throws CustomException if the rollback fails
+	 */
+	private static void rollback(Connection conn) throws CustomException {
+		try {
+			if (conn != null)
+				conn.rollback();
+		} catch (SQLException re) {
+			throw new CustomException("Fail to rollback transaction", re);
+		}
+	}
+
+	/**
+	 * Add a version-guarded balance update to the batch.
+	 *
+	 * @param updateStmt the update statement
+	 * @param accountId the account id
+	 * @param balance the new balance
+	 * @param version the version the account was read at
+	 * @throws SQLException the SQL exception
+	 */
+	private static void addVersionedUpdate(PreparedStatement updateStmt, long accountId, long balance,
+			long version) throws SQLException {
+		updateStmt.setLong(1, balance);
+		updateStmt.setLong(2, accountId);
+		updateStmt.setLong(3, version);
+		updateStmt.addBatch();
+	}
+
+	/**
+	 * Sleep a random time up to RETRY_BACKOFF_MS doubled per retry, so
+	 * competing transfers do not retry in lock step, but not past the deadline.
+	 *
+	 * @param retry the number of earlier retries
+	 * @param deadline the deadline in millis since the epoch
+	 * @throws CustomException if interrupted
+	 */
+	static void backoff(int retry, long deadline) throws CustomException {
+		long cap = (long) RETRY_BACKOFF_MS << Math.min(retry, 10);
+		long sleep = Math.min(ThreadLocalRandom.current().nextLong(cap + 1), deadline - System.currentTimeMillis());
+		if (sleep <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(sleep);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RetriableException("Interrupted retrying transfer", e);
+		}
+	}
+
+	/**
+	 * Check the accounts are two existing accounts, the currencies match and
+	 * the source has enough fund.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param fromAccount the from account, null if missing
+	 * @param toAccount the to account, null if missing
+	 * @return the units of the source balance after the transfer
+	 * @throws CustomException if the transfer is not allowed
+	 */
+	private static long checkTransfer(UserTransaction userTransaction, Account fromAccount, Account toAccount)
+			throws CustomException {
+		// a transfer to the same account would read its row twice
+		if (userTransaction.getFromAccountId().equals(userTransaction.getToAccountId())) {
+			throw new CustomException("Fail to transfer Fund, the source and destination account are the same");
+		}
+
+		// check locking status
+		if (fromAccount == null || toAccount == null) {
+			throw new CustomException("Fail to lock both accounts for write");
+		}
+
+		// check transaction currency
+		int currencyId = userTransaction.getCurrencyId();
+		if (currencyId == CurrencyTable.UNKNOWN || fromAccount.getCurrencyId() != currencyId) {
+			throw new CustomException(
+					"Fail to transfer Fund, transaction ccy are different from source/destination");
+		}
+
+		// check ccy is the same for both accounts
+		if (toAccount.getCurrencyId() != currencyId) {
+			throw new CustomException(
+					"Fail to transfer Fund, the source and destination account are in different currency");
+		}
+
+		// check enough fund in source account
+		return debit(fromAccount, userTransaction);
+	}
+
+	/**
+	 * Take the transaction amount from an account, if it has enough fund.
+	 *
+	 * @param account the account
+	 * @param userTransaction the user transaction
+	 * @return the units of the balance after the debit
+	 * @throws CustomException if the fund is short or the amount out of range
+	 */
+	private static long debit(Account account, UserTransaction userTransaction) throws CustomException {
+		long balance;
+		try {
+			balance = Money.subtract(account.getBalanceUnits(), userTransaction.getAmountUnits());
+		} catch (ArithmeticException e) {
+			throw new CustomException("Fail to transfer Fund, amount out of range", e);
+		}
+		if (balance < 0) {
+			throw new CustomException("Not enough Fund from source Account ");
+		}
+		return balance;
+	}
+
+	/**
+	 * Add the transaction amount to an account.
+	 *
+	 * @param account the account
+	 * @param userTransaction the user transaction
+	 * @return the units of the balance after the credit
+	 * @throws CustomException if the amount is out of range
+	 */
+	private static long credit(Account account, UserTransaction userTransaction) throws CustomException {
+		try {
+			return Money.add(account.getBalanceUnits(), userTransaction.getAmountUnits());
+		} catch (ArithmeticException e) {
+			throw new CustomException("Fail to transfer Fund, amount out of range", e);
+		}
+	}
+
+	/**
+	 * Build the history row of a transfer and, in sync mode, insert it in the
+	 * transfer's transaction: no transfer without its history row.
+	 *
+	 * @param conn the transfer's connection
+	 * @param userTransaction the user transaction
+	 * @return the transfer, null when the history is off
+	 * @throws SQLException the SQL exception
+	 */
+	private Transfer insertHistory(Connection conn, UserTransaction userTransaction) throws SQLException {
+		if (historyMode == TransferHistoryMode.OFF) {
+			return null;
+		}
+		Transfer transfer = new Transfer(0, userTransaction.getFromAccountId(), userTransaction.getToAccountId(),
+				userTransaction.getAmountUnits(), userTransaction.getCurrencyCode(), System.currentTimeMillis());
+		if (historyMode == TransferHistoryMode.SYNC) {
+			PreparedStatement historyStmt = conn.prepareStatement(TransferDAOImpl.SQL_INSERT_TRANSFER);
+			try {
+				TransferDAOImpl.bindInsert(historyStmt, transfer);
+				historyStmt.executeUpdate();
+			} finally {
+				DbUtils.closeQuietly(historyStmt);
+			}
+		}
+		return transfer;
+	}
+
+	/**
+	 * After the commit: wait for the journal and, in async mode, hand the
+	 * history row to the batch writer, which logs and counts a row it cannot
+	 * queue rather than fail a committed transfer. Nothing here throws: the
+	 * transfer has committed.
+	 *
+	 * @param postCommit the journal sequence and history row of the transfer
+	 */
+	private void completeTransfer(PostCommit postCommit) {
+		metrics.committed();
+		awaitJournal(postCommit.journalSeq);
+		if (postCommit.transfer != null && historyMode == TransferHistoryMode.ASYNC) {
+			historyWriter.submit(postCommit.transfer);
+		}
+	}
+
+	/**
+	 * Append a record to the journal, if enabled.
+	 *
+	 * @param record the record
+	 * @return the journal sequence number, 0 when journaling is disabled
+	 * @throws CustomException the custom exception
+	 */
+	private long appendJournal(JournalRecord record) throws CustomException {
+		if (journal == null) {
+			return 0;
+		}
+		try {
+			return journal.append(record);
+		} catch (IOException e) {
+			throw new CustomException("Fail to write journal record " + record, e);
+		}
+	}
+
+	/**
+	 * Append the records of one transaction to the journal, with consecutive
+	 * sequence numbers, if enabled.
+	 *
+	 * @param records the records
+	 * @return the sequence number of the last record, 0 when journaling is disabled or there is none
+	 * @throws CustomException the custom exception
+	 */
+	private long appendJournal(List<JournalRecord> records) throws CustomException {
+		if (journal == null) {
+			return 0;
+		}
+		try {
+			return journal.append(records);
+		} catch (IOException e) {
+			throw new CustomException("Fail to write " + records.size() + " journal records", e);
+		}
+	}
+
+	/**
+	 * Journal that the records of a transaction never committed, if any were
+	 * appended. The rollback has already happened, so a failure is only
+	 * logged.
+	 *
+	 * @param firstSeq the first sequence number of the transaction
+	 * @param lastSeq the last sequence number of the transaction, 0 when nothing was appended
+	 */
+	void abortJournal(long firstSeq, long lastSeq) {
+		if (journal == null || lastSeq == 0) {
+			return;
+		}
+		try {
+			journal.append(JournalRecord.abort(firstSeq, lastSeq));
+		} catch (IOException e) {
+			log.error("abortJournal(): Error journaling the abort of records " + firstSeq + " to " + lastSeq, e);
+		}
+	}
+
+	/**
+	 * Journal that the record of a transfer or balance update never
+	 * committed, and forget its sequence number.
+	 *
+	 * @param postCommit the journal sequence of the attempt
+	 */
+	void abortJournal(PostCommit postCommit) {
+		abortJournal(postCommit.journalSeq, postCommit.journalSeq);
+		postCommit.journalSeq = 0;
+	}
+
+	/**
+	 * Wait until a journal record is durable. Every caller has committed to
+	 * the database by then, so a failed sync is logged, not thrown: the
+	 * change stands and must not be reported as failed.
+	 *
+	 * @param journalSeq the journal sequence number, 0 for none
+	 */
+	private void awaitJournal(long journalSeq) {
+		if (journal == null || journalSeq == 0) {
+			return;
+		}
+		try {
+			journal.awaitDurable(journalSeq);
+		} catch (IOException e) {
+			log.error("awaitJournal(): fail to sync journal up to " + journalSeq + " after the commit", e);
+		}
+	}
+
+	/**
+	 * One attempt at a chunk of a batch, in its own transaction.
+	 *
+	 * @param <R> the result type
+	 */
+	@FunctionalInterface
+	private interface ChunkAttempt<R> {
+
+		/**
+		 * Run the attempt.
+		 *
+		 * @return the result of each item of the chunk
+		 * @throws CustomException the custom exception
+		 * @throws SQLException the SQL exception, after the rollback
+		 */
+		List<R> run() throws CustomException, SQLException;
+	}
+
+	/**
+	 * What is left to do once a write has committed, done after its locks are
+	 * released, and the idempotency record to write before the commit.
+	 */
+	static final class PostCommit {
+
+		/** The idempotency record written in the transfer's transaction, null for none. */
+		IdempotencyStore.Record record;
+
+		/** The journal sequence to wait for, 0 when journaling is disabled. */
+		long journalSeq;
+
+		/** The history row to queue in async mode, null when the history is off. */
+		Transfer transfer;
+	}
 }
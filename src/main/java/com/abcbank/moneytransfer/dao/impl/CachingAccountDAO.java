@@ -0,0 +1,606 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Read-through account cache in front of another account DAO.
+ * <p>
+ * getAccountById is answered from memory while the cached row is younger
+ * than the time to live, else loaded from the DAO below and cached. Every
+ * write drops the accounts it touched once it is over, committed or not, so
+ * the next read loads the committed row. The writes return a count or a
+ * balance, not a row stamped with its version, so putting their outcome in
+ * place could let two concurrent writes of an account leave the older one
+ * cached. A load racing with a write of the same account is not cached:
+ * each write bumps the counter of the account's stripe, and a load only
+ * caches its row if the counter did not move meanwhile.
+ * <p>
+ * Past the max size, accounts are evicted in load order with a second
+ * chance for those read since they were last passed over. Lists and
+ * streams of accounts go to the DAO below.
+ */
+public final class CachingAccountDAO implements AccountDAO {
+
+	/** The Constant STRIPES, of write counters. */
+	private static final int STRIPES = 1024;
+
+	/** The DAO below. */
+	private final AccountDAO delegate;
+
+	/** The max number of cached accounts. */
+	private final int maxSize;
+
+	/** The time to live of a cached account, in nanos. */
+	private final long ttlNanos;
+
+	/** The cached accounts, also the lock of the load order. */
+	private final ConcurrentLongMap<Entry> entries;
+
+	/** The cached accounts in load order, stale entries included until passed over. */
+	private final ArrayDeque<Entry> order = new ArrayDeque<Entry>();
+
+	/** The write counter of each stripe of accounts. */
+	private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+
+	/** The reads answered from memory. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The reads that loaded the account. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** The total time of the loads, in nanos. */
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	/** The longest load, in nanos. */
+	private final AtomicLong maxLoadNanos = new AtomicLong();
+
+	/** The loads not cached, raced by a write. */
+	private final AtomicLong loadsDiscarded = new AtomicLong();
+
+	/** The accounts evicted past the max size. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** The accounts dropped past their time to live. */
+	private final AtomicLong expirations = new AtomicLong();
+
+	/** The cached accounts dropped by a write. */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Instantiates a new caching account DAO.
+	 *
+	 * @param delegate the DAO below
+	 * @param maxSize the max number of cached accounts
+	 * @param ttlMs the time to live of a cached account, in ms
+	 */
+	public CachingAccountDAO(AccountDAO delegate, int maxSize, long ttlMs) {
+		this.delegate = delegate;
+		this.maxSize = Math.max(1, maxSize);
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ttlMs));
+		this.entries = new ConcurrentLongMap<Entry>(Math.min(this.maxSize, 1 << 16));
+	}
+
+	/**
+	 * Wrap a DAO in a cache sized by account_cache_size and
+	 * account_cache_ttl_ms.
+	 *
+	 * @param delegate the DAO below
+	 * @return the caching DAO, or the DAO itself when account_cache_size is 0
+	 */
+	public static AccountDAO fromProperties(AccountDAO delegate) {
+		int maxSize = Utils.getIntegerProperty("account_cache_size", 10000);
+		if (maxSize <= 0) {
+			return delegate;
+		}
+		return new CachingAccountDAO(delegate, maxSize, Utils.getIntegerProperty("account_cache_ttl_ms", 30000));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#getAllAccounts()
+	 */
+	public List<Account> getAllAccounts() throws CustomException {
+		return delegate.getAllAccounts();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#getAccounts(long, int)
+	 */
+	public List<Account> getAccounts(long afterId, int limit) throws CustomException {
+		return delegate.getAccounts(afterId, limit);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#streamAllAccounts(com.abcbank.moneytransfer.dao.RowHandler)
+	 */
+	public long streamAllAccounts(RowHandler<Account> handler) throws CustomException, IOException {
+		return delegate.streamAllAccounts(handler);
+	}
+
+	/**
+	 * Get an account from memory, or load and cache it.
+	 *
+	 * @param accountId the account id
+	 * @return the account, null if there is no such account
+	 * @throws CustomException the custom exception
+	 */
+	public Account getAccountById(long accountId) throws CustomException {
+		Entry entry = entries.get(accountId);
+		if (entry != null) {
+			if (System.nanoTime() - entry.loadedAt < ttlNanos) {
+				entry.referenced = true;
+				hits.incrementAndGet();
+				return entry.account;
+			}
+			expire(entry);
+		}
+		misses.incrementAndGet();
+		int stripe = stripeOf(accountId);
+		long stamp = writes.get(stripe);
+		long start = System.nanoTime();
+		Account account = delegate.getAccountById(accountId);
+		long elapsed = System.nanoTime() - start;
+		loadNanos.addAndGet(elapsed);
+		maxLoadNanos.accumulateAndGet(elapsed, Math::max);
+		if (account != null) {
+			cache(account, stripe, stamp);
+		}
+		return account;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#createAccount(com.abcbank.moneytransfer.model.Account)
+	 */
+	public Account createAccount(Account account) throws CustomException {
+		// missing accounts are not cached, nothing to drop
+		return delegate.createAccount(account);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#deleteAccountById(long)
+	 */
+	public int deleteAccountById(long accountId) throws CustomException {
+		try {
+			return delegate.deleteAccountById(accountId);
+		} finally {
+			invalidate(accountId);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#updateAccountBalance(long, java.math.BigDecimal)
+	 */
+	public Account updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		try {
+			return delegate.updateAccountBalance(accountId, deltaAmount);
+		} finally {
+			invalidate(accountId);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#adjustAccountBalance(long, java.math.BigDecimal)
+	 */
+	public BigDecimal adjustAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		try {
+			return delegate.adjustAccountBalance(accountId, deltaAmount);
+		} finally {
+			invalidate(accountId);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#adjustAccountBalances(java.util.List)
+	 */
+	public List<BalanceResult> adjustAccountBalances(List<BalanceAdjustment> adjustments) throws CustomException {
+		try {
+			return delegate.adjustAccountBalances(adjustments);
+		} finally {
+			for (BalanceAdjustment adjustment : adjustments) {
+				invalidate(adjustment.getAccountId());
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#transferAccountBalance(com.abcbank.moneytransfer.model.UserTransaction)
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction) throws CustomException {
+		try {
+			return delegate.transferAccountBalance(userTransaction);
+		} finally {
+			invalidate(userTransaction);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#transferAccountBalance(com.abcbank.moneytransfer.model.UserTransaction, com.abcbank.moneytransfer.dao.IdempotencyStore.Record)
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction, IdempotencyStore.Record record)
+			throws CustomException {
+		try {
+			return delegate.transferAccountBalance(userTransaction, record);
+		} finally {
+			invalidate(userTransaction);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#recordsIdempotency()
+	 */
+	public boolean recordsIdempotency() {
+		return delegate.recordsIdempotency();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#transferAccountBalances(java.util.List, boolean)
+	 */
+	public List<TransferResult> transferAccountBalances(List<UserTransaction> transactions, boolean atomic)
+			throws CustomException {
+		try {
+			return delegate.transferAccountBalances(transactions, atomic);
+		} finally {
+			for (UserTransaction transaction : transactions) {
+				invalidate(transaction);
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached account, such as after the tables were reloaded.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			for (int i = 0; i < STRIPES; i++) {
+				writes.incrementAndGet(i);
+			}
+			entries.clear();
+			order.clear();
+		}
+	}
+
+	/**
+	 * Gets the cache statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * Cache a loaded account, unless a write of its stripe came since the
+	 * load started, then evict past the max size. A write bumps the stripe
+	 * without the entries lock, so the stripe is read again once the entry
+	 * is in: a write that bumped it before then may have looked for the
+	 * entry before it was there, and the entry is dropped here instead.
+	 *
+	 * @param account the account
+	 * @param stripe the stripe of the account
+	 * @param stamp the write counter of the stripe before the load
+	 */
+	private void cache(Account account, int stripe, long stamp) {
+		synchronized (entries) {
+			if (writes.get(stripe) != stamp) {
+				loadsDiscarded.incrementAndGet();
+				return;
+			}
+			Entry entry = new Entry(account, System.nanoTime());
+			Entry cached = entries.putIfAbsent(account.getAccountId(), entry);
+			if (cached != null) {
+				if (cached.loadedAt >= entry.loadedAt - ttlNanos) {
+					// loaded by another reader meanwhile
+					return;
+				}
+				entries.replace(account.getAccountId(), entry);
+			}
+			if (writes.get(stripe) != stamp) {
+				entries.remove(account.getAccountId());
+				loadsDiscarded.incrementAndGet();
+				return;
+			}
+			order.addLast(entry);
+			while (entries.size() > maxSize) {
+				evictOne();
+			}
+			if (order.size() > 2 * Math.max(maxSize, 16)) {
+				order.removeIf(e -> entries.get(e.account.getAccountId()) != e);
+			}
+		}
+	}
+
+	/**
+	 * Evict the oldest cached account not read since it was last passed
+	 * over, called holding the entries lock.
+	 */
+	private void evictOne() {
+		Entry entry;
+		while ((entry = order.pollFirst()) != null) {
+			long accountId = entry.account.getAccountId();
+			if (entries.get(accountId) != entry) {
+				continue;
+			}
+			if (entry.referenced) {
+				entry.referenced = false;
+				order.addLast(entry);
+				continue;
+			}
+			entries.remove(accountId);
+			evictions.incrementAndGet();
+			return;
+		}
+	}
+
+	/**
+	 * Drop an account past its time to live, unless reloaded meanwhile.
+	 *
+	 * @param entry the expired entry
+	 */
+	private void expire(Entry entry) {
+		synchronized (entries) {
+			long accountId = entry.account.getAccountId();
+			if (entries.get(accountId) == entry) {
+				entries.remove(accountId);
+				expirations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drop both accounts of a transfer.
+	 *
+	 * @param transaction the user transaction
+	 */
+	private void invalidate(UserTransaction transaction) {
+		if (transaction.getFromAccountId() != null) {
+			invalidate(transaction.getFromAccountId());
+		}
+		if (transaction.getToAccountId() != null) {
+			invalidate(transaction.getToAccountId());
+		}
+	}
+
+	/**
+	 * Drop an account once written: bump its stripe first, so that a load
+	 * started before the write is not cached after it. A load caching its
+	 * entry between the bump and the lookup here drops the entry itself.
+	 *
+	 * @param accountId the account id
+	 */
+	private void invalidate(long accountId) {
+		writes.incrementAndGet(stripeOf(accountId));
+		if (entries.get(accountId) != null && entries.remove(accountId) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the write counter stripe of an account.
+	 *
+	 * @param accountId the account id
+	 * @return the stripe
+	 */
+	private static int stripeOf(long accountId) {
+		return (int) ((accountId * 0x9E3779B97F4A7C15L) >>> 54) & (STRIPES - 1);
+	}
+
+	/**
+	 * A cached account.
+	 */
+	private static final class Entry {
+
+		/** The account, immutable. */
+		private final Account account;
+
+		/** The load time, in nanos. */
+		private final long loadedAt;
+
+		/** Set by reads, cleared when the eviction passes the entry over. */
+		private volatile boolean referenced;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param account the account
+		 * @param loadedAt the load time, in nanos
+		 */
+		private Entry(Account account, long loadedAt) {
+			this.account = account;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/**
+	 * Snapshot of the cache counters.
+	 */
+	public static final class Stats {
+
+		/** The cached accounts. */
+		private final int size;
+
+		/** The max number of cached accounts. */
+		private final int maxSize;
+
+		/** The reads answered from memory. */
+		private final long hits;
+
+		/** The reads that loaded the account. */
+		private final long misses;
+
+		/** The share of reads answered from memory. */
+		private final double hitRatio;
+
+		/** The average load in millis. */
+		private final double loadAvgMs;
+
+		/** The longest load in millis. */
+		private final double loadMaxMs;
+
+		/** The loads not cached, raced by a write. */
+		private final long loadsDiscarded;
+
+		/** The accounts evicted past the max size. */
+		private final long evictions;
+
+		/** The accounts dropped past their time to live. */
+		private final long expirations;
+
+		/** The cached accounts dropped by a write. */
+		private final long invalidations;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param cache the cache
+		 */
+		private Stats(CachingAccountDAO cache) {
+			this.size = cache.entries.size();
+			this.maxSize = cache.maxSize;
+			this.hits = cache.hits.get();
+			this.misses = cache.misses.get();
+			this.hitRatio = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+			this.loadAvgMs = misses == 0 ? 0 : cache.loadNanos.get() / 1e6 / misses;
+			this.loadMaxMs = cache.maxLoadNanos.get() / 1e6;
+			this.loadsDiscarded = cache.loadsDiscarded.get();
+			this.evictions = cache.evictions.get();
+			this.expirations = cache.expirations.get();
+			this.invalidations = cache.invalidations.get();
+		}
+
+		/**
+		 * Gets the cached accounts.
+		 *
+		 * @return the size
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Gets the max number of cached accounts.
+		 *
+		 * @return the max size
+		 */
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		/**
+		 * Gets the reads answered from memory.
+		 *
+		 * @return the hits
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Gets the reads that loaded the account.
+		 *
+		 * @return the misses
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Gets the share of reads answered from memory.
+		 *
+		 * @return the hit ratio
+		 */
+		public double getHitRatio() {
+			return hitRatio;
+		}
+
+		/**
+		 * Gets the average load in millis.
+		 *
+		 * @return the load avg ms
+		 */
+		public double getLoadAvgMs() {
+			return loadAvgMs;
+		}
+
+		/**
+		 * Gets the longest load in millis.
+		 *
+		 * @return the load max ms
+		 */
+		public double getLoadMaxMs() {
+			return loadMaxMs;
+		}
+
+		/**
+		 * Gets the loads not cached because a write raced them.
+		 *
+		 * @return the loads discarded
+		 */
+		public long getLoadsDiscarded() {
+			return loadsDiscarded;
+		}
+
+		/**
+		 * Gets the accounts evicted past the max size.
+		 *
+		 * @return the evictions
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * Gets the accounts dropped past their time to live.
+		 *
+		 * @return the expirations
+		 */
+		public long getExpirations() {
+			return expirations;
+		}
+
+		/**
+		 * Gets the cached accounts dropped by a write.
+		 *
+		 * @return the invalidations
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Stats{" + "size=" + size + ", hits=" + hits + ", misses=" + misses + ", hitRatio=" + hitRatio
+					+ ", loadAvgMs=" + loadAvgMs + ", evictions=" + evictions + ", expirations=" + expirations
+					+ ", invalidations=" + invalidations + '}';
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Hash map keyed by primitive long, with lock-free reads.
+ * <p>
+ * get() never blocks: it reads the current table and walks a chain whose
+ * links are volatile. Writers are serialised on the map; a resize builds a
+ * new table from copied nodes and publishes it, so readers still walking the
+ * old table see a consistent chain. Keys are never boxed.
+ *
+ * @param <V> the value type
+ */
+final class ConcurrentLongMap<V> {
+
+	/** The Constant MAX_CAPACITY. */
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	/** The Constant LOAD_FACTOR. */
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/** The bucket table, replaced on resize. */
+	private volatile AtomicReferenceArray<Node<V>> table;
+
+	/** The number of mappings. */
+	private volatile int size;
+
+	/** The size at which the table is doubled. */
+	private int threshold;
+
+	/**
+	 * Instantiates a new map.
+	 *
+	 * @param initialCapacity the initial capacity
+	 */
+	ConcurrentLongMap(int initialCapacity) {
+		int capacity = 16;
+		while (capacity < initialCapacity && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		table = new AtomicReferenceArray<Node<V>>(capacity);
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Gets the value for the key without locking.
+	 *
+	 * @param key the key
+	 * @return the value, or null when absent
+	 */
+	V get(long key) {
+		AtomicReferenceArray<Node<V>> tab = table;
+		for (Node<V> n = tab.get(indexFor(key, tab.length())); n != null; n = n.next) {
+			if (n.key == key) {
+				return n.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Put the value if the key is absent.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the existing value, or null when the value was added
+	 */
+	synchronized V putIfAbsent(long key, V value) {
+		AtomicReferenceArray<Node<V>> tab = table;
+		int index = indexFor(key, tab.length());
+		Node<V> head = tab.get(index);
+		for (Node<V> n = head; n != null; n = n.next) {
+			if (n.key == key) {
+				return n.value;
+			}
+		}
+		tab.set(index, new Node<V>(key, value, head));
+		if (++size > threshold) {
+			resize();
+		}
+		return null;
+	}
+
+	/**
+	 * Replace the value of an existing key.
+	 *
+	 * @param key the key
+	 * @param value the new value
+	 * @return the previous value, or null when the key is absent
+	 */
+	synchronized V replace(long key, V value) {
+		AtomicReferenceArray<Node<V>> tab = table;
+		for (Node<V> n = tab.get(indexFor(key, tab.length())); n != null; n = n.next) {
+			if (n.key == key) {
+				V previous = n.value;
+				n.value = value;
+				return previous;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the mapping for the key.
+	 *
+	 * @param key the key
+	 * @return the removed value, or null when absent
+	 */
+	synchronized V remove(long key) {
+		AtomicReferenceArray<Node<V>> tab = table;
+		int index = indexFor(key, tab.length());
+		Node<V> prev = null;
+		for (Node<V> n = tab.get(index); n != null; prev = n, n = n.next) {
+			if (n.key == key) {
+				// unlink only, a reader standing on n still reaches the rest of the chain
+				if (prev == null) {
+					tab.set(index, n.next);
+				} else {
+					prev.next = n.next;
+				}
+				size--;
+				return n.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all mappings.
+	 */
+	synchronized void clear() {
+		int capacity = table.length();
+		table = new AtomicReferenceArray<Node<V>>(capacity);
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of mappings.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets a weakly consistent copy of the values.
+	 *
+	 * @return the values
+	 */
+	List<V> values() {
+		AtomicReferenceArray<Node<V>> tab = table;
+		List<V> values = new ArrayList<V>(size);
+		for (int i = 0; i < tab.length(); i++) {
+			for (Node<V> n = tab.get(i); n != null; n = n.next) {
+				values.add(n.value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Double the table. Nodes are copied, never relinked, so the old table stays
+	 * valid for concurrent readers.
+	 */
+	private void resize() {
+		AtomicReferenceArray<Node<V>> oldTab = table;
+		int oldCapacity = oldTab.length();
+		if (oldCapacity >= MAX_CAPACITY) {
+			threshold = Integer.MAX_VALUE;
+			return;
+		}
+		int newCapacity = oldCapacity << 1;
+		AtomicReferenceArray<Node<V>> newTab = new AtomicReferenceArray<Node<V>>(newCapacity);
+		for (int i = 0; i < oldCapacity; i++) {
+			for (Node<V> n = oldTab.get(i); n != null; n = n.next) {
+				int index = indexFor(n.key, newCapacity);
+				newTab.set(index, new Node<V>(n.key, n.value, newTab.get(index)));
+			}
+		}
+		threshold = (int) (newCapacity * LOAD_FACTOR);
+		table = newTab;
+	}
+
+	/**
+	 * Spread the key bits over the table index, sequential ids included.
+	 *
+	 * @param key the key
+	 * @param length the table length
+	 * @return the bucket index
+	 */
+	private static int indexFor(long key, int length) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & (length - 1);
+	}
+
+	/**
+	 * A chain node.
+	 *
+	 * @param <V> the value type
+	 */
+	private static final class Node<V> {
+
+		/** The key. */
+		private final long key;
+
+		/** The value. */
+		private volatile V value;
+
+		/** The next node. */
+		private volatile Node<V> next;
+
+		/**
+		 * Instantiates a new node.
+		 *
+		 * @param key the key
+		 * @param value the value
+		 * @param next the next
+		 */
+		private Node(long key, V value, Node<V> next) {
+			this.key = key;
+			this.value = value;
+			this.next = next;
+		}
+	}
+}
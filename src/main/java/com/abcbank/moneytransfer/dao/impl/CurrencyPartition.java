@@ -0,0 +1,404 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.TransferConcurrencyMode;
+import com.abcbank.moneytransfer.dao.TransferHistoryMode;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.exception.RetriableException;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * One partition of the currency partitioned engine: the H2 database of the
+ * accounts of one currency, with its own connection pool, and the executor
+ * running its transfers. A transfer never crosses currencies, so it always
+ * runs within one partition, and a flood of transfers in one currency only
+ * queues on that currency's executor. When the queue is full the transfer is
+ * refused rather than waited for.
+ */
+public final class CurrencyPartition implements Closeable {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(CurrencyPartition.class);
+
+	/** The partition name, its currency code or DEFAULT. */
+	private final String name;
+
+	/** The connection pool of the partition database. */
+	private final ConnectionPool pool;
+
+	/** The account DAO of the partition database. */
+	private final AccountDAOImpl accountDAO;
+
+	/** The transfer DAO of the partition database. */
+	private final TransferDAOImpl transferDAO;
+
+	/** The transfer executor. */
+	private final ThreadPoolExecutor executor;
+
+	/** The start time in nanos, for the throughput. */
+	private final long startNanos = System.nanoTime();
+
+	/** The committed transfers. */
+	private final AtomicLong committed = new AtomicLong();
+
+	/** The transfers rejected by a check, such as not enough fund. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** The transfers failed on an error. */
+	private final AtomicLong failed = new AtomicLong();
+
+	/** The transfers refused as the executor queue was full. */
+	private final AtomicLong refused = new AtomicLong();
+
+	/** The accumulated transfer latency in nanos, queueing included. */
+	private final AtomicLong latencyNanos = new AtomicLong();
+
+	/** The max transfer latency in nanos. */
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * Instantiates a new currency partition.
+	 *
+	 * @param name the partition name, its currency code or DEFAULT
+	 * @param pool the connection pool of the partition database
+	 * @param historyMode the transfer history mode, SYNC or OFF
+	 * @param concurrencyMode the transfer concurrency mode
+	 * @param threads the transfer executor threads
+	 * @param queueSize the transfer executor queue capacity
+	 */
+	public CurrencyPartition(String name, ConnectionPool pool, TransferHistoryMode historyMode,
+			TransferConcurrencyMode concurrencyMode, int threads, int queueSize) {
+		this.name = name;
+		this.pool = pool;
+		this.accountDAO = new AccountDAOImpl(new AccountDAOImpl.Options().pool(pool).history(historyMode, null)
+				.concurrencyMode(concurrencyMode));
+		this.transferDAO = new TransferDAOImpl(pool);
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+					Thread t = new Thread(r, "transfer-" + name.toLowerCase() + "-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * Gets the partition name.
+	 *
+	 * @return the currency code, or DEFAULT for the partition of the other currencies
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the connection pool of the partition database.
+	 *
+	 * @return the pool
+	 */
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Gets the account DAO of the partition database.
+	 *
+	 * @return the account DAO
+	 */
+	AccountDAOImpl getAccountDAO() {
+		return accountDAO;
+	}
+
+	/**
+	 * Gets the transfer DAO of the partition database.
+	 *
+	 * @return the transfer DAO
+	 */
+	TransferDAOImpl getTransferDAO() {
+		return transferDAO;
+	}
+
+	/**
+	 * Run a transfer on the partition's executor and wait for it.
+	 *
+	 * @param userTransaction the user transaction
+	 * @return the rows updated
+	 * @throws CustomException if the transfer is rejected, fails or is refused
+	 */
+	int transfer(UserTransaction userTransaction) throws CustomException {
+		long start = System.nanoTime();
+		Future<Integer> result;
+		try {
+			result = executor.submit(() -> accountDAO.transferAccountBalance(userTransaction));
+		} catch (RejectedExecutionException e) {
+			refused.incrementAndGet();
+			throw new RetriableException("Fail to transfer Fund, too many " + name + " transfers queued: "
+					+ userTransaction);
+		}
+		try {
+			int updated = result.get();
+			(updated == 2 ? committed : failed).incrementAndGet();
+			return updated;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CustomException) {
+				rejected.incrementAndGet();
+				throw (CustomException) e.getCause();
+			}
+			failed.incrementAndGet();
+			throw new CustomException("Fail to transfer Fund " + userTransaction, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CustomException("Interrupted waiting for transfer " + userTransaction, e);
+		} finally {
+			long nanos = System.nanoTime() - start;
+			latencyNanos.addAndGet(nanos);
+			maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	/**
+	 * Run a batch of transfers on the partition's executor, as one task, and
+	 * wait for it. Each transfer of the batch is counted in the statistics,
+	 * with the latency of the batch shared among them.
+	 *
+	 * @param transactions the user transactions
+	 * @param atomic true to commit all the transfers or none
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException if the batch is refused or fails
+	 */
+	List<TransferResult> transferBatch(List<UserTransaction> transactions, boolean atomic) throws CustomException {
+		long start = System.nanoTime();
+		Future<List<TransferResult>> result;
+		try {
+			result = executor.submit(() -> accountDAO.transferAccountBalances(transactions, atomic));
+		} catch (RejectedExecutionException e) {
+			refused.addAndGet(transactions.size());
+			throw new RetriableException("Fail to transfer batch, too many " + name + " transfers queued");
+		}
+		try {
+			List<TransferResult> results = result.get();
+			for (TransferResult transferResult : results) {
+				(transferResult.getStatus() == TransferResult.Status.COMMITTED ? committed
+						: transferResult.getStatus() == TransferResult.Status.FAILED ? failed : rejected)
+						.incrementAndGet();
+			}
+			return results;
+		} catch (ExecutionException e) {
+			failed.addAndGet(transactions.size());
+			throw new CustomException("Fail to transfer batch of " + transactions.size() + " " + name + " transfers",
+					e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CustomException("Interrupted waiting for a batch of " + name + " transfers", e);
+		} finally {
+			long nanos = System.nanoTime() - start;
+			latencyNanos.addAndGet(nanos);
+			maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	/**
+	 * Stop the executor, letting the queued transfers finish.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				log.warn("close(): " + name + " transfers still running");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the throughput and latency statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * A snapshot of the throughput and latency statistics of one partition.
+	 */
+	public static final class Stats {
+
+		/** The partition name. */
+		private final String name;
+
+		/** The committed transfers. */
+		private final long committed;
+
+		/** The rejected transfers. */
+		private final long rejected;
+
+		/** The failed transfers. */
+		private final long failed;
+
+		/** The refused transfers. */
+		private final long refused;
+
+		/** The queued transfers. */
+		private final int queued;
+
+		/** The running transfers. */
+		private final int active;
+
+		/** The committed transfers per second since start. */
+		private final double throughputPerSec;
+
+		/** The average latency in ms. */
+		private final double avgLatencyMs;
+
+		/** The max latency in ms. */
+		private final double maxLatencyMs;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param partition the partition
+		 */
+		private Stats(CurrencyPartition partition) {
+			this.name = partition.name;
+			this.committed = partition.committed.get();
+			this.rejected = partition.rejected.get();
+			this.failed = partition.failed.get();
+			this.refused = partition.refused.get();
+			this.queued = partition.executor.getQueue().size();
+			this.active = partition.executor.getActiveCount();
+			double seconds = (System.nanoTime() - partition.startNanos) / 1e9;
+			this.throughputPerSec = seconds > 0 ? committed / seconds : 0;
+			long completed = committed + rejected + failed;
+			this.avgLatencyMs = completed == 0 ? 0 : partition.latencyNanos.get() / 1e6 / completed;
+			this.maxLatencyMs = partition.maxLatencyNanos.get() / 1e6;
+		}
+
+		/**
+		 * Gets the partition name.
+		 *
+		 * @return the currency code, or DEFAULT
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the committed transfers.
+		 *
+		 * @return the committed
+		 */
+		public long getCommitted() {
+			return committed;
+		}
+
+		/**
+		 * Gets the transfers rejected by a check, such as not enough fund.
+		 *
+		 * @return the rejected
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * Gets the transfers failed on an error.
+		 *
+		 * @return the failed
+		 */
+		public long getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Gets the transfers refused as the executor queue was full.
+		 *
+		 * @return the refused
+		 */
+		public long getRefused() {
+			return refused;
+		}
+
+		/**
+		 * Gets the queued transfers.
+		 *
+		 * @return the queued
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * Gets the running transfers.
+		 *
+		 * @return the active
+		 */
+		public int getActive() {
+			return active;
+		}
+
+		/**
+		 * Gets the committed transfers per second since start.
+		 *
+		 * @return the throughput
+		 */
+		public double getThroughputPerSec() {
+			return throughputPerSec;
+		}
+
+		/**
+		 * Gets the average transfer latency in ms, queueing included.
+		 *
+		 * @return the average latency
+		 */
+		public double getAvgLatencyMs() {
+			return avgLatencyMs;
+		}
+
+		/**
+		 * Gets the max transfer latency in ms, queueing included.
+		 *
+		 * @return the max latency
+		 */
+		public double getMaxLatencyMs() {
+			return maxLatencyMs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Stats [name=" + name + ", committed=" + committed + ", rejected=" + rejected + ", failed="
+					+ failed + ", refused=" + refused + ", queued=" + queued + ", active=" + active
+					+ ", throughputPerSec=" + throughputPerSec + ", avgLatencyMs=" + avgLatencyMs
+					+ ", maxLatencyMs=" + maxLatencyMs + "]";
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Account DAO of the currency partitioned engine. The accounts of each
+ * listed currency live in their own partition, the other currencies share a
+ * DEFAULT one. A transfer is routed by its currency code: its accounts must
+ * be in that currency, so they are in that partition, or the transfer fails
+ * as for a missing account. The other account requests are routed by the
+ * currency of the account, looked up once in the catalog and then cached, as
+ * an account never changes currency.
+ */
+public class CurrencyPartitionedAccountDAOImpl implements AccountDAO {
+
+	/** The Constant DEFAULT, the partition of the currencies without their own. */
+	public static final String DEFAULT = "DEFAULT";
+
+	/** The Constant STREAM_PAGE_SIZE, accounts read from each partition per page when streaming. */
+	private final static int STREAM_PAGE_SIZE = Utils.getIntegerProperty("stream_fetch_size", 1000);
+
+	/** The Constant BY_ID. */
+	private final static Comparator<Account> BY_ID = Comparator.comparingLong(Account::getAccountId);
+
+	/** The account directory in the catalog. */
+	private final AccountCatalog directory;
+
+	/** The partitions by currency code, DEFAULT included. */
+	private final Map<String, CurrencyPartition> partitions;
+
+	/** The partition of each account seen, by account id. */
+	private final Map<Long, CurrencyPartition> placement = new ConcurrentHashMap<Long, CurrencyPartition>();
+
+	/**
+	 * Instantiates a new currency partitioned account DAO.
+	 *
+	 * @param catalog the catalog connection pool
+	 * @param partitions the partitions, one named DEFAULT
+	 */
+	public CurrencyPartitionedAccountDAOImpl(ConnectionPool catalog, Collection<CurrencyPartition> partitions) {
+		this.directory = new AccountCatalog(catalog);
+		this.partitions = new LinkedHashMap<String, CurrencyPartition>();
+		for (CurrencyPartition partition : partitions) {
+			this.partitions.put(partition.getName(), partition);
+		}
+		if (!this.partitions.containsKey(DEFAULT)) {
+			throw new IllegalArgumentException("No " + DEFAULT + " partition");
+		}
+	}
+
+	/**
+	 * Gets the partitions, DEFAULT included.
+	 *
+	 * @return the partitions
+	 */
+	public Collection<CurrencyPartition> getPartitions() {
+		return partitions.values();
+	}
+
+	/**
+	 * Gets the partition of a currency.
+	 *
+	 * @param currencyCode the currency code
+	 * @return the partition, DEFAULT for a currency without its own
+	 */
+	public CurrencyPartition partitionOf(String currencyCode) {
+		CurrencyPartition partition = currencyCode == null ? null : partitions.get(currencyCode);
+		return partition != null ? partition : partitions.get(DEFAULT);
+	}
+
+	/**
+	 * Gets the partition of an account.
+	 *
+	 * @param accountId the account id
+	 * @return the partition, null if there is no such account
+	 * @throws CustomException the custom exception
+	 */
+	CurrencyPartition partitionOfAccount(long accountId) throws CustomException {
+		CurrencyPartition partition = placement.get(accountId);
+		if (partition == null) {
+			String currencyCode = directory.getCurrencyCode(accountId);
+			if (currencyCode == null) {
+				return null;
+			}
+			partition = partitionOf(currencyCode);
+			placement.put(accountId, partition);
+		}
+		return partition;
+	}
+
+	/**
+	 * Get all accounts of all partitions, in account id order.
+	 *
+	 * @return the all accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAllAccounts() throws CustomException {
+		List<Account> allAccounts = new ArrayList<Account>();
+		for (CurrencyPartition partition : partitions.values()) {
+			allAccounts.addAll(partition.getAccountDAO().getAllAccounts());
+		}
+		allAccounts.sort(BY_ID);
+		return allAccounts;
+	}
+
+	/**
+	 * Get a page of accounts after the given account id: a page of each
+	 * partition, merged in account id order and cut to the limit.
+	 *
+	 * @param afterId the last account id of the previous page
+	 * @param limit the max number of accounts
+	 * @return the accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAccounts(long afterId, int limit) throws CustomException {
+		List<Account> accounts = new ArrayList<Account>();
+		for (CurrencyPartition partition : partitions.values()) {
+			accounts.addAll(partition.getAccountDAO().getAccounts(afterId, limit));
+		}
+		accounts.sort(BY_ID);
+		return accounts.size() > limit ? new ArrayList<Account>(accounts.subList(0, limit)) : accounts;
+	}
+
+	/**
+	 * Stream all accounts to the handler in account id order, one merged page
+	 * at a time.
+	 *
+	 * @param handler the row handler
+	 * @return the number of accounts streamed
+	 * @throws CustomException the custom exception
+	 * @throws IOException if the handler fails
+	 */
+	public long streamAllAccounts(RowHandler<Account> handler) throws CustomException, IOException {
+		long count = 0;
+		long afterId = 0;
+		List<Account> page;
+		do {
+			page = getAccounts(afterId, STREAM_PAGE_SIZE);
+			for (Account account : page) {
+				handler.handle(account);
+				afterId = account.getAccountId();
+				count++;
+			}
+		} while (page.size() == STREAM_PAGE_SIZE);
+		return count;
+	}
+
+	/**
+	 * Get account by id from its partition.
+	 *
+	 * @param accountId the account id
+	 * @return the account by id
+	 * @throws CustomException the custom exception
+	 */
+	public Account getAccountById(long accountId) throws CustomException {
+		CurrencyPartition partition = partitionOfAccount(accountId);
+		return partition == null ? null : partition.getAccountDAO().getAccountById(accountId);
+	}
+
+	/**
+	 * Create account: take an account id from the catalog, which also rejects
+	 * a second account of the same user and currency, then insert the
+	 * account in the partition of its currency.
+	 *
+	 * @param account the account
+	 * @return the account as stored, with its account id
+	 * @throws CustomException the custom exception
+	 */
+	public Account createAccount(Account account) throws CustomException {
+		long accountId = directory.insert(account);
+		Account created = new Account(accountId, account.getUserName(), account.getBalanceUnits(),
+				account.getCurrencyCode());
+		CurrencyPartition partition = partitionOf(account.getCurrencyCode());
+		try {
+			partition.getAccountDAO().insertAccount(accountId, created);
+		} catch (SQLException e) {
+			directory.delete(accountId);
+			throw new CustomException("createAccount(): Error creating user account " + account, e);
+		}
+		placement.put(accountId, partition);
+		return created;
+	}
+
+	/**
+	 * Import an account under its own account id, as the demo data has one
+	 * already.
+	 *
+	 * @param account the account, with its account id
+	 * @throws CustomException the custom exception
+	 */
+	public void importAccount(Account account) throws CustomException {
+		try {
+			directory.importAccount(account);
+			partitionOf(account.getCurrencyCode()).getAccountDAO().insertAccount(account.getAccountId(), account);
+		} catch (SQLException e) {
+			throw new CustomException("importAccount(): Error importing account " + account, e);
+		}
+	}
+
+	/**
+	 * Forget every cached account placement, when the data is reset.
+	 */
+	public void clearPlacement() {
+		placement.clear();
+	}
+
+	/**
+	 * Delete account by id from its partition, then from the catalog.
+	 *
+	 * @param accountId the account id
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int deleteAccountById(long accountId) throws CustomException {
+		CurrencyPartition partition = partitionOfAccount(accountId);
+		if (partition == null) {
+			return 0;
+		}
+		int deleted = partition.getAccountDAO().deleteAccountById(accountId);
+		directory.delete(accountId);
+		placement.remove(accountId);
+		return deleted;
+	}
+
+	/**
+	 * Update account balance in its partition.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the account after the update
+	 * @throws CustomException the custom exception
+	 */
+	public Account updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		CurrencyPartition partition = partitionOfAccount(accountId);
+		if (partition == null) {
+			throw new CustomException("updateAccountBalance(): fail to lock account : " + accountId);
+		}
+		return partition.getAccountDAO().updateAccountBalance(accountId, deltaAmount);
+	}
+
+	/**
+	 * Apply a delta to the account balance in its partition.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the new balance
+	 * @throws CustomException the custom exception
+	 */
+	public BigDecimal adjustAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		CurrencyPartition partition = partitionOfAccount(accountId);
+		if (partition == null) {
+			throw new CustomException("updateAccountBalance(): fail to lock account : " + accountId);
+		}
+		return partition.getAccountDAO().adjustAccountBalance(accountId, deltaAmount);
+	}
+
+	/**
+	 * Apply a batch of deposits and withdrawals: the adjustments of each
+	 * partition go to its database as one batch, those of missing accounts
+	 * are NOT_FOUND.
+	 *
+	 * @param adjustments the balance adjustments
+	 * @return the result of each adjustment, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	public List<BalanceResult> adjustAccountBalances(List<BalanceAdjustment> adjustments) throws CustomException {
+		return TransferBatches.runByGroup(adjustments, adjustment -> partitionOfAccount(adjustment.getAccountId()),
+				(partition, members) -> {
+					if (partition != null) {
+						return ((CurrencyPartition) partition).getAccountDAO().adjustAccountBalances(members);
+					}
+					List<BalanceResult> results = new ArrayList<BalanceResult>(members.size());
+					for (BalanceAdjustment adjustment : members) {
+						results.add(new BalanceResult(adjustment.getAccountId(), BalanceResult.Status.NOT_FOUND, null));
+					}
+					return results;
+				});
+	}
+
+	/**
+	 * Transfer balance between two accounts on the executor of the partition
+	 * of the transaction currency.
+	 *
+	 * @param userTransaction the user transaction
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction) throws CustomException {
+		return partitionOf(userTransaction.getCurrencyCode()).transfer(userTransaction);
+	}
+
+	/**
+	 * Transfer balance between two accounts. The idempotency keys are not
+	 * kept with these accounts, the record is left to the caller.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param record the response of the idempotency key, not written
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction, IdempotencyStore.Record record)
+			throws CustomException {
+		return transferAccountBalance(userTransaction);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#recordsIdempotency()
+	 */
+	public boolean recordsIdempotency() {
+		return false;
+	}
+
+	/**
+	 * Transfer balances for a batch of transactions: the transfers of each
+	 * currency go as one batch to the executor of its partition. An
+	 * all-or-nothing batch has to stay within one partition.
+	 *
+	 * @param transactions the user transactions
+	 * @param atomic true to commit all the transfers or none
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException if an all-or-nothing batch spans partitions, or a partition refuses it
+	 */
+	public List<TransferResult> transferAccountBalances(List<UserTransaction> transactions, boolean atomic)
+			throws CustomException {
+		if (atomic) {
+			for (UserTransaction userTransaction : transactions) {
+				if (partitionOf(userTransaction.getCurrencyCode()) != partitionOf(transactions.get(0).getCurrencyCode())) {
+					throw new CustomException(
+							"Fail to transfer batch, an all-or-nothing batch must stay within one currency partition");
+				}
+			}
+		}
+		return TransferBatches.transferByGroup(transactions,
+				userTransaction -> partitionOf(userTransaction.getCurrencyCode()),
+				(partition, members) -> ((CurrencyPartition) partition).transferBatch(members, atomic));
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.TransferDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Transfer history DAO of the currency partitioned engine. Both accounts of a
+ * transfer are in its currency's partition, and so is its history row.
+ */
+public class CurrencyPartitionedTransferDAOImpl implements TransferDAO {
+
+	/** The currency partitioned account DAO, owner of the account placement. */
+	private final CurrencyPartitionedAccountDAOImpl accountDAO;
+
+	/**
+	 * Instantiates a new currency partitioned transfer DAO.
+	 *
+	 * @param accountDAO the currency partitioned account DAO
+	 */
+	public CurrencyPartitionedTransferDAOImpl(CurrencyPartitionedAccountDAOImpl accountDAO) {
+		this.accountDAO = accountDAO;
+	}
+
+	/**
+	 * Get the transfers of an account from its partition, oldest first.
+	 *
+	 * @param accountId the account id
+	 * @return the transfers, empty if there is no such account
+	 * @throws CustomException the custom exception
+	 */
+	public List<Transfer> getTransfersByAccountId(long accountId) throws CustomException {
+		CurrencyPartition partition = accountDAO.partitionOfAccount(accountId);
+		if (partition == null) {
+			return new ArrayList<Transfer>();
+		}
+		return partition.getTransferDAO().getTransfersByAccountId(accountId);
+	}
+}
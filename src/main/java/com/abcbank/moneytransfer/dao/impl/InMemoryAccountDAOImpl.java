@@ -0,0 +1,331 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore.AccountRecord;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.JournalRecord;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.Money;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Account DAO of the in-memory engine. Reads never lock; balance changes lock
+ * the stripes of the accounts involved, or with the transfer pipeline started
+ * are handed to the shard owning the accounts.
+ */
+public class InMemoryAccountDAOImpl implements AccountDAO {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(InMemoryAccountDAOImpl.class);
+
+	/** The store. */
+	private final InMemoryStore store;
+
+	/**
+	 * Instantiates a new in memory account DAO.
+	 *
+	 * @param store the store
+	 */
+	public InMemoryAccountDAOImpl(InMemoryStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Get all accounts, in id order.
+	 *
+	 * @return the all accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAllAccounts() throws CustomException {
+		List<AccountRecord> records = store.accounts.values();
+		records.sort(Comparator.comparingLong(r -> r.accountId));
+		List<Account> allAccounts = new ArrayList<Account>(records.size());
+		for (AccountRecord record : records) {
+			allAccounts.add(record.toAccount());
+		}
+		return allAccounts;
+	}
+
+	/**
+	 * Get a page of accounts after the given account id.
+	 *
+	 * @param afterId the last account id of the previous page
+	 * @param limit the max number of accounts
+	 * @return the accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAccounts(long afterId, int limit) throws CustomException {
+		List<AccountRecord> records = store.accounts.values();
+		records.removeIf(r -> r.accountId <= afterId);
+		records.sort(Comparator.comparingLong(r -> r.accountId));
+		int size = Math.min(limit, records.size());
+		List<Account> accounts = new ArrayList<Account>(size);
+		for (int i = 0; i < size; i++) {
+			accounts.add(records.get(i).toAccount());
+		}
+		return accounts;
+	}
+
+	/**
+	 * Stream all accounts in id order. Only the record references are copied,
+	 * each account is built as it is handed over.
+	 *
+	 * @param handler the row handler
+	 * @return the number of accounts streamed
+	 * @throws CustomException the custom exception
+	 * @throws IOException if the handler fails
+	 */
+	public long streamAllAccounts(RowHandler<Account> handler) throws CustomException, IOException {
+		List<AccountRecord> records = store.accounts.values();
+		records.sort(Comparator.comparingLong(r -> r.accountId));
+		for (AccountRecord record : records) {
+			handler.handle(record.toAccount());
+		}
+		return records.size();
+	}
+
+	/**
+	 * Get account by id.
+	 *
+	 * @param accountId the account id
+	 * @return the account by id
+	 * @throws CustomException the custom exception
+	 */
+	public Account getAccountById(long accountId) throws CustomException {
+		AccountRecord record = store.accounts.get(accountId);
+		Account acc = record == null ? null : record.toAccount();
+		if (log.isDebugEnabled())
+			log.debug("Retrieve Account By Id: " + acc);
+		return acc;
+	}
+
+	/**
+	 * Create account.
+	 *
+	 * @param account the account
+	 * @return the account as stored, with its account id
+	 * @throws CustomException the custom exception
+	 */
+	public Account createAccount(Account account) throws CustomException {
+		// the code of the table, so the records of one currency share it
+		String currencyCode = CurrencyTable.codeOf(AccountDAOImpl.currencyIdOf(account));
+		String key = InMemoryStore.uniqueKey(account.getUserName(), currencyCode);
+		// reserve the unique key first so a rejected account does not use up an id
+		if (key != null && store.accountKeys.putIfAbsent(key, -1L) != null) {
+			log.error("Error Inserting Account  " + account);
+			throw new CustomException("createAccount(): Error creating user account " + account);
+		}
+		long accountId = store.accountSeq.incrementAndGet();
+		long balance = account.getBalanceUnits();
+		long journalSeq;
+		// under the stripe of the new id, so a snapshot has either the row and its record or neither
+		int stripe = store.lock(accountId);
+		try {
+			try {
+				journalSeq = store.appendJournal(JournalRecord.accountCreate(accountId, account.getUserName(), balance,
+						currencyCode));
+			} catch (CustomException e) {
+				if (key != null) {
+					store.accountKeys.remove(key, -1L);
+				}
+				throw e;
+			}
+			if (key != null) {
+				store.accountKeys.put(key, accountId);
+			}
+			store.accounts.putIfAbsent(accountId,
+					new AccountRecord(accountId, account.getUserName(), balance, currencyCode));
+		} finally {
+			store.unlock(stripe);
+		}
+		store.awaitJournal(journalSeq);
+		return new Account(accountId, account.getUserName(), balance, currencyCode);
+	}
+
+	/**
+	 * Delete account by id.
+	 *
+	 * @param accountId the account id
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int deleteAccountById(long accountId) throws CustomException {
+		TransferPipeline pipeline = store.getPipeline();
+		if (pipeline != null) {
+			return pipeline.delete(accountId);
+		}
+		long journalSeq;
+		int stripe = store.lock(accountId);
+		try {
+			journalSeq = store.applyDelete(accountId);
+		} finally {
+			store.unlock(stripe);
+		}
+		if (journalSeq < 0) {
+			return 0;
+		}
+		store.awaitJournal(journalSeq);
+		return 1;
+	}
+
+	/**
+	 * Update account balance.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the account after the update
+	 * @throws CustomException the custom exception
+	 */
+	public Account updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		// the record is read first, only its balance ever changes
+		AccountRecord record = store.accounts.get(accountId);
+		long balance = applyBalanceDelta(accountId, AccountDAOImpl.toUnits(deltaAmount));
+		return new Account(accountId, record.userName, balance, record.currencyCode);
+	}
+
+	/**
+	 * Apply a delta to the account balance.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the new balance
+	 * @throws CustomException the custom exception
+	 */
+	public BigDecimal adjustAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		return Money.toBigDecimal(applyBalanceDelta(accountId, AccountDAOImpl.toUnits(deltaAmount)));
+	}
+
+	/**
+	 * Apply a delta in units to the account balance under its stripe lock,
+	 * or by the pipeline shard owning the account.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount in units
+	 * @return the new balance in units
+	 * @throws CustomException the custom exception
+	 */
+	private long applyBalanceDelta(long accountId, long deltaAmount) throws CustomException {
+		TransferPipeline pipeline = store.getPipeline();
+		if (pipeline != null) {
+			return pipeline.adjust(accountId, deltaAmount);
+		}
+		long journalSeq;
+		long balance;
+		int stripe = store.lock(accountId);
+		try {
+			AccountRecord targetAccount = store.accounts.get(accountId);
+			journalSeq = store.applyBalanceDelta(targetAccount, accountId, deltaAmount);
+			balance = targetAccount.balance;
+		} finally {
+			store.unlock(stripe);
+		}
+		// wait for the disk outside the lock, other accounts on the stripe go ahead
+		store.awaitJournal(journalSeq);
+		return balance;
+	}
+
+	/**
+	 * Apply a batch of deposits and withdrawals, each on its own like
+	 * adjustAccountBalance. With no JDBC round trip to save, a bulk
+	 * adjustment is only the loop.
+	 *
+	 * @param adjustments the balance adjustments
+	 * @return the result of each adjustment, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	public List<BalanceResult> adjustAccountBalances(List<BalanceAdjustment> adjustments) throws CustomException {
+		return TransferBatches.adjustEach(this, adjustments);
+	}
+
+	/**
+	 * Transfer balance between two accounts. Both lock stripes are held for the
+	 * checks and the update, so no other writer can see one leg without the
+	 * other. With the pipeline enabled the transfer is applied by the shard
+	 * owning the accounts instead.
+	 *
+	 * @param userTransaction the user transaction
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction) throws CustomException {
+		TransferPipeline pipeline = store.getPipeline();
+		if (pipeline != null) {
+			pipeline.transfer(userTransaction);
+			return 2;
+		}
+		long journalSeq;
+		int[] locked = store.lock(userTransaction.getFromAccountId(), userTransaction.getToAccountId());
+		try {
+			journalSeq = store.applyTransfer(userTransaction);
+		} finally {
+			store.unlock(locked);
+		}
+		store.awaitJournal(journalSeq);
+		return 2;
+	}
+
+	/**
+	 * Transfer balance between two accounts. The idempotency keys are not
+	 * kept with these accounts, the record is left to the caller.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param record the response of the idempotency key, not written
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction, IdempotencyStore.Record record)
+			throws CustomException {
+		return transferAccountBalance(userTransaction);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#recordsIdempotency()
+	 */
+	public boolean recordsIdempotency() {
+		return false;
+	}
+
+	/**
+	 * Transfer balances for a batch of transactions. An independent batch runs
+	 * each transfer on its own, like transferAccountBalance; an all-or-nothing
+	 * batch holds every lock stripe, and pauses the pipeline, while it is
+	 * checked and applied.
+	 *
+	 * @param transactions the user transactions
+	 * @param atomic true to commit all the transfers or none
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	public List<TransferResult> transferAccountBalances(List<UserTransaction> transactions, boolean atomic)
+			throws CustomException {
+		if (atomic) {
+			return store.applyTransfers(transactions);
+		}
+		return TransferBatches.transferEach(this, transactions);
+	}
+}
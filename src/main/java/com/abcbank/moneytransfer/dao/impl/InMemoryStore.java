@@ -0,0 +1,772 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.AccountLockManager;
+import com.abcbank.moneytransfer.dao.TransferHistoryMode;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.journal.JournalRecord;
+import com.abcbank.moneytransfer.journal.Snapshot;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.Money;
+import com.abcbank.moneytransfer.model.Transfer;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.User;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The tables of the in-memory engine, shared by its DAOs.
+ * <p>
+ * Rows live in long-keyed maps with lock-free reads. Every change to an
+ * account balance or to the existence of an account is made while holding
+ * the account's lock stripe, so a transfer that holds both stripes sees and
+ * updates both accounts atomically. Ids come from sequences starting at 1,
+ * like the H2 identity columns, and the unique indexes of the H2 schema are
+ * kept as key sets.
+ * <p>
+ * With a journal, every change is appended under the same lock that guards
+ * it, before it is applied, so the journal order is the apply order. User
+ * changes hold the user lock and account changes their stripe; taking the
+ * user lock and then every stripe therefore stops all writers at one journal
+ * sequence number, which is how snapshot() gets a consistent cut.
+ * <p>
+ * Once startPipeline is called, balance changes and account deletes are
+ * applied by the pipeline shards instead, each the only writer of its
+ * accounts; taking every stripe then also pauses the pipeline.
+ */
+public final class InMemoryStore {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(InMemoryStore.class);
+
+	/** The accounts by id. */
+	final ConcurrentLongMap<AccountRecord> accounts;
+
+	/** The users by id. */
+	final ConcurrentLongMap<User> users;
+
+	/** The transfer history by id, written under the stripes of both accounts. */
+	final ConcurrentLongMap<Transfer> transfers;
+
+	/** The account ids by user name and currency, as idx_acc. */
+	final ConcurrentHashMap<String, Long> accountKeys = new ConcurrentHashMap<String, Long>();
+
+	/** The user ids by user name and email, as idx_ue. */
+	final ConcurrentHashMap<String, Long> userKeys = new ConcurrentHashMap<String, Long>();
+
+	/** The account id sequence. */
+	final AtomicLong accountSeq = new AtomicLong();
+
+	/** The user id sequence. */
+	final AtomicLong userSeq = new AtomicLong();
+
+	/** The transfer id sequence. */
+	final AtomicLong transferSeq = new AtomicLong();
+
+	/** The lock serialising user writes. */
+	final Object userLock = new Object();
+
+	/** The account lock stripes. */
+	private final AccountLockManager locks;
+
+	/** The journal, null when disabled. */
+	private final Journal journal;
+
+	/** Whether transfers are kept in the history. */
+	private final boolean keepHistory;
+
+	/** The single-writer transfer pipeline, null unless started. */
+	private volatile TransferPipeline pipeline;
+
+	/**
+	 * Instantiates a new in memory store without a journal.
+	 *
+	 * @param lockStripes the number of account lock stripes, rounded up to a power of two
+	 * @param initialCapacity the initial account capacity
+	 */
+	public InMemoryStore(int lockStripes, int initialCapacity) {
+		this(lockStripes, initialCapacity, null);
+	}
+
+	/**
+	 * Instantiates a new in memory store keeping the transfer history.
+	 *
+	 * @param lockStripes the number of account lock stripes, rounded up to a power of two
+	 * @param initialCapacity the initial account capacity
+	 * @param journal the journal, null to disable journaling
+	 */
+	public InMemoryStore(int lockStripes, int initialCapacity, Journal journal) {
+		this(lockStripes, initialCapacity, journal, TransferHistoryMode.SYNC);
+	}
+
+	/**
+	 * Instantiates a new in memory store. The history is recorded with the
+	 * transfer in both SYNC and ASYNC mode, as a map insert is no cost worth
+	 * moving off the transfer path.
+	 *
+	 * @param lockStripes the number of account lock stripes, rounded up to a power of two
+	 * @param initialCapacity the initial account capacity
+	 * @param journal the journal, null to disable journaling
+	 * @param historyMode the transfer history mode
+	 */
+	public InMemoryStore(int lockStripes, int initialCapacity, Journal journal, TransferHistoryMode historyMode) {
+		this.journal = journal;
+		this.keepHistory = historyMode != TransferHistoryMode.OFF;
+		this.locks = new AccountLockManager(lockStripes);
+		accounts = new ConcurrentLongMap<AccountRecord>(initialCapacity);
+		users = new ConcurrentLongMap<User>(Math.max(16, initialCapacity / 2));
+		transfers = new ConcurrentLongMap<Transfer>(initialCapacity);
+	}
+
+	/**
+	 * Remove all users and accounts and restart the id sequences.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	public void clear() throws CustomException {
+		long journalSeq;
+		// take every stripe so no transfer is half applied while the tables go
+		synchronized (userLock) {
+			lockAll();
+			try {
+				journalSeq = appendJournal(JournalRecord.reset());
+				reset();
+			} finally {
+				unlockAll();
+			}
+		}
+		awaitJournal(journalSeq);
+	}
+
+	/**
+	 * Copy every user and account at one journal sequence number. Writers are
+	 * stopped only for the copy, the caller writes it out afterwards.
+	 *
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		synchronized (userLock) {
+			lockAll();
+			try {
+				List<User> userRows = users.values();
+				List<AccountRecord> accountRows = accounts.values();
+				List<Account> accountCopies = new ArrayList<Account>(accountRows.size());
+				for (AccountRecord record : accountRows) {
+					accountCopies.add(record.toAccount());
+				}
+				long journalSeq = journal == null ? 0 : journal.getLastSeq();
+				return new Snapshot(journalSeq, userSeq.get(), accountSeq.get(), transferSeq.get(), userRows,
+						accountCopies, transfers.values());
+			} finally {
+				unlockAll();
+			}
+		}
+	}
+
+	/**
+	 * Replace the contents with a snapshot. Not journaled, used on startup
+	 * before any request is served.
+	 *
+	 * @param snapshot the snapshot
+	 */
+	public void restore(Snapshot snapshot) {
+		synchronized (userLock) {
+			lockAll();
+			try {
+				reset();
+				for (User u : snapshot.getUsers()) {
+					putUser(u);
+				}
+				for (Account a : snapshot.getAccounts()) {
+					putAccount(new AccountRecord(a.getAccountId(), a.getUserName(), a.getBalanceUnits(),
+							a.getCurrencyCode()));
+				}
+				for (Transfer t : snapshot.getTransfers()) {
+					transfers.putIfAbsent(t.getTransferId(), t);
+				}
+				userSeq.set(snapshot.getUserSeq());
+				accountSeq.set(snapshot.getAccountSeq());
+				transferSeq.set(snapshot.getTransferSeq());
+			} finally {
+				unlockAll();
+			}
+		}
+	}
+
+	/**
+	 * Apply a replayed journal record. Records carry the resulting values,
+	 * not deltas, so applying a record twice is harmless. Not journaled.
+	 *
+	 * @param record the record
+	 */
+	public void apply(JournalRecord record) {
+		switch (record.getType()) {
+		case JournalRecord.DEPOSIT:
+		case JournalRecord.WITHDRAWAL:
+			setBalance(record, record.getAccountId(), record.getBalanceUnits());
+			break;
+		case JournalRecord.TRANSFER:
+			setBalance(record, record.getAccountId(), record.getBalanceUnits());
+			setBalance(record, record.getCounterpartyId(), record.getCounterpartyBalanceUnits());
+			if (record.getTransferId() != 0 && keepHistory) {
+				Transfer transfer = new Transfer(record.getTransferId(), record.getAccountId(),
+						record.getCounterpartyId(), record.getAmountUnits(), record.getCurrencyCode(),
+						record.getTimestamp());
+				if (transfers.replace(transfer.getTransferId(), transfer) == null) {
+					transfers.putIfAbsent(transfer.getTransferId(), transfer);
+				}
+				transferSeq.accumulateAndGet(record.getTransferId(), Math::max);
+			}
+			break;
+		case JournalRecord.ACCOUNT_CREATE:
+			putAccount(new AccountRecord(record.getAccountId(), record.getUserName(), record.getBalanceUnits(),
+					record.getCurrencyCode()));
+			accountSeq.accumulateAndGet(record.getAccountId(), Math::max);
+			break;
+		case JournalRecord.ACCOUNT_DELETE:
+			AccountRecord account = accounts.remove(record.getAccountId());
+			if (account != null) {
+				removeKey(accountKeys, uniqueKey(account.userName, account.currencyCode), account.accountId);
+			}
+			break;
+		case JournalRecord.USER_CREATE:
+		case JournalRecord.USER_UPDATE:
+			putUser(new User(record.getUserId(), record.getUserName(), record.getEmailAddress()));
+			userSeq.accumulateAndGet(record.getUserId(), Math::max);
+			break;
+		case JournalRecord.USER_DELETE:
+			User user = users.remove(record.getUserId());
+			if (user != null) {
+				removeKey(userKeys, uniqueKey(user.getUserName(), user.getEmailAddress()), user.getUserId());
+			}
+			break;
+		case JournalRecord.RESET:
+			reset();
+			break;
+		case JournalRecord.ABORT:
+			// this store journals what it already applied, it never aborts
+			break;
+		default:
+			log.warn("apply(): ignoring journal record " + record);
+		}
+	}
+
+	/**
+	 * Gets the journal.
+	 *
+	 * @return the journal, null when disabled
+	 */
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Take the next transfer id. Caller holds the stripes of both accounts.
+	 *
+	 * @return the transfer id, 0 when no history is kept
+	 */
+	long nextTransferId() {
+		return keepHistory ? transferSeq.incrementAndGet() : 0;
+	}
+
+	/**
+	 * Add a transfer to the history. Caller holds the stripes of both
+	 * accounts.
+	 *
+	 * @param transfer the transfer, its id from nextTransferId
+	 */
+	void recordTransfer(Transfer transfer) {
+		if (transfer.getTransferId() != 0) {
+			transfers.putIfAbsent(transfer.getTransferId(), transfer);
+		}
+	}
+
+	/**
+	 * Start the single-writer transfer pipeline. From then on the account DAO
+	 * hands balance changes and deletes to it.
+	 *
+	 * @param shards the number of shards, rounded up to a power of two
+	 * @param ringSize the ring buffer slots per shard, rounded up to a power of two
+	 * @return the pipeline
+	 */
+	public synchronized TransferPipeline startPipeline(int shards, int ringSize) {
+		if (pipeline == null) {
+			pipeline = new TransferPipeline(this, shards, ringSize);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Gets the transfer pipeline.
+	 *
+	 * @return the pipeline, null unless started
+	 */
+	public TransferPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Check and apply a transfer. Caller holds the stripes of both accounts,
+	 * or is the pipeline shard owning them.
+	 *
+	 * @param userTransaction the user transaction
+	 * @return the journal sequence number, 0 when journaling is disabled
+	 * @throws CustomException if the transfer is not allowed
+	 */
+	long applyTransfer(UserTransaction userTransaction) throws CustomException {
+		long fromId = userTransaction.getFromAccountId();
+		long toId = userTransaction.getToAccountId();
+		AccountRecord fromAccount = accounts.get(fromId);
+		AccountRecord toAccount = accounts.get(toId);
+		// proceed with update
+		long fromAccountLeftOver = checkTransfer(userTransaction, fromAccount, toAccount, null);
+		long toAccountBalance = credit(toAccount.balance, userTransaction);
+		// the history entry is journaled with the balances, so replay restores it with the same id
+		long transferId = nextTransferId();
+		JournalRecord record = JournalRecord.transfer(fromId, toId, userTransaction.getAmountUnits(),
+				fromAccountLeftOver, toAccountBalance, transferId, userTransaction.getCurrencyCode());
+		long journalSeq = appendJournal(record);
+		fromAccount.balance = fromAccountLeftOver;
+		toAccount.balance = toAccountBalance;
+		recordTransfer(new Transfer(transferId, fromId, toId, userTransaction.getAmountUnits(),
+				userTransaction.getCurrencyCode(), record.getTimestamp()));
+		if (log.isDebugEnabled())
+			log.debug("transferAccountBalance done: " + userTransaction);
+		return journalSeq;
+	}
+
+	/**
+	 * Check and apply a batch of transfers, all or none. Every stripe is
+	 * locked, and the pipeline paused, for the whole batch: the transfers are
+	 * first checked in order against the balances they leave, then applied
+	 * only when none is rejected.
+	 *
+	 * @param transactions the user transactions
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	List<TransferResult> applyTransfers(List<UserTransaction> transactions) throws CustomException {
+		long journalSeq = 0;
+		lockAll();
+		try {
+			Map<Long, Long> pending = new HashMap<Long, Long>();
+			for (int i = 0; i < transactions.size(); i++) {
+				UserTransaction userTransaction = transactions.get(i);
+				AccountRecord fromAccount = accounts.get(userTransaction.getFromAccountId());
+				AccountRecord toAccount = accounts.get(userTransaction.getToAccountId());
+				long toAccountBalance;
+				try {
+					pending.put(fromAccount.accountId, checkTransfer(userTransaction, fromAccount, toAccount, pending));
+					toAccountBalance = credit(pending.getOrDefault(toAccount.accountId, toAccount.balance),
+							userTransaction);
+				} catch (CustomException e) {
+					return TransferBatches.aborted(transactions.size(), i, TransferResult.Status.REJECTED,
+							e.getMessage());
+				}
+				pending.put(toAccount.accountId, toAccountBalance);
+			}
+			for (UserTransaction userTransaction : transactions) {
+				journalSeq = applyTransfer(userTransaction);
+			}
+		} finally {
+			unlockAll();
+		}
+		awaitJournal(journalSeq);
+		List<TransferResult> results = new ArrayList<TransferResult>(transactions.size());
+		for (int i = 0; i < transactions.size(); i++) {
+			results.add(new TransferResult(i, TransferResult.Status.COMMITTED, null));
+		}
+		return results;
+	}
+
+	/**
+	 * Check the accounts are two existing accounts, the currencies match and
+	 * the source has enough fund.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param fromAccount the from account record, null if missing
+	 * @param toAccount the to account record, null if missing
+	 * @param pending the balances left by the earlier transfers of a batch, null for a single transfer
+	 * @return the source balance after the transfer
+	 * @throws CustomException if the transfer is not allowed
+	 */
+	private static long checkTransfer(UserTransaction userTransaction, AccountRecord fromAccount,
+			AccountRecord toAccount, Map<Long, Long> pending) throws CustomException {
+		// a transfer to the same account would read its record twice
+		if (userTransaction.getFromAccountId().equals(userTransaction.getToAccountId())) {
+			throw new CustomException("Fail to transfer Fund, the source and destination account are the same");
+		}
+
+		// check both accounts exist
+		if (fromAccount == null || toAccount == null) {
+			throw new CustomException("Fail to lock both accounts for write");
+		}
+
+		// check transaction currency
+		if (!fromAccount.currencyCode.equals(userTransaction.getCurrencyCode())) {
+			throw new CustomException(
+					"Fail to transfer Fund, transaction ccy are different from source/destination");
+		}
+
+		// check ccy is the same for both accounts
+		if (!fromAccount.currencyCode.equals(toAccount.currencyCode)) {
+			throw new CustomException(
+					"Fail to transfer Fund, the source and destination account are in different currency");
+		}
+
+		// check enough fund in source account
+		long fromBalance = pending == null ? fromAccount.balance
+				: pending.getOrDefault(fromAccount.accountId, fromAccount.balance);
+		long fromAccountLeftOver;
+		try {
+			fromAccountLeftOver = Money.subtract(fromBalance, userTransaction.getAmountUnits());
+		} catch (ArithmeticException e) {
+			throw new CustomException("Fail to transfer Fund, amount out of range");
+		}
+		if (fromAccountLeftOver < 0) {
+			throw new CustomException("Not enough Fund from source Account ");
+		}
+		return fromAccountLeftOver;
+	}
+
+	/**
+	 * Credit the amount of a transfer to a balance.
+	 *
+	 * @param balance the balance of the destination account
+	 * @param userTransaction the user transaction
+	 * @return the balance after the transfer
+	 * @throws CustomException if the balance would overflow
+	 */
+	private static long credit(long balance, UserTransaction userTransaction) throws CustomException {
+		try {
+			return Money.add(balance, userTransaction.getAmountUnits());
+		} catch (ArithmeticException e) {
+			throw new CustomException("Fail to transfer Fund, amount out of range");
+		}
+	}
+
+	/**
+	 * Check and apply a delta to an account balance. Caller holds the
+	 * account's stripe, or is the pipeline shard owning it.
+	 *
+	 * @param account the account record, null if missing
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount in units
+	 * @return the journal sequence number, 0 when journaling is disabled
+	 * @throws CustomException if the account is missing or the balance would go negative
+	 */
+	long applyBalanceDelta(AccountRecord account, long accountId, long deltaAmount) throws CustomException {
+		if (account == null) {
+			throw new CustomException("updateAccountBalance(): fail to lock account : " + accountId);
+		}
+		long balance;
+		try {
+			balance = Money.add(account.balance, deltaAmount);
+		} catch (ArithmeticException e) {
+			throw new CustomException("updateAccountBalance(): amount out of range for account : " + accountId);
+		}
+		if (balance < 0) {
+			throw new CustomException("Not sufficient Fund for account: " + accountId);
+		}
+		// log before apply, under the owner's exclusion so the journal order is the apply order
+		long journalSeq = appendJournal(JournalRecord.balanceUpdate(accountId, deltaAmount, balance));
+		account.balance = balance;
+		if (log.isDebugEnabled())
+			log.debug("New Balance after Update: " + Money.toString(balance));
+		return journalSeq;
+	}
+
+	/**
+	 * Delete an account. Caller holds the account's stripe, or is the
+	 * pipeline shard owning it.
+	 *
+	 * @param accountId the account id
+	 * @return the journal sequence number, 0 when journaling is disabled, -1 if the account is missing
+	 * @throws CustomException the custom exception
+	 */
+	long applyDelete(long accountId) throws CustomException {
+		AccountRecord record = accounts.get(accountId);
+		if (record == null) {
+			return -1;
+		}
+		long journalSeq = appendJournal(JournalRecord.accountDelete(accountId));
+		accounts.remove(accountId);
+		removeKey(accountKeys, uniqueKey(record.userName, record.currencyCode), accountId);
+		return journalSeq;
+	}
+
+	/**
+	 * Append a record to the journal, if enabled. Callers hold the lock that
+	 * guards the change.
+	 *
+	 * @param record the record
+	 * @return the journal sequence number, 0 when journaling is disabled
+	 * @throws CustomException the custom exception
+	 */
+	long appendJournal(JournalRecord record) throws CustomException {
+		if (journal == null) {
+			return 0;
+		}
+		try {
+			return journal.append(record);
+		} catch (IOException e) {
+			throw new CustomException("Fail to write journal record " + record, e);
+		}
+	}
+
+	/**
+	 * Wait until a journal record is durable. Callers release their locks
+	 * first, so other writers go ahead during the fsync.
+	 *
+	 * @param journalSeq the journal sequence number, 0 for none
+	 * @throws CustomException the custom exception
+	 */
+	void awaitJournal(long journalSeq) throws CustomException {
+		if (journal == null || journalSeq == 0) {
+			return;
+		}
+		try {
+			journal.awaitDurable(journalSeq);
+		} catch (IOException e) {
+			throw new CustomException("Fail to sync journal up to " + journalSeq, e);
+		}
+	}
+
+	/**
+	 * Empty the tables, history and sequences. Caller holds the user lock and all
+	 * stripes.
+	 */
+	private void reset() {
+		users.clear();
+		userKeys.clear();
+		userSeq.set(0);
+		accounts.clear();
+		accountKeys.clear();
+		accountSeq.set(0);
+		transfers.clear();
+		transferSeq.set(0);
+	}
+
+	/**
+	 * Insert or replace a user with its unique key.
+	 *
+	 * @param user the user
+	 */
+	private void putUser(User user) {
+		User previous = users.replace(user.getUserId(), user);
+		if (previous == null) {
+			users.putIfAbsent(user.getUserId(), user);
+		} else {
+			removeKey(userKeys, uniqueKey(previous.getUserName(), previous.getEmailAddress()), user.getUserId());
+		}
+		String key = uniqueKey(user.getUserName(), user.getEmailAddress());
+		if (key != null) {
+			userKeys.put(key, user.getUserId());
+		}
+	}
+
+	/**
+	 * Insert or replace an account with its unique key.
+	 *
+	 * @param record the record
+	 */
+	private void putAccount(AccountRecord record) {
+		AccountRecord previous = accounts.replace(record.accountId, record);
+		if (previous == null) {
+			accounts.putIfAbsent(record.accountId, record);
+		} else {
+			removeKey(accountKeys, uniqueKey(previous.userName, previous.currencyCode), record.accountId);
+		}
+		String key = uniqueKey(record.userName, record.currencyCode);
+		if (key != null) {
+			accountKeys.put(key, record.accountId);
+		}
+	}
+
+	/**
+	 * Set the balance of a replayed account.
+	 *
+	 * @param record the journal record
+	 * @param accountId the account id
+	 * @param balance the balance in units
+	 */
+	private void setBalance(JournalRecord record, long accountId, long balance) {
+		AccountRecord account = accounts.get(accountId);
+		if (account == null) {
+			log.warn("apply(): no account " + accountId + " for journal record " + record);
+			return;
+		}
+		account.balance = balance;
+	}
+
+	/**
+	 * Remove a unique key if it still maps to the id.
+	 *
+	 * @param keys the keys
+	 * @param key the key, may be null
+	 * @param id the id
+	 */
+	private static void removeKey(ConcurrentHashMap<String, Long> keys, String key, long id) {
+		if (key != null) {
+			keys.remove(key, id);
+		}
+	}
+
+	/**
+	 * Pause the pipeline, if started, and lock every stripe in index order.
+	 */
+	private void lockAll() {
+		TransferPipeline running = pipeline;
+		if (running != null) {
+			running.pause();
+		}
+		locks.lockAll();
+	}
+
+	/**
+	 * Unlock every stripe and resume the pipeline.
+	 */
+	private void unlockAll() {
+		locks.unlockAll();
+		TransferPipeline running = pipeline;
+		if (running != null) {
+			running.resume();
+		}
+	}
+
+	/**
+	 * Gets the number of lock stripes.
+	 *
+	 * @return the stripe count
+	 */
+	public int getLockStripes() {
+		return locks.getStripeCount();
+	}
+
+	/**
+	 * Gets the account lock manager.
+	 *
+	 * @return the lock manager
+	 */
+	public AccountLockManager getLockManager() {
+		return locks;
+	}
+
+	/**
+	 * Lock the stripe of one account.
+	 *
+	 * @param accountId the account id
+	 * @return the locked stripe index, to pass to unlock
+	 */
+	int lock(long accountId) {
+		return locks.lock(accountId);
+	}
+
+	/**
+	 * Lock the stripes of two accounts, lower stripe first so two transfers in
+	 * opposite directions cannot deadlock.
+	 *
+	 * @param firstId the first account id
+	 * @param secondId the second account id
+	 * @return the two locked stripe indexes, equal when both accounts share one
+	 */
+	int[] lock(long firstId, long secondId) {
+		return locks.lock(firstId, secondId);
+	}
+
+	/**
+	 * Unlock a stripe.
+	 *
+	 * @param stripe the stripe index
+	 */
+	void unlock(int stripe) {
+		locks.unlock(stripe);
+	}
+
+	/**
+	 * Unlock two stripes taken by lock(long, long).
+	 *
+	 * @param locked the locked stripes
+	 */
+	void unlock(int[] locked) {
+		locks.unlock(locked);
+	}
+
+	/**
+	 * Build a unique index key, null when a part is null as SQL NULLs never
+	 * collide.
+	 *
+	 * @param first the first part
+	 * @param second the second part
+	 * @return the key
+	 */
+	static String uniqueKey(String first, String second) {
+		if (first == null || second == null) {
+			return null;
+		}
+		return first + '\u0000' + second;
+	}
+
+	/**
+	 * An account row. Only the balance changes, always under the account's
+	 * lock stripe; readers take the volatile balance without locking.
+	 */
+	static final class AccountRecord {
+
+		/** The account id. */
+		final long accountId;
+
+		/** The user name. */
+		final String userName;
+
+		/** The currency code. */
+		final String currencyCode;
+
+		/** The balance in units of 10^-4, Money.NULL_UNITS when missing. */
+		volatile long balance;
+
+		/**
+		 * Instantiates a new account record.
+		 *
+		 * @param accountId the account id
+		 * @param userName the user name
+		 * @param balance the balance in units
+		 * @param currencyCode the currency code
+		 */
+		AccountRecord(long accountId, String userName, long balance, String currencyCode) {
+			this.accountId = accountId;
+			this.userName = userName;
+			this.balance = balance;
+			this.currencyCode = currencyCode;
+		}
+
+		/**
+		 * Snapshot the row as an account.
+		 *
+		 * @return the account
+		 */
+		Account toAccount() {
+			return new Account(accountId, userName, balance, currencyCode);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.TransferDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Transfer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Transfer history DAO of the in-memory engine. The history is not indexed by
+ * account, this scans it.
+ */
+public class InMemoryTransferDAOImpl implements TransferDAO {
+
+	/** The store. */
+	private final InMemoryStore store;
+
+	/**
+	 * Instantiates a new in memory transfer DAO.
+	 *
+	 * @param store the store
+	 */
+	public InMemoryTransferDAOImpl(InMemoryStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Get the transfers of an account, oldest first.
+	 *
+	 * @param accountId the account id
+	 * @return the transfers
+	 * @throws CustomException the custom exception
+	 */
+	public List<Transfer> getTransfersByAccountId(long accountId) throws CustomException {
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		for (Transfer t : store.transfers.values()) {
+			if (t.getFromAccountId() == accountId || t.getToAccountId() == accountId) {
+				transfers.add(t);
+			}
+		}
+		transfers.sort(Comparator.comparingLong(Transfer::getTransferId));
+		return transfers;
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.dao.UserDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.JournalRecord;
+import com.abcbank.moneytransfer.model.User;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * User DAO of the in-memory engine. Reads never lock; writes are serialised
+ * on the store's user lock, which also orders their journal records.
+ */
+public class InMemoryUserDAOImpl implements UserDAO {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(InMemoryUserDAOImpl.class);
+
+	/** The store. */
+	private final InMemoryStore store;
+
+	/**
+	 * Instantiates a new in memory user DAO.
+	 *
+	 * @param store the store
+	 */
+	public InMemoryUserDAOImpl(InMemoryStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Find all users, in id order.
+	 *
+	 * @return the all users
+	 * @throws CustomException the custom exception
+	 */
+	public List<User> getAllUsers() throws CustomException {
+		List<User> users = store.users.values();
+		users.sort(Comparator.comparingLong(User::getUserId));
+		return users;
+	}
+
+	/**
+	 * Find a page of users after the given user id.
+	 *
+	 * @param afterId the last user id of the previous page
+	 * @param limit the max number of users
+	 * @return the users
+	 * @throws CustomException the custom exception
+	 */
+	public List<User> getUsers(long afterId, int limit) throws CustomException {
+		List<User> users = store.users.values();
+		users.removeIf(u -> u.getUserId() <= afterId);
+		users.sort(Comparator.comparingLong(User::getUserId));
+		return users.size() > limit ? new ArrayList<User>(users.subList(0, limit)) : users;
+	}
+
+	/**
+	 * Stream all users in id order.
+	 *
+	 * @param handler the row handler
+	 * @return the number of users streamed
+	 * @throws CustomException the custom exception
+	 * @throws IOException if the handler fails
+	 */
+	public long streamAllUsers(RowHandler<User> handler) throws CustomException, IOException {
+		List<User> users = getAllUsers();
+		for (User u : users) {
+			handler.handle(u);
+		}
+		return users.size();
+	}
+
+	/**
+	 * Find user by userId.
+	 *
+	 * @param userId the user id
+	 * @return the user by id
+	 * @throws CustomException the custom exception
+	 */
+	public User getUserById(long userId) throws CustomException {
+		User u = store.users.get(userId);
+		if (log.isDebugEnabled())
+			log.debug("getUserById(): Retrieve User: " + u);
+		return u;
+	}
+
+	/**
+	 * Find user by userName. Names are not indexed, this scans the users.
+	 *
+	 * @param userName the user name
+	 * @return the user with the lowest id and that name
+	 * @throws CustomException the custom exception
+	 */
+	public User getUserByName(String userName) throws CustomException {
+		User found = null;
+		for (User u : store.users.values()) {
+			if (u.getUserName().equals(userName) && (found == null || u.getUserId() < found.getUserId())) {
+				found = u;
+			}
+		}
+		if (log.isDebugEnabled())
+			log.debug("Retrieve User: " + found);
+		return found;
+	}
+
+	/**
+	 * Save User.
+	 *
+	 * @param user the user
+	 * @return the user as stored, with its user id
+	 * @throws CustomException the custom exception
+	 */
+	public User insertUser(User user) throws CustomException {
+		String key = InMemoryStore.uniqueKey(user.getUserName(), user.getEmailAddress());
+		if (key == null) {
+			log.error("Error Inserting User :" + user);
+			throw new CustomException("Error creating user data");
+		}
+		User created;
+		long journalSeq;
+		synchronized (store.userLock) {
+			if (store.userKeys.containsKey(key)) {
+				log.error("Error Inserting User :" + user);
+				throw new CustomException("Error creating user data");
+			}
+			long userId = store.userSeq.get() + 1;
+			journalSeq = store.appendJournal(
+					JournalRecord.user(JournalRecord.USER_CREATE, userId, user.getUserName(), user.getEmailAddress()));
+			store.userSeq.set(userId);
+			store.userKeys.put(key, userId);
+			created = new User(userId, user.getUserName(), user.getEmailAddress());
+			store.users.putIfAbsent(userId, created);
+		}
+		store.awaitJournal(journalSeq);
+		return created;
+	}
+
+	/**
+	 * Update User.
+	 *
+	 * @param userId the user id
+	 * @param user the user
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int updateUser(Long userId, User user) throws CustomException {
+		String key = InMemoryStore.uniqueKey(user.getUserName(), user.getEmailAddress());
+		if (key == null) {
+			log.error("Error Updating User :" + user);
+			throw new CustomException("Error update user data");
+		}
+		long journalSeq;
+		synchronized (store.userLock) {
+			User existing = store.users.get(userId);
+			if (existing == null) {
+				return 0;
+			}
+			String oldKey = InMemoryStore.uniqueKey(existing.getUserName(), existing.getEmailAddress());
+			boolean keyChanged = !key.equals(oldKey);
+			if (keyChanged && store.userKeys.containsKey(key)) {
+				log.error("Error Updating User :" + user);
+				throw new CustomException("Error update user data");
+			}
+			journalSeq = store.appendJournal(
+					JournalRecord.user(JournalRecord.USER_UPDATE, userId, user.getUserName(), user.getEmailAddress()));
+			if (keyChanged) {
+				store.userKeys.put(key, userId);
+				store.userKeys.remove(oldKey, userId);
+			}
+			store.users.replace(userId, new User(userId, user.getUserName(), user.getEmailAddress()));
+		}
+		store.awaitJournal(journalSeq);
+		return 1;
+	}
+
+	/**
+	 * Delete User.
+	 *
+	 * @param userId the user id
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int deleteUser(long userId) throws CustomException {
+		long journalSeq;
+		synchronized (store.userLock) {
+			User existing = store.users.get(userId);
+			if (existing == null) {
+				return 0;
+			}
+			journalSeq = store.appendJournal(JournalRecord.userDelete(userId));
+			store.users.remove(userId);
+			store.userKeys.remove(InMemoryStore.uniqueKey(existing.getUserName(), existing.getEmailAddress()), userId);
+		}
+		store.awaitJournal(journalSeq);
+		return 1;
+	}
+
+}
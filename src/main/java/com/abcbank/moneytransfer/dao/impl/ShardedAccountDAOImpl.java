@@ -0,0 +1,1033 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.exception.RetriableException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+import org.h2.api.ErrorCode;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Account DAO of the sharded engine. Accounts are spread over independent H2
+ * databases, the shards, by a hash of the account id, and every read and
+ * write of an account goes to the AccountDAOImpl of its shard. A catalog
+ * database hands out the account ids, keeps (UserName, CurrencyId) unique
+ * across the shards and holds the coordinator log of cross shard transfers.
+ * <p>
+ * A transfer within one shard is a local transaction of that shard. A
+ * transfer across shards is a two phase commit: the coordinator logs it
+ * PREPARING, then each shard, lowest shard first so opposite transfers queue
+ * instead of deadlocking, applies its side and runs PREPARE COMMIT. The
+ * decision is logged COMMITTED, or ABORTED, before any shard commits, or
+ * rolls back, and DONE once all shards have. A shard transaction left
+ * prepared by a crash is resolved from the logged decision by recover(), one
+ * whose commit failed while running by the resolver, every
+ * RESOLVE_INTERVAL_MS.
+ */
+public class ShardedAccountDAOImpl implements AccountDAO {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(ShardedAccountDAOImpl.class);
+
+	/** The Constant SQL_LOG_TRANSFER. */
+	private final static String SQL_LOG_TRANSFER = "INSERT INTO ShardTransferLog (FromAccountId, ToAccountId, AmountUnits, CurrencyId, State, CreatedAt, UpdatedAt) "
+			+ "VALUES (?, ?, ?, ?, ?, CURRENT_TIMESTAMP(), CURRENT_TIMESTAMP())";
+
+	/** The Constant SQL_SET_TRANSFER_STATE. */
+	private final static String SQL_SET_TRANSFER_STATE = "UPDATE ShardTransferLog SET State = ?, UpdatedAt = CURRENT_TIMESTAMP() WHERE TxId = ?";
+
+	/** The Constant SQL_GET_TRANSFER_STATE. */
+	private final static String SQL_GET_TRANSFER_STATE = "SELECT State FROM ShardTransferLog WHERE TxId = ?";
+
+	/** The Constant SQL_RESOLVE_TRANSFER_STATE, moves every transfer in one state to another. */
+	private final static String SQL_RESOLVE_TRANSFER_STATE = "UPDATE ShardTransferLog SET State = ?, UpdatedAt = CURRENT_TIMESTAMP() WHERE State = ?";
+
+	/** The Constant SQL_IS_DECIDED_BEFORE, whether a transfer was logged COMMITTED, or DONE, before a time. */
+	private final static String SQL_IS_DECIDED_BEFORE = "SELECT COUNT(*) FROM ShardTransferLog WHERE TxId = ? AND State IN ('COMMITTED', 'DONE') AND UpdatedAt < ?";
+
+	/** The Constant SQL_GET_IN_DOUBT, the prepared transactions of a shard. */
+	private final static String SQL_GET_IN_DOUBT = "SELECT TRANSACTION FROM INFORMATION_SCHEMA.IN_DOUBT";
+
+	/** The Constant IN_DOUBT_NAME, TX_txId_shard, the name of a prepared shard transaction. */
+	private final static Pattern IN_DOUBT_NAME = Pattern.compile("TX_(\\d+)_(\\d+)");
+
+	/** The Constant PREPARING, logged before any shard is touched. */
+	private final static String PREPARING = "PREPARING";
+
+	/** The Constant COMMITTED, the decision to commit, logged once every shard is prepared. */
+	private final static String COMMITTED = "COMMITTED";
+
+	/** The Constant ABORTED, the decision to roll back. */
+	private final static String ABORTED = "ABORTED";
+
+	/** The Constant DONE, logged once every shard has committed. */
+	private final static String DONE = "DONE";
+
+	/** The Constant STREAM_PAGE_SIZE, accounts read from each shard per page when streaming. */
+	private final static int STREAM_PAGE_SIZE = Utils.getIntegerProperty("stream_fetch_size", 1000);
+
+	/** The Constant RESOLVE_INTERVAL_MS, between passes of the resolver, 0 to disable it. */
+	private final static int RESOLVE_INTERVAL_MS = Utils.getIntegerProperty("shard_resolve_interval_ms", 5000);
+
+	/** The Constant BY_ID. */
+	private final static Comparator<Account> BY_ID = Comparator.comparingLong(Account::getAccountId);
+
+	/** The catalog connection pool. */
+	private final ConnectionPool catalog;
+
+	/** The account directory in the catalog. */
+	private final AccountCatalog directory;
+
+	/** The account DAOs of the shards, by shard index. */
+	private final AccountDAOImpl[] shards;
+
+	/** The transfers within one shard. */
+	private final AtomicLong localTransfers = new AtomicLong();
+
+	/** The committed cross shard transfers. */
+	private final AtomicLong crossShardCommitted = new AtomicLong();
+
+	/** The aborted cross shard transfer attempts. */
+	private final AtomicLong crossShardAborted = new AtomicLong();
+
+	/** The cross shard transfers committed on some shards only, left to the resolver. */
+	private final AtomicLong crossShardInDoubt = new AtomicLong();
+
+	/** The cross shard transfer attempts retried after a lock failure. */
+	private final AtomicLong lockRetries = new AtomicLong();
+
+	/** The prepared shard transactions committed by recover() or the resolver. */
+	private final AtomicLong recoveredCommits = new AtomicLong();
+
+	/** The prepared shard transactions rolled back by recover(). */
+	private final AtomicLong recoveredRollbacks = new AtomicLong();
+
+	/**
+	 * The connections of the shard transactions whose commit failed after the
+	 * decision, by transaction name. Kept open until the resolver commits
+	 * them: closing the session would roll the prepared transaction back.
+	 */
+	private final ConcurrentMap<String, Connection> unresolved = new ConcurrentHashMap<String, Connection>();
+
+	/** The resolver, null when disabled. */
+	private final ScheduledExecutorService resolver;
+
+	/**
+	 * Instantiates a new sharded account DAO.
+	 *
+	 * @param catalog the catalog connection pool
+	 * @param shards the account DAOs of the shards, by shard index
+	 */
+	public ShardedAccountDAOImpl(ConnectionPool catalog, AccountDAOImpl[] shards) {
+		this.catalog = catalog;
+		this.directory = new AccountCatalog(catalog);
+		this.shards = shards.clone();
+		if (RESOLVE_INTERVAL_MS > 0) {
+			this.resolver = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "shard-resolver");
+				t.setDaemon(true);
+				return t;
+			});
+			resolver.scheduleWithFixedDelay(this::resolveInDoubt, RESOLVE_INTERVAL_MS, RESOLVE_INTERVAL_MS,
+					TimeUnit.MILLISECONDS);
+		} else {
+			this.resolver = null;
+		}
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the shard count
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Gets the shard owning an account. The placement depends on the shard
+	 * count only, which must never change for an existing set of databases.
+	 *
+	 * @param accountId the account id
+	 * @return the shard index
+	 */
+	public int shardOf(long accountId) {
+		// spread consecutive ids, then fold the high bits in
+		long h = accountId * 0x9E3779B97F4A7C15L;
+		return Math.floorMod((int) (h ^ (h >>> 32)), shards.length);
+	}
+
+	/**
+	 * Get all accounts of all shards, in account id order.
+	 *
+	 * @return the all accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAllAccounts() throws CustomException {
+		List<Account> allAccounts = new ArrayList<Account>();
+		for (AccountDAOImpl shard : shards) {
+			allAccounts.addAll(shard.getAllAccounts());
+		}
+		allAccounts.sort(BY_ID);
+		return allAccounts;
+	}
+
+	/**
+	 * Get a page of accounts after the given account id: a page of each
+	 * shard, merged in account id order and cut to the limit.
+	 *
+	 * @param afterId the last account id of the previous page
+	 * @param limit the max number of accounts
+	 * @return the accounts
+	 * @throws CustomException the custom exception
+	 */
+	public List<Account> getAccounts(long afterId, int limit) throws CustomException {
+		List<Account> accounts = new ArrayList<Account>();
+		for (AccountDAOImpl shard : shards) {
+			accounts.addAll(shard.getAccounts(afterId, limit));
+		}
+		accounts.sort(BY_ID);
+		return accounts.size() > limit ? new ArrayList<Account>(accounts.subList(0, limit)) : accounts;
+	}
+
+	/**
+	 * Stream all accounts to the handler in account id order, one merged page
+	 * at a time, so no more than a page per shard is held in memory.
+	 *
+	 * @param handler the row handler
+	 * @return the number of accounts streamed
+	 * @throws CustomException the custom exception
+	 * @throws IOException if the handler fails
+	 */
+	public long streamAllAccounts(RowHandler<Account> handler) throws CustomException, IOException {
+		long count = 0;
+		long afterId = 0;
+		List<Account> page;
+		do {
+			page = getAccounts(afterId, STREAM_PAGE_SIZE);
+			for (Account account : page) {
+				handler.handle(account);
+				afterId = account.getAccountId();
+				count++;
+			}
+		} while (page.size() == STREAM_PAGE_SIZE);
+		return count;
+	}
+
+	/**
+	 * Get account by id from its shard.
+	 *
+	 * @param accountId the account id
+	 * @return the account by id
+	 * @throws CustomException the custom exception
+	 */
+	public Account getAccountById(long accountId) throws CustomException {
+		return shards[shardOf(accountId)].getAccountById(accountId);
+	}
+
+	/**
+	 * Create account: take an account id from the catalog, which also rejects
+	 * a second account of the same user and currency on any shard, then
+	 * insert the account in the shard owning that id.
+	 *
+	 * @param account the account
+	 * @return the account as stored, with its account id
+	 * @throws CustomException the custom exception
+	 */
+	public Account createAccount(Account account) throws CustomException {
+		long accountId = directory.insert(account);
+		Account created = new Account(accountId, account.getUserName(), account.getBalanceUnits(),
+				account.getCurrencyCode());
+		try {
+			shards[shardOf(accountId)].insertAccount(accountId, created);
+		} catch (SQLException e) {
+			log.error("Error Inserting Account  " + account);
+			directory.delete(accountId);
+			throw new CustomException("createAccount(): Error creating user account " + account, e);
+		}
+		return created;
+	}
+
+	/**
+	 * Import an account under its own account id, as the demo data and data
+	 * moved from another engine have one already.
+	 *
+	 * @param account the account, with its account id
+	 * @throws CustomException the custom exception
+	 */
+	public void importAccount(Account account) throws CustomException {
+		try {
+			directory.importAccount(account);
+			shards[shardOf(account.getAccountId())].insertAccount(account.getAccountId(), account);
+		} catch (SQLException e) {
+			throw new CustomException("importAccount(): Error importing account " + account, e);
+		}
+	}
+
+	/**
+	 * Delete account by id from its shard, then from the catalog.
+	 *
+	 * @param accountId the account id
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int deleteAccountById(long accountId) throws CustomException {
+		int deleted = shards[shardOf(accountId)].deleteAccountById(accountId);
+		directory.delete(accountId);
+		return deleted;
+	}
+
+	/**
+	 * Update account balance in its shard.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the account after the update
+	 * @throws CustomException the custom exception
+	 */
+	public Account updateAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		return shards[shardOf(accountId)].updateAccountBalance(accountId, deltaAmount);
+	}
+
+	/**
+	 * Apply a delta to the account balance in its shard.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount
+	 * @return the new balance
+	 * @throws CustomException the custom exception
+	 */
+	public BigDecimal adjustAccountBalance(long accountId, BigDecimal deltaAmount) throws CustomException {
+		return shards[shardOf(accountId)].adjustAccountBalance(accountId, deltaAmount);
+	}
+
+	/**
+	 * Apply a batch of deposits and withdrawals: the adjustments of each shard
+	 * go to that shard as one batch.
+	 *
+	 * @param adjustments the balance adjustments
+	 * @return the result of each adjustment, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	public List<BalanceResult> adjustAccountBalances(List<BalanceAdjustment> adjustments) throws CustomException {
+		return TransferBatches.runByGroup(adjustments, adjustment -> shardOf(adjustment.getAccountId()),
+				(shard, members) -> shards[(Integer) shard].adjustAccountBalances(members));
+	}
+
+	/**
+	 * Transfer balances for a batch of transactions. The transfers within one
+	 * shard go to that shard as one batch, the transfers across shards run
+	 * one by one with two phase commit. An all-or-nothing batch has to stay
+	 * within one shard.
+	 *
+	 * @param transactions the user transactions
+	 * @param atomic true to commit all the transfers or none
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException if an all-or-nothing batch spans shards
+	 */
+	public List<TransferResult> transferAccountBalances(List<UserTransaction> transactions, boolean atomic)
+			throws CustomException {
+		TransferBatches.GroupOf<UserTransaction> groupOf = userTransaction -> {
+			int fromShard = shardOf(userTransaction.getFromAccountId());
+			return fromShard == shardOf(userTransaction.getToAccountId()) ? fromShard : -1;
+		};
+		if (atomic) {
+			for (UserTransaction userTransaction : transactions) {
+				Object group = groupOf.groupOf(userTransaction);
+				if (group.equals(-1) || !group.equals(groupOf.groupOf(transactions.get(0)))) {
+					throw new CustomException("Fail to transfer batch, an all-or-nothing batch must stay within one shard");
+				}
+			}
+		}
+		return TransferBatches.transferByGroup(transactions, groupOf, (group, members) -> {
+			int shard = (Integer) group;
+			if (shard < 0) {
+				return TransferBatches.transferEach(this, members);
+			}
+			localTransfers.addAndGet(members.size());
+			return shards[shard].transferAccountBalances(members, atomic);
+		});
+	}
+
+	/**
+	 * Transfer balance between two accounts: in one local transaction when
+	 * both are on the same shard, otherwise with a two phase commit, retried
+	 * after a lock failure until transfer_retry_deadline_ms have passed.
+	 *
+	 * @param userTransaction the user transaction
+	 * @return the int
+	 * @throws CustomException the custom exception, also when the retries run out
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction) throws CustomException {
+		int fromShard = shardOf(userTransaction.getFromAccountId());
+		int toShard = shardOf(userTransaction.getToAccountId());
+		if (fromShard == toShard) {
+			localTransfers.incrementAndGet();
+			return shards[fromShard].transferAccountBalance(userTransaction);
+		}
+		long deadline = System.currentTimeMillis() + AccountDAOImpl.TRANSFER_DEADLINE_MS;
+		int retries = 0;
+		while (true) {
+			try {
+				return crossShardTransfer(userTransaction, fromShard, toShard);
+			} catch (SQLException se) {
+				if (se instanceof SQLTimeoutException) {
+					throw new RetriableException("Fail to transfer Fund, no connection free: " + se.getMessage(), se);
+				}
+				if (!AccountDAOImpl.isLockFailure(se)) {
+					log.error("transferAccountBalance(): User Transaction Failed, rolled back: " + userTransaction, se);
+					return -1;
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					throw new RetriableException("Fail to transfer Fund, accounts still locked after "
+							+ AccountDAOImpl.TRANSFER_DEADLINE_MS + " ms: " + userTransaction, se);
+				}
+				lockRetries.incrementAndGet();
+				AccountDAOImpl.backoff(retries++, deadline);
+			}
+		}
+	}
+
+	/**
+	 * Transfer balance between two accounts. The idempotency keys are not
+	 * kept with these accounts, the record is left to the caller.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param record the response of the idempotency key, not written
+	 * @return the int
+	 * @throws CustomException the custom exception
+	 */
+	public int transferAccountBalance(UserTransaction userTransaction, IdempotencyStore.Record record)
+			throws CustomException {
+		return transferAccountBalance(userTransaction);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.abcbank.moneytransfer.dao.AccountDAO#recordsIdempotency()
+	 */
+	public boolean recordsIdempotency() {
+		return false;
+	}
+
+	/**
+	 * One two phase commit attempt of a transfer across two shards.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param fromShard the shard of the from account
+	 * @param toShard the shard of the to account
+	 * @return the rows updated, 2 as well when a shard failed to commit after
+	 *         the decision, leaving its side to the resolver
+	 * @throws CustomException if the transfer is not allowed, after the abort
+	 * @throws SQLException the SQL exception, after the abort
+	 */
+	private int crossShardTransfer(UserTransaction userTransaction, int fromShard, int toShard)
+			throws CustomException, SQLException {
+		long txId = logTransfer(userTransaction);
+		int[] order = fromShard < toShard ? new int[] { fromShard, toShard } : new int[] { toShard, fromShard };
+		Connection[] legs = new Connection[order.length];
+		boolean decided = false;
+		try {
+			// phase one: each shard locks, checks and writes its side, then promises to commit
+			for (int i = 0; i < order.length; i++) {
+				int shard = order[i];
+				legs[i] = shards[shard].getConnection();
+				legs[i].setAutoCommit(false);
+				shards[shard].applyTransferLeg(legs[i], userTransaction, shard == fromShard);
+				execute(legs[i], "PREPARE COMMIT " + transactionName(txId, shard));
+			}
+			// the decision: once logged, every shard commits, after a crash through recover()
+			setTransferState(txId, COMMITTED);
+			decided = true;
+		} finally {
+			if (!decided) {
+				abort(txId, legs);
+			}
+		}
+		// phase two
+		boolean inDoubt = false;
+		for (int i = 0; i < legs.length; i++) {
+			String name = transactionName(txId, order[i]);
+			try {
+				legs[i].commit();
+				DbUtils.closeQuietly(legs[i]);
+			} catch (SQLException se) {
+				log.error("transferAccountBalance(): commit of " + name + " failed, committing it from another connection", se);
+				// closing or reusing the session would roll the prepared transaction back
+				if (commitPrepared(order[i], name)) {
+					shards[order[i]].discardConnection(legs[i]);
+				} else {
+					inDoubt = true;
+					unresolved.put(name, legs[i]);
+				}
+			}
+		}
+		if (inDoubt) {
+			// the decision is logged, the transfer stands
+			crossShardInDoubt.incrementAndGet();
+			log.warn("transferAccountBalance(): transfer " + txId + " not committed on every shard yet, "
+					+ "left to the resolver: " + userTransaction);
+			return 2;
+		}
+		try {
+			setTransferState(txId, DONE);
+		} catch (SQLException se) {
+			// recovery moves it to DONE as well
+			log.warn("transferAccountBalance(): fail to log transfer " + txId + " done", se);
+		}
+		crossShardCommitted.incrementAndGet();
+		return 2;
+	}
+
+	/**
+	 * Log the decision to roll back and roll back every shard side started.
+	 *
+	 * @param txId the coordinator log id
+	 * @param legs the shard connections, null for the shards not reached
+	 */
+	private void abort(long txId, Connection[] legs) {
+		crossShardAborted.incrementAndGet();
+		try {
+			setTransferState(txId, ABORTED);
+		} catch (SQLException se) {
+			// still PREPARING, which recovery rolls back as well
+			log.warn("transferAccountBalance(): fail to log transfer " + txId + " aborted", se);
+		}
+		for (Connection leg : legs) {
+			if (leg == null) {
+				continue;
+			}
+			try {
+				leg.rollback();
+			} catch (SQLException se) {
+				log.error("transferAccountBalance(): fail to roll back transfer " + txId, se);
+			} finally {
+				DbUtils.closeQuietly(leg);
+			}
+		}
+	}
+
+	/**
+	 * Write a new transfer in the coordinator log, in state PREPARING.
+	 *
+	 * @param userTransaction the user transaction
+	 * @return the coordinator log id
+	 * @throws SQLException the SQL exception
+	 */
+	private long logTransfer(UserTransaction userTransaction) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet generatedKeys = null;
+		try {
+			conn = catalog.getConnection();
+			stmt = conn.prepareStatement(SQL_LOG_TRANSFER);
+			stmt.setLong(1, userTransaction.getFromAccountId());
+			stmt.setLong(2, userTransaction.getToAccountId());
+			stmt.setLong(3, userTransaction.getAmountUnits());
+			stmt.setInt(4, userTransaction.getCurrencyId());
+			stmt.setString(5, PREPARING);
+			stmt.executeUpdate();
+			generatedKeys = stmt.getGeneratedKeys();
+			if (!generatedKeys.next()) {
+				throw new SQLException("No transfer log id obtained");
+			}
+			return generatedKeys.getLong(1);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, generatedKeys);
+		}
+	}
+
+	/**
+	 * Set the state of a transfer in the coordinator log.
+	 *
+	 * @param txId the coordinator log id
+	 * @param state the state
+	 * @throws SQLException the SQL exception
+	 */
+	private void setTransferState(long txId, String state) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = catalog.getConnection();
+			stmt = conn.prepareStatement(SQL_SET_TRANSFER_STATE);
+			stmt.setString(1, state);
+			stmt.setLong(2, txId);
+			stmt.executeUpdate();
+		} finally {
+			DbUtils.closeQuietly(conn);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Resolve the shard transactions a crash left prepared: commit those
+	 * whose transfer was logged COMMITTED, roll back the others, then close
+	 * every open entry of the coordinator log. Only run on start, before any
+	 * transfer, as it takes every prepared transaction as abandoned.
+	 *
+	 * @return the number of shard transactions resolved
+	 * @throws CustomException the custom exception
+	 */
+	public synchronized int recover() throws CustomException {
+		int resolved = 0;
+		for (int shard = 0; shard < shards.length; shard++) {
+			Connection conn = null;
+			Statement stmt = null;
+			ResultSet rs = null;
+			try {
+				conn = shards[shard].getConnection();
+				stmt = conn.createStatement();
+				rs = stmt.executeQuery(SQL_GET_IN_DOUBT);
+				List<String> names = new ArrayList<String>();
+				while (rs.next()) {
+					names.add(rs.getString(1));
+				}
+				for (String name : names) {
+					Matcher matcher = IN_DOUBT_NAME.matcher(name);
+					if (!matcher.matches()) {
+						log.warn("recover(): unknown prepared transaction " + name + " left on shard " + shard);
+						continue;
+					}
+					String state = getTransferState(Long.parseLong(matcher.group(1)));
+					boolean commit = COMMITTED.equals(state) || DONE.equals(state);
+					stmt.execute((commit ? "COMMIT TRANSACTION " : "ROLLBACK TRANSACTION ") + name);
+					(commit ? recoveredCommits : recoveredRollbacks).incrementAndGet();
+					log.info("recover(): " + (commit ? "committed " : "rolled back ") + name + " on shard " + shard);
+					resolved++;
+				}
+			} catch (SQLException e) {
+				throw new CustomException("recover(): Error resolving prepared transactions of shard " + shard, e);
+			} finally {
+				DbUtils.closeQuietly(conn, stmt, rs);
+			}
+		}
+		try {
+			resolveTransferStates(COMMITTED, DONE);
+			resolveTransferStates(PREPARING, ABORTED);
+		} catch (SQLException e) {
+			throw new CustomException("recover(): Error closing the transfer log", e);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Commit the shard transactions left prepared after their transfer was
+	 * logged COMMITTED: those whose commit failed in this process, and any
+	 * other decided more than RESOLVE_INTERVAL_MS ago, so none holds its row
+	 * locks until the next start. Transfers left with no prepared side are
+	 * logged DONE. Unlike recover(), safe while transfers run.
+	 *
+	 * @return the number of shard transactions committed
+	 */
+	public synchronized int resolveInDoubt() {
+		int resolved = 0;
+		Timestamp decidedBefore = new Timestamp(System.currentTimeMillis() - RESOLVE_INTERVAL_MS);
+		// taken before the scan, a later one may not be listed yet
+		Set<String> parked = new HashSet<String>(unresolved.keySet());
+		Set<String> prepared = new HashSet<String>();
+		Set<Long> committed = new HashSet<Long>();
+		Set<Long> pending = new HashSet<Long>();
+		for (int shard = 0; shard < shards.length; shard++) {
+			List<String> names;
+			try {
+				names = getInDoubt(shard);
+			} catch (SQLException e) {
+				log.error("resolveInDoubt(): Error listing prepared transactions of shard " + shard, e);
+				for (String name : parked) {
+					Matcher matcher = IN_DOUBT_NAME.matcher(name);
+					if (matcher.matches() && Integer.parseInt(matcher.group(2)) == shard) {
+						prepared.add(name);
+						pending.add(Long.parseLong(matcher.group(1)));
+					}
+				}
+				continue;
+			}
+			for (String name : names) {
+				Matcher matcher = IN_DOUBT_NAME.matcher(name);
+				if (!matcher.matches()) {
+					continue;
+				}
+				prepared.add(name);
+				long txId = Long.parseLong(matcher.group(1));
+				try {
+					if (!parked.contains(name) && !isDecidedBefore(txId, decidedBefore)) {
+						// still running, or to be rolled back by recover()
+						continue;
+					}
+				} catch (SQLException e) {
+					log.error("resolveInDoubt(): Error reading the state of transfer " + txId, e);
+					pending.add(txId);
+					continue;
+				}
+				if (!commitPrepared(shard, name)) {
+					pending.add(txId);
+					continue;
+				}
+				Connection leg = unresolved.remove(name);
+				if (leg != null) {
+					shards[shard].discardConnection(leg);
+				}
+				recoveredCommits.incrementAndGet();
+				log.info("resolveInDoubt(): committed " + name + " on shard " + shard);
+				committed.add(txId);
+				resolved++;
+			}
+		}
+		for (String name : parked) {
+			if (!prepared.contains(name)) {
+				Matcher matcher = IN_DOUBT_NAME.matcher(name);
+				matcher.matches();
+				int shard = Integer.parseInt(matcher.group(2));
+				log.error("resolveInDoubt(): " + name + " is no longer prepared on shard " + shard
+						+ ", its session was lost before the commit");
+				shards[shard].discardConnection(unresolved.remove(name));
+			}
+		}
+		for (String name : unresolved.keySet()) {
+			Matcher matcher = IN_DOUBT_NAME.matcher(name);
+			if (matcher.matches()) {
+				pending.add(Long.parseLong(matcher.group(1)));
+			}
+		}
+		committed.removeAll(pending);
+		for (long txId : committed) {
+			try {
+				setTransferState(txId, DONE);
+			} catch (SQLException se) {
+				// recover() moves it to DONE as well
+				log.warn("resolveInDoubt(): fail to log transfer " + txId + " done", se);
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Commit a prepared shard transaction from a new connection of its shard.
+	 *
+	 * @param shard the shard
+	 * @param name the transaction name
+	 * @return true once committed, or if no longer prepared
+	 */
+	private boolean commitPrepared(int shard, String name) {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = shards[shard].getConnection();
+			stmt = conn.createStatement();
+			stmt.execute("COMMIT TRANSACTION " + name);
+			return true;
+		} catch (SQLException se) {
+			if (se.getErrorCode() == ErrorCode.TRANSACTION_NOT_FOUND_1) {
+				log.warn("commitPrepared(): " + name + " is no longer prepared on shard " + shard);
+				return true;
+			}
+			log.error("commitPrepared(): fail to commit " + name + " on shard " + shard, se);
+			return false;
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, null);
+		}
+	}
+
+	/**
+	 * Get the names of the prepared transactions of a shard.
+	 *
+	 * @param shard the shard
+	 * @return the transaction names
+	 * @throws SQLException the SQL exception
+	 */
+	private List<String> getInDoubt(int shard) throws SQLException {
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = shards[shard].getConnection();
+			stmt = conn.createStatement();
+			rs = stmt.executeQuery(SQL_GET_IN_DOUBT);
+			List<String> names = new ArrayList<String>();
+			while (rs.next()) {
+				names.add(rs.getString(1));
+			}
+			return names;
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Checks if a transfer was logged COMMITTED, or DONE, before a time.
+	 *
+	 * @param txId the coordinator log id
+	 * @param time the time
+	 * @return true, if decided before the time
+	 * @throws SQLException the SQL exception
+	 */
+	private boolean isDecidedBefore(long txId, Timestamp time) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = catalog.getConnection();
+			stmt = conn.prepareStatement(SQL_IS_DECIDED_BEFORE);
+			stmt.setLong(1, txId);
+			stmt.setTimestamp(2, time);
+			rs = stmt.executeQuery();
+			return rs.next() && rs.getInt(1) > 0;
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Get the state of a transfer in the coordinator log.
+	 *
+	 * @param txId the coordinator log id
+	 * @return the state, null if not logged
+	 * @throws SQLException the SQL exception
+	 */
+	private String getTransferState(long txId) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = catalog.getConnection();
+			stmt = conn.prepareStatement(SQL_GET_TRANSFER_STATE);
+			stmt.setLong(1, txId);
+			rs = stmt.executeQuery();
+			return rs.next() ? rs.getString(1) : null;
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Move every transfer of the coordinator log in one state to another.
+	 *
+	 * @param from the current state
+	 * @param to the new state
+	 * @throws SQLException the SQL exception
+	 */
+	private void resolveTransferStates(String from, String to) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = catalog.getConnection();
+			stmt = conn.prepareStatement(SQL_RESOLVE_TRANSFER_STATE);
+			stmt.setString(1, to);
+			stmt.setString(2, from);
+			int updated = stmt.executeUpdate();
+			if (updated > 0)
+				log.info("recover(): " + updated + " logged transfer(s) moved from " + from + " to " + to);
+		} finally {
+			DbUtils.closeQuietly(conn);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Gets the name of the shard transaction of a cross shard transfer.
+	 *
+	 * @param txId the coordinator log id
+	 * @param shard the shard index
+	 * @return the transaction name
+	 */
+	private static String transactionName(long txId, int shard) {
+		return "TX_" + txId + "_" + shard;
+	}
+
+	/**
+	 * Run a statement without parameters.
+	 *
+	 * @param conn the connection
+	 * @param sql the statement
+	 * @throws SQLException the SQL exception
+	 */
+	private static void execute(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute(sql);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Gets the routing and two phase commit statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * A snapshot of the routing and two phase commit statistics.
+	 */
+	public static final class Stats {
+
+		/** The shard count. */
+		private final int shards;
+
+		/** The transfers within one shard. */
+		private final long localTransfers;
+
+		/** The committed cross shard transfers. */
+		private final long crossShardCommitted;
+
+		/** The aborted cross shard transfer attempts. */
+		private final long crossShardAborted;
+
+		/** The cross shard transfers left for recovery after a failed commit. */
+		private final long crossShardInDoubt;
+
+		/** The cross shard transfer attempts retried after a lock failure. */
+		private final long lockRetries;
+
+		/** The prepared shard transactions committed on recovery. */
+		private final long recoveredCommits;
+
+		/** The prepared shard transactions rolled back on recovery. */
+		private final long recoveredRollbacks;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param dao the sharded account DAO
+		 */
+		private Stats(ShardedAccountDAOImpl dao) {
+			this.shards = dao.shards.length;
+			this.localTransfers = dao.localTransfers.get();
+			this.crossShardCommitted = dao.crossShardCommitted.get();
+			this.crossShardAborted = dao.crossShardAborted.get();
+			this.crossShardInDoubt = dao.crossShardInDoubt.get();
+			this.lockRetries = dao.lockRetries.get();
+			this.recoveredCommits = dao.recoveredCommits.get();
+			this.recoveredRollbacks = dao.recoveredRollbacks.get();
+		}
+
+		/**
+		 * Gets the shard count.
+		 *
+		 * @return the shards
+		 */
+		public int getShards() {
+			return shards;
+		}
+
+		/**
+		 * Gets the transfers within one shard.
+		 *
+		 * @return the local transfers
+		 */
+		public long getLocalTransfers() {
+			return localTransfers;
+		}
+
+		/**
+		 * Gets the committed cross shard transfers.
+		 *
+		 * @return the cross shard committed
+		 */
+		public long getCrossShardCommitted() {
+			return crossShardCommitted;
+		}
+
+		/**
+		 * Gets the aborted cross shard transfer attempts, rejected or failed.
+		 *
+		 * @return the cross shard aborted
+		 */
+		public long getCrossShardAborted() {
+			return crossShardAborted;
+		}
+
+		/**
+		 * Gets the cross shard transfers left for recovery after a failed commit.
+		 *
+		 * @return the cross shard in doubt
+		 */
+		public long getCrossShardInDoubt() {
+			return crossShardInDoubt;
+		}
+
+		/**
+		 * Gets the cross shard transfer attempts retried after a lock failure.
+		 *
+		 * @return the lock retries
+		 */
+		public long getLockRetries() {
+			return lockRetries;
+		}
+
+		/**
+		 * Gets the prepared shard transactions committed on recovery.
+		 *
+		 * @return the recovered commits
+		 */
+		public long getRecoveredCommits() {
+			return recoveredCommits;
+		}
+
+		/**
+		 * Gets the prepared shard transactions rolled back on recovery.
+		 *
+		 * @return the recovered rollbacks
+		 */
+		public long getRecoveredRollbacks() {
+			return recoveredRollbacks;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Stats [shards=" + shards + ", localTransfers=" + localTransfers + ", crossShardCommitted="
+					+ crossShardCommitted + ", crossShardAborted=" + crossShardAborted + ", crossShardInDoubt=" + crossShardInDoubt + ", lockRetries="
+					+ lockRetries + ", recoveredCommits=" + recoveredCommits + ", recoveredRollbacks="
+					+ recoveredRollbacks + "]";
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.TransferDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Transfer;
+
+import java.util.List;
+
+
+/**
+ * Transfer history DAO of the sharded engine. A cross shard transfer writes
+ * its history row on both shards, so the shard owning an account holds its
+ * whole history.
+ */
+public class ShardedTransferDAOImpl implements TransferDAO {
+
+	/** The sharded account DAO, owner of the account placement. */
+	private final ShardedAccountDAOImpl accountDAO;
+
+	/** The transfer DAOs of the shards, by shard index. */
+	private final TransferDAOImpl[] shards;
+
+	/**
+	 * Instantiates a new sharded transfer DAO.
+	 *
+	 * @param accountDAO the sharded account DAO
+	 * @param shards the transfer DAOs of the shards, by shard index
+	 */
+	public ShardedTransferDAOImpl(ShardedAccountDAOImpl accountDAO, TransferDAOImpl[] shards) {
+		this.accountDAO = accountDAO;
+		this.shards = shards.clone();
+	}
+
+	/**
+	 * Get the transfers of an account from its shard, oldest first.
+	 *
+	 * @param accountId the account id
+	 * @return the transfers
+	 * @throws CustomException the custom exception
+	 */
+	public List<Transfer> getTransfersByAccountId(long accountId) throws CustomException {
+		return shards[accountDAO.shardOf(accountId)].getTransfersByAccountId(accountId);
+	}
+}
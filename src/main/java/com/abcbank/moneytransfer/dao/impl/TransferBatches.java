@@ -0,0 +1,213 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Helpers of the batch transfers and balance adjustments shared by the
+ * account DAOs.
+ */
+final class TransferBatches {
+
+	/**
+	 * The group of a batch item, items of one group being run together.
+	 *
+	 * @param <T> the item type
+	 */
+	@FunctionalInterface
+	interface GroupOf<T> {
+
+		/**
+		 * Gets the group of an item.
+		 *
+		 * @param item the item
+		 * @return the group key, may be null
+		 * @throws CustomException the custom exception
+		 */
+		Object groupOf(T item) throws CustomException;
+	}
+
+	/**
+	 * Runs the items of one group.
+	 *
+	 * @param <T> the item type
+	 * @param <R> the result type
+	 */
+	@FunctionalInterface
+	interface GroupRunner<T, R> {
+
+		/**
+		 * Run the items of one group, in order.
+		 *
+		 * @param group the group key
+		 * @param items the items of the group
+		 * @return their results, in the same order
+		 * @throws CustomException the custom exception
+		 */
+		List<R> run(Object group, List<T> items) throws CustomException;
+	}
+
+	/**
+	 * Instantiates nothing.
+	 */
+	private TransferBatches() {
+	}
+
+	/**
+	 * Transfer each transaction on its own, in order, whatever happens to the
+	 * others.
+	 *
+	 * @param accountDAO the account DAO
+	 * @param transactions the user transactions
+	 * @return the result of each transaction, in batch order
+	 */
+	static List<TransferResult> transferEach(AccountDAO accountDAO, List<UserTransaction> transactions) {
+		List<TransferResult> results = new ArrayList<TransferResult>(transactions.size());
+		for (int i = 0; i < transactions.size(); i++) {
+			try {
+				results.add(accountDAO.transferAccountBalance(transactions.get(i)) == 2
+						? new TransferResult(i, TransferResult.Status.COMMITTED, null)
+						: new TransferResult(i, TransferResult.Status.FAILED, "Transaction failed"));
+			} catch (CustomException e) {
+				results.add(new TransferResult(i, TransferResult.Status.REJECTED, e.getMessage()));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Apply each balance adjustment on its own, in order, whatever happens to
+	 * the others.
+	 *
+	 * @param accountDAO the account DAO
+	 * @param adjustments the balance adjustments
+	 * @return the result of each adjustment, in batch order
+	 */
+	static List<BalanceResult> adjustEach(AccountDAO accountDAO, List<BalanceAdjustment> adjustments) {
+		List<BalanceResult> results = new ArrayList<BalanceResult>(adjustments.size());
+		for (BalanceAdjustment adjustment : adjustments) {
+			long accountId = adjustment.getAccountId();
+			try {
+				results.add(new BalanceResult(accountId, BalanceResult.Status.APPLIED,
+						accountDAO.adjustAccountBalance(accountId, adjustment.getDeltaAmount())));
+			} catch (CustomException e) {
+				results.add(new BalanceResult(accountId, failure(accountDAO, adjustment), null));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Tell why a balance adjustment failed.
+	 *
+	 * @param accountDAO the account DAO
+	 * @param adjustment the balance adjustment
+	 * @return NOT_FOUND, NOT_ENOUGH_FUND or, for another reason, FAILED
+	 */
+	private static BalanceResult.Status failure(AccountDAO accountDAO, BalanceAdjustment adjustment) {
+		try {
+			Account account = accountDAO.getAccountById(adjustment.getAccountId());
+			if (account == null) {
+				return BalanceResult.Status.NOT_FOUND;
+			}
+			return account.getBalance().add(adjustment.getDeltaAmount()).signum() < 0
+					? BalanceResult.Status.NOT_ENOUGH_FUND : BalanceResult.Status.FAILED;
+		} catch (CustomException e) {
+			return BalanceResult.Status.FAILED;
+		}
+	}
+
+	/**
+	 * Split a batch of transfers in groups, run each group apart and put the
+	 * results back in batch order.
+	 *
+	 * @param transactions the user transactions
+	 * @param groupOf the group of a transfer
+	 * @param runner runs the transfers of one group, with results indexed within the group
+	 * @return the result of each transaction, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	static List<TransferResult> transferByGroup(List<UserTransaction> transactions, GroupOf<UserTransaction> groupOf,
+			GroupRunner<UserTransaction, TransferResult> runner) throws CustomException {
+		List<TransferResult> results = runByGroup(transactions, groupOf, runner);
+		for (int i = 0; i < results.size(); i++) {
+			TransferResult result = results.get(i);
+			results.set(i, new TransferResult(i, result.getStatus(), result.getMessage()));
+		}
+		return results;
+	}
+
+	/**
+	 * Split a batch in groups, run each group apart and put the results back
+	 * in batch order.
+	 *
+	 * @param <T> the item type
+	 * @param <R> the result type
+	 * @param items the items
+	 * @param groupOf the group of an item
+	 * @param runner runs the items of one group
+	 * @return the result of each item, in batch order
+	 * @throws CustomException the custom exception
+	 */
+	static <T, R> List<R> runByGroup(List<T> items, GroupOf<T> groupOf, GroupRunner<T, R> runner)
+			throws CustomException {
+		Map<Object, List<Integer>> groups = new LinkedHashMap<Object, List<Integer>>();
+		for (int i = 0; i < items.size(); i++) {
+			groups.computeIfAbsent(groupOf.groupOf(items.get(i)), g -> new ArrayList<Integer>()).add(i);
+		}
+		List<R> results = new ArrayList<R>(Collections.<R>nCopies(items.size(), null));
+		for (Map.Entry<Object, List<Integer>> group : groups.entrySet()) {
+			List<Integer> indexes = group.getValue();
+			List<T> members = new ArrayList<T>(indexes.size());
+			for (int index : indexes) {
+				members.add(items.get(index));
+			}
+			List<R> groupResults = runner.run(group.getKey(), members);
+			for (int i = 0; i < indexes.size(); i++) {
+				results.set(indexes.get(i), groupResults.get(i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Build the results of an all-or-nothing batch rolled back because of
+	 * one transfer: that one with its own status, every other one ABORTED.
+	 *
+	 * @param size the batch size
+	 * @param index the index of the transfer that stopped the batch
+	 * @param status its status
+	 * @param message its reason
+	 * @return the results, in batch order
+	 */
+	static List<TransferResult> aborted(int size, int index, TransferResult.Status status, String message) {
+		List<TransferResult> results = new ArrayList<TransferResult>(size);
+		for (int i = 0; i < size; i++) {
+			results.add(i == index ? new TransferResult(i, status, message)
+					: new TransferResult(i, TransferResult.Status.ABORTED, "Batch rolled back, see transfer " + index));
+		}
+		return results;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.TransferDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.Transfer;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The Class TransferDAOImpl, the H2 transfer history.
+ */
+public class TransferDAOImpl implements TransferDAO {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(TransferDAOImpl.class);
+
+	/** The Constant SQL_INSERT_TRANSFER. */
+	static final String SQL_INSERT_TRANSFER = "INSERT INTO Transfer (FromAccountId, ToAccountId, AmountUnits, CurrencyId, CreatedAt) VALUES (?, ?, ?, ?, ?)";
+
+	/** The Constant SQL_GET_TRANSFERS_BY_ACC. */
+	private final static String SQL_GET_TRANSFERS_BY_ACC = "SELECT * FROM Transfer WHERE FromAccountId = ? OR ToAccountId = ? ORDER BY TransferId";
+
+	/** The connection pool, null for the pool of the H2 engine. */
+	private final ConnectionPool pool;
+
+	/**
+	 * Instantiates a new transfer DAO on the database of the H2 engine.
+	 */
+	public TransferDAOImpl() {
+		this(null);
+	}
+
+	/**
+	 * Instantiates a new transfer DAO on another database.
+	 *
+	 * @param pool the connection pool, null for the pool of the H2 engine
+	 */
+	public TransferDAOImpl(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Get the transfers of an account, oldest first.
+	 *
+	 * @param accountId the account id
+	 * @return the transfers
+	 * @throws CustomException the custom exception
+	 */
+	public List<Transfer> getTransfersByAccountId(long accountId) throws CustomException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		try {
+			conn = getConnection();
+			stmt = conn.prepareStatement(SQL_GET_TRANSFERS_BY_ACC);
+			stmt.setLong(1, accountId);
+			stmt.setLong(2, accountId);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				transfers.add(new Transfer(rs.getLong("TransferId"), rs.getLong("FromAccountId"),
+						rs.getLong("ToAccountId"), rs.getLong("AmountUnits"), CurrencyTable.codeOf(rs.getInt("CurrencyId")),
+						rs.getTimestamp("CreatedAt").getTime()));
+			}
+			if (log.isDebugEnabled())
+				log.debug("getTransfersByAccountId(): " + transfers.size() + " transfers for account " + accountId);
+			return transfers;
+		} catch (SQLException e) {
+			throw new CustomException("getTransfersByAccountId(): Error reading transfer history", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Gets a pooled connection of this DAO's database.
+	 *
+	 * @return the connection
+	 * @throws SQLException the SQL exception
+	 */
+	private Connection getConnection() throws SQLException {
+		return pool == null ? H2DAOFactory.getConnection() : pool.getConnection();
+	}
+
+	/**
+	 * Bind a transfer to the parameters of SQL_INSERT_TRANSFER.
+	 *
+	 * @param stmt the insert statement
+	 * @param transfer the transfer
+	 * @throws SQLException the SQL exception
+	 */
+	static void bindInsert(PreparedStatement stmt, Transfer transfer) throws SQLException {
+		stmt.setLong(1, transfer.getFromAccountId());
+		stmt.setLong(2, transfer.getToAccountId());
+		stmt.setLong(3, transfer.getAmountUnits());
+		stmt.setInt(4, CurrencyTable.idOf(transfer.getCurrencyCode()));
+		stmt.setTimestamp(5, new Timestamp(transfer.getCreatedAt()));
+	}
+
+}
@@ -0,0 +1,497 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Group commit of H2 transfers.
+ * <p>
+ * Callers queue their transfer and wait on a future. A single committer
+ * thread takes up to maxBatch queued transfers, or what arrives within the
+ * wait window after the first one, and applies them in one JDBC transaction
+ * with one commit. Each transfer runs behind its own savepoint, so a
+ * rejected transfer (missing account, not enough fund) is rolled back alone
+ * and the rest of the batch still commits. A transfer failing on a row lock,
+ * and every transfer of a batch whose commit fails, is handed back to its
+ * caller to run in its own transaction; the journal records of a failed
+ * batch are aborted first, so a transfer run again is journaled once.
+ */
+public class TransferGroupCommitter implements Closeable {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(TransferGroupCommitter.class);
+
+	/** The Constant RUN_ALONE, the result telling the caller to run the transfer itself. */
+	static final int RUN_ALONE = -3;
+
+	/** The queue of transfers to apply. */
+	private final BlockingQueue<Pending> queue;
+
+	/** The max transfers per transaction. */
+	private final int maxBatch;
+
+	/** The max wait for more transfers after the first of a batch, in nanos. */
+	private final long waitNanos;
+
+	/** The committer thread. */
+	private final Thread committer;
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/** The transfers committed. */
+	private final AtomicLong committed = new AtomicLong();
+
+	/** The transfers rejected and rolled back to their savepoint. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** The transfers handed back to their caller. */
+	private final AtomicLong ranAlone = new AtomicLong();
+
+	/** The batches committed. */
+	private final AtomicLong batches = new AtomicLong();
+
+	/** The transfers in committed batches, rejected and handed back ones included. */
+	private final AtomicLong batched = new AtomicLong();
+
+	/** The batch commits that failed. */
+	private final AtomicLong failedBatches = new AtomicLong();
+
+	/** The largest batch. */
+	private final AtomicLong maxBatchSeen = new AtomicLong();
+
+	/** The batch size histogram, bucket i counts batches of 2^i to 2^(i+1) - 1 transfers. */
+	private final AtomicLongArray histogram;
+
+	/**
+	 * Instantiates a new group committer and starts its thread.
+	 *
+	 * @param maxBatch the max transfers per transaction
+	 * @param waitMicros the max wait in micros for more transfers after the first of a batch
+	 */
+	public TransferGroupCommitter(int maxBatch, long waitMicros) {
+		this.maxBatch = Math.max(1, maxBatch);
+		this.waitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, waitMicros));
+		this.queue = new ArrayBlockingQueue<Pending>(this.maxBatch * 16);
+		this.histogram = new AtomicLongArray(bucketOf(this.maxBatch) + 1);
+		this.committer = new Thread(this::run, "transfer-group-committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Create the committer from the transfer_group_commit_* properties, closed
+	 * on shutdown after applying what is queued.
+	 *
+	 * @return the committer
+	 */
+	public static TransferGroupCommitter fromProperties() {
+		TransferGroupCommitter committer = new TransferGroupCommitter(
+				Utils.getIntegerProperty("transfer_group_commit_max_batch", 64),
+				Utils.getIntegerProperty("transfer_group_commit_wait_micros", 500));
+		Runtime.getRuntime().addShutdownHook(new Thread(committer::close, "transfer-group-commit-shutdown"));
+		return committer;
+	}
+
+	/**
+	 * Queue a transfer and wait for the batch holding it to commit.
+	 *
+	 * @param userTransaction the user transaction
+	 * @param postCommit receives what is left to do after the commit
+	 * @param applier the account DAO applying the transfer
+	 * @return the rows updated, RUN_ALONE when the caller has to run the transfer itself
+	 * @throws CustomException if the transfer is rejected or the wait interrupted
+	 */
+	int submit(UserTransaction userTransaction, AccountDAOImpl.PostCommit postCommit, AccountDAOImpl applier)
+			throws CustomException {
+		if (closed) {
+			return RUN_ALONE;
+		}
+		Pending pending = new Pending(userTransaction, postCommit, applier);
+		try {
+			queue.put(pending);
+			while (true) {
+				try {
+					return pending.result.get(100, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// queued just as the committer stopped, nothing will take it
+					if (!committer.isAlive() && !pending.result.isDone()) {
+						return RUN_ALONE;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CustomException("Interrupted waiting for the group commit of " + userTransaction, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CustomException) {
+				throw (CustomException) e.getCause();
+			}
+			throw new CustomException("Fail to transfer Fund: " + userTransaction, e.getCause());
+		}
+	}
+
+	/**
+	 * Stop accepting transfers, apply what is queued and stop the thread.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			committer.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the committer statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * The committer loop.
+	 */
+	private void run() {
+		List<Pending> batch = new ArrayList<Pending>(maxBatch);
+		while (true) {
+			Pending first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (first == null) {
+				// closed and drained
+				if (closed) {
+					return;
+				}
+				continue;
+			}
+			batch.add(first);
+			fill(batch);
+			commit(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Add queued transfers to the batch until it is full or the wait window
+	 * after its first transfer has passed.
+	 *
+	 * @param batch the batch
+	 */
+	private void fill(List<Pending> batch) {
+		queue.drainTo(batch, maxBatch - batch.size());
+		long deadline = System.nanoTime() + waitNanos;
+		while (batch.size() < maxBatch) {
+			long wait = deadline - System.nanoTime();
+			if (wait <= 0) {
+				return;
+			}
+			Pending next;
+			try {
+				next = queue.poll(wait, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (next == null) {
+				return;
+			}
+			batch.add(next);
+			queue.drainTo(batch, maxBatch - batch.size());
+		}
+	}
+
+	/**
+	 * Apply a batch in one transaction, each transfer behind a savepoint, and
+	 * complete the callers.
+	 *
+	 * @param batch the batch
+	 */
+	private void commit(List<Pending> batch) {
+		List<Pending> applied = new ArrayList<Pending>(batch.size());
+		Connection conn = null;
+		try {
+			conn = H2DAOFactory.getConnection();
+			conn.setAutoCommit(false);
+			for (Pending pending : batch) {
+				Savepoint savepoint = conn.setSavepoint();
+				try {
+					pending.rows = pending.applier.applyTransfer(conn, pending.userTransaction, pending.postCommit);
+					applied.add(pending);
+				} catch (CustomException e) {
+					conn.rollback(savepoint);
+					rejected.incrementAndGet();
+					pending.result.completeExceptionally(e);
+				} catch (SQLException e) {
+					// a lock timeout or a broken statement, let the caller retry it alone
+					conn.rollback(savepoint);
+					if (log.isDebugEnabled())
+						log.debug("commit(): " + pending.userTransaction + " failed in batch, run alone", e);
+					runAlone(pending);
+				}
+			}
+			conn.commit();
+			batches.incrementAndGet();
+			batched.addAndGet(batch.size());
+			maxBatchSeen.accumulateAndGet(batch.size(), Math::max);
+			histogram.incrementAndGet(bucketOf(batch.size()));
+			committed.addAndGet(applied.size());
+			for (Pending pending : applied) {
+				pending.result.complete(pending.rows);
+			}
+		} catch (SQLException e) {
+			log.warn("commit(): Error committing a batch of " + batch.size() + " transfers, run alone", e);
+			failedBatches.incrementAndGet();
+			try {
+				if (conn != null)
+					conn.rollback();
+			} catch (SQLException re) {
+				log.warn("commit(): Error rolling back transfer batch", re);
+			}
+			for (Pending pending : batch) {
+				if (!pending.result.isDone()) {
+					// its record was journaled in the batch, the run alone journals it again
+					pending.applier.abortJournal(pending.postCommit);
+					pending.postCommit.transfer = null;
+					runAlone(pending);
+				}
+			}
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Hand a transfer back to its caller.
+	 *
+	 * @param pending the pending transfer
+	 */
+	private void runAlone(Pending pending) {
+		ranAlone.incrementAndGet();
+		pending.result.complete(RUN_ALONE);
+	}
+
+	/**
+	 * Gets the histogram bucket of a batch size.
+	 *
+	 * @param size the batch size
+	 * @return the bucket index
+	 */
+	private static int bucketOf(int size) {
+		return 31 - Integer.numberOfLeadingZeros(size);
+	}
+
+	/**
+	 * A queued transfer and its caller's future.
+	 */
+	private static final class Pending {
+
+		/** The user transaction. */
+		final UserTransaction userTransaction;
+
+		/** What is left to do after the commit, filled by the applier. */
+		final AccountDAOImpl.PostCommit postCommit;
+
+		/** The account DAO applying the transfer. */
+		final AccountDAOImpl applier;
+
+		/** The result completed once the batch commits. */
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+		/** The rows updated by the transfer. */
+		int rows;
+
+		/**
+		 * Instantiates a new pending transfer.
+		 *
+		 * @param userTransaction the user transaction
+		 * @param postCommit the post commit holder
+		 * @param applier the applier
+		 */
+		Pending(UserTransaction userTransaction, AccountDAOImpl.PostCommit postCommit, AccountDAOImpl applier) {
+			this.userTransaction = userTransaction;
+			this.postCommit = postCommit;
+			this.applier = applier;
+		}
+	}
+
+	/**
+	 * Snapshot of the committer statistics.
+	 */
+	public static final class Stats {
+
+		/** The committed transfers. */
+		private final long committed;
+
+		/** The rejected transfers. */
+		private final long rejected;
+
+		/** The transfers handed back to their caller. */
+		private final long ranAlone;
+
+		/** The queued transfers. */
+		private final int queued;
+
+		/** The committed batches. */
+		private final long batches;
+
+		/** The failed batch commits. */
+		private final long failedBatches;
+
+		/** The average batch size. */
+		private final double avgBatchSize;
+
+		/** The max batch size. */
+		private final long maxBatchSize;
+
+		/** The batch size histogram, by size range. */
+		private final Map<String, Long> batchSizes;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param committer the committer
+		 */
+		private Stats(TransferGroupCommitter committer) {
+			this.committed = committer.committed.get();
+			this.rejected = committer.rejected.get();
+			this.ranAlone = committer.ranAlone.get();
+			this.queued = committer.queue.size();
+			this.batches = committer.batches.get();
+			this.failedBatches = committer.failedBatches.get();
+			this.maxBatchSize = committer.maxBatchSeen.get();
+			this.avgBatchSize = batches == 0 ? 0 : (double) committer.batched.get() / batches;
+			this.batchSizes = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < committer.histogram.length(); i++) {
+				long count = committer.histogram.get(i);
+				int low = 1 << i;
+				int high = Math.min((1 << (i + 1)) - 1, committer.maxBatch);
+				batchSizes.put(low == high ? String.valueOf(low) : low + "-" + high, count);
+			}
+		}
+
+		/**
+		 * Gets the committed transfers.
+		 *
+		 * @return the committed
+		 */
+		public long getCommitted() {
+			return committed;
+		}
+
+		/**
+		 * Gets the transfers rejected inside a batch.
+		 *
+		 * @return the rejected
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * Gets the transfers handed back to their caller.
+		 *
+		 * @return the ran alone
+		 */
+		public long getRanAlone() {
+			return ranAlone;
+		}
+
+		/**
+		 * Gets the transfers waiting in the queue.
+		 *
+		 * @return the queued
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * Gets the committed batches.
+		 *
+		 * @return the batches
+		 */
+		public long getBatches() {
+			return batches;
+		}
+
+		/**
+		 * Gets the batch commits that failed.
+		 *
+		 * @return the failed batches
+		 */
+		public long getFailedBatches() {
+			return failedBatches;
+		}
+
+		/**
+		 * Gets the average transfers per committed batch.
+		 *
+		 * @return the avg batch size
+		 */
+		public double getAvgBatchSize() {
+			return avgBatchSize;
+		}
+
+		/**
+		 * Gets the largest batch.
+		 *
+		 * @return the max batch size
+		 */
+		public long getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		/**
+		 * Gets the committed batches by size range.
+		 *
+		 * @return the batch sizes
+		 */
+		public Map<String, Long> getBatchSizes() {
+			return batchSizes;
+		}
+	}
+}
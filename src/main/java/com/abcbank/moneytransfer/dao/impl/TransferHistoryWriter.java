@@ -0,0 +1,395 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.model.Transfer;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Background writer of the H2 transfer history in async mode.
+ * <p>
+ * Committed transfers are put on a bounded queue and a single thread inserts
+ * them in batches, one JDBC batch and one commit per batch, so the transfer
+ * path pays for a queue offer instead of an insert. When the queue is full
+ * submitters wait for room rather than drop history. A batch that keeps
+ * failing is retried a few times and then logged with its rows. The
+ * transfers are committed already, so a row that cannot be queued is logged
+ * and counted as dropped, never reported to the submitter as a failure.
+ */
+public class TransferHistoryWriter implements Closeable {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(TransferHistoryWriter.class);
+
+	/** The Constant MAX_ATTEMPTS, per batch. */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** The queue of transfers to insert. */
+	private final BlockingQueue<Transfer> queue;
+
+	/** The max rows per batch. */
+	private final int batchSize;
+
+	/** The writer thread. */
+	private final Thread writer;
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/** The monitor awaitFlushed waits on. */
+	private final Object progress = new Object();
+
+	/** The submitted transfers. */
+	private final AtomicLong submitted = new AtomicLong();
+
+	/** The inserted transfers. */
+	private final AtomicLong written = new AtomicLong();
+
+	/** The transfers given up after MAX_ATTEMPTS. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** The batches committed. */
+	private final AtomicLong batches = new AtomicLong();
+
+	/** The largest batch. */
+	private final AtomicLong maxBatch = new AtomicLong();
+
+	/** The submits that waited for room in the queue. */
+	private final AtomicLong queueFullWaits = new AtomicLong();
+
+	/**
+	 * Instantiates a new transfer history writer and starts its thread.
+	 *
+	 * @param queueCapacity the queue capacity
+	 * @param batchSize the max rows per batch
+	 */
+	public TransferHistoryWriter(int queueCapacity, int batchSize) {
+		this.queue = new ArrayBlockingQueue<Transfer>(Math.max(1, queueCapacity));
+		this.batchSize = Math.max(1, batchSize);
+		this.writer = new Thread(this::run, "transfer-history-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Create the writer from the transfer_history_* properties, closed on
+	 * shutdown after writing what is queued.
+	 *
+	 * @return the writer
+	 */
+	public static TransferHistoryWriter fromProperties() {
+		TransferHistoryWriter writer = new TransferHistoryWriter(
+				Utils.getIntegerProperty("transfer_history_queue_size", 10000),
+				Utils.getIntegerProperty("transfer_history_batch_size", 500));
+		Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "transfer-history-shutdown"));
+		return writer;
+	}
+
+	/**
+	 * Queue a committed transfer, waiting for room when the queue is full.
+	 * The transfer is counted as submitted before the closed flag is read,
+	 * so the writer thread does not stop while it may still be queued.
+	 *
+	 * @param transfer the transfer
+	 * @return true if queued, false if the writer is closed or the wait interrupted, the row dropped
+	 */
+	public boolean submit(Transfer transfer) {
+		submitted.incrementAndGet();
+		if (closed) {
+			log.error("submit(): Transfer history writer is closed, lost " + transfer);
+			progressed(dropped, 1);
+			return false;
+		}
+		if (queue.offer(transfer)) {
+			return true;
+		}
+		queueFullWaits.incrementAndGet();
+		try {
+			queue.put(transfer);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("submit(): Interrupted queueing transfer history, lost " + transfer, e);
+			progressed(dropped, 1);
+			return false;
+		}
+	}
+
+	/**
+	 * Wait until every transfer submitted so far is inserted or given up.
+	 *
+	 * @param timeoutMillis the max wait in millis
+	 * @return true, if flushed in time
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public boolean awaitFlushed(long timeoutMillis) throws InterruptedException {
+		long target = submitted.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (progress) {
+			while (written.get() + dropped.get() < target) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				progress.wait(wait);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stop accepting transfers, insert what is queued and stop the thread.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		// no interrupt, it would close the H2 file channel under an insert
+		closed = true;
+		try {
+			writer.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the writer statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * The writer loop.
+	 */
+	private void run() {
+		List<Transfer> batch = new ArrayList<Transfer>(batchSize);
+		while (true) {
+			Transfer first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (first == null) {
+				// closed, drained, and no submit left that saw the writer open
+				if (closed && written.get() + dropped.get() >= submitted.get()) {
+					return;
+				}
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, batchSize - 1);
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Insert a batch in one transaction, retrying on failure.
+	 *
+	 * @param batch the batch
+	 */
+	private void write(List<Transfer> batch) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			Connection conn = null;
+			PreparedStatement stmt = null;
+			try {
+				conn = H2DAOFactory.getConnection();
+				conn.setAutoCommit(false);
+				stmt = conn.prepareStatement(TransferDAOImpl.SQL_INSERT_TRANSFER);
+				for (Transfer transfer : batch) {
+					TransferDAOImpl.bindInsert(stmt, transfer);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				conn.commit();
+				batches.incrementAndGet();
+				maxBatch.accumulateAndGet(batch.size(), Math::max);
+				progressed(written, batch.size());
+				return;
+			} catch (SQLException e) {
+				log.warn("write(): Error inserting " + batch.size() + " transfers, attempt " + attempt, e);
+				try {
+					if (conn != null)
+						conn.rollback();
+				} catch (SQLException re) {
+					log.warn("write(): Error rolling back transfer history batch", re);
+				}
+			} finally {
+				DbUtils.closeQuietly(stmt);
+				DbUtils.closeQuietly(conn);
+			}
+			if (attempt == MAX_ATTEMPTS) {
+				break;
+			}
+			try {
+				Thread.sleep(100L * attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		log.error("write(): Giving up transfer history batch " + batch);
+		progressed(dropped, batch.size());
+	}
+
+	/**
+	 * Count finished transfers and wake awaitFlushed callers.
+	 *
+	 * @param counter the counter
+	 * @param count the count
+	 */
+	private void progressed(AtomicLong counter, int count) {
+		synchronized (progress) {
+			counter.addAndGet(count);
+			progress.notifyAll();
+		}
+	}
+
+	/**
+	 * Snapshot of the writer statistics.
+	 */
+	public static final class Stats {
+
+		/** The submitted transfers. */
+		private final long submitted;
+
+		/** The inserted transfers. */
+		private final long written;
+
+		/** The dropped transfers. */
+		private final long dropped;
+
+		/** The queued transfers. */
+		private final int queued;
+
+		/** The batches. */
+		private final long batches;
+
+		/** The average batch size. */
+		private final double avgBatchSize;
+
+		/** The max batch size. */
+		private final long maxBatchSize;
+
+		/** The submits that waited for room. */
+		private final long queueFullWaits;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param writer the writer
+		 */
+		private Stats(TransferHistoryWriter writer) {
+			this.submitted = writer.submitted.get();
+			this.written = writer.written.get();
+			this.dropped = writer.dropped.get();
+			this.queued = writer.queue.size();
+			this.batches = writer.batches.get();
+			this.avgBatchSize = batches == 0 ? 0 : (double) written / batches;
+			this.maxBatchSize = writer.maxBatch.get();
+			this.queueFullWaits = writer.queueFullWaits.get();
+		}
+
+		/**
+		 * Gets the submitted transfers.
+		 *
+		 * @return the submitted
+		 */
+		public long getSubmitted() {
+			return submitted;
+		}
+
+		/**
+		 * Gets the inserted transfers.
+		 *
+		 * @return the written
+		 */
+		public long getWritten() {
+			return written;
+		}
+
+		/**
+		 * Gets the transfers given up after retries.
+		 *
+		 * @return the dropped
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * Gets the transfers waiting in the queue.
+		 *
+		 * @return the queued
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * Gets the committed batches.
+		 *
+		 * @return the batches
+		 */
+		public long getBatches() {
+			return batches;
+		}
+
+		/**
+		 * Gets the average rows per batch.
+		 *
+		 * @return the avg batch size
+		 */
+		public double getAvgBatchSize() {
+			return avgBatchSize;
+		}
+
+		/**
+		 * Gets the largest batch.
+		 *
+		 * @return the max batch size
+		 */
+		public long getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		/**
+		 * Gets the submits that waited for room in the queue.
+		 *
+		 * @return the queue full waits
+		 */
+		public long getQueueFullWaits() {
+			return queueFullWaits;
+		}
+	}
+}
@@ -0,0 +1,722 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.dao.impl;
+
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore.AccountRecord;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Single-writer pipeline of the in-memory engine's balance changes.
+ * <p>
+ * Accounts are split over shards by id. Each shard has one handler thread,
+ * the only writer of its accounts, which applies their transfers, deposits,
+ * withdrawals and deletes without taking any lock. Callers publish into the
+ * shard's pre-allocated ring buffer, claiming a slot with one CAS, and wait
+ * on a completion object reused per thread, so a request allocates nothing
+ * of its own on the way through: amounts and balances are Money units.
+ * <p>
+ * A transfer between two shards is published to the lower shard. When its
+ * handler reaches it, it forwards the transfer to the higher shard and waits;
+ * the higher shard's handler applies both legs, then releases the lower one.
+ * Handlers only ever wait on higher shards, so the hand-off cannot deadlock.
+ * <p>
+ * The store pauses the pipeline to take a consistent cut: every handler
+ * stops between two requests, or while forwarding to or waiting on a higher
+ * shard, as the lower shard of a transfer changes nothing itself. Close
+ * stops the shards lowest first, so a shard still running is never left
+ * forwarding to one that has stopped.
+ * <p>
+ * The balance is still written and journaled before the caller is released,
+ * and the caller waits for the journal fsync itself, off the handler thread.
+ */
+public final class TransferPipeline implements Closeable {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(TransferPipeline.class);
+
+	/** The Constant TRANSFER, a transfer published by its caller. */
+	private static final int TRANSFER = 1;
+
+	/** The Constant FORWARDED, a transfer handed over by a lower shard. */
+	private static final int FORWARDED = 2;
+
+	/** The Constant ADJUST, a deposit or withdrawal. */
+	private static final int ADJUST = 3;
+
+	/** The Constant DELETE, an account delete. */
+	private static final int DELETE = 4;
+
+	/** The Constant SPINS, busy waits before parking. */
+	private static final int SPINS = 200;
+
+	/** The store. */
+	private final InMemoryStore store;
+
+	/** The shards. */
+	private final Shard[] shards;
+
+	/** The shard index mask. */
+	private final int shardMask;
+
+	/** The completion of each calling thread, reused for its every request. */
+	private final ThreadLocal<Completion> completions = ThreadLocal.withInitial(Completion::new);
+
+	/** The pause flag, set while the store takes a consistent cut. */
+	private volatile boolean pauseRequested;
+
+	/** The handlers parked on a pause. */
+	private final AtomicInteger paused = new AtomicInteger();
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/**
+	 * Instantiates a new pipeline and starts its handler threads.
+	 *
+	 * @param store the store
+	 * @param shardCount the number of shards, rounded up to a power of two
+	 * @param ringSize the ring buffer slots per shard, rounded up to a power of two, at least 2
+	 */
+	TransferPipeline(InMemoryStore store, int shardCount, int ringSize) {
+		this.store = store;
+		int n = powerOfTwo(shardCount, 1 << 8);
+		this.shardMask = n - 1;
+		this.shards = new Shard[n];
+		// with one slot, a published request (sequence p + 1) would look free to the next position
+		int slots = powerOfTwo(Math.max(2, ringSize), 1 << 20);
+		for (int i = 0; i < n; i++) {
+			shards[i] = new Shard(i, slots);
+		}
+		for (Shard shard : shards) {
+			shard.thread.start();
+		}
+		log.info("Transfer pipeline with " + n + " shards of " + slots + " ring slots");
+	}
+
+	/**
+	 * Gets the shard owning an account.
+	 *
+	 * @param accountId the account id
+	 * @return the shard index
+	 */
+	public int shardOf(long accountId) {
+		long h = accountId * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & shardMask;
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the shard count
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Apply a transfer on the shard owning its accounts.
+	 *
+	 * @param userTransaction the user transaction
+	 * @throws CustomException if the transfer is not allowed
+	 */
+	void transfer(UserTransaction userTransaction) throws CustomException {
+		int from = shardOf(userTransaction.getFromAccountId());
+		int to = shardOf(userTransaction.getToAccountId());
+		Completion done = begin();
+		publish(shards[Math.min(from, to)], from == to ? FORWARDED : TRANSFER, userTransaction, 0, 0, done,
+				null);
+		finish(done);
+	}
+
+	/**
+	 * Apply a delta to an account balance on the shard owning it.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount in units
+	 * @return the new balance in units
+	 * @throws CustomException if the account is missing or the balance would go negative
+	 */
+	long adjust(long accountId, long deltaAmount) throws CustomException {
+		Completion done = begin();
+		publish(shards[shardOf(accountId)], ADJUST, null, accountId, deltaAmount, done, null);
+		return finish(done).balance;
+	}
+
+	/**
+	 * Delete an account on the shard owning it.
+	 *
+	 * @param accountId the account id
+	 * @return 1, 0 if the account is missing
+	 * @throws CustomException the custom exception
+	 */
+	int delete(long accountId) throws CustomException {
+		Completion done = begin();
+		publish(shards[shardOf(accountId)], DELETE, null, accountId, 0, done, null);
+		return finish(done).journalSeq < 0 ? 0 : 1;
+	}
+
+	/**
+	 * Stop every handler between two requests and wait until they all are.
+	 * Requests published meanwhile wait in the rings.
+	 */
+	void pause() {
+		pauseRequested = true;
+		while (paused.get() + stopped() < shards.length) {
+			for (Shard shard : shards) {
+				LockSupport.unpark(shard.thread);
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		}
+	}
+
+	/**
+	 * Count the handlers already stopped by close.
+	 *
+	 * @return the stopped handlers
+	 */
+	private int stopped() {
+		int count = 0;
+		for (Shard shard : shards) {
+			if (!shard.thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Let the handlers go on after pause.
+	 */
+	void resume() {
+		pauseRequested = false;
+		for (Shard shard : shards) {
+			LockSupport.unpark(shard.thread);
+		}
+	}
+
+	/**
+	 * Apply what is published and stop the handler threads, lowest shard
+	 * first: the higher shards keep taking the transfers forwarded to them
+	 * until every lower shard is drained.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Shard shard : shards) {
+			shard.closing = true;
+			LockSupport.unpark(shard.thread);
+			try {
+				shard.thread.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the pipeline statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * Take the calling thread's completion, ready for one request.
+	 *
+	 * @return the completion
+	 * @throws CustomException if the pipeline is closed
+	 */
+	private Completion begin() throws CustomException {
+		if (closed) {
+			throw new CustomException("Transfer pipeline is closed");
+		}
+		Completion done = completions.get();
+		done.reset();
+		return done;
+	}
+
+	/**
+	 * Wait for a request, then for its journal record.
+	 *
+	 * @param done the request's completion
+	 * @return the completion
+	 * @throws CustomException if the request failed
+	 */
+	private Completion finish(Completion done) throws CustomException {
+		done.await();
+		if (done.error != null) {
+			throw done.error;
+		}
+		store.awaitJournal(Math.max(0, done.journalSeq));
+		return done;
+	}
+
+	/**
+	 * Publish a request into a shard's ring, waiting for a free slot when it
+	 * is full.
+	 *
+	 * @param shard the shard
+	 * @param op the operation
+	 * @param userTransaction the transfer, null for the single account operations
+	 * @param accountId the account id of the single account operations
+	 * @param amount the delta amount of ADJUST in units
+	 * @param done the caller's completion
+	 * @param handoff the completion of the lower shard waiting on a FORWARDED transfer
+	 */
+	private static void publish(Shard shard, int op, UserTransaction userTransaction, long accountId,
+			long amount, Completion done, Completion handoff) {
+		Slot[] ring = shard.ring;
+		boolean waited = false;
+		long pos;
+		Slot slot;
+		while (true) {
+			pos = shard.tail.get();
+			slot = ring[(int) pos & shard.ringMask];
+			long seq = slot.sequence.get();
+			if (seq == pos) {
+				if (shard.tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+			} else if (seq < pos) {
+				// a lap behind: the ring is full
+				if (!waited) {
+					waited = true;
+					shard.fullWaits.incrementAndGet();
+				}
+				LockSupport.parkNanos(1000);
+			}
+		}
+		slot.op = op;
+		slot.userTransaction = userTransaction;
+		slot.accountId = accountId;
+		slot.amount = amount;
+		slot.done = done;
+		slot.handoff = handoff;
+		slot.sequence.set(pos + 1);
+		if (shard.sleeping) {
+			LockSupport.unpark(shard.thread);
+		}
+	}
+
+	/**
+	 * Round up to a power of two.
+	 *
+	 * @param n the requested size
+	 * @param max the max size
+	 * @return the size
+	 */
+	private static int powerOfTwo(int n, int max) {
+		int size = 1;
+		while (size < n && size < max) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * A shard: its ring buffer, consumer cursor and handler thread.
+	 */
+	private final class Shard {
+
+		/** The shard index. */
+		final int index;
+
+		/** The ring buffer. */
+		final Slot[] ring;
+
+		/** The ring index mask. */
+		final int ringMask;
+
+		/** The next position to claim, shared by the publishers. */
+		final AtomicLong tail = new AtomicLong();
+
+		/** The next position to apply, handler thread only. */
+		long head;
+
+		/** Set while the handler is about to park on an empty ring. */
+		volatile boolean sleeping;
+
+		/** Set by close, once every lower shard has stopped: the handler stops when its ring is empty. */
+		volatile boolean closing;
+
+		/** The completion the handler waits on while a higher shard applies a forwarded transfer. */
+		final Completion handoff = new Completion();
+
+		/** The handler thread. */
+		final Thread thread;
+
+		/** The requests applied. */
+		final AtomicLong applied = new AtomicLong();
+
+		/** The transfers forwarded to a higher shard. */
+		final AtomicLong forwarded = new AtomicLong();
+
+		/** The publishes that found the ring full. */
+		final AtomicLong fullWaits = new AtomicLong();
+
+		/** The time spent waiting on higher shards, in nanos. */
+		final AtomicLong handoffNanos = new AtomicLong();
+
+		/**
+		 * Instantiates a new shard.
+		 *
+		 * @param index the shard index
+		 * @param slots the ring size, a power of two
+		 */
+		Shard(int index, int slots) {
+			this.index = index;
+			this.ring = new Slot[slots];
+			this.ringMask = slots - 1;
+			for (int i = 0; i < slots; i++) {
+				ring[i] = new Slot(i);
+			}
+			this.thread = new Thread(this::run, "transfer-pipeline-" + index);
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * The handler loop.
+		 */
+		private void run() {
+			int idle = 0;
+			while (true) {
+				if (pauseRequested) {
+					holdPaused();
+				}
+				Slot slot = ring[(int) head & ringMask];
+				if (slot.sequence.get() != head + 1) {
+					if (closing) {
+						return;
+					}
+					idle = idle(slot, idle);
+					continue;
+				}
+				idle = 0;
+				take(slot);
+			}
+		}
+
+		/**
+		 * Copy a published request out of its slot, free the slot and apply it.
+		 *
+		 * @param slot the slot at the head
+		 */
+		private void take(Slot slot) {
+			int op = slot.op;
+			UserTransaction userTransaction = slot.userTransaction;
+			long accountId = slot.accountId;
+			long amount = slot.amount;
+			Completion done = slot.done;
+			Completion waiting = slot.handoff;
+			slot.userTransaction = null;
+			slot.done = null;
+			slot.handoff = null;
+			slot.sequence.set(head + ring.length);
+			head++;
+			apply(op, userTransaction, accountId, amount, done, waiting);
+			applied.incrementAndGet();
+		}
+
+		/**
+		 * Park until the pause is over.
+		 */
+		private void holdPaused() {
+			paused.incrementAndGet();
+			while (pauseRequested) {
+				LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+			}
+			paused.decrementAndGet();
+		}
+
+		/**
+		 * Wait for the next request: spin a little, then park until a
+		 * publisher wakes the handler.
+		 *
+		 * @param slot the slot at the head
+		 * @param idle the empty polls so far
+		 * @return the empty polls
+		 */
+		private int idle(Slot slot, int idle) {
+			if (idle < SPINS) {
+				return idle + 1;
+			}
+			sleeping = true;
+			// re-check after announcing, a publisher either sees sleeping or we see its slot
+			if (slot.sequence.get() != head + 1 && !pauseRequested && !closing) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			sleeping = false;
+			return idle;
+		}
+
+		/**
+		 * Apply one request and complete its caller.
+		 *
+		 * @param op the operation
+		 * @param userTransaction the transfer
+		 * @param accountId the account id
+		 * @param amount the delta amount in units
+		 * @param done the caller's completion
+		 * @param waiting the completion of the lower shard waiting on this transfer, may be null
+		 */
+		private void apply(int op, UserTransaction userTransaction, long accountId, long amount,
+				Completion done, Completion waiting) {
+			if (op == TRANSFER) {
+				// this shard is the lower one: hand over and wait, so its accounts stay still
+				Shard higher = shards[Math.max(shardOf(userTransaction.getFromAccountId()),
+						shardOf(userTransaction.getToAccountId()))];
+				forwarded.incrementAndGet();
+				long start = System.nanoTime();
+				handoff.reset();
+				// nothing is changed yet, so waiting for a slot of the higher shard's ring and then
+				// for the higher shard itself counts as paused: the higher shard may pause first
+				paused.incrementAndGet();
+				publish(higher, FORWARDED, userTransaction, 0, 0, done, handoff);
+				handoff.await();
+				paused.decrementAndGet();
+				handoffNanos.addAndGet(System.nanoTime() - start);
+				return;
+			}
+			try {
+				if (op == FORWARDED) {
+					done.journalSeq = store.applyTransfer(userTransaction);
+				} else if (op == ADJUST) {
+					AccountRecord account = store.accounts.get(accountId);
+					done.journalSeq = store.applyBalanceDelta(account, accountId, amount);
+					done.balance = account.balance;
+				} else {
+					done.journalSeq = store.applyDelete(accountId);
+				}
+			} catch (CustomException e) {
+				done.error = e;
+			} catch (RuntimeException e) {
+				log.error("apply(): Error applying request on shard " + index, e);
+				done.error = new CustomException("Fail to apply request on pipeline shard " + index, e);
+			}
+			done.complete();
+			if (waiting != null) {
+				waiting.complete();
+			}
+		}
+	}
+
+	/**
+	 * A ring buffer slot, pre-allocated and reused every lap. The sequence is
+	 * the position it is free for, plus one once a request is published in it.
+	 */
+	private static final class Slot {
+
+		/** The sequence. */
+		final AtomicLong sequence;
+
+		/** The operation. */
+		int op;
+
+		/** The transfer. */
+		UserTransaction userTransaction;
+
+		/** The account id. */
+		long accountId;
+
+		/** The delta amount in units. */
+		long amount;
+
+		/** The caller's completion. */
+		Completion done;
+
+		/** The completion of the lower shard waiting on a forwarded transfer. */
+		Completion handoff;
+
+		/**
+		 * Instantiates a new slot.
+		 *
+		 * @param index the slot index, its first free position
+		 */
+		Slot(int index) {
+			this.sequence = new AtomicLong(index);
+		}
+	}
+
+	/**
+	 * The outcome of one request and the thread waiting for it. The plain
+	 * fields are written before done and read after it.
+	 */
+	private static final class Completion {
+
+		/** The done flag. */
+		volatile boolean done;
+
+		/** The journal sequence number, -1 for a delete of a missing account. */
+		long journalSeq;
+
+		/** The new balance of ADJUST in units. */
+		long balance;
+
+		/** The failure. */
+		CustomException error;
+
+		/** The waiting thread. */
+		Thread waiter;
+
+		/**
+		 * Get ready for a request of the current thread.
+		 */
+		void reset() {
+			done = false;
+			journalSeq = 0;
+			balance = 0;
+			error = null;
+			waiter = Thread.currentThread();
+		}
+
+		/**
+		 * Mark done and wake the waiter.
+		 */
+		void complete() {
+			done = true;
+			LockSupport.unpark(waiter);
+		}
+
+		/**
+		 * Spin a little, then park until done.
+		 */
+		void await() {
+			int spins = 0;
+			boolean interrupted = false;
+			while (!done) {
+				if (spins++ < SPINS) {
+					continue;
+				}
+				LockSupport.park(this);
+				// the request is in a ring already, finish waiting and keep the interrupt
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the pipeline statistics, per shard.
+	 */
+	public static final class Stats {
+
+		/** The shard count. */
+		private final int shards;
+
+		/** The requests applied, per shard. */
+		private final long[] applied;
+
+		/** The transfers forwarded to a higher shard, per shard. */
+		private final long[] forwarded;
+
+		/** The publishes that found the ring full, per shard. */
+		private final long[] ringFullWaits;
+
+		/** The time waiting on higher shards in ms, per shard. */
+		private final double[] handoffWaitMs;
+
+		/** The requests waiting in the rings, per shard. */
+		private final long[] queued;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param pipeline the pipeline
+		 */
+		private Stats(TransferPipeline pipeline) {
+			this.shards = pipeline.shards.length;
+			this.applied = new long[shards];
+			this.forwarded = new long[shards];
+			this.ringFullWaits = new long[shards];
+			this.handoffWaitMs = new double[shards];
+			this.queued = new long[shards];
+			for (int i = 0; i < shards; i++) {
+				Shard shard = pipeline.shards[i];
+				applied[i] = shard.applied.get();
+				forwarded[i] = shard.forwarded.get();
+				ringFullWaits[i] = shard.fullWaits.get();
+				handoffWaitMs[i] = shard.handoffNanos.get() / 1e6;
+				queued[i] = Math.max(0, shard.tail.get() - applied[i]);
+			}
+		}
+
+		/**
+		 * Gets the shard count.
+		 *
+		 * @return the shards
+		 */
+		public int getShards() {
+			return shards;
+		}
+
+		/**
+		 * Gets the requests applied, per shard.
+		 *
+		 * @return the applied
+		 */
+		public long[] getApplied() {
+			return applied;
+		}
+
+		/**
+		 * Gets the transfers forwarded to a higher shard, per shard.
+		 *
+		 * @return the forwarded
+		 */
+		public long[] getForwarded() {
+			return forwarded;
+		}
+
+		/**
+		 * Gets the publishes that found the ring full, per shard.
+		 *
+		 * @return the ring full waits
+		 */
+		public long[] getRingFullWaits() {
+			return ringFullWaits;
+		}
+
+		/**
+		 * Gets the time waiting on higher shards in ms, per shard.
+		 *
+		 * @return the handoff wait ms
+		 */
+		public double[] getHandoffWaitMs() {
+			return handoffWaitMs;
+		}
+
+		/**
+		 * Gets the requests waiting in the rings, per shard.
+		 *
+		 * @return the queued
+		 */
+		public long[] getQueued() {
+			return queued;
+		}
+	}
+}
@@ -10,14 +10,18 @@
  */ 
 package com.abcbank.moneytransfer.dao.impl;
 
+import com.abcbank.moneytransfer.dao.ConnectionPool;
 import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.RowHandler;
 import com.abcbank.moneytransfer.dao.UserDAO;
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.User;
+import com.abcbank.moneytransfer.utils.Utils;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -38,6 +42,15 @@ public class UserDAOImpl implements UserDAO {
     /** The Constant SQL_GET_ALL_USERS. */
     private final static String SQL_GET_ALL_USERS = "SELECT * FROM User";
     
+    /** The Constant SQL_GET_USER_PAGE, a range scan of the primary key. */
+    private final static String SQL_GET_USER_PAGE = "SELECT * FROM User WHERE UserId > ? ORDER BY UserId LIMIT ?";
+    
+    /** The Constant SQL_STREAM_ALL_USERS. */
+    private final static String SQL_STREAM_ALL_USERS = "SELECT * FROM User ORDER BY UserId";
+    
+    /** The Constant STREAM_FETCH_SIZE, rows fetched per round trip when streaming. */
+    private final static int STREAM_FETCH_SIZE = Utils.getIntegerProperty("stream_fetch_size", 1000);
+    
     /** The Constant SQL_GET_USER_BY_NAME. */
     private final static String SQL_GET_USER_BY_NAME = "SELECT * FROM User WHERE UserName = ? ";
     
@@ -50,6 +63,35 @@ public class UserDAOImpl implements UserDAO {
     /** The Constant SQL_DELETE_USER_BY_ID. */
     private final static String SQL_DELETE_USER_BY_ID = "DELETE FROM User WHERE UserId = ? ";
     
+    /** The connection pool, null for the pool of the H2 engine. */
+    private final ConnectionPool pool;
+    
+    /**
+     * Instantiates a new user DAO on the database of the H2 engine.
+     */
+    public UserDAOImpl() {
+        this(null);
+    }
+    
+    /**
+     * Instantiates a new user DAO on another database.
+     *
+     * @param pool the connection pool, null for the pool of the H2 engine
+     */
+    public UserDAOImpl(ConnectionPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * Gets a pooled connection of this DAO's database.
+     *
+     * @return the connection
+     * @throws SQLException the SQL exception
+     */
+    private Connection getConnection() throws SQLException {
+        return pool == null ? H2DAOFactory.getConnection() : pool.getConnection();
+    }
+    
     /**
      * Find all users.
      *
@@ -62,7 +104,7 @@ public class UserDAOImpl implements UserDAO {
         ResultSet rs = null;
         List<User> users = new ArrayList<User>();
         try {
-            conn = H2DAOFactory.getConnection();
+            conn = getConnection();
             stmt = conn.prepareStatement(SQL_GET_ALL_USERS);
             rs = stmt.executeQuery();
             while (rs.next()) {
@@ -79,6 +121,67 @@ public class UserDAOImpl implements UserDAO {
         }
     }
     
+    /**
+     * Find a page of users after the given user id.
+     *
+     * @param afterId the last user id of the previous page
+     * @param limit the max number of users
+     * @return the users
+     * @throws CustomException the custom exception
+     */
+    public List<User> getUsers(long afterId, int limit) throws CustomException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        List<User> users = new ArrayList<User>(Math.min(limit, 1024));
+        try {
+            conn = getConnection();
+            stmt = conn.prepareStatement(SQL_GET_USER_PAGE);
+            stmt.setLong(1, afterId);
+            stmt.setInt(2, limit);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                users.add(new User(rs.getLong("UserId"), rs.getString("UserName"), rs.getString("EmailAddress")));
+            }
+            return users;
+        } catch (SQLException e) {
+            throw new CustomException("Error reading user data", e);
+        } finally {
+            DbUtils.closeQuietly(conn, stmt, rs);
+        }
+    }
+    
+    /**
+     * Stream all users to the handler as they are read. The connection is
+     * held until the handler has seen the last row.
+     *
+     * @param handler the row handler
+     * @return the number of users streamed
+     * @throws CustomException the custom exception
+     * @throws IOException if the handler fails
+     */
+    public long streamAllUsers(RowHandler<User> handler) throws CustomException, IOException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        long count = 0;
+        try {
+            conn = getConnection();
+            stmt = conn.prepareStatement(SQL_STREAM_ALL_USERS);
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                handler.handle(new User(rs.getLong("UserId"), rs.getString("UserName"), rs.getString("EmailAddress")));
+                count++;
+            }
+            return count;
+        } catch (SQLException e) {
+            throw new CustomException("Error reading user data", e);
+        } finally {
+            DbUtils.closeQuietly(conn, stmt, rs);
+        }
+    }
+    
     /**
      * Find user by userId.
      *
@@ -92,7 +195,7 @@ public class UserDAOImpl implements UserDAO {
         ResultSet rs = null;
         User u = null;
         try {
-            conn = H2DAOFactory.getConnection();
+            conn = getConnection();
             stmt = conn.prepareStatement(SQL_GET_USER_BY_ID);
             stmt.setLong(1, userId);
             rs = stmt.executeQuery();
@@ -122,7 +225,7 @@ public class UserDAOImpl implements UserDAO {
         ResultSet rs = null;
         User u = null;
         try {
-            conn = H2DAOFactory.getConnection();
+            conn = getConnection();
             stmt = conn.prepareStatement(SQL_GET_USER_BY_NAME);
             stmt.setString(1, userName);
             rs = stmt.executeQuery();
@@ -140,18 +243,19 @@ public class UserDAOImpl implements UserDAO {
     }
     
     /**
-     * Save User.
+     * Save User, built back from the row inserted and its generated key
+     * rather than read again.
      *
      * @param user the user
-     * @return the long
+     * @return the user as stored, with its user id
      * @throws CustomException the custom exception
      */
-    public long insertUser(User user) throws CustomException {
+    public User insertUser(User user) throws CustomException {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet generatedKeys = null;
         try {
-            conn = H2DAOFactory.getConnection();
+            conn = getConnection();
             stmt = conn.prepareStatement(SQL_INSERT_USER, Statement.RETURN_GENERATED_KEYS);
             stmt.setString(1, user.getUserName());
             stmt.setString(2, user.getEmailAddress());
@@ -162,7 +266,7 @@ public class UserDAOImpl implements UserDAO {
             }
             generatedKeys = stmt.getGeneratedKeys();
             if (generatedKeys.next()) {
-                return generatedKeys.getLong(1);
+                return new User(generatedKeys.getLong(1), user.getUserName(), user.getEmailAddress());
             } else {
                 log.error("insertUser():  Creating user failed, no ID obtained." + user);
                 throw new CustomException("Users Cannot be created");
@@ -189,7 +293,7 @@ public class UserDAOImpl implements UserDAO {
         PreparedStatement stmt = null;
 
         try {
-            conn = H2DAOFactory.getConnection();
+            conn = getConnection();
             stmt = conn.prepareStatement(SQL_UPDATE_USER);
             stmt.setString(1, user.getUserName());
             stmt.setString(2, user.getEmailAddress());
@@ -216,7 +320,7 @@ public class UserDAOImpl implements UserDAO {
         PreparedStatement stmt = null;
 
         try {
-            conn = H2DAOFactory.getConnection();
+            conn = getConnection();
             stmt = conn.prepareStatement(SQL_DELETE_USER_BY_ID);
             stmt.setLong(1, userId);
             return stmt.executeUpdate();
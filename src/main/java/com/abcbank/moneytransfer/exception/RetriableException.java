@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.exception;
+
+
+/**
+ * A failure that left nothing changed and may not happen again, such as
+ * accounts still locked, no connection free or a full queue: the same
+ * request can be sent again.
+ */
+public class RetriableException extends CustomException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Instantiates a new retriable exception.
+	 *
+	 * @param msg the msg
+	 */
+	public RetriableException(String msg) {
+		super(msg);
+	}
+
+	/**
+	 * Instantiates a new retriable exception.
+	 *
+	 * @param msg the msg
+	 * @param cause the cause
+	 */
+	public RetriableException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
+}
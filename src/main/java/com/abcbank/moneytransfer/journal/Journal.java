@@ -0,0 +1,805 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.journal;
+
+import com.abcbank.moneytransfer.utils.Utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only write-ahead journal of user, account and balance mutations.
+ * <p>
+ * Records are copied into a memory-mapped segment file under a short lock, so
+ * an append is a sequential memory write and never waits for the disk. A
+ * single flusher thread forces the mapped segment to disk: every flush
+ * interval, or as soon as a caller waits for durability. Callers that arrive
+ * while a force is running are covered by the next one, which turns many
+ * concurrent commits into one fsync (group commit).
+ * <p>
+ * Segments are preallocated files named after their first sequence number.
+ * When a record does not fit, the segment is forced and a new one started.
+ * Each record is framed as length, sequence, type, timestamp, payload and a
+ * CRC32 of everything before it; on open, the tail of the last segment is
+ * scanned and anything after the last valid record (a torn write) is
+ * discarded.
+ */
+public class Journal implements Closeable {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(Journal.class);
+
+	/** The Constant SEGMENT_PREFIX. */
+	private static final String SEGMENT_PREFIX = "journal-";
+
+	/** The Constant SEGMENT_SUFFIX. */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** The Constant HEADER_SIZE: length, seq, type, timestamp. */
+	private static final int HEADER_SIZE = 4 + 8 + 1 + 8;
+
+	/** The Constant TRAILER_SIZE: crc. */
+	private static final int TRAILER_SIZE = 4;
+
+	/** The segment directory. */
+	private final File dir;
+
+	/** The size of new segment files in bytes. */
+	private final int segmentSize;
+
+	/** The max time between two flushes in millis. */
+	private final long flushIntervalMillis;
+
+	/** Whether awaitDurable waits for the fsync. */
+	private final boolean syncCommit;
+
+	/** The lock serialising appends. */
+	private final ReentrantLock appendLock = new ReentrantLock();
+
+	/** The checksum used by appends, guarded by appendLock. */
+	private final CRC32 crc = new CRC32();
+
+	/** The segment being written, guarded by appendLock. */
+	private Segment current;
+
+	/** The last appended sequence number. */
+	private volatile long appendedSeq;
+
+	/** The last sequence number forced to disk. */
+	private volatile long durableSeq;
+
+	/** The monitor flusher and waiters meet on. */
+	private final Object flushMonitor = new Object();
+
+	/** Whether a caller is waiting for a flush, guarded by flushMonitor. */
+	private boolean flushRequested;
+
+	/** The last flush failure. */
+	private volatile Throwable failure;
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/** The flusher thread. */
+	private final Thread flusher;
+
+	/** The appended records. */
+	private final AtomicLong appends = new AtomicLong();
+
+	/** The appended bytes. */
+	private final AtomicLong appendedBytes = new AtomicLong();
+
+	/** The forces of a segment to disk. */
+	private final AtomicLong fsyncs = new AtomicLong();
+
+	/** The accumulated force time in nanos. */
+	private final AtomicLong fsyncNanos = new AtomicLong();
+
+	/** The max force time in nanos. */
+	private final AtomicLong maxFsyncNanos = new AtomicLong();
+
+	/** The segment rollovers. */
+	private final AtomicLong rollovers = new AtomicLong();
+
+	/**
+	 * Open the journal in the directory, creating it when empty.
+	 *
+	 * @param dir the segment directory
+	 * @param segmentSize the size of new segment files in bytes
+	 * @param flushIntervalMillis the max time between two flushes in millis
+	 * @param syncCommit whether awaitDurable waits for the fsync
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Journal(File dir, int segmentSize, long flushIntervalMillis, boolean syncCommit) throws IOException {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException("Journal segment size too small: " + segmentSize);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir);
+		}
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+		this.syncCommit = syncCommit;
+		File[] segments = listSegments(dir);
+		if (segments.length == 0) {
+			current = Segment.open(segmentFile(dir, 1), 1, segmentSize);
+		} else {
+			File last = segments[segments.length - 1];
+			current = Segment.open(last, firstSeqOf(last), Math.max(1024, (int) last.length()));
+			recover();
+		}
+		durableSeq = appendedSeq;
+		flusher = new Thread(this::runFlusher, "journal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Open the journal of a DAO engine from the journal_* properties.
+	 *
+	 * @param name the engine name, used as sub directory of journal_dir
+	 * @return the journal, null when journal_enabled is not true
+	 */
+	public static Journal fromProperties(String name) {
+		if (!Utils.getBooleanProperty("journal_enabled", false)) {
+			return null;
+		}
+		File dir = new File(Utils.getStringProperty("journal_dir", "./data/journal"), name);
+		try {
+			final Journal journal = new Journal(dir, Utils.getIntegerProperty("journal_segment_size", 64 << 20),
+					Utils.getIntegerProperty("journal_flush_interval_ms", 10),
+					Utils.getBooleanProperty("journal_sync_commit", true));
+			Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "journal-shutdown"));
+			log.info("Journal opened at " + dir + ", last sequence " + journal.getLastSeq());
+			return journal;
+		} catch (IOException e) {
+			log.error("fromProperties(): Error opening journal at " + dir, e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Append a record. The record is in the page cache when this returns, use
+	 * awaitDurable to wait for the disk.
+	 *
+	 * @param record the record
+	 * @return the sequence number of the record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long append(JournalRecord record) throws IOException {
+		appendLock.lock();
+		try {
+			return write(record);
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Append the records of one transaction under a single hold of the append
+	 * lock, so they get consecutive sequence numbers and one ABORT record can
+	 * name them all.
+	 *
+	 * @param records the records, in order
+	 * @return the sequence number of the last record, 0 for no record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long append(List<JournalRecord> records) throws IOException {
+		if (records.isEmpty()) {
+			return 0;
+		}
+		appendLock.lock();
+		try {
+			long seq = 0;
+			for (JournalRecord record : records) {
+				seq = write(record);
+			}
+			return seq;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Write a record frame to the current segment, rolling over when it does
+	 * not fit. The caller holds appendLock.
+	 *
+	 * @param record the record
+	 * @return the sequence number of the record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private long write(JournalRecord record) throws IOException {
+		if (closed) {
+			throw new IOException("Journal is closed");
+		}
+		int frameSize = HEADER_SIZE + record.payloadSize() + TRAILER_SIZE;
+		long seq = appendedSeq + 1;
+		MappedByteBuffer buf = current.buffer;
+		if (buf.remaining() < frameSize) {
+			roll(seq);
+			buf = current.buffer;
+		}
+		int start = buf.position();
+		buf.putInt(frameSize);
+		buf.putLong(seq);
+		buf.put(record.getType());
+		buf.putLong(record.getTimestamp());
+		record.writePayload(buf);
+		ByteBuffer body = buf.duplicate();
+		body.position(start);
+		body.limit(buf.position());
+		crc.reset();
+		crc.update(body);
+		buf.putInt((int) crc.getValue());
+		appendedSeq = seq;
+		appends.incrementAndGet();
+		appendedBytes.addAndGet(frameSize);
+		return seq;
+	}
+
+	/**
+	 * Wait until the record with the sequence number is on disk. Returns at
+	 * once when journal_sync_commit is false.
+	 *
+	 * @param seq the sequence number
+	 * @throws IOException if the flush failed or the journal was closed
+	 */
+	public void awaitDurable(long seq) throws IOException {
+		if (!syncCommit || seq <= durableSeq) {
+			return;
+		}
+		synchronized (flushMonitor) {
+			flushRequested = true;
+			flushMonitor.notifyAll();
+			while (durableSeq < seq) {
+				if (failure != null) {
+					throw new IOException("Journal flush failed", failure);
+				}
+				if (closed) {
+					throw new IOException("Journal is closed");
+				}
+				try {
+					flushMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for journal flush");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the records written after a sequence number, in order.
+	 *
+	 * @param afterSeq the last sequence number not wanted, 0 for all
+	 * @param sink the record consumer
+	 * @return the number of records read
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long replay(long afterSeq, Consumer<JournalRecord> sink) throws IOException {
+		File[] segments = listSegments(dir);
+		CRC32 readCrc = new CRC32();
+		long[] count = new long[1];
+		Consumer<JournalRecord> counting = r -> {
+			count[0]++;
+			sink.accept(r);
+		};
+		for (int i = 0; i < segments.length; i++) {
+			if (i + 1 < segments.length && firstSeqOf(segments[i + 1]) <= afterSeq + 1) {
+				// every record of this segment is older than afterSeq
+				continue;
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(segments[i], "r")) {
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				scan(buf, firstSeqOf(segments[i]), afterSeq, counting, readCrc);
+			}
+		}
+		return count[0];
+	}
+
+	/**
+	 * Force every appended record to disk now.
+	 */
+	public void flush() {
+		long target;
+		MappedByteBuffer buf;
+		appendLock.lock();
+		try {
+			target = appendedSeq;
+			buf = current.buffer;
+		} finally {
+			appendLock.unlock();
+		}
+		long before = durableSeq;
+		if (target <= before) {
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			buf.force();
+			long nanos = System.nanoTime() - start;
+			fsyncs.incrementAndGet();
+			fsyncNanos.addAndGet(nanos);
+			maxFsyncNanos.accumulateAndGet(nanos, Math::max);
+		} catch (RuntimeException e) {
+			log.error("flush(): Error forcing journal segment " + current.file, e);
+			failure = e;
+		}
+		synchronized (flushMonitor) {
+			if (failure == null && target > durableSeq) {
+				durableSeq = target;
+			}
+			flushMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Flush and close the journal. Appends fail afterwards.
+	 */
+	@Override
+	public void close() {
+		appendLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			appendLock.unlock();
+		}
+		flush();
+		synchronized (flushMonitor) {
+			flushMonitor.notifyAll();
+		}
+		try {
+			flusher.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		current.close();
+	}
+
+	/**
+	 * Delete the segments whose records are all older than a sequence number,
+	 * typically the oldest snapshot kept. The segment being written is never
+	 * deleted.
+	 *
+	 * @param seq the first sequence number still needed
+	 * @return the number of segments deleted
+	 */
+	public int deleteSegmentsBefore(long seq) {
+		File[] segments = listSegments(dir);
+		int deleted = 0;
+		for (int i = 0; i + 1 < segments.length && firstSeqOf(segments[i + 1]) <= seq; i++) {
+			if (!segments[i].delete()) {
+				log.warn("deleteSegmentsBefore(): Error deleting journal segment " + segments[i]);
+				break;
+			}
+			deleted++;
+		}
+		if (deleted > 0)
+			log.info("Deleted " + deleted + " journal segments before sequence " + seq);
+		return deleted;
+	}
+
+	/**
+	 * Gets the segment directory.
+	 *
+	 * @return the dir
+	 */
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Gets the last appended sequence number.
+	 *
+	 * @return the last seq
+	 */
+	public long getLastSeq() {
+		return appendedSeq;
+	}
+
+	/**
+	 * Gets the last sequence number on disk.
+	 *
+	 * @return the durable seq
+	 */
+	public long getDurableSeq() {
+		return durableSeq;
+	}
+
+	/**
+	 * Gets the journal statistics.
+	 *
+	 * @return the stats
+	 */
+	public Stats getStats() {
+		return new Stats(this);
+	}
+
+	/**
+	 * The flusher loop.
+	 */
+	private void runFlusher() {
+		while (!closed) {
+			synchronized (flushMonitor) {
+				if (!flushRequested) {
+					try {
+						flushMonitor.wait(flushIntervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				flushRequested = false;
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Force the full segment and start a new one. Caller holds appendLock.
+	 *
+	 * @param firstSeq the first sequence number of the new segment
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void roll(long firstSeq) throws IOException {
+		Segment full = current;
+		full.buffer.force();
+		current = Segment.open(segmentFile(dir, firstSeq), firstSeq, segmentSize);
+		full.close();
+		rollovers.incrementAndGet();
+		if (log.isDebugEnabled())
+			log.debug("roll(): journal segment " + current.file + " started");
+	}
+
+	/**
+	 * Find the end of the last segment and wipe a torn tail.
+	 */
+	private void recover() {
+		MappedByteBuffer buf = current.buffer;
+		appendedSeq = scan(buf, current.firstSeq, Long.MAX_VALUE, null, crc);
+		int end = buf.position();
+		if (end + 4 <= buf.limit() && buf.getInt(end) != 0) {
+			log.warn("recover(): discarding torn journal tail after sequence " + appendedSeq + " in "
+					+ current.file);
+			for (int i = end; i < buf.limit(); i++) {
+				buf.put(i, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Walk the valid records of a segment, leaving the buffer positioned after
+	 * the last one.
+	 *
+	 * @param buf the segment buffer
+	 * @param firstSeq the first sequence number of the segment
+	 * @param afterSeq records up to this sequence number are skipped
+	 * @param sink the record consumer, may be null
+	 * @param checksum the checksum to use
+	 * @return the last valid sequence number, firstSeq - 1 for an empty segment
+	 */
+	private static long scan(ByteBuffer buf, long firstSeq, long afterSeq, Consumer<JournalRecord> sink,
+			CRC32 checksum) {
+		long lastSeq = firstSeq - 1;
+		while (buf.remaining() >= HEADER_SIZE + TRAILER_SIZE) {
+			int start = buf.position();
+			int length = buf.getInt(start);
+			if (length < HEADER_SIZE + TRAILER_SIZE || length > buf.limit() - start) {
+				break;
+			}
+			long seq = buf.getLong(start + 4);
+			if (seq != lastSeq + 1) {
+				break;
+			}
+			ByteBuffer body = buf.duplicate();
+			body.position(start);
+			body.limit(start + length - TRAILER_SIZE);
+			checksum.reset();
+			checksum.update(body);
+			if ((int) checksum.getValue() != buf.getInt(start + length - TRAILER_SIZE)) {
+				break;
+			}
+			if (sink != null && seq > afterSeq) {
+				ByteBuffer payload = buf.duplicate();
+				payload.position(start + HEADER_SIZE);
+				JournalRecord record = JournalRecord.readPayload(buf.get(start + 12), seq, buf.getLong(start + 13),
+						payload);
+				if (record == null) {
+					log.warn("scan(): unknown journal record type at sequence " + seq);
+					break;
+				}
+				sink.accept(record);
+			}
+			lastSeq = seq;
+			buf.position(start + length);
+		}
+		return lastSeq;
+	}
+
+	/**
+	 * List the segment files in sequence order.
+	 *
+	 * @param dir the dir
+	 * @return the segment files
+	 */
+	private static File[] listSegments(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return new File[0];
+		}
+		// names are zero padded, so name order is sequence order
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Gets the segment file starting at a sequence number.
+	 *
+	 * @param dir the dir
+	 * @param firstSeq the first seq
+	 * @return the file
+	 */
+	private static File segmentFile(File dir, long firstSeq) {
+		return new File(dir, SEGMENT_PREFIX + String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Gets the first sequence number of a segment file from its name.
+	 *
+	 * @param file the file
+	 * @return the first seq
+	 */
+	private static long firstSeqOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * A mapped segment file.
+	 */
+	private static final class Segment {
+
+		/** The file. */
+		private final File file;
+
+		/** The first sequence number. */
+		private final long firstSeq;
+
+		/** The channel. */
+		private final FileChannel channel;
+
+		/** The mapped buffer, positioned at the append point. */
+		private final MappedByteBuffer buffer;
+
+		/**
+		 * Instantiates a new segment.
+		 *
+		 * @param file the file
+		 * @param firstSeq the first seq
+		 * @param channel the channel
+		 * @param buffer the buffer
+		 */
+		private Segment(File file, long firstSeq, FileChannel channel, MappedByteBuffer buffer) {
+			this.file = file;
+			this.firstSeq = firstSeq;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Open or create a segment file and map it.
+		 *
+		 * @param file the file
+		 * @param firstSeq the first seq
+		 * @param size the mapped size, the file grows to it
+		 * @return the segment
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		@SuppressWarnings("resource")
+		private static Segment open(File file, long firstSeq, int size) throws IOException {
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			try {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				return new Segment(file, firstSeq, channel, buffer);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Close the channel, the mapping stays valid until collected.
+		 */
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.warn("close(): Error closing journal segment " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the journal statistics.
+	 */
+	public static final class Stats {
+
+		/** The last appended sequence number. */
+		private final long lastSeq;
+
+		/** The last sequence number on disk. */
+		private final long durableSeq;
+
+		/** The appended records. */
+		private final long appends;
+
+		/** The appended bytes. */
+		private final long appendedBytes;
+
+		/** The fsyncs. */
+		private final long fsyncs;
+
+		/** The average records per fsync. */
+		private final double avgRecordsPerFsync;
+
+		/** The average fsync time in micros. */
+		private final long avgFsyncMicros;
+
+		/** The max fsync time in micros. */
+		private final long maxFsyncMicros;
+
+		/** The segment rollovers. */
+		private final long rollovers;
+
+		/** The segment size. */
+		private final int segmentSize;
+
+		/** Whether commits wait for the fsync. */
+		private final boolean syncCommit;
+
+		/**
+		 * Instantiates a new stats snapshot.
+		 *
+		 * @param journal the journal
+		 */
+		private Stats(Journal journal) {
+			this.lastSeq = journal.appendedSeq;
+			this.durableSeq = journal.durableSeq;
+			this.appends = journal.appends.get();
+			this.appendedBytes = journal.appendedBytes.get();
+			this.fsyncs = journal.fsyncs.get();
+			this.avgRecordsPerFsync = fsyncs == 0 ? 0 : (double) appends / fsyncs;
+			this.avgFsyncMicros = fsyncs == 0 ? 0 : journal.fsyncNanos.get() / fsyncs / 1000;
+			this.maxFsyncMicros = journal.maxFsyncNanos.get() / 1000;
+			this.rollovers = journal.rollovers.get();
+			this.segmentSize = journal.segmentSize;
+			this.syncCommit = journal.syncCommit;
+		}
+
+		/**
+		 * Gets the last appended sequence number.
+		 *
+		 * @return the last seq
+		 */
+		public long getLastSeq() {
+			return lastSeq;
+		}
+
+		/**
+		 * Gets the last sequence number on disk.
+		 *
+		 * @return the durable seq
+		 */
+		public long getDurableSeq() {
+			return durableSeq;
+		}
+
+		/**
+		 * Gets the records appended since start.
+		 *
+		 * @return the appends
+		 */
+		public long getAppends() {
+			return appends;
+		}
+
+		/**
+		 * Gets the bytes appended since start.
+		 *
+		 * @return the appended bytes
+		 */
+		public long getAppendedBytes() {
+			return appendedBytes;
+		}
+
+		/**
+		 * Gets the fsync count.
+		 *
+		 * @return the fsyncs
+		 */
+		public long getFsyncs() {
+			return fsyncs;
+		}
+
+		/**
+		 * Gets the average records made durable per fsync.
+		 *
+		 * @return the avg records per fsync
+		 */
+		public double getAvgRecordsPerFsync() {
+			return avgRecordsPerFsync;
+		}
+
+		/**
+		 * Gets the average fsync time in micros.
+		 *
+		 * @return the avg fsync micros
+		 */
+		public long getAvgFsyncMicros() {
+			return avgFsyncMicros;
+		}
+
+		/**
+		 * Gets the max fsync time in micros.
+		 *
+		 * @return the max fsync micros
+		 */
+		public long getMaxFsyncMicros() {
+			return maxFsyncMicros;
+		}
+
+		/**
+		 * Gets the segment rollovers.
+		 *
+		 * @return the rollovers
+		 */
+		public long getRollovers() {
+			return rollovers;
+		}
+
+		/**
+		 * Gets the segment size in bytes.
+		 *
+		 * @return the segment size
+		 */
+		public int getSegmentSize() {
+			return segmentSize;
+		}
+
+		/**
+		 * Checks if commits wait for the fsync.
+		 *
+		 * @return true, if sync commit
+		 */
+		public boolean isSyncCommit() {
+			return syncCommit;
+		}
+	}
+}
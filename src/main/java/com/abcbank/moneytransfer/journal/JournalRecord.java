@@ -0,0 +1,617 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.journal;
+
+import com.abcbank.moneytransfer.model.Money;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * One mutation in the journal. Amounts and balances are stored as Money
+ * units, as in the Balance column; the balances are the values after the
+ * mutation, so a record can be replayed without reading the previous state.
+ * An engine that journals before its database commits follows a failed
+ * commit with an ABORT record naming the sequence numbers it wrote for it;
+ * a reader drops the records an ABORT names.
+ */
+public final class JournalRecord {
+
+	/** The Constant DEPOSIT. */
+	public static final byte DEPOSIT = 1;
+
+	/** The Constant WITHDRAWAL. */
+	public static final byte WITHDRAWAL = 2;
+
+	/** The Constant TRANSFER. */
+	public static final byte TRANSFER = 3;
+
+	/** The Constant ACCOUNT_CREATE. */
+	public static final byte ACCOUNT_CREATE = 4;
+
+	/** The Constant ACCOUNT_DELETE. */
+	public static final byte ACCOUNT_DELETE = 5;
+
+	/** The Constant USER_CREATE. */
+	public static final byte USER_CREATE = 6;
+
+	/** The Constant USER_UPDATE. */
+	public static final byte USER_UPDATE = 7;
+
+	/** The Constant USER_DELETE. */
+	public static final byte USER_DELETE = 8;
+
+	/** The Constant RESET, every user and account removed. */
+	public static final byte RESET = 9;
+
+	/** The Constant ABORT, earlier records of a transaction that did not commit. */
+	public static final byte ABORT = 10;
+
+	/** The type. */
+	private final byte type;
+
+	/** The sequence number, 0 until appended. */
+	private final long seq;
+
+	/** The time of the mutation in millis. */
+	private final long timestamp;
+
+	/** The account id (the debited account of a transfer) or user id. */
+	private final long id;
+
+	/** The credited account of a transfer, 0 otherwise. */
+	private final long counterpartyId;
+
+	/** The amount in units of 10^-4, always positive. */
+	private final long amount;
+
+	/** The account balance after the mutation in units of 10^-4. */
+	private final long balance;
+
+	/** The credited account balance after a transfer in units of 10^-4. */
+	private final long counterpartyBalance;
+
+	/** The transfer history id of a transfer, 0 when not kept by the engine. */
+	private final long transferId;
+
+	/** The user name, UTF-8, null when absent. */
+	private final byte[] name;
+
+	/** The currency code of an account or transfer or email of a user, UTF-8, null when absent. */
+	private final byte[] detail;
+
+	/**
+	 * Instantiates a new journal record.
+	 *
+	 * @param type the type
+	 * @param seq the seq
+	 * @param timestamp the timestamp
+	 * @param id the account or user id
+	 * @param counterpartyId the counterparty id
+	 * @param amount the amount
+	 * @param balance the balance
+	 * @param counterpartyBalance the counterparty balance
+	 * @param transferId the transfer id
+	 * @param name the name
+	 * @param detail the detail
+	 */
+	private JournalRecord(byte type, long seq, long timestamp, long id, long counterpartyId, long amount,
+			long balance, long counterpartyBalance, long transferId, byte[] name, byte[] detail) {
+		this.type = type;
+		this.seq = seq;
+		this.timestamp = timestamp;
+		this.id = id;
+		this.counterpartyId = counterpartyId;
+		this.amount = amount;
+		this.balance = balance;
+		this.counterpartyBalance = counterpartyBalance;
+		this.transferId = transferId;
+		this.name = name;
+		this.detail = detail;
+	}
+
+	/**
+	 * Instantiates a new record of the current time.
+	 *
+	 * @param type the type
+	 * @param id the id
+	 * @param counterpartyId the counterparty id
+	 * @param amount the amount
+	 * @param balance the balance
+	 * @param counterpartyBalance the counterparty balance
+	 * @param transferId the transfer id
+	 * @param name the name
+	 * @param detail the detail
+	 * @return the record
+	 */
+	private static JournalRecord of(byte type, long id, long counterpartyId, long amount, long balance,
+			long counterpartyBalance, long transferId, String name, String detail) {
+		return new JournalRecord(type, 0, System.currentTimeMillis(), id, counterpartyId, amount, balance,
+				counterpartyBalance, transferId, encode(name), encode(detail));
+	}
+
+	/**
+	 * A deposit or withdrawal, depending on the sign of the delta.
+	 *
+	 * @param accountId the account id
+	 * @param delta the signed amount
+	 * @param balance the balance after the update
+	 * @return the record
+	 */
+	public static JournalRecord balanceUpdate(long accountId, BigDecimal delta, BigDecimal balance) {
+		return balanceUpdate(accountId, Money.toUnits(delta), Money.toUnits(balance));
+	}
+
+	/**
+	 * A deposit or withdrawal in units, depending on the sign of the delta.
+	 *
+	 * @param accountId the account id
+	 * @param delta the signed amount in units
+	 * @param balance the balance after the update in units
+	 * @return the record
+	 */
+	public static JournalRecord balanceUpdate(long accountId, long delta, long balance) {
+		return of(delta < 0 ? WITHDRAWAL : DEPOSIT, accountId, 0, Math.abs(delta), balance, 0, 0, null, null);
+	}
+
+	/**
+	 * A transfer between two accounts.
+	 *
+	 * @param fromAccountId the debited account
+	 * @param toAccountId the credited account
+	 * @param amount the amount
+	 * @param fromBalance the debited account balance after the transfer
+	 * @param toBalance the credited account balance after the transfer
+	 * @return the record
+	 */
+	public static JournalRecord transfer(long fromAccountId, long toAccountId, BigDecimal amount,
+			BigDecimal fromBalance, BigDecimal toBalance) {
+		return transfer(fromAccountId, toAccountId, amount, fromBalance, toBalance, 0, null);
+	}
+
+	/**
+	 * A transfer between two accounts, with its transfer history entry.
+	 *
+	 * @param fromAccountId the debited account
+	 * @param toAccountId the credited account
+	 * @param amount the amount
+	 * @param fromBalance the debited account balance after the transfer
+	 * @param toBalance the credited account balance after the transfer
+	 * @param transferId the transfer history id, 0 when none
+	 * @param currencyCode the currency code
+	 * @return the record
+	 */
+	public static JournalRecord transfer(long fromAccountId, long toAccountId, BigDecimal amount,
+			BigDecimal fromBalance, BigDecimal toBalance, long transferId, String currencyCode) {
+		return transfer(fromAccountId, toAccountId, Money.toUnits(amount), Money.toUnits(fromBalance),
+				Money.toUnits(toBalance), transferId, currencyCode);
+	}
+
+	/**
+	 * A transfer between two accounts in units, with its transfer history
+	 * entry.
+	 *
+	 * @param fromAccountId the debited account
+	 * @param toAccountId the credited account
+	 * @param amount the amount in units
+	 * @param fromBalance the debited account balance after the transfer in units
+	 * @param toBalance the credited account balance after the transfer in units
+	 * @param transferId the transfer history id, 0 when none
+	 * @param currencyCode the currency code
+	 * @return the record
+	 */
+	public static JournalRecord transfer(long fromAccountId, long toAccountId, long amount, long fromBalance,
+			long toBalance, long transferId, String currencyCode) {
+		return of(TRANSFER, fromAccountId, toAccountId, amount, fromBalance, toBalance, transferId, null,
+				currencyCode);
+	}
+
+	/**
+	 * A new account.
+	 *
+	 * @param accountId the account id
+	 * @param userName the user name
+	 * @param balance the opening balance in units, Money.NULL_UNITS when missing
+	 * @param currencyCode the currency code
+	 * @return the record
+	 */
+	public static JournalRecord accountCreate(long accountId, String userName, long balance,
+			String currencyCode) {
+		return of(ACCOUNT_CREATE, accountId, 0, 0, balance, 0, 0, userName, currencyCode);
+	}
+
+	/**
+	 * A deleted account.
+	 *
+	 * @param accountId the account id
+	 * @return the record
+	 */
+	public static JournalRecord accountDelete(long accountId) {
+		return of(ACCOUNT_DELETE, accountId, 0, 0, 0, 0, 0, null, null);
+	}
+
+	/**
+	 * A new or updated user.
+	 *
+	 * @param type USER_CREATE or USER_UPDATE
+	 * @param userId the user id
+	 * @param userName the user name
+	 * @param emailAddress the email address
+	 * @return the record
+	 */
+	public static JournalRecord user(byte type, long userId, String userName, String emailAddress) {
+		return of(type, userId, 0, 0, 0, 0, 0, userName, emailAddress);
+	}
+
+	/**
+	 * A deleted user.
+	 *
+	 * @param userId the user id
+	 * @return the record
+	 */
+	public static JournalRecord userDelete(long userId) {
+		return of(USER_DELETE, userId, 0, 0, 0, 0, 0, null, null);
+	}
+
+	/**
+	 * Every user and account removed.
+	 *
+	 * @return the record
+	 */
+	public static JournalRecord reset() {
+		return of(RESET, 0, 0, 0, 0, 0, 0, null, null);
+	}
+
+	/**
+	 * The records from firstSeq to lastSeq, appended for a transaction whose
+	 * commit failed, never applied.
+	 *
+	 * @param firstSeq the first sequence number of the transaction
+	 * @param lastSeq the last sequence number of the transaction
+	 * @return the record
+	 */
+	public static JournalRecord abort(long firstSeq, long lastSeq) {
+		return of(ABORT, firstSeq, lastSeq, 0, 0, 0, 0, null, null);
+	}
+
+	/**
+	 * Gets the payload size in bytes.
+	 *
+	 * @return the payload size
+	 */
+	int payloadSize() {
+		switch (type) {
+		case TRANSFER:
+			return 6 * 8 + sizeOf(detail);
+		case DEPOSIT:
+		case WITHDRAWAL:
+			return 3 * 8;
+		case ACCOUNT_CREATE:
+			return 2 * 8 + sizeOf(name) + sizeOf(detail);
+		case USER_CREATE:
+		case USER_UPDATE:
+			return 8 + sizeOf(name) + sizeOf(detail);
+		case RESET:
+			return 0;
+		case ABORT:
+			return 2 * 8;
+		default:
+			return 8;
+		}
+	}
+
+	/**
+	 * Write the payload.
+	 *
+	 * @param buf the buffer
+	 */
+	void writePayload(ByteBuffer buf) {
+		switch (type) {
+		case TRANSFER:
+			buf.putLong(id).putLong(counterpartyId).putLong(amount).putLong(balance).putLong(counterpartyBalance)
+					.putLong(transferId);
+			putBytes(buf, detail);
+			break;
+		case DEPOSIT:
+		case WITHDRAWAL:
+			buf.putLong(id).putLong(amount).putLong(balance);
+			break;
+		case ACCOUNT_CREATE:
+			buf.putLong(id).putLong(balance);
+			putBytes(buf, name);
+			putBytes(buf, detail);
+			break;
+		case USER_CREATE:
+		case USER_UPDATE:
+			buf.putLong(id);
+			putBytes(buf, name);
+			putBytes(buf, detail);
+			break;
+		case RESET:
+			break;
+		case ABORT:
+			buf.putLong(id).putLong(counterpartyId);
+			break;
+		default:
+			buf.putLong(id);
+		}
+	}
+
+	/**
+	 * Read a record payload.
+	 *
+	 * @param type the type
+	 * @param seq the seq
+	 * @param timestamp the timestamp
+	 * @param buf the buffer positioned at the payload
+	 * @return the record, null for an unknown type
+	 */
+	static JournalRecord readPayload(byte type, long seq, long timestamp, ByteBuffer buf) {
+		switch (type) {
+		case DEPOSIT:
+		case WITHDRAWAL:
+			return new JournalRecord(type, seq, timestamp, buf.getLong(), 0, buf.getLong(), buf.getLong(), 0, 0, null,
+					null);
+		case TRANSFER:
+			long from = buf.getLong();
+			long to = buf.getLong();
+			long amount = buf.getLong();
+			long fromBalance = buf.getLong();
+			long toBalance = buf.getLong();
+			return new JournalRecord(type, seq, timestamp, from, to, amount, fromBalance, toBalance, buf.getLong(),
+					null, getBytes(buf));
+		case ACCOUNT_CREATE:
+			long accountId = buf.getLong();
+			long balance = buf.getLong();
+			return new JournalRecord(type, seq, timestamp, accountId, 0, 0, balance, 0, 0, getBytes(buf),
+					getBytes(buf));
+		case USER_CREATE:
+		case USER_UPDATE:
+			long userId = buf.getLong();
+			return new JournalRecord(type, seq, timestamp, userId, 0, 0, 0, 0, 0, getBytes(buf), getBytes(buf));
+		case ACCOUNT_DELETE:
+		case USER_DELETE:
+			return new JournalRecord(type, seq, timestamp, buf.getLong(), 0, 0, 0, 0, 0, null, null);
+		case RESET:
+			return new JournalRecord(type, seq, timestamp, 0, 0, 0, 0, 0, 0, null, null);
+		case ABORT:
+			long firstSeq = buf.getLong();
+			return new JournalRecord(type, seq, timestamp, firstSeq, buf.getLong(), 0, 0, 0, 0, null, null);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Encode a string as UTF-8.
+	 *
+	 * @param value the value
+	 * @return the bytes, null for null
+	 */
+	private static byte[] encode(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the encoded size of a length prefixed byte string.
+	 *
+	 * @param bytes the bytes
+	 * @return the size
+	 */
+	private static int sizeOf(byte[] bytes) {
+		return 4 + (bytes == null ? 0 : bytes.length);
+	}
+
+	/**
+	 * Write a length prefixed byte string, length -1 for null.
+	 *
+	 * @param buf the buf
+	 * @param bytes the bytes
+	 */
+	private static void putBytes(ByteBuffer buf, byte[] bytes) {
+		if (bytes == null) {
+			buf.putInt(-1);
+		} else {
+			buf.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	/**
+	 * Read a length prefixed byte string.
+	 *
+	 * @param buf the buf
+	 * @return the bytes, null for length -1
+	 */
+	private static byte[] getBytes(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Gets the type.
+	 *
+	 * @return the type
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the sequence number.
+	 *
+	 * @return the seq
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets the timestamp.
+	 *
+	 * @return the timestamp
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Gets the account id.
+	 *
+	 * @return the account id
+	 */
+	public long getAccountId() {
+		return id;
+	}
+
+	/**
+	 * Gets the user id of a user record.
+	 *
+	 * @return the user id
+	 */
+	public long getUserId() {
+		return id;
+	}
+
+	/**
+	 * Gets the first sequence number an abort record drops.
+	 *
+	 * @return the first aborted sequence number
+	 */
+	public long getAbortedFromSeq() {
+		return id;
+	}
+
+	/**
+	 * Gets the last sequence number an abort record drops.
+	 *
+	 * @return the last aborted sequence number
+	 */
+	public long getAbortedToSeq() {
+		return counterpartyId;
+	}
+
+	/**
+	 * Gets the credited account id of a transfer.
+	 *
+	 * @return the counterparty id
+	 */
+	public long getCounterpartyId() {
+		return counterpartyId;
+	}
+
+	/**
+	 * Gets the transfer history id of a transfer.
+	 *
+	 * @return the transfer id, 0 when none
+	 */
+	public long getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * Gets the amount.
+	 *
+	 * @return the amount
+	 */
+	public BigDecimal getAmount() {
+		return Money.toBigDecimal(amount);
+	}
+
+	/**
+	 * Gets the amount in units.
+	 *
+	 * @return the amount in units
+	 */
+	public long getAmountUnits() {
+		return amount;
+	}
+
+	/**
+	 * Gets the account balance after the mutation.
+	 *
+	 * @return the balance
+	 */
+	public BigDecimal getBalance() {
+		return Money.toBigDecimal(balance);
+	}
+
+	/**
+	 * Gets the account balance after the mutation in units.
+	 *
+	 * @return the balance in units, Money.NULL_UNITS when missing
+	 */
+	public long getBalanceUnits() {
+		return balance;
+	}
+
+	/**
+	 * Gets the credited account balance after a transfer.
+	 *
+	 * @return the counterparty balance
+	 */
+	public BigDecimal getCounterpartyBalance() {
+		return Money.toBigDecimal(counterpartyBalance);
+	}
+
+	/**
+	 * Gets the credited account balance after a transfer in units.
+	 *
+	 * @return the counterparty balance in units
+	 */
+	public long getCounterpartyBalanceUnits() {
+		return counterpartyBalance;
+	}
+
+	/**
+	 * Gets the user name of an account or user record.
+	 *
+	 * @return the user name
+	 */
+	public String getUserName() {
+		return name == null ? null : new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the currency code of an account or transfer record.
+	 *
+	 * @return the currency code
+	 */
+	public String getCurrencyCode() {
+		return detail == null ? null : new String(detail, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the email address of a user record.
+	 *
+	 * @return the email address
+	 */
+	public String getEmailAddress() {
+		return getCurrencyCode();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "JournalRecord{" + "type=" + type + ", seq=" + seq + ", timestamp=" + timestamp + ", id=" + id
+				+ ", counterpartyId=" + counterpartyId + ", amount=" + getAmount() + ", balance=" + getBalance()
+				+ ", counterpartyBalance=" + getCounterpartyBalance() + ", transferId=" + transferId + ", name=" + getUserName() + ", detail="
+				+ getCurrencyCode() + '}';
+	}
+}
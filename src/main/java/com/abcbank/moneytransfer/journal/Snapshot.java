@@ -0,0 +1,405 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.journal;
+
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.Money;
+import com.abcbank.moneytransfer.model.Transfer;
+import com.abcbank.moneytransfer.model.User;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * Point in time image of every user and account, tagged with the journal
+ * sequence number it includes. Recovery loads the newest readable snapshot
+ * and replays only the journal records after it, so restart time follows the
+ * snapshot lag instead of the journal length.
+ * <p>
+ * The file is magic, version, journal sequence, the id sequences, the users,
+ * the accounts, the transfer history (from version 2) and a CRC32 of
+ * everything before it. It is written to a temporary file, forced and
+ * renamed, so a crash never leaves a partial snapshot under the final name.
+ */
+public final class Snapshot {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(Snapshot.class);
+
+	/** The Constant MAGIC. */
+	private static final int MAGIC = 0x4D534E50;
+
+	/** The Constant VERSION, 1 had no transfer history. */
+	private static final int VERSION = 2;
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "snapshot-";
+
+	/** The Constant SUFFIX. */
+	private static final String SUFFIX = ".bin";
+
+	/** The last journal sequence number included. */
+	private final long journalSeq;
+
+	/** The last user id handed out. */
+	private final long userSeq;
+
+	/** The last account id handed out. */
+	private final long accountSeq;
+
+	/** The last transfer id handed out. */
+	private final long transferSeq;
+
+	/** The users. */
+	private final List<User> users;
+
+	/** The accounts. */
+	private final List<Account> accounts;
+
+	/** The transfer history. */
+	private final List<Transfer> transfers;
+
+	/**
+	 * Instantiates a new snapshot.
+	 *
+	 * @param journalSeq the last journal sequence number included
+	 * @param userSeq the last user id handed out
+	 * @param accountSeq the last account id handed out
+	 * @param transferSeq the last transfer id handed out
+	 * @param users the users
+	 * @param accounts the accounts
+	 * @param transfers the transfer history
+	 */
+	public Snapshot(long journalSeq, long userSeq, long accountSeq, long transferSeq, List<User> users,
+			List<Account> accounts, List<Transfer> transfers) {
+		this.journalSeq = journalSeq;
+		this.userSeq = userSeq;
+		this.accountSeq = accountSeq;
+		this.transferSeq = transferSeq;
+		this.users = users;
+		this.accounts = accounts;
+		this.transfers = transfers;
+	}
+
+	/**
+	 * Write the snapshot into a directory.
+	 *
+	 * @param dir the dir
+	 * @return the snapshot file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public File write(File dir) throws IOException {
+		File file = snapshotFile(dir, journalSeq);
+		File tmp = new File(dir, file.getName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(journalSeq);
+			out.writeLong(userSeq);
+			out.writeLong(accountSeq);
+			out.writeInt(users.size());
+			for (User u : users) {
+				out.writeLong(u.getUserId());
+				writeString(out, u.getUserName());
+				writeString(out, u.getEmailAddress());
+			}
+			out.writeInt(accounts.size());
+			for (Account a : accounts) {
+				out.writeLong(a.getAccountId());
+				writeString(out, a.getUserName());
+				long balance = a.getBalanceUnits();
+				out.writeBoolean(balance != Money.NULL_UNITS);
+				out.writeLong(balance == Money.NULL_UNITS ? 0 : balance);
+				writeString(out, a.getCurrencyCode());
+			}
+			out.writeLong(transferSeq);
+			out.writeInt(transfers.size());
+			for (Transfer t : transfers) {
+				out.writeLong(t.getTransferId());
+				out.writeLong(t.getFromAccountId());
+				out.writeLong(t.getToAccountId());
+				out.writeLong(t.getAmountUnits());
+				writeString(out, t.getCurrencyCode());
+				out.writeLong(t.getCreatedAt());
+			}
+			out.flush();
+			// the crc covers what went through the checked stream so far
+			new DataOutputStream(fos).writeInt((int) crc.getValue());
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	/**
+	 * Read the newest valid snapshot of a directory. A corrupt snapshot is
+	 * logged and skipped in favour of the one before it.
+	 *
+	 * @param dir the dir
+	 * @return the snapshot, null when there is none
+	 */
+	public static Snapshot readLatest(File dir) {
+		File[] files = listSnapshots(dir);
+		for (int i = files.length - 1; i >= 0; i--) {
+			try {
+				return read(files[i]);
+			} catch (IOException | RuntimeException e) {
+				log.warn("readLatest(): skipping unreadable snapshot " + files[i], e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read a snapshot file.
+	 *
+	 * @param file the file
+	 * @return the snapshot
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static Snapshot read(File file) throws IOException {
+		ByteBuffer buf;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buf.limit() < 4) {
+			throw new IOException("Snapshot too short: " + file);
+		}
+		ByteBuffer body = buf.duplicate();
+		body.limit(buf.limit() - 4);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != buf.getInt(buf.limit() - 4)) {
+			throw new IOException("Snapshot checksum mismatch: " + file);
+		}
+		buf.limit(buf.limit() - 4);
+		try {
+			int version = buf.getInt() == MAGIC ? buf.getInt() : -1;
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Not a snapshot or unknown version: " + file);
+			}
+			long journalSeq = buf.getLong();
+			long userSeq = buf.getLong();
+			long accountSeq = buf.getLong();
+			int userCount = buf.getInt();
+			List<User> users = new ArrayList<User>(userCount);
+			for (int i = 0; i < userCount; i++) {
+				users.add(new User(buf.getLong(), readString(buf), readString(buf)));
+			}
+			int accountCount = buf.getInt();
+			List<Account> accounts = new ArrayList<Account>(accountCount);
+			for (int i = 0; i < accountCount; i++) {
+				long accountId = buf.getLong();
+				String userName = readString(buf);
+				boolean hasBalance = buf.get() != 0;
+				long units = buf.getLong();
+				accounts.add(new Account(accountId, userName, hasBalance ? units : Money.NULL_UNITS, readString(buf)));
+			}
+			long transferSeq = 0;
+			List<Transfer> transfers = new ArrayList<Transfer>();
+			if (version >= 2) {
+				transferSeq = buf.getLong();
+				int transferCount = buf.getInt();
+				for (int i = 0; i < transferCount; i++) {
+					long transferId = buf.getLong();
+					long from = buf.getLong();
+					long to = buf.getLong();
+					long amount = buf.getLong();
+					transfers.add(new Transfer(transferId, from, to, amount, readString(buf), buf.getLong()));
+				}
+			}
+			return new Snapshot(journalSeq, userSeq, accountSeq, transferSeq, users, accounts, transfers);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot: " + file, e);
+		}
+	}
+
+	/**
+	 * Delete all but the newest snapshots of a directory, and left over
+	 * temporary files.
+	 *
+	 * @param dir the dir
+	 * @param keep the number of snapshots to keep, at least 1
+	 * @return the journal sequence number of the oldest snapshot kept, 0 when there is none
+	 */
+	public static long deleteOlder(File dir, int keep) {
+		File[] tmp = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX + ".tmp"));
+		if (tmp != null) {
+			for (File f : tmp) {
+				f.delete();
+			}
+		}
+		File[] files = listSnapshots(dir);
+		int first = Math.max(0, files.length - Math.max(1, keep));
+		for (int i = 0; i < first; i++) {
+			if (!files[i].delete()) {
+				log.warn("deleteOlder(): Error deleting snapshot " + files[i]);
+			}
+		}
+		return files.length == 0 ? 0 : seqOf(files[first]);
+	}
+
+	/**
+	 * Write a length prefixed UTF-8 string, length -1 for null.
+	 *
+	 * @param out the out
+	 * @param value the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a length prefixed UTF-8 string.
+	 *
+	 * @param buf the buf
+	 * @return the string, null for length -1
+	 */
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * List the snapshot files in sequence order.
+	 *
+	 * @param dir the dir
+	 * @return the files
+	 */
+	private static File[] listSnapshots(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files == null) {
+			return new File[0];
+		}
+		// names are zero padded, so name order is sequence order
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Gets the snapshot file of a journal sequence number.
+	 *
+	 * @param dir the dir
+	 * @param journalSeq the journal seq
+	 * @return the file
+	 */
+	private static File snapshotFile(File dir, long journalSeq) {
+		return new File(dir, PREFIX + String.format("%020d", journalSeq) + SUFFIX);
+	}
+
+	/**
+	 * Gets the journal sequence number of a snapshot file from its name.
+	 *
+	 * @param file the file
+	 * @return the seq
+	 */
+	private static long seqOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Gets the last journal sequence number included.
+	 *
+	 * @return the journal seq
+	 */
+	public long getJournalSeq() {
+		return journalSeq;
+	}
+
+	/**
+	 * Gets the last user id handed out.
+	 *
+	 * @return the user seq
+	 */
+	public long getUserSeq() {
+		return userSeq;
+	}
+
+	/**
+	 * Gets the last account id handed out.
+	 *
+	 * @return the account seq
+	 */
+	public long getAccountSeq() {
+		return accountSeq;
+	}
+
+	/**
+	 * Gets the last transfer id handed out.
+	 *
+	 * @return the transfer seq
+	 */
+	public long getTransferSeq() {
+		return transferSeq;
+	}
+
+	/**
+	 * Gets the users.
+	 *
+	 * @return the users
+	 */
+	public List<User> getUsers() {
+		return users;
+	}
+
+	/**
+	 * Gets the accounts.
+	 *
+	 * @return the accounts
+	 */
+	public List<Account> getAccounts() {
+		return accounts;
+	}
+
+	/**
+	 * Gets the transfer history.
+	 *
+	 * @return the transfers
+	 */
+	public List<Transfer> getTransfers() {
+		return transfers;
+	}
+}
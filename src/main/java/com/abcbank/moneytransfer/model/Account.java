@@ -11,7 +11,9 @@
 package com.abcbank.moneytransfer.model;
 
 import java.math.BigDecimal;
+import java.util.Objects;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 
@@ -27,9 +29,8 @@ public class Account {
     @JsonProperty(required = true)
     private String userName;
 
-    /** The balance. */
-    @JsonProperty(required = true)
-    private BigDecimal balance;
+    /** The balance in units of 10^-4, Money.NULL_UNITS when missing. */
+    private long balance = Money.NULL_UNITS;
 
     /** The currency code. */
     @JsonProperty(required = true)
@@ -50,7 +51,7 @@ public class Account {
      */
     public Account(String userName, BigDecimal balance, String currencyCode) {
         this.userName = userName;
-        this.balance = balance;
+        this.balance = Money.toUnits(balance);
         this.currencyCode = currencyCode;
     }
 
@@ -63,9 +64,21 @@ public class Account {
      * @param currencyCode the currency code
      */
     public Account(long accountId, String userName, BigDecimal balance, String currencyCode) {
+        this(accountId, userName, Money.toUnits(balance), currencyCode);
+    }
+
+    /**
+     * Instantiates a new account with a balance in units.
+     *
+     * @param accountId the account id
+     * @param userName the user name
+     * @param balanceUnits the balance in units of 10^-4, Money.NULL_UNITS when missing
+     * @param currencyCode the currency code
+     */
+    public Account(long accountId, String userName, long balanceUnits, String currencyCode) {
         this.accountId = accountId;
         this.userName = userName;
-        this.balance = balance;
+        this.balance = balanceUnits;
         this.currencyCode = currencyCode;
     }
 
@@ -92,7 +105,28 @@ public class Account {
      *
      * @return the balance
      */
+    @JsonProperty(required = true)
     public BigDecimal getBalance() {
+        return Money.toBigDecimal(balance);
+    }
+
+    /**
+     * Sets the balance, read from JSON.
+     *
+     * @param balance the balance
+     */
+    @JsonProperty(required = true)
+    private void setBalance(BigDecimal balance) {
+        this.balance = Money.toUnits(balance);
+    }
+
+    /**
+     * Gets the balance in units.
+     *
+     * @return the balance in units of 10^-4, Money.NULL_UNITS when missing
+     */
+    @JsonIgnore
+    public long getBalanceUnits() {
         return balance;
     }
 
@@ -105,6 +139,16 @@ public class Account {
         return currencyCode;
     }
 
+    /**
+     * Gets the currency id.
+     *
+     * @return the id of the currency code in the CurrencyTable, CurrencyTable.UNKNOWN if it has none
+     */
+    @JsonIgnore
+    public int getCurrencyId() {
+        return CurrencyTable.idOf(currencyCode);
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#equals(java.lang.Object)
      */
@@ -116,9 +160,9 @@ public class Account {
         Account account = (Account) o;
 
         if (accountId != account.accountId) return false;
-        if (!userName.equals(account.userName)) return false;
-        if (!balance.equals(account.balance)) return false;
-        return currencyCode.equals(account.currencyCode);
+        if (!Objects.equals(userName, account.userName)) return false;
+        if (balance != account.balance) return false;
+        return Objects.equals(currencyCode, account.currencyCode);
 
     }
 
@@ -128,9 +172,9 @@ public class Account {
     @Override
     public int hashCode() {
         int result = (int) (accountId ^ (accountId >>> 32));
-        result = 31 * result + userName.hashCode();
-        result = 31 * result + balance.hashCode();
-        result = 31 * result + currencyCode.hashCode();
+        result = 31 * result + Objects.hashCode(userName);
+        result = 31 * result + (int) (balance ^ (balance >>> 32));
+        result = 31 * result + Objects.hashCode(currencyCode);
         return result;
     }
 
@@ -142,7 +186,7 @@ public class Account {
         return "Account{" +
                 "accountId=" + accountId +
                 ", userName='" + userName + '\'' +
-                ", balance=" + balance +
+                ", balance=" + getBalance() +
                 ", currencyCode='" + currencyCode + '\'' +
                 '}';
     }
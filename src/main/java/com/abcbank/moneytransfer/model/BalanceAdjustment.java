@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.math.BigDecimal;
+
+
+/**
+ * One deposit or withdrawal of a bulk balance adjustment.
+ */
+public class BalanceAdjustment {
+
+	/** The account id. */
+	@JsonProperty(required = true)
+	private Long accountId;
+
+	/** The delta amount, a deposit when greater than 0, a withdrawal when less. */
+	@JsonProperty(required = true)
+	private BigDecimal deltaAmount;
+
+	/**
+	 * Instantiates a new balance adjustment.
+	 */
+	public BalanceAdjustment() {
+	}
+
+	/**
+	 * Instantiates a new balance adjustment.
+	 *
+	 * @param accountId the account id
+	 * @param deltaAmount the delta amount, a deposit when greater than 0, a withdrawal when less
+	 */
+	public BalanceAdjustment(Long accountId, BigDecimal deltaAmount) {
+		this.accountId = accountId;
+		this.deltaAmount = deltaAmount;
+	}
+
+	/**
+	 * Gets the account id.
+	 *
+	 * @return the account id
+	 */
+	public Long getAccountId() {
+		return accountId;
+	}
+
+	/**
+	 * Gets the delta amount.
+	 *
+	 * @return the delta amount
+	 */
+	public BigDecimal getDeltaAmount() {
+		return deltaAmount;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "BalanceAdjustment{" + "accountId=" + accountId + ", deltaAmount=" + deltaAmount + '}';
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.math.BigDecimal;
+
+
+/**
+ * The outcome of one balance adjustment of a bulk request.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BalanceResult {
+
+	/**
+	 * The adjustment outcomes.
+	 */
+	public enum Status {
+
+		/** Applied and committed. */
+		APPLIED,
+
+		/** No such account. */
+		NOT_FOUND,
+
+		/** The balance would go below zero. */
+		NOT_ENOUGH_FUND,
+
+		/** Failed on an error, such as the account still locked after the retry deadline. */
+		FAILED
+	}
+
+	/** The account id. */
+	@JsonProperty
+	private long accountId;
+
+	/** The status. */
+	@JsonProperty
+	private Status status;
+
+	/** The balance right after the adjustment, null unless applied. */
+	@JsonProperty
+	private BigDecimal balance;
+
+	/**
+	 * Instantiates a new balance result.
+	 */
+	public BalanceResult() {
+	}
+
+	/**
+	 * Instantiates a new balance result.
+	 *
+	 * @param accountId the account id
+	 * @param status the status
+	 * @param balance the balance right after the adjustment, null unless applied
+	 */
+	public BalanceResult(long accountId, Status status, BigDecimal balance) {
+		this.accountId = accountId;
+		this.status = status;
+		this.balance = balance;
+	}
+
+	/**
+	 * Gets the account id.
+	 *
+	 * @return the account id
+	 */
+	public long getAccountId() {
+		return accountId;
+	}
+
+	/**
+	 * Gets the status.
+	 *
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets the balance right after the adjustment.
+	 *
+	 * @return the balance, null unless applied
+	 */
+	public BigDecimal getBalance() {
+		return balance;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "BalanceResult{" + "accountId=" + accountId + ", status=" + status + ", balance=" + balance + '}';
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import java.util.Currency;
+
+
+/**
+ * The ISO 4217 currencies, built once from java.util.Currency into arrays
+ * indexed by a compact currency id, so that a lookup neither allocates nor
+ * throws. The id of a code of three letters A to Z is its value in base 26
+ * plus one, between 1 and 17576: it depends on the code only, never on the
+ * JDK or the order the currencies are listed in, so it can be stored in
+ * place of the code. 0 is the id of anything else.
+ */
+public final class CurrencyTable {
+
+	/** The Constant UNKNOWN, the id of a string that is no ISO 4217 code. */
+	public static final int UNKNOWN = 0;
+
+	/** The Constant MAX_ID. */
+	public static final int MAX_ID = 26 * 26 * 26;
+
+	/** The Constant NO_MINOR_UNITS, the minor units of a pseudo currency such as XAU. */
+	public static final int NO_MINOR_UNITS = -1;
+
+	/** The codes by id, null for ids of no currency. */
+	private static final String[] CODES = new String[MAX_ID + 1];
+
+	/** The minor units by id, the number of decimals of the currency. */
+	private static final byte[] MINOR_UNITS = new byte[MAX_ID + 1];
+
+	static {
+		for (Currency currency : Currency.getAvailableCurrencies()) {
+			String code = currency.getCurrencyCode();
+			int id = encode(code);
+			if (id != UNKNOWN) {
+				CODES[id] = code;
+				MINOR_UNITS[id] = (byte) currency.getDefaultFractionDigits();
+			}
+		}
+	}
+
+	/**
+	 * Not instantiable.
+	 */
+	private CurrencyTable() {
+	}
+
+	/**
+	 * Gets the id of a currency code.
+	 *
+	 * @param code the currency code, may be null
+	 * @return the id, UNKNOWN if the code is no ISO 4217 code
+	 */
+	public static int idOf(String code) {
+		int id = encode(code);
+		return CODES[id] == null ? UNKNOWN : id;
+	}
+
+	/**
+	 * Check a currency code is an ISO 4217 code, upper case.
+	 *
+	 * @param code the currency code, may be null
+	 * @return true, if valid
+	 */
+	public static boolean isValid(String code) {
+		return idOf(code) != UNKNOWN;
+	}
+
+	/**
+	 * Gets the code of a currency id. The same String instance is returned
+	 * for every call with one id.
+	 *
+	 * @param id the currency id
+	 * @return the code, null if the id is of no currency
+	 */
+	public static String codeOf(int id) {
+		return id > UNKNOWN && id <= MAX_ID ? CODES[id] : null;
+	}
+
+	/**
+	 * Gets the minor units of a currency, the number of decimals it is
+	 * quoted in.
+	 *
+	 * @param id the currency id
+	 * @return the minor units, NO_MINOR_UNITS for a pseudo currency or an unknown id
+	 */
+	public static int minorUnits(int id) {
+		return codeOf(id) == null ? NO_MINOR_UNITS : MINOR_UNITS[id];
+	}
+
+	/**
+	 * Encode three letters A to Z as a number in base 26, plus one.
+	 *
+	 * @param code the code, may be null
+	 * @return the id, UNKNOWN if the code is not three letters A to Z
+	 */
+	private static int encode(String code) {
+		if (code == null || code.length() != 3) {
+			return UNKNOWN;
+		}
+		int id = 0;
+		for (int i = 0; i < 3; i++) {
+			char c = code.charAt(i);
+			if (c < 'A' || c > 'Z') {
+				return UNKNOWN;
+			}
+			id = id * 26 + (c - 'A');
+		}
+		return id + 1;
+	}
+}
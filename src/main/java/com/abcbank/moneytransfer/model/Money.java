@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+
+/**
+ * Amounts and balances as a long count of units of 10^-4, the 4 decimal
+ * scale money always had here. Inside the application and in the BIGINT
+ * balance column money is kept in units, with overflow checked arithmetic;
+ * it becomes a BigDecimal only when read from or written to JSON.
+ */
+public final class Money {
+
+	/** The Constant SCALE, the number of decimals of a unit. */
+	public static final int SCALE = 4;
+
+	/** The Constant NULL_UNITS, marks a missing amount. */
+	public static final long NULL_UNITS = Long.MIN_VALUE;
+
+	/**
+	 * Not instantiable.
+	 */
+	private Money() {
+	}
+
+	/**
+	 * Convert an amount to units, rounding half even to 4 decimals.
+	 *
+	 * @param amount the amount, may be null
+	 * @return the units, NULL_UNITS for null
+	 * @throws ArithmeticException if the amount does not fit in a long of units
+	 */
+	public static long toUnits(BigDecimal amount) {
+		if (amount == null) {
+			return NULL_UNITS;
+		}
+		long units = amount.setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+		if (units == NULL_UNITS) {
+			throw new ArithmeticException("Amount out of range: " + amount);
+		}
+		return units;
+	}
+
+	/**
+	 * Convert units to an amount of scale 4.
+	 *
+	 * @param units the units
+	 * @return the amount, null for NULL_UNITS
+	 */
+	public static BigDecimal toBigDecimal(long units) {
+		return units == NULL_UNITS ? null : BigDecimal.valueOf(units, SCALE);
+	}
+
+	/**
+	 * Add two amounts.
+	 *
+	 * @param a the units of the first amount
+	 * @param b the units of the second amount
+	 * @return the units of the sum
+	 * @throws ArithmeticException if an amount is missing or the sum overflows
+	 */
+	public static long add(long a, long b) {
+		long sum = Math.addExact(a, b);
+		if (a == NULL_UNITS || b == NULL_UNITS || sum == NULL_UNITS) {
+			throw new ArithmeticException("Amount out of range");
+		}
+		return sum;
+	}
+
+	/**
+	 * Subtract an amount from another.
+	 *
+	 * @param a the units of the amount to subtract from
+	 * @param b the units of the amount to subtract
+	 * @return the units of the difference
+	 * @throws ArithmeticException if an amount is missing or the difference overflows
+	 */
+	public static long subtract(long a, long b) {
+		long difference = Math.subtractExact(a, b);
+		if (a == NULL_UNITS || b == NULL_UNITS || difference == NULL_UNITS) {
+			throw new ArithmeticException("Amount out of range");
+		}
+		return difference;
+	}
+
+	/**
+	 * Format units as the plain decimal of their amount, for log lines.
+	 *
+	 * @param units the units
+	 * @return the text
+	 */
+	public static String toString(long units) {
+		return String.valueOf(toBigDecimal(units));
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.math.BigDecimal;
+
+
+/**
+ * A committed transfer, as kept in the transfer history.
+ */
+public class Transfer {
+
+	/** The transfer id, 0 until stored. */
+	@JsonProperty
+	private long transferId;
+
+	/** The from account id. */
+	@JsonProperty
+	private long fromAccountId;
+
+	/** The to account id. */
+	@JsonProperty
+	private long toAccountId;
+
+	/** The amount in units of 10^-4. */
+	private long amount;
+
+	/** The currency code. */
+	@JsonProperty
+	private String currencyCode;
+
+	/** The commit time in millis since the epoch. */
+	@JsonProperty
+	private long createdAt;
+
+	/**
+	 * Instantiates a new transfer.
+	 */
+	public Transfer() {
+	}
+
+	/**
+	 * Instantiates a new transfer.
+	 *
+	 * @param transferId the transfer id
+	 * @param fromAccountId the from account id
+	 * @param toAccountId the to account id
+	 * @param amount the amount
+	 * @param currencyCode the currency code
+	 * @param createdAt the commit time in millis since the epoch
+	 */
+	public Transfer(long transferId, long fromAccountId, long toAccountId, BigDecimal amount, String currencyCode,
+			long createdAt) {
+		this(transferId, fromAccountId, toAccountId, Money.toUnits(amount), currencyCode, createdAt);
+	}
+
+	/**
+	 * Instantiates a new transfer with an amount in units.
+	 *
+	 * @param transferId the transfer id
+	 * @param fromAccountId the from account id
+	 * @param toAccountId the to account id
+	 * @param amountUnits the amount in units of 10^-4
+	 * @param currencyCode the currency code
+	 * @param createdAt the commit time in millis since the epoch
+	 */
+	public Transfer(long transferId, long fromAccountId, long toAccountId, long amountUnits, String currencyCode,
+			long createdAt) {
+		this.transferId = transferId;
+		this.fromAccountId = fromAccountId;
+		this.toAccountId = toAccountId;
+		this.amount = amountUnits;
+		this.currencyCode = currencyCode;
+		this.createdAt = createdAt;
+	}
+
+	/**
+	 * Gets the transfer id.
+	 *
+	 * @return the transfer id
+	 */
+	public long getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * Gets the from account id.
+	 *
+	 * @return the from account id
+	 */
+	public long getFromAccountId() {
+		return fromAccountId;
+	}
+
+	/**
+	 * Gets the to account id.
+	 *
+	 * @return the to account id
+	 */
+	public long getToAccountId() {
+		return toAccountId;
+	}
+
+	/**
+	 * Gets the amount.
+	 *
+	 * @return the amount
+	 */
+	@JsonProperty
+	public BigDecimal getAmount() {
+		return Money.toBigDecimal(amount);
+	}
+
+	/**
+	 * Sets the amount, read from JSON.
+	 *
+	 * @param amount the amount
+	 */
+	@JsonProperty
+	private void setAmount(BigDecimal amount) {
+		this.amount = Money.toUnits(amount);
+	}
+
+	/**
+	 * Gets the amount in units.
+	 *
+	 * @return the amount in units of 10^-4
+	 */
+	@JsonIgnore
+	public long getAmountUnits() {
+		return amount;
+	}
+
+	/**
+	 * Gets the currency code.
+	 *
+	 * @return the currency code
+	 */
+	public String getCurrencyCode() {
+		return currencyCode;
+	}
+
+	/**
+	 * Gets the commit time in millis since the epoch.
+	 *
+	 * @return the created at
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Transfer{" + "transferId=" + transferId + ", fromAccountId=" + fromAccountId + ", toAccountId="
+				+ toAccountId + ", amount=" + getAmount() + ", currencyCode='" + currencyCode + '\'' + ", createdAt="
+				+ createdAt + '}';
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+
+/**
+ * The outcome of one transfer of a batch.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TransferResult {
+
+	/**
+	 * The transfer outcomes.
+	 */
+	public enum Status {
+
+		/** Applied and committed. */
+		COMMITTED,
+
+		/** Not allowed, such as a missing account or not enough fund. */
+		REJECTED,
+
+		/** Allowed, but rolled back with an all-or-nothing batch holding a rejected or failed transfer. */
+		ABORTED,
+
+		/** Failed on an error, such as accounts still locked after the retry deadline. */
+		FAILED
+	}
+
+	/** The index of the transfer in the batch. */
+	@JsonProperty
+	private int index;
+
+	/** The status. */
+	@JsonProperty
+	private Status status;
+
+	/** The reason of a transfer not committed, null once committed. */
+	@JsonProperty
+	private String message;
+
+	/**
+	 * Instantiates a new transfer result.
+	 */
+	public TransferResult() {
+	}
+
+	/**
+	 * Instantiates a new transfer result.
+	 *
+	 * @param index the index of the transfer in the batch
+	 * @param status the status
+	 * @param message the reason of a transfer not committed, null once committed
+	 */
+	public TransferResult(int index, Status status, String message) {
+		this.index = index;
+		this.status = status;
+		this.message = message;
+	}
+
+	/**
+	 * Gets the index of the transfer in the batch.
+	 *
+	 * @return the index
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Gets the status.
+	 *
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets the reason of a transfer not committed.
+	 *
+	 * @return the message, null once committed
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TransferResult{" + "index=" + index + ", status=" + status + ", message='" + message + '\'' + '}';
+	}
+
+}
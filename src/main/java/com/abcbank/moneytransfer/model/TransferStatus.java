@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+
+/**
+ * The state of a transfer submitted asynchronously.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TransferStatus {
+
+	/**
+	 * The transfer states.
+	 */
+	public enum Status {
+
+		/** Accepted and waiting for, or running on, a transfer thread. */
+		QUEUED,
+
+		/** Applied and committed. */
+		COMMITTED,
+
+		/** Not allowed, such as a missing account or not enough fund. */
+		REJECTED,
+
+		/** Failed on an error. */
+		FAILED
+	}
+
+	/** The transfer id. */
+	@JsonProperty
+	private long transferId;
+
+	/** The status. */
+	@JsonProperty
+	private Status status;
+
+	/** The reason of a transfer not committed, null otherwise. */
+	@JsonProperty
+	private String message;
+
+	/**
+	 * Instantiates a new transfer status.
+	 */
+	public TransferStatus() {
+	}
+
+	/**
+	 * Instantiates a new transfer status.
+	 *
+	 * @param transferId the transfer id
+	 * @param status the status
+	 * @param message the reason of a transfer not committed, null otherwise
+	 */
+	public TransferStatus(long transferId, Status status, String message) {
+		this.transferId = transferId;
+		this.status = status;
+		this.message = message;
+	}
+
+	/**
+	 * Gets the transfer id.
+	 *
+	 * @return the transfer id
+	 */
+	public long getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * Gets the status.
+	 *
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets the reason of a transfer not committed.
+	 *
+	 * @return the message, null otherwise
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Checks if the transfer is over, committed or not.
+	 *
+	 * @return true, if no longer queued
+	 */
+	@JsonIgnore
+	public boolean isDone() {
+		return status != Status.QUEUED;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TransferStatus{" + "transferId=" + transferId + ", status=" + status + ", message='" + message + '\''
+				+ '}';
+	}
+
+}
@@ -10,6 +10,7 @@
  */ 
 package com.abcbank.moneytransfer.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.math.BigDecimal;
@@ -24,9 +25,8 @@ public class UserTransaction {
 	@JsonProperty(required = true)
 	private String currencyCode;
 
-	/** The amount. */
-	@JsonProperty(required = true)
-	private BigDecimal amount;
+	/** The amount in units of 10^-4, Money.NULL_UNITS when missing. */
+	private long amount = Money.NULL_UNITS;
 
 	/** The from account id. */
 	@JsonProperty(required = true)
@@ -52,7 +52,7 @@ public class UserTransaction {
 	 */
 	public UserTransaction(String currencyCode, BigDecimal amount, Long fromAccountId, Long toAccountId) {
 		this.currencyCode = currencyCode;
-		this.amount = amount;
+		this.amount = Money.toUnits(amount);
 		this.fromAccountId = fromAccountId;
 		this.toAccountId = toAccountId;
 	}
@@ -66,12 +66,43 @@ public class UserTransaction {
 		return currencyCode;
 	}
 
+	/**
+	 * Gets the currency id.
+	 *
+	 * @return the id of the currency code in the CurrencyTable, CurrencyTable.UNKNOWN if it has none
+	 */
+	@JsonIgnore
+	public int getCurrencyId() {
+		return CurrencyTable.idOf(currencyCode);
+	}
+
 	/**
 	 * Gets the amount.
 	 *
 	 * @return the amount
 	 */
+	@JsonProperty(required = true)
 	public BigDecimal getAmount() {
+		return Money.toBigDecimal(amount);
+	}
+
+	/**
+	 * Sets the amount, read from JSON.
+	 *
+	 * @param amount the amount
+	 */
+	@JsonProperty(required = true)
+	private void setAmount(BigDecimal amount) {
+		this.amount = Money.toUnits(amount);
+	}
+
+	/**
+	 * Gets the amount in units.
+	 *
+	 * @return the amount in units of 10^-4, Money.NULL_UNITS when missing
+	 */
+	@JsonIgnore
+	public long getAmountUnits() {
 		return amount;
 	}
 
@@ -107,7 +138,7 @@ public class UserTransaction {
 
 		if (!currencyCode.equals(that.currencyCode))
 			return false;
-		if (!amount.equals(that.amount))
+		if (amount != that.amount)
 			return false;
 		if (!fromAccountId.equals(that.fromAccountId))
 			return false;
@@ -121,7 +152,7 @@ public class UserTransaction {
 	@Override
 	public int hashCode() {
 		int result = currencyCode.hashCode();
-		result = 31 * result + amount.hashCode();
+		result = 31 * result + (int) (amount ^ (amount >>> 32));
 		result = 31 * result + fromAccountId.hashCode();
 		result = 31 * result + toAccountId.hashCode();
 		return result;
@@ -132,7 +163,7 @@ public class UserTransaction {
 	 */
 	@Override
 	public String toString() {
-		return "UserTransaction{" + "currencyCode='" + currencyCode + '\'' + ", amount=" + amount + ", fromAccountId="
+		return "UserTransaction{" + "currencyCode='" + currencyCode + '\'' + ", amount=" + getAmount() + ", fromAccountId="
 				+ fromAccountId + ", toAccountId=" + toAccountId + '}';
 	}
 
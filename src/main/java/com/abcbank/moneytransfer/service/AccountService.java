@@ -10,18 +10,26 @@
  */ 
 package com.abcbank.moneytransfer.service;
 
+import com.abcbank.moneytransfer.dao.AccountDAO;
 import com.abcbank.moneytransfer.dao.DAOFactory;
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
 import com.abcbank.moneytransfer.model.MoneyUtil;
+import com.abcbank.moneytransfer.model.Transfer;
+import com.abcbank.moneytransfer.utils.Utils;
 
 import org.apache.log4j.Logger;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -33,22 +41,40 @@ import java.util.List;
 public class AccountService {
 	
     /** The dao factory. */
-    private final DAOFactory daoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+    private final DAOFactory daoFactory = DAOFactory.getDAOFactory();
     
     /** The log. */
     private static Logger log = Logger.getLogger(AccountService.class);
 
+    /** The Constant ADJUST_MAX_SIZE, larger bulk adjustments are refused. */
+    private static final int ADJUST_MAX_SIZE = Utils.getIntegerProperty("adjust_batch_max_size", 100000);
+
     
     /**
-     * Find all accounts.
+     * Find all accounts in account id order. With a limit returns one page
+     * after afterId and the next afterId in the X-Next-After-Id header; with
+     * stream=true writes the accounts as they are read from the database.
      *
-     * @return the all accounts
+     * @param afterId the last account id of the previous page
+     * @param limit the page size, all accounts when absent
+     * @param stream stream all accounts instead of building the list
+     * @return the accounts
      * @throws CustomException the custom exception
      */
     @GET
     @Path("/all")
-    public List<Account> getAllAccounts() throws CustomException {
-        return daoFactory.getAccountDAO().getAllAccounts();
+    public Response getAllAccounts(@QueryParam("afterId") @DefaultValue("0") long afterId,
+            @QueryParam("limit") Integer limit, @QueryParam("stream") boolean stream) throws CustomException {
+        final AccountDAO accountDAO = daoFactory.getAccountDAO();
+        if (limit != null) {
+            final int pageLimit = ListResponses.pageLimit(limit);
+            return ListResponses.page(accountDAO.getAccounts(afterId, pageLimit), pageLimit, Account::getAccountId);
+        }
+        if (stream) {
+            return ListResponses.stream(accountDAO::streamAllAccounts);
+        }
+        return Response.ok(new GenericEntity<List<Account>>(accountDAO.getAllAccounts()) {
+        }).build();
     }
 
     /**
@@ -64,6 +90,19 @@ public class AccountService {
         return daoFactory.getAccountDAO().getAccountById(accountId);
     }
     
+    /**
+     * Find the transfer history of an account, oldest first.
+     *
+     * @param accountId the account id
+     * @return the transfers
+     * @throws CustomException the custom exception
+     */
+    @GET
+    @Path("/{accountId}/transfers")
+    public List<Transfer> getTransfers(@PathParam("accountId") long accountId) throws CustomException {
+        return daoFactory.getTransferDAO().getTransfersByAccountId(accountId);
+    }
+
     /**
      * Find balance by account Id.
      *
@@ -92,8 +131,7 @@ public class AccountService {
     @PUT
     @Path("/create")
     public Account createAccount(Account account) throws CustomException {
-        final long accountId = daoFactory.getAccountDAO().createAccount(account);
-        return daoFactory.getAccountDAO().getAccountById(accountId);
+        return daoFactory.getAccountDAO().createAccount(account);
     }
 
     /**
@@ -112,8 +150,7 @@ public class AccountService {
             throw new WebApplicationException("Invalid Deposit amount", Response.Status.BAD_REQUEST);
         }
 
-        daoFactory.getAccountDAO().updateAccountBalance(accountId,amount.setScale(4, RoundingMode.HALF_EVEN));
-        return daoFactory.getAccountDAO().getAccountById(accountId);
+        return daoFactory.getAccountDAO().updateAccountBalance(accountId,amount.setScale(4, RoundingMode.HALF_EVEN));
     }
 
     /**
@@ -134,11 +171,36 @@ public class AccountService {
         BigDecimal delta = amount.negate();
         if (log.isDebugEnabled())
             log.debug("Withdraw service: delta change to account  " + delta + " Account ID = " +accountId);
-        daoFactory.getAccountDAO().updateAccountBalance(accountId,delta.setScale(4, RoundingMode.HALF_EVEN));
-        return daoFactory.getAccountDAO().getAccountById(accountId);
+        return daoFactory.getAccountDAO().updateAccountBalance(accountId,delta.setScale(4, RoundingMode.HALF_EVEN));
     }
 
 
+    /**
+     * Deposit to and withdraw from many accounts in one request, posted as a
+     * JSON array of accountId and deltaAmount, greater than 0 for a deposit
+     * and less for a withdrawal. Each adjustment applies or fails on its own.
+     *
+     * @param body the JSON array of adjustments
+     * @return the result of each adjustment, in batch order
+     * @throws CustomException the custom exception
+     */
+    @POST
+    @Path("/adjust")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response adjustBalances(InputStream body) throws CustomException {
+        List<BalanceAdjustment> adjustments = BatchRequests.read(body, BalanceAdjustment.class, ADJUST_MAX_SIZE,
+                adjustment -> adjustment.getAccountId() == null || adjustment.getDeltaAmount() == null
+                        || adjustment.getDeltaAmount().signum() == 0 ? "Invalid adjustment" : null);
+        List<BalanceAdjustment> scaled = new ArrayList<BalanceAdjustment>(adjustments.size());
+        for (BalanceAdjustment adjustment : adjustments) {
+            scaled.add(new BalanceAdjustment(adjustment.getAccountId(),
+                    adjustment.getDeltaAmount().setScale(4, RoundingMode.HALF_EVEN)));
+        }
+        List<BalanceResult> results = daoFactory.getAccountDAO().adjustAccountBalances(scaled);
+        return Response.ok(new GenericEntity<List<BalanceResult>>(results) {
+        }).build();
+    }
+
     /**
      * Delete amount by account Id.
      *
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Reads the bodies of the batch endpoints: a JSON array parsed one item at a
+ * time, so a batch is never held as a tree, and refused as a whole at the
+ * first malformed item or once it is too large.
+ */
+final class BatchRequests {
+
+	/** The mapper reading the items. */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * A check of one item.
+	 *
+	 * @param <T> the item type
+	 */
+	@FunctionalInterface
+	interface ItemCheck<T> {
+
+		/**
+		 * Check an item.
+		 *
+		 * @param item the item
+		 * @return the reason the item is invalid, null if it is valid
+		 */
+		String check(T item);
+	}
+
+	/**
+	 * Instantiates nothing.
+	 */
+	private BatchRequests() {
+	}
+
+	/**
+	 * Read the items of a batch.
+	 *
+	 * @param <T> the item type
+	 * @param body the JSON array
+	 * @param type the item type
+	 * @param maxSize the max number of items
+	 * @param check the check of each item
+	 * @return the items
+	 */
+	static <T> List<T> read(InputStream body, Class<T> type, int maxSize, ItemCheck<T> check) {
+		List<T> items = new ArrayList<T>();
+		try (JsonParser json = MAPPER.getFactory().createParser(body)) {
+			if (json.nextToken() != JsonToken.START_ARRAY) {
+				throw new WebApplicationException("Batch is not a JSON array", Response.Status.BAD_REQUEST);
+			}
+			while (json.nextToken() == JsonToken.START_OBJECT) {
+				if (items.size() == maxSize) {
+					throw new WebApplicationException("Batch larger than " + maxSize + " items",
+							Response.Status.BAD_REQUEST);
+				}
+				T item = MAPPER.readValue(json, type);
+				String invalid = check.check(item);
+				if (invalid != null) {
+					throw new WebApplicationException(invalid + " at index " + items.size(),
+							Response.Status.BAD_REQUEST);
+				}
+				items.add(item);
+			}
+			if (json.getCurrentToken() != JsonToken.END_ARRAY) {
+				throw new WebApplicationException("Batch is not a JSON array of objects", Response.Status.BAD_REQUEST);
+			}
+		} catch (JsonProcessingException e) {
+			throw new WebApplicationException("Invalid item at index " + items.size(), Response.Status.BAD_REQUEST);
+		} catch (IOException e) {
+			throw new WebApplicationException("Fail to read batch", Response.Status.BAD_REQUEST);
+		}
+		return items;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.service;
+
+import com.abcbank.moneytransfer.dao.RowHandler;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.utils.Utils;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.log4j.Logger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+
+/**
+ * Builds the responses of the list endpoints: a keyset page, or a JSON array
+ * written row by row while the query is read.
+ */
+final class ListResponses {
+
+	/** The log. */
+	private static Logger log = Logger.getLogger(ListResponses.class);
+
+	/** The header carrying the afterId of the next page, absent on the last page. */
+	static final String NEXT_AFTER_ID_HEADER = "X-Next-After-Id";
+
+	/** The Constant MAX_PAGE_SIZE, larger limits are cut to it. */
+	static final int MAX_PAGE_SIZE = Utils.getIntegerProperty("page_max_limit", 1000);
+
+	/** The Constant FLUSH_ROWS, rows written between two flushes when streaming. */
+	private static final int FLUSH_ROWS = 256;
+
+	/** The mapper used to write streamed rows. */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * A streamed query.
+	 *
+	 * @param <T> the row type
+	 */
+	@FunctionalInterface
+	interface RowSource<T> {
+
+		/**
+		 * Stream every row to the handler.
+		 *
+		 * @param handler the handler
+		 * @return the number of rows
+		 * @throws CustomException the custom exception
+		 * @throws IOException if the handler fails
+		 */
+		long stream(RowHandler<T> handler) throws CustomException, IOException;
+	}
+
+	/**
+	 * Instantiates nothing.
+	 */
+	private ListResponses() {
+	}
+
+	/**
+	 * Check a page limit and cut it to MAX_PAGE_SIZE.
+	 *
+	 * @param limit the requested limit
+	 * @return the limit to query with
+	 */
+	static int pageLimit(int limit) {
+		if (limit <= 0) {
+			throw new WebApplicationException("Invalid limit", Response.Status.BAD_REQUEST);
+		}
+		return Math.min(limit, MAX_PAGE_SIZE);
+	}
+
+	/**
+	 * Build the response of a page. A full page carries the id to ask the next
+	 * page after; a short one is the last.
+	 *
+	 * @param <T> the row type
+	 * @param rows the rows
+	 * @param limit the limit the page was queried with
+	 * @param idOf the id of a row
+	 * @return the response
+	 */
+	static <T> Response page(List<T> rows, int limit, ToLongFunction<T> idOf) {
+		Response.ResponseBuilder builder = Response.ok(new GenericEntity<List<T>>(rows) {
+		});
+		if (rows.size() == limit) {
+			builder.header(NEXT_AFTER_ID_HEADER, idOf.applyAsLong(rows.get(rows.size() - 1)));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Build a response writing the rows as one JSON array while they are read.
+	 * Once the first bytes are sent a failure can only cut the array short.
+	 *
+	 * @param <T> the row type
+	 * @param source the streamed query
+	 * @return the response
+	 */
+	static <T> Response stream(RowSource<T> source) {
+		StreamingOutput output = out -> {
+			JsonGenerator json = MAPPER.getFactory().createGenerator(out);
+			json.writeStartArray();
+			long[] written = new long[1];
+			try {
+				source.stream(row -> {
+					json.writeObject(row);
+					if (++written[0] % FLUSH_ROWS == 0) {
+						json.flush();
+					}
+				});
+			} catch (CustomException e) {
+				log.error("stream(): Error after " + written[0] + " rows", e);
+				throw new WebApplicationException(e);
+			}
+			json.writeEndArray();
+			json.close();
+		};
+		return Response.ok(output).build();
+	}
+}
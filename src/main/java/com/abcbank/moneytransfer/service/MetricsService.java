@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.abcbank.moneytransfer.service;
+
+import com.abcbank.moneytransfer.dao.AccountLockManager;
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.CurrencyPartitionedDAOFactory;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.ShardedH2DAOFactory;
+import com.abcbank.moneytransfer.dao.TransferMetrics;
+import com.abcbank.moneytransfer.dao.impl.CachingAccountDAO;
+import com.abcbank.moneytransfer.dao.impl.CurrencyPartition;
+import com.abcbank.moneytransfer.dao.impl.ShardedAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.TransferGroupCommitter;
+import com.abcbank.moneytransfer.dao.impl.TransferHistoryWriter;
+import com.abcbank.moneytransfer.dao.impl.TransferPipeline;
+import com.abcbank.moneytransfer.journal.Journal;
+
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+
+/**
+ * Exposes runtime statistics of the data access layer.
+ */
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsService {
+
+	/**
+	 * Gets the H2 connection pool statistics.
+	 *
+	 * @return the pool stats
+	 */
+	@GET
+	@Path("/pool")
+	public ConnectionPool.Stats getPoolStats() {
+		return H2DAOFactory.getPoolStats();
+	}
+
+	/**
+	 * Gets the H2 transfer statistics: commits, row lock waits and lock
+	 * failure retries and, in optimistic mode, version conflicts.
+	 *
+	 * @return the transfer stats
+	 */
+	@GET
+	@Path("/transfer")
+	public TransferMetrics.Stats getTransferStats() {
+		return H2DAOFactory.getTransferStats();
+	}
+
+	/**
+	 * Gets the H2 account cache statistics: hit ratio, load latency,
+	 * evictions, expirations and invalidations by writes.
+	 *
+	 * @return the cache stats
+	 */
+	@GET
+	@Path("/account-cache")
+	public CachingAccountDAO.Stats getAccountCacheStats() {
+		CachingAccountDAO.Stats stats = H2DAOFactory.getAccountCacheStats();
+		if (stats == null) {
+			throw new WebApplicationException("Account cache not enabled", Response.Status.NOT_FOUND);
+		}
+		return stats;
+	}
+
+	/**
+	 * Gets the balance journal statistics of the configured DAO engine.
+	 *
+	 * @return the journal stats
+	 */
+	@GET
+	@Path("/journal")
+	public Journal.Stats getJournalStats() {
+		Journal journal = DAOFactory.getDAOFactory().getJournal();
+		if (journal == null) {
+			throw new WebApplicationException("Journal not enabled", Response.Status.NOT_FOUND);
+		}
+		return journal.getStats();
+	}
+
+	/**
+	 * Gets the account lock statistics of the configured DAO engine, with the
+	 * most contended stripes.
+	 *
+	 * @return the lock stats
+	 */
+	@GET
+	@Path("/locks")
+	public AccountLockManager.Stats getLockStats() {
+		AccountLockManager locks = DAOFactory.getDAOFactory().getAccountLockManager();
+		if (locks == null) {
+			throw new WebApplicationException("Account locks not enabled", Response.Status.NOT_FOUND);
+		}
+		return locks.getStats();
+	}
+
+	/**
+	 * Gets the per shard statistics of the in-memory transfer pipeline.
+	 *
+	 * @return the pipeline stats
+	 */
+	@GET
+	@Path("/pipeline")
+	public TransferPipeline.Stats getPipelineStats() {
+		TransferPipeline pipeline = DAOFactory.getDAOFactory().getTransferPipeline();
+		if (pipeline == null) {
+			throw new WebApplicationException("Transfer pipeline not enabled", Response.Status.NOT_FOUND);
+		}
+		return pipeline.getStats();
+	}
+
+	/**
+	 * Gets the H2 transfer history writer statistics.
+	 *
+	 * @return the writer stats
+	 */
+	@GET
+	@Path("/history")
+	public TransferHistoryWriter.Stats getHistoryWriterStats() {
+		TransferHistoryWriter writer = H2DAOFactory.getTransferHistoryWriter();
+		if (writer == null) {
+			throw new WebApplicationException("Async transfer history not enabled", Response.Status.NOT_FOUND);
+		}
+		return writer.getStats();
+	}
+
+	/**
+	 * Gets the H2 transfer group commit statistics, with the batch size
+	 * histogram.
+	 *
+	 * @return the group commit stats
+	 */
+	@GET
+	@Path("/group-commit")
+	public TransferGroupCommitter.Stats getGroupCommitStats() {
+		TransferGroupCommitter committer = H2DAOFactory.getTransferGroupCommitter();
+		if (committer == null) {
+			throw new WebApplicationException("Transfer group commit not enabled", Response.Status.NOT_FOUND);
+		}
+		return committer.getStats();
+	}
+
+	/**
+	 * Gets the sharded engine statistics: local and cross shard transfers,
+	 * aborts and the prepared transactions resolved on recovery.
+	 *
+	 * @return the shard stats
+	 */
+	@GET
+	@Path("/shards")
+	public ShardedAccountDAOImpl.Stats getShardStats() {
+		DAOFactory daoFactory = DAOFactory.getDAOFactory();
+		if (!(daoFactory instanceof ShardedH2DAOFactory)) {
+			throw new WebApplicationException("Sharded engine not enabled", Response.Status.NOT_FOUND);
+		}
+		return ((ShardedH2DAOFactory) daoFactory).getShardStats();
+	}
+
+	/**
+	 * Gets the transfer throughput and latency of each partition of the
+	 * currency partitioned engine.
+	 *
+	 * @return the partition stats by currency code, DEFAULT for the others
+	 */
+	@GET
+	@Path("/currencies")
+	public Map<String, CurrencyPartition.Stats> getCurrencyStats() {
+		DAOFactory daoFactory = DAOFactory.getDAOFactory();
+		if (!(daoFactory instanceof CurrencyPartitionedDAOFactory)) {
+			throw new WebApplicationException("Currency partitioned engine not enabled", Response.Status.NOT_FOUND);
+		}
+		return ((CurrencyPartitionedDAOFactory) daoFactory).getPartitionStats();
+	}
+
+}
@@ -10,17 +10,36 @@
  */ 
 package com.abcbank.moneytransfer.service;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.dao.TransferSubmitter;
 import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.exception.RetriableException;
+import com.abcbank.moneytransfer.exception.ErrorResponse;
 import com.abcbank.moneytransfer.model.MoneyUtil;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.TransferStatus;
 import com.abcbank.moneytransfer.model.UserTransaction;
+import com.abcbank.moneytransfer.utils.Utils;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.List;
 
 
 /**
@@ -30,33 +49,295 @@ import com.abcbank.moneytransfer.model.UserTransaction;
 @Produces(MediaType.APPLICATION_JSON)
 public class TransactionService {
 
+	/** The Constant IDEMPOTENCY_KEY, the request header. */
+	private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+	/** The Constant REPLAYED, the response header of a repeated idempotency key. */
+	private static final String REPLAYED = "Idempotent-Replayed";
+
+	/** The Constant BATCH_MAX_SIZE, larger batches are refused. */
+	private static final int BATCH_MAX_SIZE = Utils.getIntegerProperty("transfer_batch_max_size", 10000);
+
 	/** The dao factory. */
-	private final DAOFactory daoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+	private final DAOFactory daoFactory = DAOFactory.getDAOFactory();
 	
 	/**
-	 * Transfer fund between two accounts.
+	 * Transfer fund between two accounts. With an Idempotency-Key header, a
+	 * repeat of the same transaction under the same key is not run again but
+	 * gets the first response back, with an Idempotent-Replayed header; a
+	 * repeat while the first one runs gets 409, and the key reused for
+	 * another transaction 422. With async=true the transaction is only
+	 * validated and queued, and gets 202 with its transfer id right away.
+	 * When the engine keeps the keys with the accounts, a transfer writes its
+	 * key in its own transaction instead of claiming it in the table first.
 	 *
 	 * @param transaction the transaction
+	 * @param idempotencyKey the idempotency key, may be null
+	 * @param async true to queue the transfer and poll its status
 	 * @return the response
 	 * @throws CustomException the custom exception
 	 */
 	@POST
-	public Response transferFund(UserTransaction transaction) throws CustomException {
-
-		String currency = transaction.getCurrencyCode();
-		if (MoneyUtil.INSTANCE.validateCcyCode(currency)) {
-			int updateCount = daoFactory.getAccountDAO().transferAccountBalance(transaction);
-			if (updateCount == 2) {
-				return Response.status(Response.Status.OK).build();
+	public Response transferFund(UserTransaction transaction, @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+			@QueryParam("async") @DefaultValue("false") boolean async) throws CustomException {
+		IdempotencyStore store = idempotencyKey == null ? null : daoFactory.getIdempotencyStore();
+		if (store == null) {
+			return async ? submit(transaction) : transfer(transaction, null);
+		}
+		if (idempotencyKey.isEmpty() || idempotencyKey.length() > IdempotencyStore.MAX_KEY_LENGTH) {
+			throw new WebApplicationException("Invalid " + IDEMPOTENCY_KEY, Response.Status.BAD_REQUEST);
+		}
+		long requestHash = requestHash(transaction, async);
+		if (!async && daoFactory.getAccountDAO().recordsIdempotency()) {
+			Response response = transferRecorded(transaction, store, idempotencyKey, requestHash);
+			if (response != null) {
+				return response;
+			}
+			// the table had the key, from before a restart: answer as any repeat
+		}
+		IdempotencyStore.Outcome previous = store.claim(idempotencyKey, requestHash);
+		if (previous != null) {
+			return replay(previous, requestHash);
+		}
+		Response response;
+		try {
+			response = async ? submit(transaction) : transfer(transaction, null);
+		} catch (WebApplicationException e) {
+			int status = e.getResponse().getStatus();
+			if (status == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()
+					|| status == Response.Status.NOT_IMPLEMENTED.getStatusCode()) {
+				// not queued, a repeat may be once the queue drains or on another node
+				store.release(idempotencyKey);
 			} else {
-				// transaction failed
-				throw new WebApplicationException("Transaction failed", Response.Status.BAD_REQUEST);
+				store.complete(idempotencyKey, requestHash, status, null);
+			}
+			throw e;
+		} catch (RetriableException e) {
+			// nothing moved, a repeat runs again
+			store.release(idempotencyKey);
+			throw e;
+		} catch (CustomException e) {
+			store.complete(idempotencyKey, requestHash, Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+					e.getMessage());
+			throw e;
+		} catch (RuntimeException e) {
+			store.release(idempotencyKey);
+			throw e;
+		}
+		store.complete(idempotencyKey, requestHash, response.getStatus(), async
+				? String.valueOf(((TransferStatus) response.getEntity()).getTransferId()) : null);
+		return response;
+	}
+
+	/**
+	 * Transfer fund under an idempotency key claimed in the cache only, its
+	 * 200 response written by the transfer in its own transaction. A failed
+	 * transfer has its response written on its own.
+	 *
+	 * @param transaction the transaction
+	 * @param store the idempotency store
+	 * @param idempotencyKey the idempotency key
+	 * @param requestHash the hash of the transaction
+	 * @return the response, null if the table had the key already
+	 * @throws CustomException the custom exception
+	 */
+	private Response transferRecorded(UserTransaction transaction, IdempotencyStore store, String idempotencyKey,
+			long requestHash) throws CustomException {
+		IdempotencyStore.Outcome previous = store.claimInCache(idempotencyKey, requestHash);
+		if (previous != null) {
+			return replay(previous, requestHash);
+		}
+		IdempotencyStore.Record record = store.record(idempotencyKey, requestHash, Response.Status.OK.getStatusCode());
+		Response response;
+		try {
+			response = transfer(transaction, record);
+		} catch (WebApplicationException e) {
+			store.complete(idempotencyKey, requestHash, e.getResponse().getStatus(), null);
+			throw e;
+		} catch (RetriableException e) {
+			// rolled back with its record, a repeat runs again
+			store.forget(idempotencyKey);
+			throw e;
+		} catch (CustomException e) {
+			if (record.isTaken()) {
+				store.forget(idempotencyKey);
+				return null;
 			}
+			store.complete(idempotencyKey, requestHash, Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+					e.getMessage());
+			throw e;
+		} catch (RuntimeException e) {
+			store.forget(idempotencyKey);
+			throw e;
+		}
+		store.complete(record);
+		return response;
+	}
 
+	/**
+	 * Transfer fund between two accounts.
+	 *
+	 * @param transaction the transaction
+	 * @param record the response of the idempotency key to write with the transfer, may be null
+	 * @return the response
+	 * @throws CustomException the custom exception
+	 */
+	private Response transfer(UserTransaction transaction, IdempotencyStore.Record record) throws CustomException {
+
+		String invalid = checkTransaction(transaction);
+		if (invalid != null) {
+			throw new WebApplicationException(invalid, Response.Status.BAD_REQUEST);
+		}
+		int updateCount = daoFactory.getAccountDAO().transferAccountBalance(transaction, record);
+		if (updateCount == 2) {
+			return Response.status(Response.Status.OK).build();
 		} else {
-			throw new WebApplicationException("Currency Code Invalid ", Response.Status.BAD_REQUEST);
+			// transaction failed
+			throw new WebApplicationException("Transaction failed", Response.Status.BAD_REQUEST);
+		}
+
+	}
+
+	/**
+	 * Queue a transfer between two accounts.
+	 *
+	 * @param transaction the transaction
+	 * @return 202 with the transfer id and the location of its status
+	 */
+	private Response submit(UserTransaction transaction) {
+		String invalid = checkTransaction(transaction);
+		if (invalid != null) {
+			throw new WebApplicationException(invalid, Response.Status.BAD_REQUEST);
+		}
+		TransferSubmitter submitter = daoFactory.getTransferSubmitter();
+		if (submitter == null) {
+			throw new WebApplicationException("Async transfers not supported", Response.Status.NOT_IMPLEMENTED);
+		}
+		TransferStatus queued = submitter.submit(transaction);
+		if (queued == null) {
+			throw new WebApplicationException("Transfer queue full", Response.Status.SERVICE_UNAVAILABLE);
 		}
+		return accepted(queued).build();
+	}
+
+	/**
+	 * Gets the status of a transfer submitted with async=true.
+	 *
+	 * @param transferId the transfer id
+	 * @return the status
+	 * @throws CustomException the custom exception
+	 */
+	@GET
+	@Path("/{transferId}")
+	public TransferStatus getTransferStatus(@PathParam("transferId") long transferId) throws CustomException {
+		TransferSubmitter submitter = daoFactory.getTransferSubmitter();
+		TransferStatus status = submitter == null ? null : submitter.getStatus(transferId);
+		if (status == null) {
+			throw new WebApplicationException("Transfer not found", Response.Status.NOT_FOUND);
+		}
+		return status;
+	}
+
+	/**
+	 * Start the 202 response of a queued transfer.
+	 *
+	 * @param queued the QUEUED status
+	 * @return the response builder
+	 */
+	private static Response.ResponseBuilder accepted(TransferStatus queued) {
+		return Response.accepted(queued).location(URI.create("transaction/" + queued.getTransferId()));
+	}
+
+	/**
+	 * Build the response of a repeated idempotency key.
+	 *
+	 * @param previous the outcome of the key
+	 * @param requestHash the hash of the repeated transaction
+	 * @return the first response
+	 */
+	private static Response replay(IdempotencyStore.Outcome previous, long requestHash) {
+		if (previous.getRequestHash() != requestHash) {
+			throw new WebApplicationException(IDEMPOTENCY_KEY + " reused for another transaction", 422);
+		}
+		if (previous.isRunning()) {
+			throw new WebApplicationException(IDEMPOTENCY_KEY + " in use by a running transaction",
+					Response.Status.CONFLICT);
+		}
+		if (previous.getStatus() == Response.Status.ACCEPTED.getStatusCode()) {
+			return accepted(new TransferStatus(Long.parseLong(previous.getMessage()), TransferStatus.Status.QUEUED,
+					null)).header(REPLAYED, "true").build();
+		}
+		Response.ResponseBuilder response = Response.status(previous.getStatus()).header(REPLAYED, "true");
+		if (previous.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
+			// same body as the ServiceExceptionMapper gave the first time
+			ErrorResponse errorResponse = new ErrorResponse();
+			errorResponse.setErrorCode(previous.getMessage());
+			response.entity(errorResponse).type(MediaType.APPLICATION_JSON);
+		}
+		return response.build();
+	}
 
+	/**
+	 * Hash the fields of a transaction, to tell a repeat from another
+	 * transaction under the same idempotency key.
+	 *
+	 * @param transaction the transaction
+	 * @param async true if queued
+	 * @return the hash
+	 */
+	private static long requestHash(UserTransaction transaction, boolean async) {
+		BigDecimal amount = transaction.getAmount();
+		return IdempotencyStore.hash(transaction.getCurrencyCode() + '|'
+				+ (amount == null ? "" : amount.stripTrailingZeros().toPlainString()) + '|'
+				+ transaction.getFromAccountId() + '|' + transaction.getToAccountId() + (async ? "|async" : ""), 0);
+	}
+
+	/**
+	 * Check a transaction before it is queued or batched.
+	 *
+	 * @param transaction the transaction
+	 * @return the reason it is invalid, or null
+	 */
+	private static String checkTransaction(UserTransaction transaction) {
+		if (!MoneyUtil.INSTANCE.validateCcyCode(transaction.getCurrencyCode())) {
+			return "Currency Code Invalid";
+		}
+		if (transaction.getAmount() == null || transaction.getAmount().compareTo(MoneyUtil.zeroAmount) <= 0
+				|| transaction.getFromAccountId() == null || transaction.getToAccountId() == null) {
+			return "Invalid transfer";
+		}
+		return null;
+	}
+
+	/**
+	 * Transfer funds for a batch of transactions, posted as a JSON array and
+	 * read one transfer at a time. With mode=atomic every transfer commits or
+	 * none does; with mode=independent, the default, each transfer commits or
+	 * fails on its own.
+	 *
+	 * @param body the JSON array of transactions
+	 * @param mode atomic or independent
+	 * @return the result of each transfer, in batch order
+	 * @throws CustomException if an atomic batch cannot be run by the engine
+	 */
+	@POST
+	@Path("/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response transferFunds(InputStream body, @QueryParam("mode") @DefaultValue("independent") String mode)
+			throws CustomException {
+		boolean atomic;
+		if ("atomic".equalsIgnoreCase(mode)) {
+			atomic = true;
+		} else if ("independent".equalsIgnoreCase(mode)) {
+			atomic = false;
+		} else {
+			throw new WebApplicationException("Invalid batch mode " + mode, Response.Status.BAD_REQUEST);
+		}
+		List<UserTransaction> transactions = BatchRequests.read(body, UserTransaction.class, BATCH_MAX_SIZE,
+				TransactionService::checkTransaction);
+		List<TransferResult> results = daoFactory.getAccountDAO().transferAccountBalances(transactions, atomic);
+		return Response.ok(new GenericEntity<List<TransferResult>>(results) {
+		}).build();
 	}
 
 }
@@ -11,12 +11,14 @@
 package com.abcbank.moneytransfer.service;
 
 import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.UserDAO;
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.User;
 
 import org.apache.log4j.Logger;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.List;
@@ -31,7 +33,7 @@ import java.util.List;
 public class UserService {
  
 	/** The dao factory. */
-	private final DAOFactory daoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+	private final DAOFactory daoFactory = DAOFactory.getDAOFactory();
     
 	/** The log. */
 	private static Logger log = Logger.getLogger(UserService.class);
@@ -56,15 +58,30 @@ public class UserService {
     }
     
     /**
-     * Find by all.
+     * Find by all, in user id order. With a limit returns one page after
+     * afterId and the next afterId in the X-Next-After-Id header; with
+     * stream=true writes the users as they are read from the database.
      *
+     * @param afterId the last user id of the previous page
+     * @param limit the page size, all users when absent
+     * @param stream stream all users instead of building the list
      * @return the all users
      * @throws CustomException the custom exception
      */
     @GET
     @Path("/all")
-    public List<User> getAllUsers() throws CustomException {
-        return daoFactory.getUserDAO().getAllUsers();
+    public Response getAllUsers(@QueryParam("afterId") @DefaultValue("0") long afterId,
+            @QueryParam("limit") Integer limit, @QueryParam("stream") boolean stream) throws CustomException {
+        final UserDAO userDAO = daoFactory.getUserDAO();
+        if (limit != null) {
+            final int pageLimit = ListResponses.pageLimit(limit);
+            return ListResponses.page(userDAO.getUsers(afterId, pageLimit), pageLimit, User::getUserId);
+        }
+        if (stream) {
+            return ListResponses.stream(userDAO::streamAllUsers);
+        }
+        return Response.ok(new GenericEntity<List<User>>(userDAO.getAllUsers()) {
+        }).build();
     }
     
     /**
@@ -80,8 +97,7 @@ public class UserService {
         if (daoFactory.getUserDAO().getUserByName(user.getUserName()) != null) {
             throw new WebApplicationException("User name already exist", Response.Status.BAD_REQUEST);
         }
-        final long uId = daoFactory.getUserDAO().insertUser(user);
-        return daoFactory.getUserDAO().getUserById(uId);
+        return daoFactory.getUserDAO().insertUser(user);
     }
     
     /**
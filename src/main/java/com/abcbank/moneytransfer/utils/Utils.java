@@ -103,6 +103,21 @@ public class Utils {
         }
     }
 
+    /**
+     * Gets the boolean property.
+     *
+     * @param key the key
+     * @param defaultVal the default val
+     * @return the boolean property
+     */
+    public static boolean getBooleanProperty(String key, boolean defaultVal) {
+        String valueStr = getStringProperty(key);
+        if (valueStr == null || valueStr.trim().isEmpty()) {
+            return defaultVal;
+        }
+        return Boolean.parseBoolean(valueStr.trim());
+    }
+
     //initialise
 
     static {
@@ -0,0 +1,15 @@
+--V1: User and Account tables
+
+CREATE TABLE IF NOT EXISTS User (UserId LONG PRIMARY KEY AUTO_INCREMENT NOT NULL,
+ UserName VARCHAR(30) NOT NULL,
+ EmailAddress VARCHAR(30) NOT NULL);
+
+CREATE UNIQUE INDEX IF NOT EXISTS idx_ue on User(UserName,EmailAddress);
+
+CREATE TABLE IF NOT EXISTS Account (AccountId LONG PRIMARY KEY AUTO_INCREMENT NOT NULL,
+UserName VARCHAR(30),
+Balance DECIMAL(19,4),
+CurrencyCode VARCHAR(30)
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS idx_acc on Account(UserName,CurrencyCode);
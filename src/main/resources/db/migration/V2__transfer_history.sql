@@ -0,0 +1,13 @@
+--V2: Transfer history, one row per committed transfer
+
+CREATE TABLE IF NOT EXISTS Transfer (TransferId LONG PRIMARY KEY AUTO_INCREMENT NOT NULL,
+FromAccountId LONG NOT NULL,
+ToAccountId LONG NOT NULL,
+Amount DECIMAL(19,4) NOT NULL,
+CurrencyCode VARCHAR(30) NOT NULL,
+CreatedAt TIMESTAMP NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_tr_from on Transfer(FromAccountId);
+
+CREATE INDEX IF NOT EXISTS idx_tr_to on Transfer(ToAccountId);
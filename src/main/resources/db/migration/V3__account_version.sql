@@ -0,0 +1,3 @@
+--V3: Account row version, bumped by every balance change, checked by optimistic transfers
+
+ALTER TABLE Account ADD COLUMN IF NOT EXISTS Version LONG DEFAULT 0 NOT NULL;
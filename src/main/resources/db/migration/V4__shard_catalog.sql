@@ -0,0 +1,20 @@
+--V4: Sharded engine catalog, only used in its catalog database: the account directory and the cross shard transfer log
+
+CREATE TABLE IF NOT EXISTS ShardAccount (AccountId LONG PRIMARY KEY AUTO_INCREMENT NOT NULL,
+UserName VARCHAR(30),
+CurrencyCode VARCHAR(30)
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS idx_shacc on ShardAccount(UserName,CurrencyCode);
+
+CREATE TABLE IF NOT EXISTS ShardTransferLog (TxId LONG PRIMARY KEY AUTO_INCREMENT NOT NULL,
+FromAccountId LONG NOT NULL,
+ToAccountId LONG NOT NULL,
+Amount DECIMAL(19,4) NOT NULL,
+CurrencyCode VARCHAR(30) NOT NULL,
+State VARCHAR(10) NOT NULL,
+CreatedAt TIMESTAMP NOT NULL,
+UpdatedAt TIMESTAMP NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_shtx_state on ShardTransferLog(State);
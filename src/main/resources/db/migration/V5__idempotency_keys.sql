@@ -0,0 +1,10 @@
+--V5: Idempotency keys of transfer requests, with the response of each once it is known
+
+CREATE TABLE IF NOT EXISTS IdempotencyKey (IdempotencyKey VARCHAR(255) PRIMARY KEY NOT NULL,
+RequestHash LONG NOT NULL,
+Status INT NOT NULL,
+Message VARCHAR(1000),
+CreatedAt LONG NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_idem_created on IdempotencyKey(CreatedAt);
@@ -0,0 +1,7 @@
+--V6: Outcome of transfers submitted asynchronously, spilled from the in-memory status table
+
+CREATE TABLE IF NOT EXISTS TransferStatus (TransferStatusId LONG PRIMARY KEY NOT NULL,
+Status VARCHAR(10) NOT NULL,
+Message VARCHAR(1000),
+UpdatedAt TIMESTAMP NOT NULL
+);
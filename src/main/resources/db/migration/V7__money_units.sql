@@ -0,0 +1,23 @@
+--V7: Money as BIGINT units of 10^-4 instead of DECIMAL(19,4), the column names say so
+
+ALTER TABLE Account ADD COLUMN IF NOT EXISTS BalanceUnits BIGINT;
+
+UPDATE Account SET BalanceUnits = Balance * 10000;
+
+ALTER TABLE Account DROP COLUMN IF EXISTS Balance;
+
+ALTER TABLE Transfer ADD COLUMN IF NOT EXISTS AmountUnits BIGINT;
+
+UPDATE Transfer SET AmountUnits = Amount * 10000;
+
+ALTER TABLE Transfer ALTER COLUMN AmountUnits SET NOT NULL;
+
+ALTER TABLE Transfer DROP COLUMN IF EXISTS Amount;
+
+ALTER TABLE ShardTransferLog ADD COLUMN IF NOT EXISTS AmountUnits BIGINT;
+
+UPDATE ShardTransferLog SET AmountUnits = Amount * 10000;
+
+ALTER TABLE ShardTransferLog ALTER COLUMN AmountUnits SET NOT NULL;
+
+ALTER TABLE ShardTransferLog DROP COLUMN IF EXISTS Amount;
@@ -0,0 +1,53 @@
+--V8: Currencies stored as the SMALLINT id of CurrencyTable, the code read as a number in base 26 plus one.
+--Codes are trimmed and upper cased first; a code that is no ISO 4217 currency, or two accounts of a user
+--ending up with the same currency, fails the migration before any column is dropped.
+
+CREATE ALIAS IF NOT EXISTS MIGRATE_CURRENCY_ID FOR "com.abcbank.moneytransfer.dao.SchemaInitializer.migrateCurrencyId";
+
+CREATE ALIAS IF NOT EXISTS REQUIRE_NO_DUPLICATES FOR "com.abcbank.moneytransfer.dao.SchemaInitializer.requireNoDuplicates";
+
+ALTER TABLE Account ADD COLUMN IF NOT EXISTS CurrencyId SMALLINT;
+
+UPDATE Account SET CurrencyId = MIGRATE_CURRENCY_ID('Account', AccountId, CurrencyCode);
+
+CALL REQUIRE_NO_DUPLICATES('Account', (SELECT COUNT(*) FROM (SELECT UserName FROM Account
+GROUP BY UserName, CurrencyId HAVING COUNT(*) > 1)));
+
+ALTER TABLE Transfer ADD COLUMN IF NOT EXISTS CurrencyId SMALLINT;
+
+UPDATE Transfer SET CurrencyId = MIGRATE_CURRENCY_ID('Transfer', TransferId, CurrencyCode);
+
+ALTER TABLE ShardAccount ADD COLUMN IF NOT EXISTS CurrencyId SMALLINT;
+
+UPDATE ShardAccount SET CurrencyId = MIGRATE_CURRENCY_ID('ShardAccount', AccountId, CurrencyCode);
+
+CALL REQUIRE_NO_DUPLICATES('ShardAccount', (SELECT COUNT(*) FROM (SELECT UserName FROM ShardAccount
+GROUP BY UserName, CurrencyId HAVING COUNT(*) > 1)));
+
+ALTER TABLE ShardTransferLog ADD COLUMN IF NOT EXISTS CurrencyId SMALLINT;
+
+UPDATE ShardTransferLog SET CurrencyId = MIGRATE_CURRENCY_ID('ShardTransferLog', TxId, CurrencyCode);
+
+DROP INDEX IF EXISTS idx_acc;
+
+ALTER TABLE Account DROP COLUMN IF EXISTS CurrencyCode;
+
+CREATE UNIQUE INDEX IF NOT EXISTS idx_acc on Account(UserName,CurrencyId);
+
+ALTER TABLE Transfer ALTER COLUMN CurrencyId SET NOT NULL;
+
+ALTER TABLE Transfer DROP COLUMN IF EXISTS CurrencyCode;
+
+DROP INDEX IF EXISTS idx_shacc;
+
+ALTER TABLE ShardAccount DROP COLUMN IF EXISTS CurrencyCode;
+
+CREATE UNIQUE INDEX IF NOT EXISTS idx_shacc on ShardAccount(UserName,CurrencyId);
+
+ALTER TABLE ShardTransferLog ALTER COLUMN CurrencyId SET NOT NULL;
+
+ALTER TABLE ShardTransferLog DROP COLUMN IF EXISTS CurrencyCode;
+
+DROP ALIAS IF EXISTS MIGRATE_CURRENCY_ID;
+
+DROP ALIAS IF EXISTS REQUIRE_NO_DUPLICATES;
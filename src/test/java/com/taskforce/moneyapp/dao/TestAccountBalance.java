@@ -13,8 +13,10 @@ package com.taskforce.moneyapp.dao;
 import com.abcbank.moneytransfer.dao.AccountDAO;
 import com.abcbank.moneytransfer.dao.DAOFactory;
 import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.TransferMetrics;
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.CurrencyTable;
 import com.abcbank.moneytransfer.model.UserTransaction;
 
 import org.apache.commons.dbutils.DbUtils;
@@ -30,6 +32,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.TestCase.assertTrue;
 
@@ -146,6 +149,138 @@ public class TestAccountBalance {
 
 	}
 
+	/**
+	 * Test concurrent guarded withdrawals take the balance exactly to zero and
+	 * reject the rest as insufficient funds.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testConcurrentGuardedWithdraw() throws InterruptedException, CustomException {
+		final AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		final long accountId = accountDAO.createAccount(new Account("moksha", new BigDecimal(100), "CHF")).getAccountId();
+		final BigDecimal delta = new BigDecimal(-2).setScale(4, RoundingMode.HALF_EVEN);
+		final AtomicInteger succeeded = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(THREADS_COUNT);
+		for (int i = 0; i < THREADS_COUNT; i++) {
+			new Thread(() -> {
+				try {
+					BigDecimal balance = accountDAO.adjustAccountBalance(accountId, delta);
+					assertTrue(balance.signum() >= 0);
+					succeeded.incrementAndGet();
+				} catch (CustomException e) {
+					if (e.getMessage().startsWith("Not sufficient Fund"))
+						rejected.incrementAndGet();
+					else
+						log.error("Error occurred during withdraw ", e);
+				} finally {
+					latch.countDown();
+				}
+			}).start();
+		}
+		latch.await();
+
+		assertTrue(succeeded.get() == 50 && rejected.get() == 50);
+		assertTrue(accountDAO.getAccountById(accountId).getBalance()
+				.equals(new BigDecimal(0).setScale(4, RoundingMode.HALF_EVEN)));
+		try {
+			accountDAO.adjustAccountBalance(accountId + 1000, BigDecimal.ONE);
+			assertTrue(false);
+		} catch (CustomException e) {
+			assertTrue(e.getMessage().contains("fail to lock account"));
+		}
+		accountDAO.deleteAccountById(accountId);
+	}
+
+	/**
+	 * Test opposite transfers between the same two accounts all commit: the
+	 * rows are locked in id order, so they never deadlock.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testOppositeTransfersDoNotDeadlock() throws InterruptedException, CustomException {
+		final AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		final long a = accountDAO.createAccount(new Account("lock-a", new BigDecimal(1000), "SEK")).getAccountId();
+		final long b = accountDAO.createAccount(new Account("lock-b", new BigDecimal(1000), "SEK")).getAccountId();
+		final AtomicInteger failed = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(THREADS_COUNT);
+		for (int i = 0; i < THREADS_COUNT; i++) {
+			final boolean forward = i % 2 == 0;
+			new Thread(() -> {
+				try {
+					int updated = accountDAO.transferAccountBalance(
+							new UserTransaction("SEK", BigDecimal.ONE, forward ? a : b, forward ? b : a));
+					if (updated != 2)
+						failed.incrementAndGet();
+				} catch (CustomException e) {
+					log.error("Error occurred during transfer ", e);
+					failed.incrementAndGet();
+				} finally {
+					latch.countDown();
+				}
+			}).start();
+		}
+		latch.await();
+
+		assertTrue(failed.get() == 0);
+		assertTrue(accountDAO.getAccountById(a).getBalance().equals(new BigDecimal("1000.0000")));
+		assertTrue(accountDAO.getAccountById(b).getBalance().equals(new BigDecimal("1000.0000")));
+		accountDAO.deleteAccountById(a);
+		accountDAO.deleteAccountById(b);
+	}
+
+	/**
+	 * Test a transfer blocked past the lock timeout is retried and commits
+	 * once the lock is released.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testTransferRetriedOnLockTimeout() throws Exception {
+		final AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		final long a = accountDAO.createAccount(new Account("lock-a", new BigDecimal(100), "NOK")).getAccountId();
+		final long b = accountDAO.createAccount(new Account("lock-b", new BigDecimal(100), "NOK")).getAccountId();
+		TransferMetrics.Stats before = H2DAOFactory.getTransferStats();
+		final AtomicInteger updated = new AtomicInteger();
+		Thread transfer;
+		Connection conn = H2DAOFactory.getConnection();
+		PreparedStatement lockStmt = null;
+		try {
+			conn.setAutoCommit(false);
+			lockStmt = conn.prepareStatement("SELECT * FROM Account WHERE AccountId = ? FOR UPDATE");
+			lockStmt.setLong(1, b);
+			lockStmt.executeQuery().close();
+			transfer = new Thread(() -> {
+				try {
+					updated.set(accountDAO.transferAccountBalance(new UserTransaction("NOK", BigDecimal.TEN, a, b)));
+				} catch (CustomException e) {
+					log.error("Error occurred during transfer ", e);
+				}
+			});
+			transfer.start();
+			// hold the lock past the 2 second H2 lock timeout
+			Thread.sleep(2500);
+			conn.rollback();
+		} finally {
+			DbUtils.closeQuietly(lockStmt);
+			DbUtils.closeQuietly(conn);
+		}
+		transfer.join(10000);
+
+		TransferMetrics.Stats after = H2DAOFactory.getTransferStats();
+		assertTrue(updated.get() == 2);
+		assertTrue(after.getLockTimeouts() > before.getLockTimeouts());
+		assertTrue(after.getLockRetries() > before.getLockRetries());
+		assertTrue(after.getLockWaitMaxMs() >= 0);
+		assertTrue(accountDAO.getAccountById(b).getBalance().equals(new BigDecimal("110.0000")));
+		accountDAO.deleteAccountById(a);
+		accountDAO.deleteAccountById(b);
+	}
+
 	/**
 	 * Test transfer fail on DB lock.
 	 *
@@ -168,7 +303,7 @@ public class TestAccountBalance {
 			rs = lockStmt.executeQuery();
 			if (rs.next()) {
 				fromAccount = new Account(rs.getLong("AccountId"), rs.getString("UserName"),
-						rs.getBigDecimal("Balance"), rs.getString("CurrencyCode"));
+						rs.getLong("BalanceUnits"), CurrencyTable.codeOf(rs.getInt("CurrencyId")));
 				if (log.isDebugEnabled())
 					log.debug("Locked Account: " + fromAccount);
 			}
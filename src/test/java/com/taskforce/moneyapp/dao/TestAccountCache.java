@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.impl.AccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.CachingAccountDAO;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestAccountCache.
+ */
+public class TestAccountCache {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test reads are answered from memory, writes drop the accounts they
+	 * touched and the next read sees the committed balance.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testReadThroughAndInvalidation() throws CustomException {
+		CachingAccountDAO cache = new CachingAccountDAO(new AccountDAOImpl(), 100, 60000);
+		assertTrue(cache.getAccountById(1).getBalance().compareTo(new BigDecimal(100)) == 0);
+		Account cached = cache.getAccountById(1);
+		assertTrue(cache.getAccountById(1) == cached);
+		assertTrue(cache.getStats().getHits() == 2 && cache.getStats().getMisses() == 1);
+
+		assertTrue(cache.transferAccountBalance(new UserTransaction("USD", BigDecimal.TEN, 1L, 2L)) == 2);
+		assertTrue(cache.getAccountById(1).getBalance().compareTo(new BigDecimal(90)) == 0);
+		assertTrue(cache.getAccountById(2).getBalance().compareTo(new BigDecimal(210)) == 0);
+		assertTrue(cache.adjustAccountBalance(1, BigDecimal.ONE).compareTo(new BigDecimal(91)) == 0);
+		assertTrue(cache.getAccountById(1).getBalance().compareTo(new BigDecimal(91)) == 0);
+		try {
+			cache.transferAccountBalance(new UserTransaction("USD", new BigDecimal(1000), 1L, 2L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// not enough fund, the accounts are dropped all the same
+		}
+		assertTrue(cache.getAccountById(1).getBalance().compareTo(new BigDecimal(91)) == 0);
+		assertTrue(cache.getStats().getInvalidations() == 4);
+
+		assertTrue(cache.deleteAccountById(2) == 1);
+		assertTrue(cache.getAccountById(2) == null);
+		assertTrue(cache.getStats().getLoadAvgMs() > 0);
+	}
+
+	/**
+	 * Test the cache keeps no more than its max size and drops accounts past
+	 * their time to live.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testEvictionAndExpiry() throws Exception {
+		CachingAccountDAO cache = new CachingAccountDAO(new AccountDAOImpl(), 4, 200);
+		for (long accountId = 1; accountId <= 6; accountId++) {
+			assertTrue(cache.getAccountById(accountId) != null);
+		}
+		CachingAccountDAO.Stats stats = cache.getStats();
+		assertTrue(stats.getSize() == 4 && stats.getEvictions() == 2);
+		// 5 and 6 were loaded last
+		cache.getAccountById(6);
+		assertTrue(cache.getStats().getHits() == 1);
+
+		Thread.sleep(250);
+		cache.getAccountById(6);
+		stats = cache.getStats();
+		assertTrue(stats.getExpirations() == 1 && stats.getMisses() == 7);
+		assertTrue(stats.getHitRatio() > 0 && stats.getHitRatio() < 1);
+	}
+}
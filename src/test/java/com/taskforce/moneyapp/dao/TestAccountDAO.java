@@ -13,6 +13,11 @@ package com.taskforce.moneyapp.dao;
 import com.abcbank.moneytransfer.dao.DAOFactory;
 import com.abcbank.moneytransfer.exception.CustomException;
 import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.UserTransaction;
 
 import org.junit.After;
 import org.junit.BeforeClass;
@@ -20,6 +25,7 @@ import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.Arrays;
 import java.util.List;
 
 import static junit.framework.TestCase.assertTrue;
@@ -93,8 +99,9 @@ public class TestAccountDAO {
 	public void testCreateAccount() throws CustomException {
 		BigDecimal balance = new BigDecimal(10).setScale(4, RoundingMode.HALF_EVEN);
 		Account a = new Account("test2", balance, "CNY");
-		long aid = h2DaoFactory.getAccountDAO().createAccount(a);
-		Account afterCreation = h2DaoFactory.getAccountDAO().getAccountById(aid);
+		Account created = h2DaoFactory.getAccountDAO().createAccount(a);
+		Account afterCreation = h2DaoFactory.getAccountDAO().getAccountById(created.getAccountId());
+		assertTrue(created.getBalance().equals(afterCreation.getBalance()));
 		assertTrue(afterCreation.getUserName().equals("test2"));
 		assertTrue(afterCreation.getCurrencyCode().equals("CNY"));
 		assertTrue(afterCreation.getBalance().equals(balance));
@@ -137,13 +144,13 @@ public class TestAccountDAO {
 
 		BigDecimal deltaDeposit = new BigDecimal(50).setScale(4, RoundingMode.HALF_EVEN);
 		BigDecimal afterDeposit = new BigDecimal(150).setScale(4, RoundingMode.HALF_EVEN);
-		int rowsUpdated = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaDeposit);
-		assertTrue(rowsUpdated == 1);
+		Account updated = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaDeposit);
+		assertTrue(updated.getBalance().equals(afterDeposit) && updated.getCurrencyCode().equals("USD"));
 		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(afterDeposit));
 		BigDecimal deltaWithDraw = new BigDecimal(-50).setScale(4, RoundingMode.HALF_EVEN);
 		BigDecimal afterWithDraw = new BigDecimal(100).setScale(4, RoundingMode.HALF_EVEN);
-		int rowsUpdatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaWithDraw);
-		assertTrue(rowsUpdatedW == 1);
+		Account updatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaWithDraw);
+		assertTrue(updatedW.getBalance().equals(afterWithDraw));
 		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(afterWithDraw));
 
 	}
@@ -156,9 +163,143 @@ public class TestAccountDAO {
 	@Test(expected = CustomException.class)
 	public void testUpdateAccountBalanceNotEnoughFund() throws CustomException {
 		BigDecimal deltaWithDraw = new BigDecimal(-50000).setScale(4, RoundingMode.HALF_EVEN);
-		int rowsUpdatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaWithDraw);
-		assertTrue(rowsUpdatedW == 0);
+		h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaWithDraw);
 
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Test amounts past the range of the balance units are refused and leave
+	 * the balance alone, and amounts finer than units round half even.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testAmountOutOfRange() throws CustomException {
+		for (BigDecimal amount : Arrays.asList(new BigDecimal("1E+20"), new BigDecimal("922337203685477"))) {
+			try {
+				h2DaoFactory.getAccountDAO().updateAccountBalance(1L, amount);
+				assertTrue(false);
+			} catch (CustomException e) {
+				// too large for the units, or for the balance after the deposit
+			}
+		}
+		try {
+			new UserTransaction("USD", new BigDecimal("1E+20"), 1L, 2L);
+			assertTrue(false);
+		} catch (ArithmeticException e) {
+			// refused before it reaches the DAO
+		}
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(new BigDecimal("100.0000")));
+		Account updated = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, new BigDecimal("0.00005"));
+		assertTrue(updated.getBalance().equals(new BigDecimal("100.0000")));
+		updated = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, new BigDecimal("0.00015"));
+		assertTrue(updated.getBalance().equals(new BigDecimal("100.0002")));
+	}
+
+	/**
+	 * Test the currency table knows the ISO codes, upper case only, and an
+	 * account in any other currency is refused.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testCurrencyTable() throws CustomException {
+		int usd = CurrencyTable.idOf("USD");
+		assertTrue(usd != CurrencyTable.UNKNOWN && CurrencyTable.codeOf(usd) == CurrencyTable.codeOf(usd));
+		assertTrue(CurrencyTable.codeOf(usd).equals("USD") && CurrencyTable.minorUnits(usd) == 2);
+		assertTrue(CurrencyTable.minorUnits(CurrencyTable.idOf("JPY")) == 0);
+		for (String code : Arrays.asList(null, "", "usd", "US", "USDD", "ZZZ", "U$D")) {
+			assertTrue(!CurrencyTable.isValid(code));
+		}
+		assertTrue(CurrencyTable.codeOf(-1) == null && CurrencyTable.codeOf(CurrencyTable.MAX_ID + 1) == null);
+		try {
+			h2DaoFactory.getAccountDAO().createAccount(new Account("vikram", BigDecimal.ONE, "usd"));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// not an ISO code
+		}
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getCurrencyCode() == CurrencyTable.codeOf(usd));
+	}
+
+	/**
+	 * Test a batch of transfers: independent transfers commit or fail on
+	 * their own against the balances the earlier ones left, an atomic batch
+	 * with a rejected transfer leaves every balance alone.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferBatch() throws CustomException {
+		List<TransferResult> results = h2DaoFactory.getAccountDAO().transferAccountBalances(Arrays.asList(
+				new UserTransaction("GBP", new BigDecimal(100), 5L, 6L),
+				new UserTransaction("GBP", new BigDecimal(1000), 6L, 5L),
+				new UserTransaction("GBP", new BigDecimal(10), 5L, 1L),
+				new UserTransaction("GBP", new BigDecimal(50), 6L, 5L)), false);
+		assertTrue(results.size() == 4);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.COMMITTED);
+		assertTrue(results.get(1).getStatus() == TransferResult.Status.REJECTED);
+		assertTrue(results.get(2).getStatus() == TransferResult.Status.REJECTED);
+		assertTrue(results.get(3).getStatus() == TransferResult.Status.COMMITTED && results.get(3).getIndex() == 3);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(5L).getBalance().compareTo(new BigDecimal(450)) == 0);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(6L).getBalance().compareTo(new BigDecimal(550)) == 0);
+
+		results = h2DaoFactory.getAccountDAO().transferAccountBalances(Arrays.asList(
+				new UserTransaction("GBP", new BigDecimal(10), 5L, 6L),
+				new UserTransaction("GBP", new BigDecimal(10000), 6L, 5L)), true);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.ABORTED);
+		assertTrue(results.get(1).getStatus() == TransferResult.Status.REJECTED);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(5L).getBalance().compareTo(new BigDecimal(450)) == 0);
+
+		results = h2DaoFactory.getAccountDAO().transferAccountBalances(Arrays.asList(
+				new UserTransaction("GBP", new BigDecimal(450), 5L, 6L),
+				new UserTransaction("GBP", new BigDecimal(1000), 6L, 5L)), true);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.COMMITTED);
+		assertTrue(results.get(1).getStatus() == TransferResult.Status.COMMITTED);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(5L).getBalance().compareTo(new BigDecimal(1000)) == 0);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(6L).getBalance().compareTo(BigDecimal.ZERO) == 0);
+	}
+
+	/**
+	 * Test a bulk adjustment applies each deposit and withdrawal on its own
+	 * and reports the balance right after each one.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testAdjustAccountBalances() throws CustomException {
+		List<BalanceResult> results = h2DaoFactory.getAccountDAO().adjustAccountBalances(Arrays.asList(
+				new BalanceAdjustment(4L, new BigDecimal(-600)),
+				new BalanceAdjustment(3L, new BigDecimal(100)),
+				new BalanceAdjustment(999L, new BigDecimal(1)),
+				new BalanceAdjustment(3L, new BigDecimal(-50)),
+				new BalanceAdjustment(4L, new BigDecimal(-500))));
+		assertTrue(results.get(0).getStatus() == BalanceResult.Status.NOT_ENOUGH_FUND);
+		assertTrue(results.get(1).getBalance().compareTo(new BigDecimal(600)) == 0);
+		assertTrue(results.get(2).getStatus() == BalanceResult.Status.NOT_FOUND);
+		assertTrue(results.get(3).getBalance().compareTo(new BigDecimal(550)) == 0);
+		assertTrue(results.get(4).getStatus() == BalanceResult.Status.APPLIED);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(3L).getBalance().compareTo(new BigDecimal(550)) == 0);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(4L).getBalance().compareTo(BigDecimal.ZERO) == 0);
+	}
+
+	/**
+	 * Test a transfer from an account to itself is rejected, alone or in a
+	 * batch, and leaves the balance alone.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferToSameAccount() throws CustomException {
+		try {
+			h2DaoFactory.getAccountDAO().transferAccountBalance(new UserTransaction("USD", BigDecimal.TEN, 1L, 1L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// same account
+		}
+		List<TransferResult> results = h2DaoFactory.getAccountDAO().transferAccountBalances(
+				Arrays.asList(new UserTransaction("USD", BigDecimal.TEN, 1L, 1L)), false);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.REJECTED);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(new BigDecimal("100.0000")));
+	}
+
+}
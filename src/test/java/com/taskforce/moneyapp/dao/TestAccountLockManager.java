@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.AccountLockManager;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestAccountLockManager.
+ */
+public class TestAccountLockManager {
+
+	/**
+	 * Test a pair lock times out while another thread holds one of its
+	 * stripes, leaves nothing locked, and is counted on the held stripe.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testTryLockTimeoutAndContention() throws Exception {
+		AccountLockManager locks = new AccountLockManager(10);
+		assertTrue(locks.getStripeCount() == 16);
+		CountDownLatch held = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread(() -> {
+			int stripe = locks.lock(2);
+			held.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			locks.unlock(stripe);
+		});
+		holder.start();
+		held.await();
+
+		long other = 3;
+		while (locks.stripeOf(other) == locks.stripeOf(2)) {
+			other++;
+		}
+		assertTrue(locks.tryLock(other, 2, 50) == null);
+		assertTrue(locks.tryLock(other, 50) >= 0);
+		locks.unlock(locks.stripeOf(other));
+		release.countDown();
+		holder.join();
+
+		// two accounts on the same stripe take it once
+		long sibling = other + 1;
+		while (locks.stripeOf(sibling) != locks.stripeOf(other)) {
+			sibling++;
+		}
+		int[] locked = locks.tryLock(other, sibling, 50);
+		assertTrue(locked != null && locked[0] == locked[1]);
+		locks.unlock(locked);
+
+		AccountLockManager.Stats stats = locks.getStats();
+		assertTrue(stats.getTimeouts() == 1);
+		assertTrue(stats.getContended() >= 1);
+		assertTrue(stats.getHotStripes().get(0).getStripe() == locks.stripeOf(2));
+		// nothing is left locked
+		assertTrue(locks.tryLock(other, 2, 0) != null);
+	}
+
+	/**
+	 * Test H2 transfers in both directions between the same accounts queue on
+	 * the in-process locks and keep the total.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testH2TransfersBehindAccountLocks() throws Exception {
+		DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+		h2DaoFactory.populateTestData();
+		AccountLockManager locks = h2DaoFactory.getAccountLockManager();
+		assertTrue(locks != null);
+		long before = locks.getStats().getAcquisitions();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 100; i++) {
+			long from = i % 2 == 0 ? 3 : 4;
+			pool.submit(() -> {
+				h2DaoFactory.getAccountDAO().transferAccountBalance(
+						new UserTransaction("EUR", BigDecimal.ONE, from, 7 - from));
+				return null;
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+		BigDecimal total = h2DaoFactory.getAccountDAO().getAccountById(3).getBalance()
+				.add(h2DaoFactory.getAccountDAO().getAccountById(4).getBalance());
+		assertTrue(total.compareTo(new BigDecimal(1000)) == 0);
+		assertTrue(locks.getStats().getAcquisitions() - before >= 100);
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.BulkLoader;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.SchemaInitializer;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.User;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.h2.tools.RunScript;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestBulkLoader.
+ */
+public class TestBulkLoader {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/** The Constant MIGRATIONS_V7, the scripts up to the version before currency ids. */
+	private static final String[] MIGRATIONS_V7 = { "V1__base_schema.sql", "V2__transfer_history.sql",
+			"V3__account_version.sql", "V4__shard_catalog.sql", "V5__idempotency_keys.sql",
+			"V6__transfer_status.sql", "V7__money_units.sql" };
+
+	/**
+	 * Reset the database before each test.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Leave the demo data behind for the next test class.
+	 */
+	@AfterClass
+	public static void tearDown() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test load users across several batches.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testLoadUsers() throws CustomException {
+		StringBuilder csv = new StringBuilder("UserName,EmailAddress\n");
+		for (int i = 0; i < 25; i++) {
+			csv.append("bulk").append(i).append(",bulk").append(i).append("@gmail.com\n");
+		}
+		long loaded = new BulkLoader(10, 20).loadUsers(new StringReader(csv.toString()));
+		assertTrue(loaded == 25);
+		User u = h2DaoFactory.getUserDAO().getUserByName("bulk24");
+		assertTrue(u.getEmailAddress().equals("bulk24@gmail.com"));
+	}
+
+	/**
+	 * Test malformed account rows are skipped.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testLoadAccountsRejectsBadRows() throws CustomException {
+		String csv = "# payroll seed\n" + "bulk1,10.5,USD\n" + "bulk2,abc,USD\n" + "bulk3,10,XYZ1\n"
+				+ "bulk4,10\n" + "\n" + "bulk5,20.12345,EUR\n";
+		long loaded = new BulkLoader(2, 2).loadAccounts(new StringReader(csv));
+		assertTrue(loaded == 2);
+		int size = h2DaoFactory.getAccountDAO().getAllAccounts().size();
+		assertTrue(size == 8);
+		BigDecimal last = h2DaoFactory.getAccountDAO().getAccountById(8L).getBalance();
+		assertTrue(last.equals(new BigDecimal("20.1234")));
+	}
+
+	/**
+	 * Test the schema is at the latest version and migrate is a no-op.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testSchemaUpToDate() throws SQLException {
+		Connection conn = H2DAOFactory.getConnection();
+		try {
+			assertTrue(SchemaInitializer.getCurrentVersion(conn) == SchemaInitializer.getLatestVersion());
+			assertTrue(SchemaInitializer.migrate(conn) == 0);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Test V8 upper cases the currency codes of version 7 accounts.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testCurrencyMigrationNormalisesCodes() throws SQLException {
+		Connection conn = openVersion7("v8ok");
+		try {
+			execute(conn, "INSERT INTO Account (UserName,BalanceUnits,CurrencyCode) VALUES ('a',10000,'usd')");
+			execute(conn, "INSERT INTO Account (UserName,BalanceUnits,CurrencyCode) VALUES ('a',10000,' EUR')");
+			assertTrue(SchemaInitializer.migrate(conn) == 1);
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT CurrencyId FROM Account ORDER BY AccountId");
+			assertTrue(rs.next() && rs.getInt(1) == CurrencyTable.idOf("USD"));
+			assertTrue(rs.next() && rs.getInt(1) == CurrencyTable.idOf("EUR"));
+			DbUtils.closeQuietly(stmt);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Test V8 stops on a code that is no currency, before dropping the codes.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testCurrencyMigrationRejectsUnknownCode() throws SQLException {
+		Connection conn = openVersion7("v8unknown");
+		try {
+			execute(conn, "INSERT INTO Account (UserName,BalanceUnits,CurrencyCode) VALUES ('a',10000,'ABC')");
+			try {
+				SchemaInitializer.migrate(conn);
+				assertTrue(false);
+			} catch (SQLException e) {
+				assertTrue(e.getMessage().contains("'ABC'"));
+			}
+			assertTrue(SchemaInitializer.getCurrentVersion(conn) == 7);
+			execute(conn, "SELECT CurrencyCode FROM Account");
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Test V8 stops when two accounts of a user share a currency once upper cased.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testCurrencyMigrationRejectsCollidingCodes() throws SQLException {
+		Connection conn = openVersion7("v8dup");
+		try {
+			execute(conn, "INSERT INTO Account (UserName,BalanceUnits,CurrencyCode) VALUES ('a',10000,'USD')");
+			execute(conn, "INSERT INTO Account (UserName,BalanceUnits,CurrencyCode) VALUES ('a',10000,'usd')");
+			try {
+				SchemaInitializer.migrate(conn);
+				assertTrue(false);
+			} catch (SQLException e) {
+				assertTrue(e.getMessage().contains("more than one account"));
+			}
+			assertTrue(SchemaInitializer.getCurrentVersion(conn) == 7);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Open a new in-memory database at schema version 7.
+	 *
+	 * @param name the database name
+	 * @return the connection
+	 * @throws SQLException the SQL exception
+	 */
+	private static Connection openVersion7(String name) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:h2:mem:" + name, "sa", "sa");
+		SchemaInitializer.getCurrentVersion(conn);
+		for (int version = 1; version <= 7; version++) {
+			String script = MIGRATIONS_V7[version - 1];
+			RunScript.execute(conn, new InputStreamReader(TestBulkLoader.class.getClassLoader()
+					.getResourceAsStream("db/migration/" + script), StandardCharsets.UTF_8));
+			execute(conn, "INSERT INTO SchemaVersion VALUES (" + version + ", '" + script + "', CURRENT_TIMESTAMP())");
+		}
+		return conn;
+	}
+
+	/**
+	 * Execute a statement.
+	 *
+	 * @param conn the connection
+	 * @param sql the sql
+	 * @throws SQLException the SQL exception
+	 */
+	private static void execute(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute(sql);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+}
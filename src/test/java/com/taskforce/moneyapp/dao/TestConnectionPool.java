@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestConnectionPool.
+ */
+public class TestConnectionPool {
+
+	/** The pool. */
+	private ConnectionPool pool;
+
+	/**
+	 * Setup a pool of two connections with a short wait timeout.
+	 */
+	@Before
+	public void setup() {
+		pool = new ConnectionPool("jdbc:h2:mem:poolTest;DB_CLOSE_DELAY=-1", "sa", "sa", 2, 0, 0, 200, 1, 0, 4);
+	}
+
+	/**
+	 * Tear down.
+	 */
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	/**
+	 * Test closed connection is reused.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testConnectionReused() throws SQLException {
+		Connection first = pool.getConnection();
+		first.close();
+		assertTrue(first.isClosed());
+		Connection second = pool.getConnection();
+		second.close();
+		assertTrue(pool.getStats().getCreated() == 1);
+		assertTrue(pool.getStats().getBorrowCount() == 2);
+		assertTrue(pool.getStats().getIdle() == 1);
+	}
+
+	/**
+	 * Test borrow beyond max size times out.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test(expected = SQLTimeoutException.class)
+	public void testBorrowTimeout() throws SQLException {
+		Connection c1 = pool.getConnection();
+		Connection c2 = pool.getConnection();
+		assertTrue(pool.getStats().getActive() == 2);
+		try {
+			pool.getConnection();
+		} finally {
+			assertTrue(pool.getStats().getTimeouts() == 1);
+			c1.close();
+			c2.close();
+		}
+	}
+
+	/**
+	 * Test transaction state is reset when returned.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testAutoCommitResetOnReturn() throws SQLException {
+		Connection conn = pool.getConnection();
+		conn.setAutoCommit(false);
+		conn.close();
+		Connection next = pool.getConnection();
+		assertTrue(next.getAutoCommit());
+		next.close();
+	}
+
+	/**
+	 * Test a discarded connection is closed instead of pooled and frees its permit.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testDiscardNotPooled() throws SQLException {
+		Connection c1 = pool.getConnection();
+		Connection c2 = pool.getConnection();
+		c1.setAutoCommit(false);
+		pool.discard(c1);
+		assertTrue(c1.isClosed());
+		assertTrue(pool.getStats().getActive() == 1);
+		assertTrue(pool.getStats().getIdle() == 0);
+		// discarding twice or closing afterwards changes nothing
+		pool.discard(c1);
+		c1.close();
+		Connection c3 = pool.getConnection();
+		assertTrue(pool.getStats().getCreated() == 3);
+		c2.close();
+		c3.close();
+		assertTrue(pool.getStats().getTotal() == 2);
+	}
+
+	/**
+	 * Test idle connections are evicted.
+	 *
+	 * @throws SQLException the SQL exception
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Test
+	public void testIdleEviction() throws SQLException, InterruptedException {
+		ConnectionPool shortIdle = new ConnectionPool("jdbc:h2:mem:poolTest;DB_CLOSE_DELAY=-1", "sa", "sa", 2, 0, 10,
+				200, 1, 20, 4);
+		try {
+			shortIdle.getConnection().close();
+			Thread.sleep(200);
+			assertTrue(shortIdle.getStats().getIdle() == 0);
+			assertTrue(shortIdle.getStats().getEvicted() == 1);
+		} finally {
+			shortIdle.close();
+		}
+	}
+
+	/**
+	 * Test statements are prepared once per pooled connection.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testStatementCacheHit() throws SQLException {
+		for (int i = 0; i < 3; i++) {
+			Connection conn = pool.getConnection();
+			PreparedStatement stmt = conn.prepareStatement("SELECT 1");
+			stmt.executeQuery().close();
+			stmt.close();
+			conn.close();
+		}
+		assertTrue(pool.getStats().getStatementCacheMisses() == 1);
+		assertTrue(pool.getStats().getStatementCacheHits() == 2);
+	}
+
+	/**
+	 * Test the least recently used statement is evicted beyond the cache size.
+	 *
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testStatementCacheEviction() throws SQLException {
+		Connection conn = pool.getConnection();
+		for (int i = 0; i < 5; i++) {
+			conn.prepareStatement("SELECT " + i).close();
+		}
+		conn.prepareStatement("SELECT 0").close();
+		conn.close();
+		assertTrue(pool.getStats().getStatementCacheEvictions() == 2);
+		assertTrue(pool.getStats().getStatementCacheMisses() == 6);
+	}
+
+}
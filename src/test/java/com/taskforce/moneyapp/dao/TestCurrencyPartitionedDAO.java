@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.CurrencyPartitionedDAOFactory;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.impl.CurrencyPartition;
+import com.abcbank.moneytransfer.dao.impl.CurrencyPartitionedAccountDAOImpl;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestCurrencyPartitionedDAO.
+ */
+public class TestCurrencyPartitionedDAO {
+
+	/** The Constant currencyDaoFactory. */
+	private static final CurrencyPartitionedDAOFactory currencyDaoFactory = (CurrencyPartitionedDAOFactory) DAOFactory
+			.getDAOFactory(DAOFactory.CURRENCY_PARTITIONED);
+
+	/** The account DAO. */
+	private final CurrencyPartitionedAccountDAOImpl accountDAO = (CurrencyPartitionedAccountDAOImpl) currencyDaoFactory
+			.getAccountDAO();
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		currencyDaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test accounts are placed by currency, the other currencies share the
+	 * DEFAULT partition, and ids stay unique across partitions.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testAccountsByCurrency() throws CustomException {
+		assertTrue(accountDAO.getAllAccounts().size() == 6);
+		assertTrue(accountDAO.getAccountById(3).getCurrencyCode().equals("EUR"));
+		assertTrue(accountDAO.getAccounts(4, 10).size() == 2);
+		assertTrue(currencyDaoFactory.getUserDAO().getAllUsers().size() == 3);
+
+		long chf = accountDAO.createAccount(new Account("moksha", new BigDecimal(100), "CHF")).getAccountId();
+		assertTrue(chf == 7);
+		assertTrue(accountDAO.partitionOf("CHF").getName().equals(CurrencyPartitionedAccountDAOImpl.DEFAULT));
+		assertTrue(accountDAO.getAccountById(chf).getBalance().compareTo(new BigDecimal(100)) == 0);
+		try {
+			accountDAO.createAccount(new Account("vikram", BigDecimal.ONE, "USD"));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// vikram has a USD account already
+		}
+		assertTrue(accountDAO.adjustAccountBalance(chf, BigDecimal.TEN).compareTo(new BigDecimal(110)) == 0);
+		assertTrue(accountDAO.deleteAccountById(chf) == 1);
+		assertTrue(accountDAO.getAccountById(chf) == null);
+	}
+
+	/**
+	 * Test transfers run in the partition of their currency, a transfer in
+	 * another currency than its accounts fails, and each currency reports
+	 * its own throughput and latency.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testTransfersPerCurrency() throws Exception {
+		Map<String, CurrencyPartition.Stats> before = currencyDaoFactory.getPartitionStats();
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.ONE, 3L, 4L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// accounts 3 and 4 are in EUR, not in the USD partition
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 100; i++) {
+			long usdFrom = i % 2 == 0 ? 1 : 2;
+			long eurFrom = i % 2 == 0 ? 3 : 4;
+			pool.submit(() -> accountDAO.transferAccountBalance(
+					new UserTransaction("USD", BigDecimal.ONE, usdFrom, 3 - usdFrom)));
+			pool.submit(() -> accountDAO.transferAccountBalance(
+					new UserTransaction("EUR", BigDecimal.ONE, eurFrom, 7 - eurFrom)));
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+		assertTrue(accountDAO.getAccountById(1).getBalance().add(accountDAO.getAccountById(2).getBalance())
+				.compareTo(new BigDecimal(300)) == 0);
+		assertTrue(accountDAO.getAccountById(3).getBalance().add(accountDAO.getAccountById(4).getBalance())
+				.compareTo(new BigDecimal(1000)) == 0);
+		assertTrue(currencyDaoFactory.getTransferDAO().getTransfersByAccountId(3).size() == 100);
+
+		Map<String, CurrencyPartition.Stats> after = currencyDaoFactory.getPartitionStats();
+		assertTrue(after.get("USD").getCommitted() - before.get("USD").getCommitted() == 100);
+		assertTrue(after.get("USD").getRejected() - before.get("USD").getRejected() == 1);
+		assertTrue(after.get("EUR").getCommitted() - before.get("EUR").getCommitted() == 100);
+		assertTrue(after.get("EUR").getRejected() == before.get("EUR").getRejected());
+		assertTrue(after.get("GBP").getCommitted() == before.get("GBP").getCommitted());
+		assertTrue(after.get("EUR").getAvgLatencyMs() > 0 && after.get("EUR").getMaxLatencyMs() > 0);
+	}
+
+	/**
+	 * Test a transfer from an account to itself is rejected by its partition
+	 * and leaves the balance alone.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferToSameAccount() throws CustomException {
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.TEN, 1L, 1L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// same account
+		}
+		assertTrue(accountDAO.getAccountById(1).getBalance().compareTo(new BigDecimal(100)) == 0);
+	}
+
+}
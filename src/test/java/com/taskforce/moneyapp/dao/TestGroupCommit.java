@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.impl.AccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.TransferGroupCommitter;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestGroupCommit.
+ */
+public class TestGroupCommit {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test concurrent transfers share transactions, rejected ones fail alone
+	 * and every committed one is applied with its history row.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testBatchedTransfersWithRejects() throws Exception {
+		TransferGroupCommitter committer = new TransferGroupCommitter(16, 20000);
+		AccountDAOImpl accountDAO = new AccountDAOImpl(new AccountDAOImpl.Options().groupCommitter(committer));
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < 64; i++) {
+			// every fourth one asks for more than the account holds
+			BigDecimal amount = i % 4 == 0 ? new BigDecimal(10000) : BigDecimal.ONE;
+			long from = i % 2 == 0 ? 5 : 6;
+			results.add(pool.submit(() -> accountDAO.transferAccountBalance(
+					new UserTransaction("GBP", amount, from, 11 - from))));
+		}
+		int committed = 0;
+		int rejected = 0;
+		for (Future<Integer> result : results) {
+			try {
+				assertTrue(result.get() == 2);
+				committed++;
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof CustomException);
+				rejected++;
+			}
+		}
+		pool.shutdown();
+		assertTrue(committed == 48 && rejected == 16);
+
+		TransferGroupCommitter.Stats stats = committer.getStats();
+		assertTrue(stats.getCommitted() == 48);
+		assertTrue(stats.getRejected() == 16);
+		assertTrue(stats.getBatches() < 64);
+		assertTrue(stats.getMaxBatchSize() > 1 && stats.getMaxBatchSize() <= 16);
+		long histogram = 0;
+		for (long count : stats.getBatchSizes().values()) {
+			histogram += count;
+		}
+		assertTrue(histogram == stats.getBatches());
+
+		// the rejects were all from account 5: 16 committed from 5, 32 from 6
+		assertTrue(accountDAO.getAccountById(5).getBalance().compareTo(new BigDecimal(516)) == 0);
+		assertTrue(accountDAO.getAccountById(6).getBalance().compareTo(new BigDecimal(484)) == 0);
+		assertTrue(h2DaoFactory.getTransferDAO().getTransfersByAccountId(5).size() == 48);
+		committer.close();
+
+		// once closed, transfers commit alone
+		assertTrue(accountDAO.transferAccountBalance(new UserTransaction("GBP", BigDecimal.TEN, 5L, 6L)) == 2);
+		assertTrue(committer.getStats().getCommitted() == 48);
+	}
+
+	/**
+	 * Test a transfer from an account to itself is rejected in a group
+	 * commit and leaves the balance alone.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferToSameAccount() throws CustomException {
+		TransferGroupCommitter committer = new TransferGroupCommitter(16, 20000);
+		AccountDAOImpl accountDAO = new AccountDAOImpl(new AccountDAOImpl.Options().groupCommitter(committer));
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("GBP", BigDecimal.TEN, 5L, 5L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// same account
+		}
+		assertTrue(committer.getStats().getRejected() == 1);
+		assertTrue(accountDAO.getAccountById(5).getBalance().compareTo(new BigDecimal(500)) == 0);
+		committer.close();
+	}
+
+}
@@ -0,0 +1,209 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.IdempotencyStore;
+import com.abcbank.moneytransfer.exception.CustomException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestIdempotencyStore.
+ */
+public class TestIdempotencyStore {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/**
+	 * Reset the demo data and the keys.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test a key is claimed once, answered from memory with its response, and
+	 * still found in the table once the cache forgot it.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testClaimAndReplay() throws CustomException {
+		IdempotencyStore store = h2DaoFactory.getIdempotencyStore();
+		assertTrue(store.claim("key-1", 42) == null);
+		IdempotencyStore.Outcome running = store.claim("key-1", 42);
+		assertTrue(running != null && running.isRunning());
+
+		store.complete("key-1", 42, 500, "Not sufficient Fund");
+		IdempotencyStore.Outcome cached = store.claim("key-1", 42);
+		assertTrue(cached.getStatus() == 500 && cached.getMessage().equals("Not sufficient Fund"));
+
+		store.clearCache();
+		IdempotencyStore.Outcome stored = store.claim("key-1", 7);
+		assertTrue(stored.getStatus() == 500 && stored.getRequestHash() == 42);
+
+		store.release("key-1");
+		store.clearCache();
+		assertTrue(store.claim("key-1", 7) == null);
+	}
+
+	/**
+	 * Test the memory only store keeps a bounded number of keys, oldest
+	 * evicted first, each for its time to live.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testBoundedCache() throws Exception {
+		IdempotencyStore store = new IdempotencyStore(null, 16, 200, 200);
+		assertTrue(store.getCacheCapacity() == 16);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(store.claim("key-" + i, i) == null);
+			store.complete("key-" + i, i, 200, null);
+		}
+		int cached = 0;
+		for (int i = 0; i < 1000; i++) {
+			IdempotencyStore.Outcome outcome = store.claim("key-" + i, i);
+			if (outcome != null) {
+				assertTrue(outcome.getStatus() == 200 && outcome.getRequestHash() == i);
+				cached++;
+			}
+		}
+		assertTrue(cached <= 16);
+		assertTrue(store.claim("key-999", 999) != null);
+
+		Thread.sleep(250);
+		assertTrue(store.claim("key-999", 999) == null);
+	}
+
+	/**
+	 * Test a key still running past its lease, as one of a process that
+	 * crashed, is taken over by the next request, while a completed key is
+	 * kept for its time to live.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testRunningKeyLeaseExpires() throws Exception {
+		ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:idempotencyLease;DB_CLOSE_DELAY=-1", "sa", "sa", 2, 0,
+				0, 200, 1, 0, 4);
+		try {
+			Connection conn = pool.getConnection();
+			Statement stmt = conn.createStatement();
+			stmt.execute("CREATE TABLE IF NOT EXISTS IdempotencyKey (IdempotencyKey VARCHAR(255) PRIMARY KEY NOT NULL,"
+					+ " RequestHash LONG NOT NULL, Status INT NOT NULL, Message VARCHAR(1000), CreatedAt LONG NOT NULL)");
+			stmt.close();
+			conn.close();
+
+			IdempotencyStore store = new IdempotencyStore(pool, 16, 60000, 100);
+			assertTrue(store.claim("lost", 1) == null);
+			assertTrue(store.claim("done", 2) == null);
+			store.complete("done", 2, 200, null);
+			assertTrue(store.claim("lost", 1).isRunning());
+
+			// a restart forgets the cache, the rows are left
+			store.clearCache();
+			assertTrue(store.claim("lost", 1).isRunning());
+			Thread.sleep(150);
+			assertTrue(store.claim("lost", 1) == null);
+			assertTrue(store.claim("done", 2).getStatus() == 200);
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Test a record written in a transaction that rolls back leaves no key,
+	 * and a record of a key the table has fails and tells so.
+	 *
+	 * @throws CustomException the custom exception
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testRecordWrittenInTransaction() throws CustomException, SQLException {
+		IdempotencyStore store = h2DaoFactory.getIdempotencyStore();
+		ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:idempotencyRecord;DB_CLOSE_DELAY=-1", "sa", "sa", 2, 0,
+				0, 200, 1, 0, 4);
+		try {
+			Connection conn = pool.getConnection();
+			Statement stmt = conn.createStatement();
+			stmt.execute("CREATE TABLE IF NOT EXISTS IdempotencyKey (IdempotencyKey VARCHAR(255) PRIMARY KEY NOT NULL,"
+					+ " RequestHash LONG NOT NULL, Status INT NOT NULL, Message VARCHAR(1000), CreatedAt LONG NOT NULL)");
+			stmt.close();
+			conn.setAutoCommit(false);
+			IdempotencyStore.Record record = store.record("key-r", 5, 200);
+			record.write(conn);
+			assertTrue(record.isWritten());
+			conn.rollback();
+			record = store.record("key-r", 5, 200);
+			record.write(conn);
+			conn.commit();
+
+			IdempotencyStore.Record repeat = store.record("key-r", 5, 200);
+			try {
+				repeat.write(conn);
+				assertTrue(false);
+			} catch (CustomException e) {
+				assertTrue(repeat.isTaken() && !repeat.isWritten());
+			}
+			conn.rollback();
+			conn.close();
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Test a failure after the transfer committed its record does not
+	 * overwrite the committed response.
+	 *
+	 * @throws CustomException the custom exception
+	 * @throws SQLException the SQL exception
+	 */
+	@Test
+	public void testCompleteKeepsCommittedRecord() throws CustomException, SQLException {
+		ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:idempotencyCommitted;DB_CLOSE_DELAY=-1", "sa", "sa", 2, 0,
+				0, 200, 1, 0, 4);
+		try {
+			Connection conn = pool.getConnection();
+			Statement stmt = conn.createStatement();
+			stmt.execute("CREATE TABLE IF NOT EXISTS IdempotencyKey (IdempotencyKey VARCHAR(255) PRIMARY KEY NOT NULL,"
+					+ " RequestHash LONG NOT NULL, Status INT NOT NULL, Message VARCHAR(1000), CreatedAt LONG NOT NULL)");
+			stmt.close();
+			conn.setAutoCommit(false);
+			IdempotencyStore store = new IdempotencyStore(pool, 16, 60000, 60000);
+			assertTrue(store.claimInCache("key-c", 3) == null);
+			store.record("key-c", 3, 200).write(conn);
+			conn.commit();
+			conn.close();
+
+			store.complete("key-c", 3, 500, "Fail to sync journal");
+			IdempotencyStore.Outcome outcome = store.claim("key-c", 3);
+			assertTrue(outcome.getStatus() == 200);
+			store.clearCache();
+			assertTrue(store.claim("key-c", 3).getStatus() == 200);
+		} finally {
+			pool.close();
+		}
+	}
+}
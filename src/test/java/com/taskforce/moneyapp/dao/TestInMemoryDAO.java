@@ -0,0 +1,250 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.User;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestInMemoryDAO.
+ */
+public class TestInMemoryDAO {
+
+	/** The Constant memDaoFactory. */
+	private static final DAOFactory memDaoFactory = DAOFactory.getDAOFactory(DAOFactory.IN_MEMORY);
+
+	/** The Constant THREADS_COUNT. */
+	private static final int THREADS_COUNT = 100;
+
+	/**
+	 * Reset the store with the demo data before each test.
+	 */
+	@Before
+	public void setup() {
+		memDaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test the demo data matches demo.sql and the factory is shared.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testDemoData() throws CustomException {
+		assertTrue(DAOFactory.getDAOFactory(DAOFactory.IN_MEMORY) == memDaoFactory);
+		assertTrue(memDaoFactory.getAccountDAO().getAllAccounts().size() == 6);
+		assertTrue(memDaoFactory.getUserDAO().getAllUsers().size() == 3);
+		Account account = memDaoFactory.getAccountDAO().getAccountById(3L);
+		assertTrue(account.getUserName().equals("vikram"));
+		assertTrue(account.getCurrencyCode().equals("EUR"));
+		assertTrue(account.getBalance().equals(new BigDecimal("500.0000")));
+		assertTrue(memDaoFactory.getUserDAO().getUserByName("kiran").getUserId() == 2L);
+	}
+
+	/**
+	 * Test keyset pages and the stream return the accounts in id order.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testPagingAndStreaming() throws Exception {
+		AccountDAO accountDAO = memDaoFactory.getAccountDAO();
+		List<Account> page = accountDAO.getAccounts(2L, 3);
+		assertTrue(page.size() == 3);
+		assertTrue(page.get(0).getAccountId() == 3L && page.get(2).getAccountId() == 5L);
+		assertTrue(accountDAO.getAccounts(5L, 3).size() == 1);
+		assertTrue(accountDAO.getAccounts(6L, 3).isEmpty());
+		assertTrue(memDaoFactory.getUserDAO().getUsers(1L, 1).get(0).getUserId() == 2L);
+
+		List<Account> streamed = new ArrayList<Account>();
+		assertTrue(accountDAO.streamAllAccounts(streamed::add) == 6);
+		assertTrue(streamed.equals(accountDAO.getAllAccounts()));
+	}
+
+	/**
+	 * Test transfer rules: currency checks, insufficient funds, missing account.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferRules() throws CustomException {
+		AccountDAO accountDAO = memDaoFactory.getAccountDAO();
+		BigDecimal amount = new BigDecimal(50.01234).setScale(4, RoundingMode.HALF_EVEN);
+		assertTrue(accountDAO.transferAccountBalance(new UserTransaction("EUR", amount, 3L, 4L)) == 2);
+		assertTrue(accountDAO.getAccountById(3L).getBalance().equals(new BigDecimal("449.9877")));
+		assertTrue(accountDAO.getAccountById(4L).getBalance().equals(new BigDecimal("550.0123")));
+
+		assertTransferFails(accountDAO, new UserTransaction("USD", amount, 3L, 4L));
+		assertTransferFails(accountDAO, new UserTransaction("EUR", amount, 3L, 6L));
+		assertTransferFails(accountDAO, new UserTransaction("USD", new BigDecimal(101), 1L, 2L));
+		assertTransferFails(accountDAO, new UserTransaction("USD", amount, 1L, 100L));
+		// failed transfers leave both sides untouched
+		assertTrue(accountDAO.getAccountById(1L).getBalance().equals(new BigDecimal("100.0000")));
+		assertTrue(accountDAO.getAccountById(2L).getBalance().equals(new BigDecimal("200.0000")));
+	}
+
+	/**
+	 * Test an atomic batch commits transfers funded by the earlier ones, and
+	 * changes nothing when one transfer is rejected.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testAtomicTransferBatch() throws CustomException {
+		AccountDAO accountDAO = memDaoFactory.getAccountDAO();
+		List<TransferResult> results = accountDAO.transferAccountBalances(Arrays.asList(
+				new UserTransaction("GBP", new BigDecimal(500), 5L, 6L),
+				new UserTransaction("GBP", new BigDecimal(1000), 6L, 5L)), true);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.COMMITTED);
+		assertTrue(results.get(1).getStatus() == TransferResult.Status.COMMITTED);
+		assertTrue(accountDAO.getAccountById(5L).getBalance().equals(new BigDecimal("1000.0000")));
+
+		results = accountDAO.transferAccountBalances(Arrays.asList(
+				new UserTransaction("GBP", new BigDecimal(1), 5L, 6L),
+				new UserTransaction("GBP", new BigDecimal(1), 6L, 3L)), true);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.ABORTED);
+		assertTrue(results.get(1).getStatus() == TransferResult.Status.REJECTED);
+		assertTrue(accountDAO.getAccountById(5L).getBalance().equals(new BigDecimal("1000.0000")));
+		assertTrue(accountDAO.getAccountById(6L).getBalance().equals(new BigDecimal("0.0000")));
+	}
+
+	/**
+	 * Test concurrent transfers in both directions keep the total and never
+	 * overdraw.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testMultiThreadedTransfer() throws InterruptedException, CustomException {
+		final AccountDAO accountDAO = memDaoFactory.getAccountDAO();
+		final CountDownLatch latch = new CountDownLatch(THREADS_COUNT);
+		final AtomicInteger succeeded = new AtomicInteger();
+		for (int i = 0; i < THREADS_COUNT; i++) {
+			final boolean forward = i % 4 != 0;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						UserTransaction transaction = new UserTransaction("USD",
+								new BigDecimal(3).setScale(4, RoundingMode.HALF_EVEN), forward ? 1L : 2L,
+								forward ? 2L : 1L);
+						if (accountDAO.transferAccountBalance(transaction) == 2) {
+							succeeded.incrementAndGet();
+						}
+					} catch (CustomException e) {
+						// not enough fund
+					} finally {
+						latch.countDown();
+					}
+				}
+			}).start();
+		}
+		latch.await();
+		BigDecimal from = accountDAO.getAccountById(1L).getBalance();
+		BigDecimal to = accountDAO.getAccountById(2L).getBalance();
+		assertTrue(from.add(to).equals(new BigDecimal("300.0000")));
+		assertTrue(from.signum() >= 0 && to.signum() >= 0);
+		assertTrue(succeeded.get() > 0);
+	}
+
+	/**
+	 * Test the unique indexes of the H2 schema are enforced.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testUniqueKeys() throws CustomException {
+		assertCreateFails(new Account("vikram", new BigDecimal(1), "USD"));
+		long id = memDaoFactory.getAccountDAO().createAccount(new Account("vikram", new BigDecimal(1), "CNY")).getAccountId();
+		assertTrue(id == 7L);
+		assertTrue(memDaoFactory.getAccountDAO().deleteAccountById(id) == 1);
+		assertTrue(memDaoFactory.getAccountDAO().deleteAccountById(id) == 0);
+		// the key is free again once the account is gone
+		memDaoFactory.getAccountDAO().createAccount(new Account("vikram", new BigDecimal(1), "CNY"));
+
+		try {
+			memDaoFactory.getUserDAO().insertUser(new User("vikram", "vikram@gmail.com"));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// duplicate user
+		}
+		assertTrue(memDaoFactory.getUserDAO().updateUser(1L, new User("vikram", "new@gmail.com")) == 1);
+		assertTrue(memDaoFactory.getUserDAO().getUserById(1L).getEmailAddress().equals("new@gmail.com"));
+		memDaoFactory.getUserDAO().insertUser(new User("vikram", "vikram@gmail.com"));
+	}
+
+	/**
+	 * Assert a transfer is rejected.
+	 *
+	 * @param accountDAO the account DAO
+	 * @param transaction the transaction
+	 */
+	private static void assertTransferFails(AccountDAO accountDAO, UserTransaction transaction) {
+		try {
+			accountDAO.transferAccountBalance(transaction);
+			assertTrue(false);
+		} catch (CustomException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Assert an account cannot be created.
+	 *
+	 * @param account the account
+	 */
+	private static void assertCreateFails(Account account) {
+		try {
+			memDaoFactory.getAccountDAO().createAccount(account);
+			assertTrue(false);
+		} catch (CustomException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test a transfer from an account to itself is rejected, alone or in a
+	 * batch, and leaves the balance alone.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferToSameAccount() throws CustomException {
+		AccountDAO accountDAO = memDaoFactory.getAccountDAO();
+		assertTransferFails(accountDAO, new UserTransaction("USD", BigDecimal.TEN, 1L, 1L));
+		List<TransferResult> results = accountDAO.transferAccountBalances(
+				Arrays.asList(new UserTransaction("USD", BigDecimal.TEN, 1L, 1L)), true);
+		assertTrue(results.get(0).getStatus() == TransferResult.Status.REJECTED);
+		assertTrue(accountDAO.getAccountById(1L).getBalance().equals(new BigDecimal("100.0000")));
+	}
+
+}
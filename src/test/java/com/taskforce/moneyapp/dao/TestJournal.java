@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.impl.InMemoryAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.journal.JournalRecord;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestJournal.
+ */
+public class TestJournal {
+
+	/** The journal directory. */
+	private File dir;
+
+	/**
+	 * Create an empty journal directory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("journal").toFile();
+	}
+
+	/**
+	 * Remove the journal directory.
+	 */
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test records survive a reopen across several segments.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testReplayAcrossSegments() throws IOException {
+		Journal journal = new Journal(dir, 4096, 10, true);
+		for (int i = 1; i <= 500; i++) {
+			journal.append(JournalRecord.transfer(1, 2, new BigDecimal("0.0001"), BigDecimal.valueOf(500 - i),
+					BigDecimal.valueOf(i)));
+		}
+		journal.close();
+		assertTrue(dir.listFiles().length > 1);
+
+		journal = new Journal(dir, 4096, 10, true);
+		assertTrue(journal.getLastSeq() == 500);
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		assertTrue(journal.replay(0, records::add) == 500);
+		for (int i = 0; i < records.size(); i++) {
+			JournalRecord r = records.get(i);
+			assertTrue(r.getSeq() == i + 1);
+			assertTrue(r.getType() == JournalRecord.TRANSFER);
+			assertTrue(r.getCounterpartyBalance().compareTo(BigDecimal.valueOf(i + 1)) == 0);
+		}
+		records.clear();
+		assertTrue(journal.replay(450, records::add) == 50);
+		assertTrue(records.get(0).getSeq() == 451);
+		assertTrue(journal.append(JournalRecord.balanceUpdate(1, new BigDecimal(-5), BigDecimal.ONE)) == 501);
+		journal.close();
+	}
+
+	/**
+	 * Test a corrupted last record is dropped on open and overwritten.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testTornTailDiscarded() throws IOException {
+		Journal journal = new Journal(dir, 4096, 10, true);
+		for (int i = 0; i < 10; i++) {
+			journal.append(JournalRecord.balanceUpdate(7, BigDecimal.TEN, BigDecimal.valueOf(i)));
+		}
+		journal.close();
+		// deposit frames are 49 bytes, flip a payload byte of the 10th record
+		try (RandomAccessFile raf = new RandomAccessFile(dir.listFiles()[0], "rw")) {
+			raf.seek(9 * 49 + 30);
+			raf.write(0x7f);
+		}
+		journal = new Journal(dir, 4096, 10, true);
+		assertTrue(journal.getLastSeq() == 9);
+		assertTrue(journal.append(JournalRecord.balanceUpdate(7, BigDecimal.TEN, BigDecimal.ONE)) == 10);
+		AtomicInteger count = new AtomicInteger();
+		journal.replay(0, r -> count.incrementAndGet());
+		assertTrue(count.get() == 10);
+		journal.close();
+	}
+
+	/**
+	 * Test the records of one transaction get consecutive sequence numbers,
+	 * and an abort record naming them survives a reopen.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testAbortRecord() throws IOException {
+		Journal journal = new Journal(dir, 4096, 10, true);
+		journal.append(JournalRecord.balanceUpdate(1, BigDecimal.TEN, BigDecimal.TEN));
+		List<JournalRecord> batch = new ArrayList<JournalRecord>();
+		for (int i = 0; i < 3; i++) {
+			batch.add(JournalRecord.transfer(1, 2, BigDecimal.ONE, BigDecimal.valueOf(9 - i), BigDecimal.valueOf(i + 1)));
+		}
+		long last = journal.append(batch);
+		assertTrue(last == 4);
+		assertTrue(journal.append(new ArrayList<JournalRecord>()) == 0);
+		journal.append(JournalRecord.abort(last - batch.size() + 1, last));
+		journal.close();
+
+		journal = new Journal(dir, 4096, 10, true);
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		journal.replay(0, records::add);
+		assertTrue(records.size() == 5);
+		JournalRecord abort = records.get(4);
+		assertTrue(abort.getType() == JournalRecord.ABORT);
+		assertTrue(abort.getAbortedFromSeq() == 2 && abort.getAbortedToSeq() == 4);
+		journal.close();
+	}
+
+	/**
+	 * Test concurrent committers share fsyncs.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testGroupCommit() throws Exception {
+		final Journal journal = new Journal(dir, 1 << 20, 1000, true);
+		final int threads = 8;
+		final int perThread = 100;
+		final CountDownLatch latch = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				try {
+					for (int i = 0; i < perThread; i++) {
+						long seq = journal.append(JournalRecord.balanceUpdate(1, BigDecimal.ONE, BigDecimal.ONE));
+						journal.awaitDurable(seq);
+					}
+				} catch (IOException e) {
+					failures.incrementAndGet();
+				} finally {
+					latch.countDown();
+				}
+			}).start();
+		}
+		latch.await();
+		Journal.Stats stats = journal.getStats();
+		assertTrue(failures.get() == 0);
+		assertTrue(stats.getDurableSeq() == threads * perThread);
+		assertTrue(stats.getFsyncs() <= threads * perThread);
+		journal.close();
+	}
+
+	/**
+	 * Test the in memory engine journals account creation, deposits and
+	 * transfers with the new balances.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testInMemoryDAOJournal() throws Exception {
+		Journal journal = new Journal(dir, 4096, 10, true);
+		InMemoryAccountDAOImpl accountDAO = new InMemoryAccountDAOImpl(new InMemoryStore(16, 16, journal));
+		long a = accountDAO.createAccount(new Account("a", new BigDecimal(100), "USD")).getAccountId();
+		long b = accountDAO.createAccount(new Account("b", new BigDecimal(0), "USD")).getAccountId();
+		accountDAO.updateAccountBalance(a, new BigDecimal(-10));
+		accountDAO.transferAccountBalance(new UserTransaction("USD", new BigDecimal("25.5"), a, b));
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", new BigDecimal(1000), a, b));
+		} catch (CustomException e) {
+			// rejected transfers are not journaled
+		}
+		assertTrue(journal.getDurableSeq() == 4);
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		journal.replay(0, records::add);
+		assertTrue(records.size() == 4);
+		assertTrue(records.get(0).getType() == JournalRecord.ACCOUNT_CREATE);
+		assertTrue(records.get(0).getUserName().equals("a"));
+		assertTrue(records.get(0).getBalance().equals(new BigDecimal("100.0000")));
+		assertTrue(records.get(2).getType() == JournalRecord.WITHDRAWAL);
+		assertTrue(records.get(2).getBalance().equals(new BigDecimal("90.0000")));
+		assertTrue(records.get(3).getCounterpartyId() == b);
+		assertTrue(records.get(3).getBalance().equals(new BigDecimal("64.5000")));
+		assertTrue(records.get(3).getCounterpartyBalance().equals(new BigDecimal("25.5000")));
+		journal.close();
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.H2DAOFactory;
+import com.abcbank.moneytransfer.dao.TransferConcurrencyMode;
+import com.abcbank.moneytransfer.dao.TransferHistoryMode;
+import com.abcbank.moneytransfer.dao.TransferMetrics;
+import com.abcbank.moneytransfer.dao.impl.AccountDAOImpl;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestOptimisticTransfer.
+ */
+public class TestOptimisticTransfer {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/** The Constant THREADS_COUNT. */
+	private static final int THREADS_COUNT = 20;
+
+	/** The metrics. */
+	private TransferMetrics metrics;
+
+	/** The optimistic account DAO. */
+	private AccountDAOImpl accountDAO;
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+		metrics = new TransferMetrics();
+		accountDAO = new AccountDAOImpl(new AccountDAOImpl.Options().history(TransferHistoryMode.OFF, null)
+				.concurrencyMode(TransferConcurrencyMode.OPTIMISTIC).metrics(metrics));
+	}
+
+	/**
+	 * Test a transfer bumps both versions and the checks of the pessimistic
+	 * mode still apply.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSingleTransfer() throws Exception {
+		long version3 = getVersion(3);
+		assertTrue(accountDAO.transferAccountBalance(new UserTransaction("EUR", new BigDecimal(50), 3L, 4L)) == 2);
+		assertTrue(getVersion(3) == version3 + 1);
+		assertTrue(accountDAO.getAccountById(3).getBalance().equals(new BigDecimal("450.0000")));
+		assertTrue(accountDAO.getAccountById(4).getBalance().equals(new BigDecimal("550.0000")));
+		// a deposit bumps the version too, so it conflicts with a stale read
+		accountDAO.updateAccountBalance(4, BigDecimal.ONE);
+		assertTrue(getVersion(4) == version3 + 2);
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("EUR", new BigDecimal(1000), 3L, 4L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			assertTrue(e.getMessage().startsWith("Not enough Fund"));
+		}
+		TransferMetrics.Stats stats = metrics.getStats();
+		assertTrue(stats.getCommitted() == 1 && stats.getAttempts() == 2 && stats.getConflicts() == 0);
+	}
+
+	/**
+	 * Test concurrent transfers in both directions keep the total, and every
+	 * transfer is either committed or counted as out of retries.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testConcurrentTransfers() throws Exception {
+		final AtomicInteger committed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(THREADS_COUNT);
+		for (int i = 0; i < THREADS_COUNT; i++) {
+			final boolean forward = i % 2 == 0;
+			new Thread(() -> {
+				try {
+					for (int j = 0; j < 10; j++) {
+						try {
+							accountDAO.transferAccountBalance(
+									new UserTransaction("GBP", BigDecimal.ONE, forward ? 5L : 6L, forward ? 6L : 5L));
+							committed.incrementAndGet();
+						} catch (CustomException e) {
+							failed.incrementAndGet();
+						}
+					}
+				} finally {
+					latch.countDown();
+				}
+			}).start();
+		}
+		latch.await();
+
+		BigDecimal total = accountDAO.getAccountById(5).getBalance().add(accountDAO.getAccountById(6).getBalance());
+		assertTrue(total.equals(new BigDecimal("1000.0000")));
+		TransferMetrics.Stats stats = metrics.getStats();
+		assertTrue(stats.getCommitted() == committed.get());
+		assertTrue(stats.getRetriesExhausted() == failed.get());
+		assertTrue(stats.getAttempts() == stats.getCommitted() + stats.getConflicts());
+		assertTrue(stats.getConflicts() == stats.getRetries() + stats.getRetriesExhausted());
+		assertTrue(getVersion(5) == committed.get());
+	}
+
+	/**
+	 * Gets the row version of an account.
+	 *
+	 * @param accountId the account id
+	 * @return the version
+	 * @throws SQLException the SQL exception
+	 */
+	private static long getVersion(long accountId) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = H2DAOFactory.getConnection();
+			stmt = conn.prepareStatement("SELECT Version FROM Account WHERE AccountId = ?");
+			stmt.setLong(1, accountId);
+			rs = stmt.executeQuery();
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.impl.ShardedAccountDAOImpl;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.CurrencyTable;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestShardedDAO.
+ */
+public class TestShardedDAO {
+
+	/** The Constant shardedDaoFactory. */
+	private static final DAOFactory shardedDaoFactory = DAOFactory.getDAOFactory(DAOFactory.SHARDED_H2);
+
+	/** The account DAO. */
+	private final ShardedAccountDAOImpl accountDAO = (ShardedAccountDAOImpl) shardedDaoFactory.getAccountDAO();
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		shardedDaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test the demo accounts are spread over the shards under their own ids,
+	 * and new accounts get the next ids, unique across shards.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testAccountsAcrossShards() throws CustomException {
+		List<Account> all = accountDAO.getAllAccounts();
+		assertTrue(all.size() == 6);
+		for (int i = 0; i < all.size(); i++) {
+			assertTrue(all.get(i).getAccountId() == i + 1);
+		}
+		assertTrue(accountDAO.getAccounts(2, 3).get(2).getAccountId() == 5);
+		assertTrue(shardedDaoFactory.getUserDAO().getAllUsers().size() == 3);
+
+		long id = accountDAO.createAccount(new Account("moksha", new BigDecimal(100), "CHF")).getAccountId();
+		assertTrue(id == 7);
+		assertTrue(accountDAO.getAccountById(id).getBalance().compareTo(new BigDecimal(100)) == 0);
+		try {
+			accountDAO.createAccount(new Account("moksha", new BigDecimal(1), "CHF"));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// same user and currency, whatever the shard
+		}
+		assertTrue(accountDAO.adjustAccountBalance(id, new BigDecimal(-40)).compareTo(new BigDecimal(60)) == 0);
+		assertTrue(accountDAO.deleteAccountById(id) == 1);
+		assertTrue(accountDAO.getAccountById(id) == null);
+	}
+
+	/**
+	 * Test transfers within and across shards, a rejected cross shard
+	 * transfer leaving both shards untouched, the history on both shards and
+	 * concurrent opposite transfers keeping the total.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testLocalAndCrossShardTransfers() throws Exception {
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 16; i++) {
+			ids.add(accountDAO.createAccount(new Account("shard" + i, new BigDecimal(100), "CHF")).getAccountId());
+		}
+		long a = ids.get(0);
+		long local = -1;
+		long remote = -1;
+		for (long id : ids.subList(1, ids.size())) {
+			if (accountDAO.shardOf(id) == accountDAO.shardOf(a)) {
+				local = id;
+			} else {
+				remote = id;
+			}
+		}
+		assertTrue(local > 0 && remote > 0);
+		ShardedAccountDAOImpl.Stats before = accountDAO.getStats();
+
+		assertTrue(accountDAO.transferAccountBalance(new UserTransaction("CHF", BigDecimal.TEN, a, local)) == 2);
+		assertTrue(accountDAO.transferAccountBalance(new UserTransaction("CHF", BigDecimal.TEN, a, remote)) == 2);
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("CHF", new BigDecimal(1000), remote, a));
+			assertTrue(false);
+		} catch (CustomException e) {
+			assertTrue(e.getMessage().startsWith("Not enough Fund"));
+		}
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("CHF", BigDecimal.ONE, a, 1L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// account 1 is in USD, wherever it is
+		}
+		assertTrue(accountDAO.getAccountById(a).getBalance().compareTo(new BigDecimal(80)) == 0);
+		assertTrue(accountDAO.getAccountById(remote).getBalance().compareTo(new BigDecimal(110)) == 0);
+		assertTrue(shardedDaoFactory.getTransferDAO().getTransfersByAccountId(a).size() == 2);
+		assertTrue(shardedDaoFactory.getTransferDAO().getTransfersByAccountId(remote).size() == 1);
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 200; i++) {
+			long from = ids.get(i % ids.size());
+			long to = ids.get((i * 7 + 3) % ids.size());
+			pool.submit(() -> {
+				try {
+					accountDAO.transferAccountBalance(new UserTransaction("CHF", BigDecimal.ONE, from, to));
+				} catch (CustomException e) {
+					// same account
+				}
+				return null;
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+		BigDecimal total = BigDecimal.ZERO;
+		for (long id : ids) {
+			total = total.add(accountDAO.getAccountById(id).getBalance());
+		}
+		assertTrue(total.compareTo(new BigDecimal(1600)) == 0);
+
+		ShardedAccountDAOImpl.Stats after = accountDAO.getStats();
+		assertTrue(after.getLocalTransfers() > before.getLocalTransfers());
+		assertTrue(after.getCrossShardCommitted() - before.getCrossShardCommitted() > 1);
+		assertTrue(after.getCrossShardAborted() > before.getCrossShardAborted());
+		// nothing left prepared
+		assertTrue(accountDAO.recover() == 0);
+	}
+
+	/**
+	 * Test recovery commits a shard transaction left prepared once its
+	 * transfer was logged COMMITTED, and rolls one back while still PREPARING.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testRecoveryOfPreparedTransactions() throws Exception {
+		int shard = accountDAO.shardOf(1);
+		String url = "jdbc:h2:mem:moneyapp_shard" + shard + ";DB_CLOSE_DELAY=-1";
+		try (Connection catalog = DriverManager.getConnection("jdbc:h2:mem:moneyapp_catalog;DB_CLOSE_DELAY=-1",
+				"sa", "sa");
+				Connection decided = DriverManager.getConnection(url, "sa", "sa");
+				Connection undecided = DriverManager.getConnection(url, "sa", "sa")) {
+			Statement log = catalog.createStatement();
+			int usd = CurrencyTable.idOf("USD");
+			log.executeUpdate("INSERT INTO ShardTransferLog (TxId, FromAccountId, ToAccountId, AmountUnits, CurrencyId, "
+					+ "State, CreatedAt, UpdatedAt) VALUES (101, 2, 1, 50000, " + usd + ", 'COMMITTED', NOW(), NOW())");
+			log.executeUpdate("INSERT INTO ShardTransferLog (TxId, FromAccountId, ToAccountId, AmountUnits, CurrencyId, "
+					+ "State, CreatedAt, UpdatedAt) VALUES (102, 2, 1, 70000, " + usd + ", 'PREPARING', NOW(), NOW())");
+			// two sessions crashing after PREPARE COMMIT
+			decided.setAutoCommit(false);
+			decided.createStatement().executeUpdate("UPDATE Account SET BalanceUnits = BalanceUnits + 50000 WHERE AccountId = 1");
+			decided.createStatement().execute("PREPARE COMMIT TX_101_" + shard);
+			undecided.setAutoCommit(false);
+			undecided.createStatement().executeUpdate("UPDATE Account SET BalanceUnits = BalanceUnits + 70000 WHERE AccountId = 2");
+			undecided.createStatement().execute("PREPARE COMMIT TX_102_" + shard);
+
+			ShardedAccountDAOImpl.Stats before = accountDAO.getStats();
+			assertTrue(accountDAO.recover() == 2);
+			ShardedAccountDAOImpl.Stats after = accountDAO.getStats();
+			assertTrue(after.getRecoveredCommits() - before.getRecoveredCommits() == 1);
+			assertTrue(after.getRecoveredRollbacks() - before.getRecoveredRollbacks() == 1);
+
+			ResultSet rs = log.executeQuery("SELECT State FROM ShardTransferLog ORDER BY TxId");
+			assertTrue(rs.next() && "DONE".equals(rs.getString(1)));
+			assertTrue(rs.next() && "ABORTED".equals(rs.getString(1)));
+		}
+		assertTrue(accountDAO.getAccountById(1).getBalance().compareTo(new BigDecimal(105)) == 0);
+		if (accountDAO.shardOf(2) == shard) {
+			assertTrue(accountDAO.getAccountById(2).getBalance().compareTo(new BigDecimal(200)) == 0);
+		}
+	}
+
+	/**
+	 * Test the resolver commits, while running, a shard transaction left
+	 * prepared once its transfer was logged COMMITTED long enough ago, and
+	 * leaves one just decided to its transfer.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testResolverCommitsDecidedTransactions() throws Exception {
+		int shard = accountDAO.shardOf(1);
+		String url = "jdbc:h2:mem:moneyapp_shard" + shard + ";DB_CLOSE_DELAY=-1";
+		try (Connection catalog = DriverManager.getConnection("jdbc:h2:mem:moneyapp_catalog;DB_CLOSE_DELAY=-1",
+				"sa", "sa");
+				Connection stale = DriverManager.getConnection(url, "sa", "sa");
+				Connection recent = DriverManager.getConnection(url, "sa", "sa")) {
+			Statement log = catalog.createStatement();
+			int usd = CurrencyTable.idOf("USD");
+			log.executeUpdate("INSERT INTO ShardTransferLog (TxId, FromAccountId, ToAccountId, AmountUnits, CurrencyId, "
+					+ "State, CreatedAt, UpdatedAt) VALUES (201, 2, 1, 50000, " + usd + ", 'COMMITTED', "
+					+ "DATEADD('MINUTE', -1, NOW()), DATEADD('MINUTE', -1, NOW()))");
+			log.executeUpdate("INSERT INTO ShardTransferLog (TxId, FromAccountId, ToAccountId, AmountUnits, CurrencyId, "
+					+ "State, CreatedAt, UpdatedAt) VALUES (202, 2, 1, 70000, " + usd + ", 'COMMITTED', NOW(), NOW())");
+			stale.setAutoCommit(false);
+			stale.createStatement().executeUpdate("UPDATE Account SET BalanceUnits = BalanceUnits + 50000 WHERE AccountId = 1");
+			stale.createStatement().execute("PREPARE COMMIT TX_201_" + shard);
+			recent.setAutoCommit(false);
+			recent.createStatement().executeUpdate("UPDATE Account SET BalanceUnits = BalanceUnits + 70000 WHERE AccountId = 3");
+			recent.createStatement().execute("PREPARE COMMIT TX_202_" + shard);
+
+			assertTrue(accountDAO.resolveInDoubt() == 1);
+			ResultSet rs = log.executeQuery("SELECT State FROM ShardTransferLog ORDER BY TxId");
+			assertTrue(rs.next() && "DONE".equals(rs.getString(1)));
+			assertTrue(rs.next() && "COMMITTED".equals(rs.getString(1)));
+			assertTrue(accountDAO.getAccountById(1).getBalance().compareTo(new BigDecimal(105)) == 0);
+
+			recent.commit();
+		}
+		assertTrue(accountDAO.resolveInDoubt() == 0);
+	}
+
+	/**
+	 * Test a transfer from an account to itself is rejected by its shard and
+	 * leaves the balance alone.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testTransferToSameAccount() throws CustomException {
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.TEN, 1L, 1L));
+			assertTrue(false);
+		} catch (CustomException e) {
+			// same account
+		}
+		assertTrue(accountDAO.getAccountById(1).getBalance().compareTo(new BigDecimal(100)) == 0);
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.impl.InMemoryAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore;
+import com.abcbank.moneytransfer.dao.impl.InMemoryUserDAOImpl;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.journal.Snapshot;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.User;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestSnapshot.
+ */
+public class TestSnapshot {
+
+	/** The journal directory. */
+	private File dir;
+
+	/**
+	 * Create an empty journal directory.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Before
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("snapshot").toFile();
+	}
+
+	/**
+	 * Remove the journal directory.
+	 */
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test a restart restores the snapshot and replays only the records after
+	 * it.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSnapshotAndTailReplay() throws Exception {
+		Journal journal = new Journal(dir, 4096, 10, true);
+		InMemoryStore store = new InMemoryStore(16, 16, journal);
+		InMemoryUserDAOImpl userDAO = new InMemoryUserDAOImpl(store);
+		InMemoryAccountDAOImpl accountDAO = new InMemoryAccountDAOImpl(store);
+		userDAO.insertUser(new User("alice", "alice@gmail.com"));
+		long bob = userDAO.insertUser(new User("bob", "bob@gmail.com")).getUserId();
+		long a = accountDAO.createAccount(new Account("alice", new BigDecimal(100), "USD")).getAccountId();
+		long b = accountDAO.createAccount(new Account("bob", new BigDecimal(50), "USD")).getAccountId();
+		long c = accountDAO.createAccount(new Account("bob", new BigDecimal(10), "EUR")).getAccountId();
+		for (int i = 0; i < 200; i++) {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.ONE, i % 2 == 0 ? a : b,
+					i % 2 == 0 ? b : a));
+		}
+		Snapshot snapshot = store.snapshot();
+		assertTrue(snapshot.getJournalSeq() == journal.getLastSeq());
+		snapshot.write(dir);
+
+		// the tail: changes of every kind after the snapshot
+		accountDAO.updateAccountBalance(a, new BigDecimal("-0.5"));
+		accountDAO.deleteAccountById(c);
+		long d = accountDAO.createAccount(new Account("carol", new BigDecimal(7), "GBP")).getAccountId();
+		userDAO.updateUser(bob, new User("bob", "bob@yahoo.com"));
+		journal.close();
+
+		journal = new Journal(dir, 4096, 10, true);
+		InMemoryStore restored = new InMemoryStore(16, 16, journal);
+		Snapshot latest = Snapshot.readLatest(dir);
+		assertTrue(latest.getJournalSeq() == snapshot.getJournalSeq());
+		restored.restore(latest);
+		assertTrue(journal.replay(latest.getJournalSeq(), restored::apply) == 4);
+
+		InMemoryAccountDAOImpl restoredAccounts = new InMemoryAccountDAOImpl(restored);
+		InMemoryUserDAOImpl restoredUsers = new InMemoryUserDAOImpl(restored);
+		assertTrue(restoredAccounts.getAccountById(a).getBalance().equals(new BigDecimal("99.5000")));
+		assertTrue(restoredAccounts.getAccountById(b).getBalance().equals(new BigDecimal("50.0000")));
+		assertTrue(restoredAccounts.getAccountById(c) == null);
+		assertTrue(restoredAccounts.getAccountById(d).getCurrencyCode().equals("GBP"));
+		assertTrue(restoredUsers.getUserById(bob).getEmailAddress().equals("bob@yahoo.com"));
+		// sequences continue after the replayed ids
+		assertTrue(restoredAccounts.createAccount(new Account("dave", BigDecimal.ONE, "USD")).getAccountId() == d + 1);
+		assertTrue(restoredUsers.insertUser(new User("dave", "dave@gmail.com")).getUserId() == bob + 1);
+		journal.close();
+	}
+
+	/**
+	 * Test a corrupt newest snapshot falls back to the previous one, and old
+	 * snapshots and journal segments are deleted.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testCorruptSnapshotAndRetention() throws Exception {
+		Journal journal = new Journal(dir, 1024, 10, true);
+		InMemoryStore store = new InMemoryStore(16, 16, journal);
+		InMemoryAccountDAOImpl accountDAO = new InMemoryAccountDAOImpl(store);
+		long a = accountDAO.createAccount(new Account("alice", new BigDecimal(100), "USD")).getAccountId();
+		File first = store.snapshot().write(dir);
+		for (int i = 0; i < 100; i++) {
+			accountDAO.updateAccountBalance(a, BigDecimal.ONE);
+		}
+		File second = store.snapshot().write(dir);
+		try (RandomAccessFile raf = new RandomAccessFile(second, "rw")) {
+			raf.seek(30);
+			raf.write(0x7f);
+		}
+		assertTrue(Snapshot.readLatest(dir).getJournalSeq() == 1);
+
+		for (int i = 0; i < 100; i++) {
+			accountDAO.updateAccountBalance(a, BigDecimal.ONE);
+		}
+		store.snapshot().write(dir);
+		int segments = dir.listFiles((d, name) -> name.startsWith("journal-")).length;
+		long oldest = Snapshot.deleteOlder(dir, 2);
+		assertTrue(oldest == 101);
+		assertTrue(!first.exists());
+		assertTrue(journal.deleteSegmentsBefore(oldest + 1) > 0);
+		assertTrue(dir.listFiles((d, name) -> name.startsWith("journal-")).length < segments);
+
+		// the latest snapshot plus the remaining journal give the current state
+		for (int i = 0; i < 5; i++) {
+			accountDAO.updateAccountBalance(a, BigDecimal.ONE);
+		}
+		InMemoryStore restored = new InMemoryStore(16, 16);
+		Snapshot latest = Snapshot.readLatest(dir);
+		restored.restore(latest);
+		assertTrue(journal.replay(latest.getJournalSeq(), restored::apply) == 5);
+		assertTrue(new InMemoryAccountDAOImpl(restored).getAccountById(a).getBalance()
+				.equals(new BigDecimal("305.0000")));
+		journal.close();
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.AccountDAO;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.TransferDAO;
+import com.abcbank.moneytransfer.dao.TransferHistoryMode;
+import com.abcbank.moneytransfer.dao.impl.AccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore;
+import com.abcbank.moneytransfer.dao.impl.InMemoryTransferDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.TransferHistoryWriter;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.Journal;
+import com.abcbank.moneytransfer.journal.Snapshot;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.Transfer;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.List;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestTransferHistory.
+ */
+public class TestTransferHistory {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test a committed transfer has its history row once the call returns and
+	 * a rejected one has none.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Test
+	public void testSyncHistory() throws CustomException {
+		AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		accountDAO.transferAccountBalance(new UserTransaction("EUR", new BigDecimal("12.5"), 3L, 4L));
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("EUR", new BigDecimal(10000), 3L, 4L));
+		} catch (CustomException e) {
+			// not enough fund
+		}
+		List<Transfer> transfers = h2DaoFactory.getTransferDAO().getTransfersByAccountId(4);
+		assertTrue(transfers.size() == 1);
+		Transfer t = transfers.get(0);
+		assertTrue(t.getFromAccountId() == 3 && t.getToAccountId() == 4);
+		assertTrue(t.getAmount().compareTo(new BigDecimal("12.5")) == 0);
+		assertTrue(t.getCurrencyCode().equals("EUR"));
+		assertTrue(t.getCreatedAt() > 0);
+		assertTrue(h2DaoFactory.getTransferDAO().getTransfersByAccountId(1).isEmpty());
+	}
+
+	/**
+	 * Test async mode writes every transfer in batches.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testAsyncHistory() throws Exception {
+		TransferHistoryWriter writer = new TransferHistoryWriter(4, 3);
+		AccountDAOImpl accountDAO = new AccountDAOImpl(new AccountDAOImpl.Options().history(TransferHistoryMode.ASYNC, writer));
+		for (int i = 0; i < 20; i++) {
+			accountDAO.transferAccountBalance(new UserTransaction("GBP", BigDecimal.ONE, 5L, 6L));
+		}
+		assertTrue(writer.awaitFlushed(10000));
+		TransferHistoryWriter.Stats stats = writer.getStats();
+		assertTrue(stats.getWritten() == 20);
+		assertTrue(stats.getDropped() == 0);
+		assertTrue(stats.getMaxBatchSize() <= 3);
+		assertTrue(h2DaoFactory.getTransferDAO().getTransfersByAccountId(5).size() == 20);
+		writer.close();
+	}
+
+	/**
+	 * Test every row submitted while the writer closes is either inserted or
+	 * counted as dropped, and a submit after close drops without throwing.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testAsyncHistoryClose() throws Exception {
+		final TransferHistoryWriter writer = new TransferHistoryWriter(4, 3);
+		Thread[] submitters = new Thread[4];
+		for (int t = 0; t < submitters.length; t++) {
+			submitters[t] = new Thread(() -> {
+				for (int i = 0; i < 50; i++) {
+					writer.submit(new Transfer(0, 5L, 6L, 1L, "GBP", System.currentTimeMillis()));
+				}
+			});
+			submitters[t].start();
+		}
+		Thread.sleep(5);
+		writer.close();
+		for (Thread submitter : submitters) {
+			submitter.join();
+		}
+		assertTrue(!writer.submit(new Transfer(0, 5L, 6L, 1L, "GBP", System.currentTimeMillis())));
+		TransferHistoryWriter.Stats stats = writer.getStats();
+		assertTrue(stats.getSubmitted() == 201);
+		assertTrue(stats.getQueued() == 0);
+		assertTrue(stats.getWritten() + stats.getDropped() == 201);
+	}
+
+	/**
+	 * Test the in memory history survives a snapshot and journal replay with
+	 * the same ids.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testInMemoryHistoryReplay() throws Exception {
+		File dir = Files.createTempDirectory("history").toFile();
+		try {
+			Journal journal = new Journal(dir, 4096, 10, true);
+			InMemoryStore store = new InMemoryStore(16, 16, journal);
+			InMemoryAccountDAOImpl accountDAO = new InMemoryAccountDAOImpl(store);
+			long a = accountDAO.createAccount(new Account("a", new BigDecimal(100), "USD")).getAccountId();
+			long b = accountDAO.createAccount(new Account("b", new BigDecimal(100), "USD")).getAccountId();
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.TEN, a, b));
+			store.snapshot().write(dir);
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.ONE, b, a));
+			List<Transfer> before = new InMemoryTransferDAOImpl(store).getTransfersByAccountId(a);
+			journal.close();
+
+			journal = new Journal(dir, 4096, 10, true);
+			InMemoryStore restored = new InMemoryStore(16, 16, journal);
+			Snapshot snapshot = Snapshot.readLatest(dir);
+			restored.restore(snapshot);
+			journal.replay(snapshot.getJournalSeq(), restored::apply);
+			TransferDAO transferDAO = new InMemoryTransferDAOImpl(restored);
+			List<Transfer> after = transferDAO.getTransfersByAccountId(a);
+			assertTrue(before.size() == 2 && after.size() == 2);
+			for (int i = 0; i < 2; i++) {
+				assertTrue(after.get(i).getTransferId() == before.get(i).getTransferId());
+				assertTrue(after.get(i).getCreatedAt() == before.get(i).getCreatedAt());
+				assertTrue(after.get(i).getAmount().compareTo(before.get(i).getAmount()) == 0);
+			}
+			assertTrue(after.get(1).getFromAccountId() == b);
+			journal.close();
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.impl.InMemoryAccountDAOImpl;
+import com.abcbank.moneytransfer.dao.impl.InMemoryStore;
+import com.abcbank.moneytransfer.dao.impl.TransferPipeline;
+import com.abcbank.moneytransfer.exception.CustomException;
+import com.abcbank.moneytransfer.journal.Snapshot;
+import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestTransferPipeline.
+ */
+public class TestTransferPipeline {
+
+	/** The store. */
+	private InMemoryStore store;
+
+	/** The pipeline. */
+	private TransferPipeline pipeline;
+
+	/** The account DAO. */
+	private InMemoryAccountDAOImpl accountDAO;
+
+	/** The account ids. */
+	private final List<Long> ids = new ArrayList<Long>();
+
+	/**
+	 * Create 32 accounts of 100 USD and start a 4 shard pipeline.
+	 *
+	 * @throws CustomException the custom exception
+	 */
+	@Before
+	public void setup() throws CustomException {
+		store = new InMemoryStore(16, 64);
+		accountDAO = new InMemoryAccountDAOImpl(store);
+		for (int i = 0; i < 32; i++) {
+			ids.add(accountDAO.createAccount(new Account("user" + i, new BigDecimal(100), "USD")).getAccountId());
+		}
+		pipeline = store.startPipeline(4, 64);
+	}
+
+	/**
+	 * Stop the pipeline.
+	 */
+	@After
+	public void tearDown() {
+		pipeline.close();
+	}
+
+	/**
+	 * Test concurrent transfers within and across shards keep the total, and a
+	 * snapshot taken meanwhile sees no transfer half applied.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testTransfersAcrossShards() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < 8; t++) {
+			long seed = t;
+			results.add(pool.submit(() -> {
+				Random random = new Random(seed);
+				for (int i = 0; i < 2000; i++) {
+					long from = ids.get(random.nextInt(ids.size()));
+					long to = ids.get(random.nextInt(ids.size()));
+					try {
+						accountDAO.transferAccountBalance(
+								new UserTransaction("USD", new BigDecimal(random.nextInt(30)), from, to));
+					} catch (CustomException e) {
+						// not enough fund
+					}
+				}
+				return null;
+			}));
+		}
+		for (int i = 0; i < 20; i++) {
+			Snapshot snapshot = store.snapshot();
+			BigDecimal total = BigDecimal.ZERO;
+			for (Account account : snapshot.getAccounts()) {
+				total = total.add(account.getBalance());
+			}
+			assertTrue(total.compareTo(new BigDecimal(3200)) == 0);
+			Thread.sleep(5);
+		}
+		for (Future<?> result : results) {
+			result.get();
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+		BigDecimal total = BigDecimal.ZERO;
+		for (Account account : accountDAO.getAllAccounts()) {
+			assertTrue(account.getBalance().signum() >= 0);
+			total = total.add(account.getBalance());
+		}
+		assertTrue(total.compareTo(new BigDecimal(3200)) == 0);
+
+		TransferPipeline.Stats stats = pipeline.getStats();
+		long applied = 0;
+		long forwarded = 0;
+		for (int i = 0; i < stats.getShards(); i++) {
+			applied += stats.getApplied()[i];
+			forwarded += stats.getForwarded()[i];
+		}
+		// a forwarded transfer is applied by both of its shards
+		assertTrue(applied == 16000 + forwarded);
+		assertTrue(forwarded > 0);
+	}
+
+	/**
+	 * Test snapshots and close do not hang while lower shards forward
+	 * transfers into higher shards whose two slot rings are full.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test(timeout = 60000)
+	public void testPauseAndCloseWithFullRings() throws Exception {
+		InMemoryStore small = new InMemoryStore(16, 64);
+		InMemoryAccountDAOImpl smallDAO = new InMemoryAccountDAOImpl(small);
+		List<Long> smallIds = new ArrayList<Long>();
+		for (int i = 0; i < 16; i++) {
+			smallIds.add(smallDAO.createAccount(new Account("user" + i, new BigDecimal(100), "USD")).getAccountId());
+		}
+		TransferPipeline tiny = small.startPipeline(4, 2);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++) {
+			long seed = t;
+			pool.submit(() -> {
+				Random random = new Random(seed);
+				while (!Thread.currentThread().isInterrupted()) {
+					long from = smallIds.get(random.nextInt(smallIds.size()));
+					long to = smallIds.get(random.nextInt(smallIds.size()));
+					try {
+						smallDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.ONE, from, to));
+					} catch (CustomException e) {
+						// not enough fund, or closed
+						if (e.getMessage().contains("closed")) {
+							return null;
+						}
+					}
+				}
+				return null;
+			});
+		}
+		for (int i = 0; i < 200; i++) {
+			BigDecimal total = BigDecimal.ZERO;
+			for (Account account : small.snapshot().getAccounts()) {
+				total = total.add(account.getBalance());
+			}
+			assertTrue(total.compareTo(new BigDecimal(1600)) == 0);
+		}
+		long start = System.nanoTime();
+		tiny.close();
+		// a shard left waiting on a stopped higher shard would hold close for its join timeout
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Test deposits, withdrawals, deletes and rejects go through the owning
+	 * shard.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSingleAccountRequests() throws Exception {
+		long a = ids.get(0);
+		long b = ids.get(1);
+		assertTrue(accountDAO.adjustAccountBalance(a, new BigDecimal("-40.5")).compareTo(new BigDecimal("59.5")) == 0);
+		try {
+			accountDAO.adjustAccountBalance(a, new BigDecimal(-60));
+			assertTrue(false);
+		} catch (CustomException e) {
+			assertTrue(e.getMessage().startsWith("Not sufficient Fund"));
+		}
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", new BigDecimal(1000), a, b));
+			assertTrue(false);
+		} catch (CustomException e) {
+			assertTrue(e.getMessage().startsWith("Not enough Fund"));
+		}
+		assertTrue(accountDAO.deleteAccountById(b) == 1);
+		assertTrue(accountDAO.deleteAccountById(b) == 0);
+		try {
+			accountDAO.transferAccountBalance(new UserTransaction("USD", BigDecimal.ONE, a, b));
+			assertTrue(false);
+		} catch (CustomException e) {
+			assertTrue(e.getMessage().startsWith("Fail to lock both accounts"));
+		}
+		assertTrue(accountDAO.getAccountById(a).getBalance().compareTo(new BigDecimal("59.5")) == 0);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2019 Vikram Boyapati.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.taskforce.moneyapp.dao;
+
+import com.abcbank.moneytransfer.dao.ConnectionPool;
+import com.abcbank.moneytransfer.dao.DAOFactory;
+import com.abcbank.moneytransfer.dao.SchemaInitializer;
+import com.abcbank.moneytransfer.dao.TransferSubmitter;
+import com.abcbank.moneytransfer.model.TransferStatus;
+import com.abcbank.moneytransfer.model.UserTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertTrue;
+
+
+/**
+ * The Class TestTransferSubmitter.
+ */
+public class TestTransferSubmitter {
+
+	/** The Constant h2DaoFactory. */
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+
+	/**
+	 * Reset the demo data.
+	 */
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	/**
+	 * Test queued transfers run, and the statuses beyond the in-memory
+	 * capacity are spilled to the TransferStatus table and still found.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testStatusesSpilled() throws Exception {
+		ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:submitterTest;DB_CLOSE_DELAY=-1", "sa", "sa", 2, 0, 0,
+				200, 1, 0, 4);
+		try (Connection conn = pool.getConnection()) {
+			SchemaInitializer.migrate(conn);
+		}
+		TransferSubmitter submitter = new TransferSubmitter(h2DaoFactory.getAccountDAO(), pool, 2, 100, 4);
+		List<Long> transferIds = new ArrayList<Long>();
+		for (int i = 0; i < 40; i++) {
+			TransferStatus queued = submitter.submit(new UserTransaction("GBP", BigDecimal.ONE, 5L, 6L));
+			assertTrue(queued.getStatus() == TransferStatus.Status.QUEUED);
+			transferIds.add(queued.getTransferId());
+		}
+		// a transfer of a missing account is queued, then rejected
+		long rejected = submitter.submit(new UserTransaction("GBP", BigDecimal.ONE, 5L, 999L)).getTransferId();
+		submitter.close();
+
+		assertTrue(submitter.getSubmitted() == 41 && submitter.getSpilled() > 0);
+		for (long transferId : transferIds) {
+			assertTrue(submitter.getStatus(transferId).getStatus() == TransferStatus.Status.COMMITTED);
+		}
+		assertTrue(submitter.getStatus(rejected).getStatus() == TransferStatus.Status.REJECTED);
+		assertTrue(submitter.getStatus(rejected - 1000) == null);
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(6).getBalance().compareTo(new BigDecimal(540)) == 0);
+		pool.close();
+	}
+
+	/**
+	 * Test a submitter without a spill table drops the oldest statuses.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testStatusesDropped() throws Exception {
+		TransferSubmitter submitter = new TransferSubmitter(h2DaoFactory.getAccountDAO(), null, 1, 100, 4);
+		long first = submitter.submit(new UserTransaction("GBP", BigDecimal.ONE, 5L, 6L)).getTransferId();
+		long last = first;
+		for (int i = 0; i < 10; i++) {
+			last = submitter.submit(new UserTransaction("GBP", BigDecimal.ONE, 5L, 6L)).getTransferId();
+		}
+		submitter.close();
+		assertTrue(submitter.getStatus(first) == null);
+		assertTrue(submitter.getStatus(last).getStatus() == TransferStatus.Status.COMMITTED);
+		assertTrue(submitter.getSpilled() == 0);
+	}
+}
@@ -105,8 +105,9 @@ public class TestUserDAO {
 	@Test
 	public void testCreateUser() throws CustomException {
 		User u = new User("liandre", "liandre@gmail.com");
-		long id = h2DaoFactory.getUserDAO().insertUser(u);
-		User uAfterInsert = h2DaoFactory.getUserDAO().getUserById(id);
+		User created = h2DaoFactory.getUserDAO().insertUser(u);
+		User uAfterInsert = h2DaoFactory.getUserDAO().getUserById(created.getUserId());
+		assertTrue(created.equals(uAfterInsert));
 		assertTrue(uAfterInsert.getUserName().equals("liandre"));
 		assertTrue(u.getEmailAddress().equals("liandre@gmail.com"));
 	}
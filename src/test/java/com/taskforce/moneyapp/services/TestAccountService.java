@@ -10,21 +10,28 @@
  */ 
 package com.taskforce.moneyapp.services;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 
 import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.BalanceAdjustment;
+import com.abcbank.moneytransfer.model.BalanceResult;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertTrue;
 
@@ -216,4 +223,87 @@ public class TestAccountService extends TestService {
     }
 
 
+
+    /**
+     * Test paging through all accounts and streaming them give the full list.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    /*
+    TC A8 Positive Category = AccountService
+    Scenario: page through all accounts 2 at a time, then stream them
+              return 200 OK, same accounts in id order
+    */
+    @Test
+    public void testPagedAndStreamedAccounts() throws IOException, URISyntaxException {
+        HttpResponse response = client.execute(new HttpGet(builder.setPath("/account/all").build()));
+        Account[] all = mapper.readValue(EntityUtils.toString(response.getEntity()), Account[].class);
+
+        List<Account> paged = new ArrayList<Account>();
+        String afterId = "0";
+        while (afterId != null) {
+            URI uri = builder.setPath("/account/all").setParameter("limit", "2").setParameter("afterId", afterId).build();
+            response = client.execute(new HttpGet(uri));
+            assertTrue(response.getStatusLine().getStatusCode() == 200);
+            Account[] page = mapper.readValue(EntityUtils.toString(response.getEntity()), Account[].class);
+            assertTrue(page.length <= 2);
+            paged.addAll(Arrays.asList(page));
+            Header next = response.getFirstHeader("X-Next-After-Id");
+            afterId = next == null ? null : next.getValue();
+        }
+
+        URI uri = builder.setPath("/account/all").clearParameters().setParameter("stream", "true").build();
+        response = client.execute(new HttpGet(uri));
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        Account[] streamed = mapper.readValue(EntityUtils.toString(response.getEntity()), Account[].class);
+
+        assertTrue(all.length > 2 && paged.size() == all.length && streamed.length == all.length);
+        for (int i = 0; i < all.length; i++) {
+            assertTrue(paged.get(i).getAccountId() == streamed[i].getAccountId());
+            assertTrue(streamed[i].equals(paged.get(i)));
+            if (i > 0)
+                assertTrue(streamed[i].getAccountId() > streamed[i - 1].getAccountId());
+        }
+
+        uri = builder.setPath("/account/all").clearParameters().setParameter("limit", "0").build();
+        response = client.execute(new HttpGet(uri));
+        assertTrue(response.getStatusLine().getStatusCode() == 400);
+    }
+
+    /**
+     * Test a bulk deposit and withdrawal.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    /*
+    TC A9 Positive Category = AccountService
+    Scenario: deposit to and withdraw from an account, and deposit to a missing one, in one request
+              return 200 OK with the balance after each adjustment, NOT_FOUND for the missing account
+    */
+    @Test
+    public void testAdjustBalances() throws IOException, URISyntaxException {
+        URI uri = builder.setPath("/account/adjust").clearParameters().build();
+        HttpPost request = new HttpPost(uri);
+        request.setHeader("Content-type", "application/json");
+        request.setEntity(new StringEntity(mapper.writeValueAsString(Arrays.asList(
+                new BalanceAdjustment(2L, new BigDecimal(10)),
+                new BalanceAdjustment(900L, new BigDecimal(10)),
+                new BalanceAdjustment(2L, new BigDecimal(-10))))));
+        HttpResponse response = client.execute(request);
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        BalanceResult[] results = mapper.readValue(EntityUtils.toString(response.getEntity()), BalanceResult[].class);
+        assertTrue(results.length == 3);
+        assertTrue(results[0].getStatus() == BalanceResult.Status.APPLIED);
+        assertTrue(results[0].getBalance().compareTo(new BigDecimal(210)) == 0);
+        assertTrue(results[1].getStatus() == BalanceResult.Status.NOT_FOUND && results[1].getBalance() == null);
+        assertTrue(results[2].getBalance().compareTo(new BigDecimal(200)) == 0);
+
+        request.setEntity(new StringEntity("[{\"accountId\":2}]"));
+        response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 400);
+    }
+
 }
@@ -13,6 +13,7 @@ package com.taskforce.moneyapp.services;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.abcbank.moneytransfer.dao.DAOFactory;
 import com.abcbank.moneytransfer.service.AccountService;
+import com.abcbank.moneytransfer.service.MetricsService;
 import com.abcbank.moneytransfer.service.ServiceExceptionMapper;
 import com.abcbank.moneytransfer.service.TransactionService;
 import com.abcbank.moneytransfer.service.UserService;
@@ -102,7 +103,8 @@ public abstract class TestService {
                     UserService.class.getCanonicalName() + "," +
                             AccountService.class.getCanonicalName() + "," +
                             ServiceExceptionMapper.class.getCanonicalName() + "," +
-                            TransactionService.class.getCanonicalName());
+                            TransactionService.class.getCanonicalName() + "," +
+                            MetricsService.class.getCanonicalName());
             server.start();
         }
     }
@@ -12,6 +12,7 @@ package com.taskforce.moneyapp.services;
 
 
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.StringEntity;
@@ -19,6 +20,8 @@ import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 
 import com.abcbank.moneytransfer.model.Account;
+import com.abcbank.moneytransfer.model.TransferResult;
+import com.abcbank.moneytransfer.model.TransferStatus;
 import com.abcbank.moneytransfer.model.UserTransaction;
 
 import java.io.IOException;
@@ -26,6 +29,7 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertTrue;
 
@@ -200,5 +204,169 @@ public class TestTransactionService extends TestService {
 
     }
 
+    /**
+     * Test transaction invalid amount.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    /*
+       TC C5 Negative Category = TransactionService
+       Scenario: test a transaction of a negative amount, then one of no amount
+                 return 400 BAD REQUEST before any account is touched
+    */
+    @Test
+    public void testTransactionInvalidAmount() throws IOException, URISyntaxException {
+        URI uri = builder.setPath("/transaction").build();
+        HttpPost request = new HttpPost(uri);
+        request.setHeader("Content-type", "application/json");
+        request.setEntity(new StringEntity(mapper.writeValueAsString(
+                new UserTransaction("EUR", new BigDecimal(-10), 3L, 4L))));
+        HttpResponse response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 400);
+
+        request.setEntity(new StringEntity(mapper.writeValueAsString(
+                new UserTransaction("EUR", null, 3L, 4L))));
+        response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 400);
+    }
+
+    /**
+     * Test transaction batch.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    /*
+       TC C2 Positive Category = TransactionService
+       Scenario: test a batch of transactions, one with not enough fund, then a batch with an unknown mode
+                 return 200 OK with the result of each transaction, then 400 BAD REQUEST
+    */
+    @Test
+    public void testTransactionBatch() throws IOException, URISyntaxException {
+        URI uri = builder.setPath("/transaction/batch").build();
+        String jsonInString = mapper.writeValueAsString(Arrays.asList(
+                new UserTransaction("GBP", new BigDecimal(100), 5L, 6L),
+                new UserTransaction("GBP", new BigDecimal(100000), 6L, 5L)));
+        HttpPost request = new HttpPost(uri);
+        request.setHeader("Content-type", "application/json");
+        request.setEntity(new StringEntity(jsonInString));
+        HttpResponse response = client.execute(request);
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        TransferResult[] results = mapper.readValue(EntityUtils.toString(response.getEntity()), TransferResult[].class);
+        assertTrue(results.length == 2);
+        assertTrue(results[0].getStatus() == TransferResult.Status.COMMITTED);
+        assertTrue(results[1].getStatus() == TransferResult.Status.REJECTED && results[1].getIndex() == 1);
+
+        request = new HttpPost(builder.setPath("/transaction/batch").setParameter("mode", "sometimes").build());
+        request.setHeader("Content-type", "application/json");
+        request.setEntity(new StringEntity(jsonInString));
+        response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 400);
+    }
+
+    /**
+     * Test transaction idempotency key.
+     *
+     * @throws Exception the exception
+     */
+    /*
+       TC C3 Positive Category = TransactionService
+       Scenario: test a transaction posted twice with the same Idempotency-Key, then the key reused for another
+                 transaction, then a failed transaction posted twice with its own key
+                 return 200 OK then the same response replayed and the fund moved once, 422, 500 twice
+    */
+    @Test
+    public void testTransactionIdempotencyKey() throws Exception {
+        BigDecimal before = h2DaoFactory.getAccountDAO().getAccountById(6L).getBalance();
+        UserTransaction transaction = new UserTransaction("GBP", new BigDecimal(10), 6L, 5L);
+        HttpResponse response = postTransaction(transaction, "tc-c3-transfer");
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        assertTrue(response.getFirstHeader("Idempotent-Replayed") == null);
+
+        response = postTransaction(transaction, "tc-c3-transfer");
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        assertTrue(response.getFirstHeader("Idempotent-Replayed").getValue().equals("true"));
+        assertTrue(h2DaoFactory.getAccountDAO().getAccountById(6L).getBalance()
+                .compareTo(before.subtract(new BigDecimal(10))) == 0);
+
+        response = postTransaction(new UserTransaction("GBP", new BigDecimal(20), 6L, 5L), "tc-c3-transfer");
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 422);
+
+        UserTransaction tooLarge = new UserTransaction("GBP", new BigDecimal(100000), 6L, 5L);
+        response = postTransaction(tooLarge, "tc-c3-not-enough-fund");
+        String firstBody = EntityUtils.toString(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 500);
+        response = postTransaction(tooLarge, "tc-c3-not-enough-fund");
+        assertTrue(response.getStatusLine().getStatusCode() == 500);
+        assertTrue(EntityUtils.toString(response.getEntity()).equals(firstBody));
+        assertTrue(response.getFirstHeader("Idempotent-Replayed") != null);
+    }
+
+    /**
+     * Test async transaction.
+     *
+     * @throws Exception the exception
+     */
+    /*
+       TC C4 Positive Category = TransactionService
+       Scenario: test a transaction queued with async=true, polled until done, then an invalid one and an unknown id
+                 return 202 ACCEPTED then 200 OK with status COMMITTED, 400 BAD REQUEST, 404 NOT FOUND
+    */
+    @Test
+    public void testTransactionAsync() throws Exception {
+        HttpPost request = new HttpPost(builder.setPath("/transaction").setParameter("async", "true").build());
+        request.setHeader("Content-type", "application/json");
+        request.setEntity(new StringEntity(mapper.writeValueAsString(
+                new UserTransaction("GBP", new BigDecimal(1), 5L, 6L))));
+        HttpResponse response = client.execute(request);
+        assertTrue(response.getStatusLine().getStatusCode() == 202);
+        TransferStatus queued = mapper.readValue(EntityUtils.toString(response.getEntity()), TransferStatus.class);
+        assertTrue(response.getFirstHeader("Location").getValue().endsWith("/transaction/" + queued.getTransferId()));
+
+        TransferStatus status = queued;
+        for (int i = 0; i < 100 && status.getStatus() == TransferStatus.Status.QUEUED; i++) {
+            Thread.sleep(20);
+            response = client.execute(new HttpGet(builder.setPath("/transaction/" + queued.getTransferId())
+                    .clearParameters().build()));
+            assertTrue(response.getStatusLine().getStatusCode() == 200);
+            status = mapper.readValue(EntityUtils.toString(response.getEntity()), TransferStatus.class);
+        }
+        assertTrue(status.getStatus() == TransferStatus.Status.COMMITTED);
+
+        request.setEntity(new StringEntity(mapper.writeValueAsString(
+                new UserTransaction("GBP", new BigDecimal(-1), 5L, 6L))));
+        response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 400);
+
+        response = client.execute(new HttpGet(builder.setPath("/transaction/1").clearParameters().build()));
+        EntityUtils.consume(response.getEntity());
+        assertTrue(response.getStatusLine().getStatusCode() == 404);
+    }
+
+    /**
+     * Post a transaction with an idempotency key.
+     *
+     * @param transaction the transaction
+     * @param idempotencyKey the idempotency key
+     * @return the response
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    private HttpResponse postTransaction(UserTransaction transaction, String idempotencyKey)
+            throws IOException, URISyntaxException {
+        HttpPost request = new HttpPost(builder.setPath("/transaction").build());
+        request.setHeader("Content-type", "application/json");
+        request.setHeader("Idempotency-Key", idempotencyKey);
+        request.setEntity(new StringEntity(mapper.writeValueAsString(transaction)));
+        return client.execute(request);
+    }
 
 }
@@ -24,6 +24,7 @@ import com.abcbank.moneytransfer.model.User;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertTrue;
 
@@ -238,4 +239,34 @@ public class TestUserService extends TestService {
     }
 
 
+    /**
+     * Test a page of users and the streamed users.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    /*
+    TC D9 Positive Category = UserService
+    Scenario: get the first user page of size 1, then stream all users
+              return 200 OK, the page links to the next one
+   */
+    @Test
+    public void testPagedAndStreamedUsers() throws IOException, URISyntaxException {
+        HttpResponse response = client.execute(new HttpGet(builder.setPath("/user/all").build()));
+        User[] all = mapper.readValue(EntityUtils.toString(response.getEntity()), User[].class);
+
+        URI uri = builder.setPath("/user/all").setParameter("limit", "1").build();
+        response = client.execute(new HttpGet(uri));
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        User[] page = mapper.readValue(EntityUtils.toString(response.getEntity()), User[].class);
+        assertTrue(page.length == 1 && page[0].equals(all[0]));
+        assertTrue(response.getFirstHeader("X-Next-After-Id").getValue().equals(String.valueOf(page[0].getUserId())));
+
+        uri = builder.setPath("/user/all").clearParameters().setParameter("stream", "true").build();
+        response = client.execute(new HttpGet(uri));
+        assertTrue(response.getStatusLine().getStatusCode() == 200);
+        User[] streamed = mapper.readValue(EntityUtils.toString(response.getEntity()), User[].class);
+        assertTrue(Arrays.equals(streamed, all));
+    }
+
 }